@@ -0,0 +1,339 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an IndexedMesh to one of the binary formats Genmesh supports:
+ *
+ * .ply   binary little-endian PLY with a position, normal and texture
+ *        coordinate per vertex and a list of three indices per face
+ * .stl   binary STL, three positions and a face normal per triangle
+ * .gmesh the compact format of Genmesh, with quantized attributes:
+ *
+ *        header    "GMSH", int version, int vertex count, int triangle count,
+ *                  int flags (1 = 32-bit indices, 2 = levels of detail,
+ *                  4 = meshlets),
+ *                  float[3] minimum and float[3] maximum of the positions,
+ *                  float[2] minimum and float[2] maximum of the texture
+ *                  coordinates
+ *        levels    with flag 2, int level count, then the first triangle
+ *                  and the triangle count of every level
+ *        meshlets  with flag 4, int meshlet count, then the first triangle,
+ *                  the triangle count and the vertex count of every meshlet
+ *                  as ints and its bounding sphere x, y, z and radius as floats
+ *        vertices  3 unsigned shorts of position within the bounds,
+ *                  2 shorts of octahedral normal, 2 unsigned shorts of
+ *                  texture coordinate within the bounds (14 bytes)
+ *        triangles 3 unsigned shorts, or 3 ints with flag 1
+ *
+ * The levels of detail of a PLY file are "comment lod <level> <first>
+ * <count>" lines in its header, and its meshlets "comment meshlet <first>
+ * <count> <vertices> <x> <y> <z> <radius>" lines. STL has no way to tell them apart, so
+ * their triangles simply follow each other.
+ *
+ * Everything is little-endian. PLY and the compact format share a vertex
+ * between triangles only where the OBJ indices of the corners are all
+ * the same, so the mesh looks exactly like its OBJ file. Every vertex of
+ * theirs has a texture coordinate, though, so a corner without one, like
+ * those of the faces of a cylinder, is written as (0, 0) and comes back
+ * from a .ply or .gmesh file with vt = (0, 0).
+ *
+ * Records are put straight into a direct buffer that is written to the
+ * file channel whenever it fills up, like ObjWriter does.
+ */
+public class BinaryMeshWriter implements Closeable {
+    public static final int GMESH_VERSION = 1;
+    public static final int GMESH_HEADER = 60;
+    public static final int GMESH_VERTEX = 14;
+    public static final int FLAG_INT_INDICES = 1;
+    public static final int FLAG_LEVELS = 2;
+    public static final int FLAG_MESHLETS = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long bytesWritten = 0;
+
+    /**
+     * Creates the file, replacing any file with the same name.
+     *
+     * @param fileName the name of the file to write
+     * @throws IOException if the file can't be created
+     */
+    public BinaryMeshWriter(String fileName) throws IOException {
+        this.channel = new FileOutputStream(fileName, false).getChannel();
+    }
+
+    /**
+     * Checks if a file name ends with the extension of a binary format.
+     */
+    public static boolean isBinary(String fileName) {
+        return fileName.endsWith(".ply") || fileName.endsWith(".stl") || fileName.endsWith(".gmesh");
+    }
+
+    /**
+     * Writes the mesh in the format of the extension of a file name.
+     *
+     * @param mesh the mesh to write
+     * @param fileName the name with a .ply, .stl or .gmesh extension
+     * @throws IOException if the file can't be written or the mesh has an index out of range
+     */
+    public void write(IndexedMesh mesh, String fileName) throws IOException {
+        if (fileName.endsWith(".ply")) {
+            writePly(mesh);
+        } else if (fileName.endsWith(".stl")) {
+            writeStl(mesh);
+        } else {
+            writeQuantized(mesh);
+        }
+    }
+
+    /**
+     * Writes the mesh as a binary little-endian PLY file.
+     */
+    public void writePly(IndexedMesh mesh) throws IOException {
+        MeshCorners corners = new MeshCorners(mesh);
+        StringBuilder comments = new StringBuilder();
+        if (mesh.getLevelCount() > 1) {
+            for(int k=0;k<mesh.getLevelCount();k++) {
+                comments.append("comment lod ").append(k).append(' ').append(mesh.getLevelStart(k)).append(' ')
+                        .append(mesh.getLevelTriangles(k)).append('\n');
+            }
+        }
+        for(int m=0;m<mesh.getMeshletCount();m++) {
+            // The OBJ comment without its #
+            comments.append("comment").append(mesh.meshletRecord(m).substring(1)).append('\n');
+        }
+        putAscii("ply\nformat binary_little_endian 1.0\ncomment Genmesh\n" + comments
+                + "element vertex " + corners.getCount() + "\n"
+                + "property float x\nproperty float y\nproperty float z\n"
+                + "property float nx\nproperty float ny\nproperty float nz\n"
+                + "property float s\nproperty float t\n"
+                + "element face " + mesh.getTriangleCount() + "\n"
+                + "property list uchar int vertex_indices\nend_header\n");
+
+        float[] positions = mesh.getPositions();
+        float[] uvs = mesh.getUvs();
+        float[] normals = mesh.getNormals();
+        for(int k=0;k<corners.getCount();k++) {
+            reserve(32);
+            int p = 3*corners.getTriples()[3*k];
+            int t = corners.getTriples()[3*k + 1];
+            int n = 3*corners.getTriples()[3*k + 2];
+            buffer.putFloat(positions[p]).putFloat(positions[p + 1]).putFloat(positions[p + 2]);
+            buffer.putFloat(normals[n]).putFloat(normals[n + 1]).putFloat(normals[n + 2]);
+            buffer.putFloat(t < 0 ? 0 : uvs[2*t]).putFloat(t < 0 ? 0 : uvs[2*t + 1]);
+        }
+        for(int k=0;k<mesh.getTriangleCount();k++) {
+            reserve(13);
+            buffer.put((byte) 3);
+            buffer.putInt(corners.getVertexOf()[3*k]).putInt(corners.getVertexOf()[3*k + 1]).putInt(corners.getVertexOf()[3*k + 2]);
+        }
+    }
+
+    /**
+     * Writes the mesh as a binary STL file. STL has no shared vertices, no
+     * texture coordinates and only a normal per triangle, which is computed
+     * from the positions.
+     */
+    public void writeStl(IndexedMesh mesh) throws IOException {
+        reserve(84);
+        byte[] header = new byte[80];
+        byte[] name = "Genmesh binary STL".getBytes("US-ASCII");
+        System.arraycopy(name, 0, header, 0, name.length);
+        buffer.put(header);
+        buffer.putInt(mesh.getTriangleCount());
+
+        float[] positions = mesh.getPositions();
+        int[] triangles = mesh.getTriangles();
+        int vertexCount = mesh.getVertexCount();
+        for(int k=0;k<mesh.getTriangleCount();k++) {
+            int a = 3*MeshCorners.resolve(triangles[9*k], vertexCount);
+            int b = 3*MeshCorners.resolve(triangles[9*k + 3], vertexCount);
+            int c = 3*MeshCorners.resolve(triangles[9*k + 6], vertexCount);
+
+            // Face normal from the cross product of two edges
+            double ux = positions[b] - positions[a];
+            double uy = positions[b + 1] - positions[a + 1];
+            double uz = positions[b + 2] - positions[a + 2];
+            double vx = positions[c] - positions[a];
+            double vy = positions[c + 1] - positions[a + 1];
+            double vz = positions[c + 2] - positions[a + 2];
+            double nx = uy*vz - uz*vy;
+            double ny = uz*vx - ux*vz;
+            double nz = ux*vy - uy*vx;
+            double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if (length > 0) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+
+            reserve(50);
+            buffer.putFloat((float) nx).putFloat((float) ny).putFloat((float) nz);
+            buffer.putFloat(positions[a]).putFloat(positions[a + 1]).putFloat(positions[a + 2]);
+            buffer.putFloat(positions[b]).putFloat(positions[b + 1]).putFloat(positions[b + 2]);
+            buffer.putFloat(positions[c]).putFloat(positions[c + 1]).putFloat(positions[c + 2]);
+            buffer.putShort((short) 0);
+        }
+    }
+
+    /**
+     * Writes the mesh in the compact .gmesh format.
+     */
+    public void writeQuantized(IndexedMesh mesh) throws IOException {
+        MeshCorners corners = new MeshCorners(mesh);
+        float[] positions = mesh.getPositions();
+        float[] uvs = mesh.getUvs();
+        float[] normals = mesh.getNormals();
+
+        // Bounds of the positions and texture coordinates that are used
+        float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for(int k=0;k<corners.getCount();k++) {
+            int p = 3*corners.getTriples()[3*k];
+            int t = corners.getTriples()[3*k + 1];
+            for(int axis=0;axis<3;axis++) {
+                min[axis] = Math.min(min[axis], positions[p + axis]);
+                max[axis] = Math.max(max[axis], positions[p + axis]);
+            }
+            for(int axis=0;axis<2;axis++) {
+                float value = t < 0 ? 0 : uvs[2*t + axis];
+                min[3 + axis] = Math.min(min[3 + axis], value);
+                max[3 + axis] = Math.max(max[3 + axis], value);
+            }
+        }
+        if (corners.getCount() == 0) {
+            min = new float[5];
+            max = new float[5];
+        }
+
+        boolean intIndices = corners.getCount() > 0xFFFF;
+        reserve(GMESH_HEADER);
+        putAscii("GMSH");
+        buffer.putInt(GMESH_VERSION).putInt(corners.getCount()).putInt(mesh.getTriangleCount());
+        boolean levels = mesh.getLevelCount() > 1;
+        boolean meshlets = mesh.getMeshletCount() > 0;
+        buffer.putInt((intIndices ? FLAG_INT_INDICES : 0) | (levels ? FLAG_LEVELS : 0) | (meshlets ? FLAG_MESHLETS : 0));
+        buffer.putFloat(min[0]).putFloat(min[1]).putFloat(min[2]);
+        buffer.putFloat(max[0]).putFloat(max[1]).putFloat(max[2]);
+        buffer.putFloat(min[3]).putFloat(min[4]);
+        buffer.putFloat(max[3]).putFloat(max[4]);
+        if (levels) {
+            reserve(4);
+            buffer.putInt(mesh.getLevelCount());
+            for(int k=0;k<mesh.getLevelCount();k++) {
+                reserve(8);
+                buffer.putInt(mesh.getLevelStart(k)).putInt(mesh.getLevelTriangles(k));
+            }
+        }
+        if (meshlets) {
+            reserve(4);
+            buffer.putInt(mesh.getMeshletCount());
+            for(int m=0;m<mesh.getMeshletCount();m++) {
+                reserve(28);
+                buffer.putInt(mesh.getMeshletStart(m)).putInt(mesh.getMeshletTriangles(m)).putInt(mesh.getMeshletVertices(m));
+                for(int c=0;c<4;c++) {
+                    buffer.putFloat(mesh.getMeshletBounds(m, c));
+                }
+            }
+        }
+
+        for(int k=0;k<corners.getCount();k++) {
+            int p = 3*corners.getTriples()[3*k];
+            int t = corners.getTriples()[3*k + 1];
+            int n = 3*corners.getTriples()[3*k + 2];
+            reserve(GMESH_VERTEX);
+            for(int axis=0;axis<3;axis++) {
+                buffer.putShort(quantize(positions[p + axis], min[axis], max[axis]));
+            }
+            putOctahedral(normals[n], normals[n + 1], normals[n + 2]);
+            for(int axis=0;axis<2;axis++) {
+                buffer.putShort(quantize(t < 0 ? 0 : uvs[2*t + axis], min[3 + axis], max[3 + axis]));
+            }
+        }
+
+        for(int k=0;k<3*mesh.getTriangleCount();k++) {
+            reserve(4);
+            if (intIndices) {
+                buffer.putInt(corners.getVertexOf()[k]);
+            } else {
+                buffer.putShort((short) corners.getVertexOf()[k]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the file so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten + buffer.position();
+    }
+
+    /**
+     * Writes what is left in the buffer and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Helper method to quantize a value to 16 bits within its bounds
+     */
+    private static short quantize(float value, float min, float max) {
+        if (max <= min) {
+            return 0;
+        }
+        return (short) Math.round((value - min) / (max - min) * 0xFFFF);
+    }
+
+    /*
+     * Helper method to write a unit vector as two shorts of its octahedral projection
+     */
+    private void putOctahedral(float x, float y, float z) {
+        double sum = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        double u = sum > 0 ? x / sum : 0;
+        double v = sum > 0 ? y / sum : 0;
+        if (z < 0) {
+            // Fold the lower half of the octahedron over the upper one
+            double foldedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+            v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+            u = foldedU;
+        }
+        buffer.putShort((short) Math.round(u * Short.MAX_VALUE));
+        buffer.putShort((short) Math.round(v * Short.MAX_VALUE));
+    }
+
+    private void putAscii(String text) throws IOException {
+        for(int k=0;k<text.length();k++) {
+            reserve(1);
+            buffer.put((byte) text.charAt(k));
+        }
+    }
+
+    /*
+     * Makes sure the buffer has room for the given number of bytes
+     */
+    private void reserve(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
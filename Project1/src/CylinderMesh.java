@@ -1,4 +1,4 @@
-import java.util.ArrayList;
+import java.io.IOException;
 
 /**
  * This class represents a triangle mesh of a 3D cylinder in the
@@ -7,10 +7,8 @@ import java.util.ArrayList;
 public class CylinderMesh {
     public final double DEGREES_OF_CIRCLE = 2 * Math.PI; // in Radians because Math.sin and Math.cos use radians
     private int divisionsU;
-    private static ArrayList<double[]> vertices;
-    private static ArrayList<String> faces;
-    private static ArrayList<double[]> normals;
-    private static ArrayList<double[]> textures;
+    private int levels;
+    private IndexedMesh mesh;
 
     /**
      * Creates a CylinderMesh object with the given number
@@ -19,21 +17,49 @@ public class CylinderMesh {
      * @param divU the number of U divisions
      */
     public CylinderMesh(int divU) {
+        this(divU, 1);
+    }
+
+    /**
+     * Creates a CylinderMesh object with a pyramid of levels of detail.
+     * Every level has half the U divisions of the one before it, and uses
+     * the vertices and texture coordinates of the first level. The pyramid
+     * stops early when the divisions can't be halved again to at least 3.
+     *
+     * @param divU the number of U divisions of the finest level
+     * @param levels the number of levels of detail wanted
+     */
+    public CylinderMesh(int divU, int levels) {
         divisionsU = divU;
-        vertices = new ArrayList<>();
-        faces = new ArrayList<>();
-        normals = new ArrayList<>();
-        textures = new ArrayList<>();
+        this.levels = 1;
+        while(this.levels < levels && divU % (1 << this.levels) == 0 && divU >> this.levels >= 3) {
+            this.levels++;
+        }
+
+        int triangles = 0;
+        for(int k=0;k<this.levels;k++) {
+            triangles += 4*(divisionsU >> k);
+        }
+        mesh = new IndexedMesh(2*divisionsU+2, 2*divisionsU+2, 2*divisionsU+2 + 2*triangles/4, triangles);
         this.generateVertices();
         this.generateTextures();
-        this.generateNormals();
-        this.generateFaces();
+        int[] normalStarts = new int[this.levels];
+        for(int k=0;k<this.levels;k++) {
+            normalStarts[k] = mesh.getNormalCount();
+            this.generateNormals(k);
+        }
+        for(int k=0;k<this.levels;k++) {
+            if(k > 0) {
+                mesh.nextLevel();
+            }
+            this.generateFaces(k, normalStarts[k]);
+        }
     }
 
     private void generateVertices() {
         double angle = DEGREES_OF_CIRCLE / divisionsU;
         // Vertex 1 will always be the center of the top circle
-        vertices.add(new double[]{0,1,0});
+        mesh.addVertex(0,1,0);
 
         // Generate vertices counter-clockwise starting from Θ = 0
         // Note: The indexing scheme I chose indexes the vertices in order for the triangle strip
@@ -43,100 +69,161 @@ public class CylinderMesh {
             double z = Math.sin(angle * i);
 
             // The vertices of the top and bottom circles have the same x and z values, but with opposite y values
-            vertices.add(new double[]{x,1,z});
-            vertices.add(new double[]{x,-1,z});
+            mesh.addVertex(x,1,z);
+            mesh.addVertex(x,-1,z);
         }
 
         // The last vertex will always be the center of the bottom circle
-        vertices.add(new double[]{0,-1,0});
+        mesh.addVertex(0,-1,0);
     }
 
-    private void generateFaces() {
-        int topNormal = 1; // Index of vertex normal for top cap
-        int bottomNormal = normals.size()-1; // Index of vertex normal for bottom cap
+    /*
+     * Generates the faces of one level, numbering its vertices, textures and
+     * normals as if it were the only level, then mapping them to the mesh
+     */
+    private void generateFaces(int level, int normalStart) {
+        int divU = divisionsU >> level;
+        int topNormal = normalStart + 1; // Index of vertex normal for top cap
+        int bottomNormal = normalStart + 2*divU+1; // Index of vertex normal for bottom cap
+        int normalCount = normalStart + 2*divU+2;
+        int textureCount = 2*divU+2;
 
         // Order of faces does not matter, so generate both triangle fans
-        for(int i=1;i<divisionsU*2-1;i+=2) {
-            faces.add("f "+1+"//"+topNormal+" "+(i+1)+"//"+topNormal+" "+(i+3)+"//"+topNormal);
-            faces.add("f "+(divisionsU*2+2)+"//"+bottomNormal+" "+(i+2)+"//"+bottomNormal+" "+(i+4)+"//"+bottomNormal);
+        for(int i=1;i<divU*2-1;i+=2) {
+            addFace(level, 1,0,topNormal, i+1,0,topNormal, i+3,0,topNormal);
+            addFace(level, divU*2+2,0,bottomNormal, i+2,0,bottomNormal, i+4,0,bottomNormal);
         }
 
         // Last triangles of each fan are special case since they connect back to starting vertex
-        faces.add("f "+1+"//"+topNormal+" "+(divisionsU*2)+"//"+topNormal+" "+2+"//"+topNormal);
-        faces.add("f "+(divisionsU*2+2)+"//"+bottomNormal+" "+(divisionsU*2+1)+"//"+bottomNormal+" "+3+"//"+bottomNormal);
+        addFace(level, 1,0,topNormal, divU*2,0,topNormal, 2,0,topNormal);
+        addFace(level, divU*2+2,0,bottomNormal, divU*2+1,0,bottomNormal, 3,0,bottomNormal);
 
         // Generate triangle strip
-        for(int i=2;i<divisionsU*2-1;i+=2) {
-            faces.add("f "+i+"/"+(i-1)+"/"+i+" "+(i+1)+"/"+i+"/"+i+" "+(i+2)+"/"+(i+1)+"/"+i);
-            faces.add("f "+(i+1)+"/"+i+"/"+i+" "+(i+2)+"/"+(i+1)+"/"+i+" "+(i+3)+"/"+(i+2)+"/"+i);
+        for(int i=2;i<divU*2-1;i+=2) {
+            addFace(level, i,i-1,normalStart+i, i+1,i,normalStart+i, i+2,i+1,normalStart+i);
+            addFace(level, i+1,i,normalStart+i, i+2,i+1,normalStart+i, i+3,i+2,normalStart+i);
         }
 
         // Last two triangles of the strip are special case since they connect back to the starting vertices
-        faces.add("f "+(divisionsU*2)+"/"+(divisionsU*2-1)+"/"+(normals.size()-3)+" "
-                +(divisionsU*2+1)+"/"+(divisionsU*2)+"/"+(normals.size()-3)+" "
-                +2+"/"+(textures.size()-2)+"/" +(normals.size()-3));
-        faces.add("f "+(divisionsU*2+1)+"/"+(divisionsU*2)+"/"+(normals.size()-2)+" "
-                +2+"/"+(textures.size()-2)+"/"+(normals.size()-2)+" "
-                +3+"/"+(textures.size()-1)+"/"+(normals.size()-2));
+        addFace(level, divU*2,divU*2-1,normalCount-3,
+                divU*2+1,divU*2,normalCount-3,
+                2,textureCount-2,normalCount-3);
+        addFace(level, divU*2+1,divU*2,normalCount-2,
+                2,textureCount-2,normalCount-2,
+                3,textureCount-1,normalCount-2);
+    }
+
+    /*
+     * Adds a triangle given in the numbering of one level
+     */
+    private void addFace(int level, int v1, int t1, int n1, int v2, int t2, int n2, int v3, int t3, int n3) {
+        mesh.addTriangle(vertex(level, v1), texture(level, t1), n1,
+                vertex(level, v2), texture(level, t2), n2,
+                vertex(level, v3), texture(level, t3), n3);
+    }
+
+    /*
+     * Maps a vertex of a level, starting at 1, to the vertex of the mesh at the same angle
+     */
+    private int vertex(int level, int v) {
+        if(level == 0) {
+            return v;
+        }
+        int divU = divisionsU >> level;
+        if(v == 1) {
+            return 1;
+        } else if(v == 2*divU+2) {
+            return 2*divisionsU+2;
+        }
+        return 2 + (((v-2)/2) << level)*2 + (v-2)%2;
+    }
+
+    /*
+     * Maps a texture coordinate of a level, starting at 1, to the one of the mesh with the same u
+     */
+    private int texture(int level, int t) {
+        if(level == 0 || t == 0) {
+            return t;
+        }
+        return 1 + (((t-1)/2) << level)*2 + (t-1)%2;
+    }
+
+    /*
+     * Gets a coordinate of a vertex of a level, starting at 0
+     */
+    private double position(int level, int v, int axis) {
+        return mesh.getPosition(vertex(level, v+1)-1, axis);
     }
 
-    private void generateNormals() {
+    private void generateNormals(int level) {
+        int divU = divisionsU >> level;
         // First normal is shared by all faces of the top circle
-        normals.add(new double[]{0,1,0});
+        mesh.addNormal(0,1,0);
 
         // Generate normals for the triangle strip
         double normX;
         double normZ;
         double length;
-        for(int i=1;i<vertices.size()-3;i++) {
-            normX = (vertices.get(i)[0] + vertices.get(i+1)[0] + vertices.get(i+2)[0])/3;
-            normZ = (vertices.get(i)[2] + vertices.get(i+1)[2] + vertices.get(i+2)[2])/3;
+        for(int i=1;i<2*divU+2-3;i++) {
+            normX = (position(level, i, 0) + position(level, i+1, 0) + position(level, i+2, 0))/3;
+            normZ = (position(level, i, 2) + position(level, i+1, 2) + position(level, i+2, 2))/3;
             length = Math.sqrt((normX*normX)+(normZ*normZ));
-            normals.add(new double[]{normX/length,0,normZ/length});
+            mesh.addNormal(normX/length,0,normZ/length);
         }
-        
+
         // Last two normals of strip are special case since the vertices are shared with the starting triangles
-        normX = (vertices.get(divisionsU*2)[0] + vertices.get(divisionsU*2+1)[0] + vertices.get(2)[0])/3;
-        normZ = (vertices.get(divisionsU*2)[2] + vertices.get(divisionsU*2+1)[2] + vertices.get(2)[2])/3;
+        normX = (position(level, divU*2, 0) + position(level, divU*2+1, 0) + position(level, 2, 0))/3;
+        normZ = (position(level, divU*2, 2) + position(level, divU*2+1, 2) + position(level, 2, 2))/3;
         length = Math.sqrt((normX*normX)+(normZ*normZ));
-        normals.add(new double[]{normX/length,0,normZ/length});
+        mesh.addNormal(normX/length,0,normZ/length);
 
-        normX = (vertices.get(divisionsU*2+1)[0] + vertices.get(2)[0] + vertices.get(3)[0])/3;
-        normZ = (vertices.get(divisionsU*2+1)[2] + vertices.get(2)[2] + vertices.get(3)[2])/3;
+        normX = (position(level, divU*2+1, 0) + position(level, 2, 0) + position(level, 3, 0))/3;
+        normZ = (position(level, divU*2+1, 2) + position(level, 2, 2) + position(level, 3, 2))/3;
         length = Math.sqrt((normX*normX)+(normZ*normZ));
-        normals.add(new double[]{normX/length,0,normZ/length});
+        mesh.addNormal(normX/length,0,normZ/length);
 
         // Last normal is shared by all faces of the bottom circle
-        normals.add(new double[]{0,-1,0});
+        mesh.addNormal(0,-1,0);
     }
 
     private void generateTextures() {
         double offset = 1.0/divisionsU;
         for(int i=0;i<divisionsU+1;i++){
-            textures.add(new double[]{i*offset,1});
-            textures.add(new double[]{i*offset,0});
+            mesh.addUv(i*offset,1);
+            mesh.addUv(i*offset,0);
         }
     }
 
+    /**
+     * @return the number of levels of detail that were generated
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return the generated triangles in flat arrays
+     */
+    public IndexedMesh getMesh() {
+        return mesh;
+    }
+
+    /**
+     * Writes the CylinderMesh to an OBJ file one record at a time.
+     *
+     * @param out the writer of the file
+     * @throws IOException if the file can't be written
+     */
+    public void write(ObjWriter out) throws IOException {
+        mesh.write(out);
+    }
+
     /**
      * Creates a string representation of the CylinderMesh in
      * Wavefront OBJ format.
      */
     @Override
     public String toString() {
-        String obj = "";
-        for(double[] v : vertices) {
-            obj += "v " + v[0] + " " + v[1] + " " + v[2] + "\n";
-        }
-        for(double[] t : textures) {
-            obj += "vt " + t[0] + " " + t[1] + "\n";
-        }
-        for(double[] n : normals) {
-            obj += "vn " + n[0] + " " + n[1] + " " + n[2] + "\n";
-        }
-        for(String f : faces) {
-            obj += f + "\n";
-        }
-        return obj;
+        return mesh.toString();
     }
 }
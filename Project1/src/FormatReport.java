@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the output formats of Genmesh on one mesh: the mesh is written
+ * to a temporary file in every format and loaded back with MeshReader.
+ * Each format is reported with its size and write and read times against
+ * OBJ, and with the largest error the file left in the position, normal
+ * and texture coordinate of any corner of a triangle. Only corners with a
+ * texture coordinate are compared. STL stores neither texture coordinates
+ * nor the normals of the vertices, only a normal per triangle computed
+ * from its positions, so it gets a "-" for both.
+ */
+public class FormatReport {
+    private static final String[] FORMATS = {".obj", ".ply", ".stl", ".gmesh"};
+
+    private FormatReport() {
+    }
+
+    /**
+     * Measures every format.
+     *
+     * @param mesh the mesh to write
+     * @param precision the decimals of the OBJ file
+     * @return the report, one line per format
+     * @throws IOException if a temporary file can't be written or read
+     */
+    public static String measure(IndexedMesh mesh, int precision) throws IOException {
+        StringBuilder report = new StringBuilder(String.format("        %-7s %10s %8s %10s %10s %10s %10s %10s%n",
+                "format", "size", "vs OBJ", "write", "read", "position", "normal", "uv"));
+        long objBytes = 0;
+        long objWrite = 0;
+        long objRead = 0;
+        for (String format : FORMATS) {
+            Path file = Files.createTempFile("genmesh", format);
+            try {
+                long start = System.nanoTime();
+                if (format.equals(".obj")) {
+                    try (ObjWriter writer = new ObjWriter(file.toString(), precision)) {
+                        mesh.write(writer);
+                    }
+                } else {
+                    try (BinaryMeshWriter writer = new BinaryMeshWriter(file.toString())) {
+                        writer.write(mesh, file.toString());
+                    }
+                }
+                long write = System.nanoTime() - start;
+                long bytes = Files.size(file);
+
+                start = System.nanoTime();
+                IndexedMesh loaded = MeshReader.read(file.toString());
+                long read = System.nanoTime() - start;
+
+                if (format.equals(".obj")) {
+                    objBytes = bytes;
+                    objWrite = write;
+                    objRead = read;
+                }
+                double[] error = maxError(mesh, loaded, !format.equals(".stl"));
+                report.append(String.format("        %-7s %7d KB %7.1f%% %7d ms %7d ms %10s %10s %10s  (write %.1fx, read %.1fx OBJ)%n",
+                        format, bytes / 1024, 100.0 * bytes / objBytes, write / 1000000, read / 1000000,
+                        error(error[0]), error(error[1]), error(error[2]), (double) objWrite / write, (double) objRead / read));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        return report.toString();
+    }
+
+    /*
+     * Helper method to find the largest differences in position, normal and texture coordinate between the corners
+     * of the triangles of two meshes, NaN for the normal and texture coordinate if the file doesn't store them
+     */
+    private static double[] maxError(IndexedMesh mesh, IndexedMesh loaded, boolean attributes) throws IOException {
+        double[] error = {0, attributes ? 0 : Double.NaN, attributes ? 0 : Double.NaN};
+        if (mesh.getTriangleCount() != loaded.getTriangleCount()) {
+            return new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        }
+        int[] triangles = mesh.getTriangles();
+        int[] loadedTriangles = loaded.getTriangles();
+        float[] normals = mesh.getNormals();
+        float[] loadedNormals = loaded.getNormals();
+        float[] uvs = mesh.getUvs();
+        float[] loadedUvs = loaded.getUvs();
+        for(int c=0;c<3*mesh.getTriangleCount();c++) {
+            int a = MeshCorners.resolve(triangles[3*c], mesh.getVertexCount());
+            int b = MeshCorners.resolve(loadedTriangles[3*c], loaded.getVertexCount());
+            for(int axis=0;axis<3;axis++) {
+                error[0] = Math.max(error[0], Math.abs(mesh.getPosition(a, axis) - loaded.getPosition(b, axis)));
+            }
+            if (!attributes) {
+                continue;
+            }
+
+            a = MeshCorners.resolve(triangles[3*c + 2], mesh.getNormalCount());
+            b = MeshCorners.resolve(loadedTriangles[3*c + 2], loaded.getNormalCount());
+            for(int axis=0;axis<3;axis++) {
+                error[1] = Math.max(error[1], Math.abs(normals[3*a + axis] - loadedNormals[3*b + axis]));
+            }
+
+            if (triangles[3*c + 1] != 0) {
+                a = MeshCorners.resolve(triangles[3*c + 1], mesh.getUvCount());
+                b = MeshCorners.resolve(loadedTriangles[3*c + 1], loaded.getUvCount());
+                for(int axis=0;axis<2;axis++) {
+                    error[2] = Math.max(error[2], Math.abs(uvs[2*a + axis] - loadedUvs[2*b + axis]));
+                }
+            }
+        }
+        return error;
+    }
+
+    /*
+     * Helper method to format an error, "-" if it couldn't be measured
+     */
+    private static String error(double error) {
+        return Double.isNaN(error) ? "-" : String.format("%.2e", error);
+    }
+}
@@ -1,107 +1,249 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * Genmesh is a command-line tool used to generate Wavefront OBJ
  * files for triangle mesh representations of a sphere or cylinder.
  *
+ * Run without arguments it asks for one command at a time. Run with
+ * arguments it generates a batch of meshes in parallel and exits:
+ *
+ * java Genmesh [-j <threads>] [-r] [-f <manifest>]
+ *              [-g <sphere|cylinder> ... -o <outfile>]...
+ *
+ * The manifest has one genmesh command per line, blank lines and lines
+ * starting with # are skipped. Every -g on the command line starts another
+ * job. The extension of the output file picks the format: .obj, .ply, .stl
+ * or .gmesh. With -l the file holds that many levels of detail, each with
+ * half the divisions of the one before. The levels share the vertices of
+ * the finest one, so only those are computed and stored once; the
+ * triangles of every level are still built and written. With -c the
+ * triangles are reordered for the vertex cache, and with -k they are also
+ * grouped into meshlets of at most that many vertices. With -r every mesh
+ * is also written to and read back from every format, and their sizes and
+ * times are reported. The exit code is 0 when every mesh was written, 1
+ * when a job failed and 2 when the arguments or the manifest are invalid.
+ *
  * @author Brendan Van Allen
  * @version Spring 2019
  */
 public class Genmesh {
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+
     private static Scanner keyboard = new Scanner(System.in);
-    private static String shape;
-    private static int divisionsU = 32;
-    private static int divisionsV = 16;
-    private static String outFile;
 
     public static void main(String args[]) {
+        if (args.length > 0) {
+            System.exit(runBatch(args));
+        }
+
         System.out.println("Welcome to Genmesh");
+        MeshJob last = new MeshJob();
         while(true) {
-            System.out.println("Enter a command in the following format to produce a .obj file:");
-            System.out.println("genmesh -g <sphere|cylinder> [-n <divisionsU>] [-m <divisionsV>] -o <outfile.obj>");
+            System.out.println("Enter a command in the following format to produce a .obj, .ply, .stl or .gmesh file:");
+            System.out.println("genmesh -g <sphere|cylinder> [-n <divisionsU>] [-m <divisionsV>] [-p <decimals>] [-l <levels>] [-c] [-k <meshletVertices>] -o <outfile>");
 
             String input = keyboard.nextLine();
-            while (!parseInput(input)) {
+            MeshJob job;
+            while ((job = MeshJob.parse(input, last)) == null) {
                 System.out.println("Invalid input. Please check your command syntax and try again.");
                 input = keyboard.nextLine();
             }
 
-            String output = "";
-            if (shape.equalsIgnoreCase("cylinder")) {
-                CylinderMesh cm = new CylinderMesh(divisionsU);
-                output = cm.toString();
-            } else {
-                SphereMesh cm = new SphereMesh(divisionsU, divisionsV);
-                output = cm.toString();
-            }
             try {
-                FileWriter writer = new FileWriter(outFile, false);
-                writer.write(output);
-                writer.close();
+                job.generate();
+                System.out.println(job.getVertexCount() + " vertices, " + job.getTriangleCount() + " triangles"
+                        + (job.getLevelCount() > 1 ? " in " + job.getLevelCount() + " levels of detail" : ""));
+                System.out.println("Done. Wrote " + job.getBytesWritten() / 1024 + " KB in "
+                        + job.getNanos() / 1000000 + " ms");
+                if (job.getOptimizeReport() != null) {
+                    System.out.println("Optimized: " + job.getOptimizeReport());
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            System.out.println("Done.");
 
-            outFile = null;
-            shape = null;
+            // Divisions, precision and optimization carry over to the next command
+            last = job;
         }
     }
 
     /**
-     * Parses the user input command to determine the values to be used
-     * for mesh generation.
+     * Generates every job given on the command line and in the manifest,
+     * on a pool of threads, then prints a summary of the jobs.
      *
-     * @param input The command given by the user
-     * @return True if the command is valid, false if it is invalid
+     * @param args the command line arguments
+     * @return the exit code
      */
-    private static boolean parseInput(String input) {
-        String[] tokens = input.split(" ");
+    private static int runBatch(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean report = false;
+        List<MeshJob> jobs = new ArrayList<>();
+        StringBuilder command = null;
 
-        // Try/catch is used to protect against ArrayIndexOutOfBounds and NumberFormatException
+        // Try/catch is used to protect against ArrayIndexOutOfBounds, NumberFormatException and unreadable manifests
         try {
-            // Command must start with "genmesh"
-            if (!tokens[0].equalsIgnoreCase("genmesh")) {
-                return false;
-            }
-
-            for (int i = 0; i < tokens.length; i++) {
-                if (tokens[i].equalsIgnoreCase("-g")) {
-                    if (tokens[i + 1].equalsIgnoreCase("sphere") || tokens[i + 1].equalsIgnoreCase("cylinder")) {
-                        shape = tokens[i + 1];
-                        i++;
-                    } else {
-                        return false;
-                    }
-                } else if (tokens[i].equalsIgnoreCase("-n")) {
-                    divisionsU = Integer.parseInt(tokens[i + 1]);
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-j")) {
+                    threads = Integer.parseInt(args[i + 1]);
                     i++;
-                    if(divisionsU < 2)
-                        return false;
-                } else if (tokens[i].equalsIgnoreCase("-m")) {
-                    divisionsV = Integer.parseInt(tokens[i + 1]);
+                    if (threads < 1) {
+                        return usage("-j needs at least 1 thread");
+                    }
+                } else if (args[i].equalsIgnoreCase("-r")) {
+                    report = true;
+                } else if (args[i].equalsIgnoreCase("-f")) {
+                    int lineNumber = 0;
+                    for (String line : Files.readAllLines(Paths.get(args[i + 1]), StandardCharsets.UTF_8)) {
+                        lineNumber++;
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        if (!line.toLowerCase().startsWith("genmesh")) {
+                            line = "genmesh " + line;
+                        }
+                        MeshJob job = MeshJob.parse(line, new MeshJob());
+                        if (job == null) {
+                            return usage(args[i + 1] + ":" + lineNumber + ": invalid command: " + line);
+                        }
+                        jobs.add(job);
+                    }
                     i++;
-                    if(divisionsV < 2)
-                        return false;
-                } else if (tokens[i].equalsIgnoreCase("-o")) {
-                    if (tokens[i + 1].substring(tokens[i + 1].length() - 4).equals(".obj")) {
-                        outFile = tokens[i + 1];
-                    } else {
-                        return false;
+                } else {
+                    // Every -g starts the command of another job
+                    if (args[i].equalsIgnoreCase("-g") && command != null) {
+                        if (!addJob(jobs, command.toString())) {
+                            return usage("invalid command: " + command);
+                        }
+                        command = null;
                     }
+                    if (command == null) {
+                        command = new StringBuilder("genmesh");
+                    }
+                    command.append(' ').append(args[i]);
                 }
             }
+        } catch (IOException e) {
+            return usage("can't read the manifest: " + e.getMessage());
         } catch (Exception e) {
-            return false;
+            return usage("invalid arguments");
+        }
+        if (command != null && !addJob(jobs, command.toString())) {
+            return usage("invalid command: " + command);
+        }
+        if (jobs.isEmpty()) {
+            return usage("no jobs to run");
+        }
+
+        // Two jobs writing the same file would overwrite each other
+        Set<String> outFiles = new HashSet<>();
+        for (MeshJob job : jobs) {
+            job.setReport(report);
+            if (!outFiles.add(Paths.get(job.getOutFile()).toAbsolutePath().normalize().toString())) {
+                return usage(job.getOutFile() + " is the output of more than one job");
+            }
         }
 
-        // shape and outFile are the only required information
-        if(shape != null && outFile != null) {
-            return true;
+        return generateAll(jobs, threads);
+    }
+
+    /*
+     * Helper method to generate the jobs in parallel and print the summary
+     */
+    private static int generateAll(List<MeshJob> jobs, int threads) {
+        // Jobs only start while the estimated memory of the meshes being generated fits in half the heap
+        final int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / 1024);
+        final Semaphore memory = new Semaphore(budget, true);
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+        List<Future<?>> results = new ArrayList<>();
+        for (final MeshJob job : jobs) {
+            results.add(pool.submit(() -> {
+                int kilobytes = (int) Math.min(budget, job.estimateMemory() / 1024 + 1);
+                memory.acquireUninterruptibly(kilobytes);
+                try {
+                    job.generate();
+                } finally {
+                    memory.release(kilobytes);
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        long totalBytes = 0;
+        for (int k = 0; k < jobs.size(); k++) {
+            MeshJob job = jobs.get(k);
+            String mesh = job.getShape().equalsIgnoreCase("cylinder")
+                    ? "cylinder " + job.getDivisionsU()
+                    : "sphere " + job.getDivisionsU() + "x" + job.getDivisionsV();
+            if (job.getLevels() > 1) {
+                mesh += " lod" + (job.getLevelCount() > 0 ? job.getLevelCount() : job.getLevels());
+            }
+            try {
+                results.get(k).get();
+                totalBytes += job.getBytesWritten();
+                System.out.println(String.format("%4d  ok      %-16s %10d vertices %10d triangles %9d KB %7d ms  %s",
+                        k + 1, mesh, job.getVertexCount(), job.getTriangleCount(), job.getBytesWritten() / 1024,
+                        job.getNanos() / 1000000, job.getOutFile()));
+                if (job.getOptimizeReport() != null) {
+                    System.out.println("        optimized: " + job.getOptimizeReport());
+                }
+                if (job.getFormatReport() != null) {
+                    System.out.print(job.getFormatReport());
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                System.out.println(String.format("%4d  FAILED  %-16s %s: %s", k + 1, mesh, job.getOutFile(), e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return EXIT_FAILED;
+            }
+        }
+
+        System.out.println((jobs.size() - failed) + " of " + jobs.size() + " meshes written, " + totalBytes / 1024
+                + " KB in " + (System.nanoTime() - start) / 1000000 + " ms on " + Math.min(threads, jobs.size())
+                + " threads");
+        return failed > 0 ? EXIT_FAILED : 0;
+    }
+
+    /*
+     * Helper method to parse the command of one job given on the command line
+     */
+    private static boolean addJob(List<MeshJob> jobs, String command) {
+        MeshJob job = MeshJob.parse(command, new MeshJob());
+        if (job == null) {
+            return false;
         }
+        jobs.add(job);
+        return true;
+    }
 
-        return false;
+    /*
+     * Helper method to print an error and the batch syntax
+     */
+    private static int usage(String error) {
+        System.err.println("Genmesh: " + error);
+        System.err.println("Usage: java Genmesh [-j <threads>] [-r] [-f <manifest>] "
+                + "[-g <sphere|cylinder> [-n <divisionsU>] [-m <divisionsV>] [-p <decimals>] [-l <levels>] [-c] "
+                + "[-k <meshletVertices>] -o <outfile>]...");
+        System.err.println("The extension of <outfile> picks the format: .obj, .ply, .stl or .gmesh");
+        return EXIT_USAGE;
     }
 }
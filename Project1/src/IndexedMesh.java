@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A triangle mesh stored in flat primitive arrays: three floats per
+ * position and normal, two per texture coordinate, and nine ints per
+ * triangle. Like in an OBJ file, each corner of a triangle has its own
+ * position, texture and normal index, and the indices start at 1.
+ *
+ * The arrays grow as the mesh is generated, so the expected sizes given
+ * to the constructor only have to be close.
+ *
+ * A mesh whose size is known up front can instead be given its counts
+ * with setCounts and filled in by index with the set methods, in any order
+ * and from several threads at once, as long as no two threads set the same
+ * element.
+ *
+ * The triangles can be split into levels of detail that share the same
+ * positions, texture coordinates and normals. Each level is a range of
+ * triangles, and the levels follow each other from the finest one.
+ *
+ * The triangles can also be grouped into meshlets by MeshOptimizer: runs
+ * of triangles with few enough distinct corners to be drawn as one small
+ * batch, each with a bounding sphere for culling.
+ */
+public class IndexedMesh {
+    private float[] positions;
+    private float[] uvs;
+    private float[] normals;
+    private int[] triangles; // v, vt, vn of each corner, vt 0 if the corner has no texture coordinates
+    private int vertexCount = 0;
+    private int uvCount = 0;
+    private int normalCount = 0;
+    private int triangleCount = 0;
+    private int[] levelStarts = {0}; // First triangle of every level of detail
+    private int[] meshletStarts = new int[0]; // First triangle of every meshlet
+    private int[] meshletVertices = new int[0]; // Distinct corners of every meshlet
+    private float[] meshletBounds = new float[0]; // Center x, y, z and radius of every meshlet
+
+    /**
+     * Creates an empty mesh.
+     *
+     * @param vertices the expected number of positions
+     * @param uvs the expected number of texture coordinates
+     * @param normals the expected number of normals
+     * @param triangles the expected number of triangles
+     */
+    public IndexedMesh(int vertices, int uvs, int normals, int triangles) {
+        this.positions = new float[3*Math.max(vertices, 1)];
+        this.uvs = new float[2*Math.max(uvs, 1)];
+        this.normals = new float[3*Math.max(normals, 1)];
+        this.triangles = new int[9*Math.max(triangles, 1)];
+    }
+
+    /**
+     * Adds a position.
+     *
+     * @return the OBJ index of the position, starting at 1
+     */
+    public int addVertex(double x, double y, double z) {
+        if(3*vertexCount == positions.length) {
+            positions = Arrays.copyOf(positions, 2*positions.length);
+        }
+        positions[3*vertexCount] = (float) x;
+        positions[3*vertexCount + 1] = (float) y;
+        positions[3*vertexCount + 2] = (float) z;
+        return ++vertexCount;
+    }
+
+    /**
+     * Adds a texture coordinate.
+     *
+     * @return the OBJ index of the texture coordinate, starting at 1
+     */
+    public int addUv(double u, double v) {
+        if(2*uvCount == uvs.length) {
+            uvs = Arrays.copyOf(uvs, 2*uvs.length);
+        }
+        uvs[2*uvCount] = (float) u;
+        uvs[2*uvCount + 1] = (float) v;
+        return ++uvCount;
+    }
+
+    /**
+     * Adds a normal.
+     *
+     * @return the OBJ index of the normal, starting at 1
+     */
+    public int addNormal(double x, double y, double z) {
+        if(3*normalCount == normals.length) {
+            normals = Arrays.copyOf(normals, 2*normals.length);
+        }
+        normals[3*normalCount] = (float) x;
+        normals[3*normalCount + 1] = (float) y;
+        normals[3*normalCount + 2] = (float) z;
+        return ++normalCount;
+    }
+
+    /**
+     * Adds a triangle from the OBJ indices of its corners. A texture index
+     * of 0 means the corner has no texture coordinates.
+     */
+    public void addTriangle(int v1, int t1, int n1, int v2, int t2, int n2, int v3, int t3, int n3) {
+        if(9*triangleCount == triangles.length) {
+            triangles = Arrays.copyOf(triangles, 2*triangles.length);
+        }
+        int k = 9*triangleCount;
+        triangles[k] = v1;
+        triangles[k + 1] = t1;
+        triangles[k + 2] = n1;
+        triangles[k + 3] = v2;
+        triangles[k + 4] = t2;
+        triangles[k + 5] = n2;
+        triangles[k + 6] = v3;
+        triangles[k + 7] = t3;
+        triangles[k + 8] = n3;
+        triangleCount++;
+    }
+
+    /**
+     * Sets the number of every kind of element, so they can be filled in by
+     * index. Elements that are already in the mesh are kept.
+     */
+    public void setCounts(int vertices, int uvs, int normals, int triangles) {
+        if(triangles > Integer.MAX_VALUE / 9 || vertices > Integer.MAX_VALUE / 3 || normals > Integer.MAX_VALUE / 3) {
+            throw new IllegalArgumentException("The mesh is too large for one array per kind of element");
+        }
+        if(positions.length < 3*vertices) {
+            positions = Arrays.copyOf(positions, 3*vertices);
+        }
+        if(this.uvs.length < 2*uvs) {
+            this.uvs = Arrays.copyOf(this.uvs, 2*uvs);
+        }
+        if(this.normals.length < 3*normals) {
+            this.normals = Arrays.copyOf(this.normals, 3*normals);
+        }
+        if(this.triangles.length < 9*triangles) {
+            this.triangles = Arrays.copyOf(this.triangles, 9*triangles);
+        }
+        vertexCount = vertices;
+        uvCount = uvs;
+        normalCount = normals;
+        triangleCount = triangles;
+    }
+
+    /**
+     * Sets a position.
+     *
+     * @param index the index of the position, starting at 0
+     */
+    public void setVertex(int index, double x, double y, double z) {
+        positions[3*index] = (float) x;
+        positions[3*index + 1] = (float) y;
+        positions[3*index + 2] = (float) z;
+    }
+
+    /**
+     * Sets a texture coordinate.
+     *
+     * @param index the index of the texture coordinate, starting at 0
+     */
+    public void setUv(int index, double u, double v) {
+        uvs[2*index] = (float) u;
+        uvs[2*index + 1] = (float) v;
+    }
+
+    /**
+     * Sets a normal.
+     *
+     * @param index the index of the normal, starting at 0
+     */
+    public void setNormal(int index, double x, double y, double z) {
+        normals[3*index] = (float) x;
+        normals[3*index + 1] = (float) y;
+        normals[3*index + 2] = (float) z;
+    }
+
+    /**
+     * Sets a triangle from the OBJ indices of its corners, which start at 1.
+     *
+     * @param index the index of the triangle, starting at 0
+     */
+    public void setTriangle(int index, int v1, int t1, int n1, int v2, int t2, int n2, int v3, int t3, int n3) {
+        int k = 9*index;
+        triangles[k] = v1;
+        triangles[k + 1] = t1;
+        triangles[k + 2] = n1;
+        triangles[k + 3] = v2;
+        triangles[k + 4] = t2;
+        triangles[k + 5] = n2;
+        triangles[k + 6] = v3;
+        triangles[k + 7] = t3;
+        triangles[k + 8] = n3;
+    }
+
+    /**
+     * Sets where every level of detail starts, for a mesh filled in by index.
+     *
+     * @param levelStarts the first triangle of every level, starting with 0
+     */
+    public void setLevelStarts(int[] levelStarts) {
+        if(levelStarts.length == 0 || levelStarts[0] != 0) {
+            throw new IllegalArgumentException("The first level must start at triangle 0");
+        }
+        this.levelStarts = levelStarts.clone();
+    }
+
+    /**
+     * Groups the triangles into meshlets. Every meshlet is a run of
+     * triangles up to the start of the next meshlet or the end of the mesh.
+     *
+     * @param starts the first triangle of every meshlet, starting with 0
+     * @param vertices the number of distinct corners of every meshlet
+     * @param bounds the center x, y, z and the radius of the bounding sphere of every meshlet
+     */
+    public void setMeshlets(int[] starts, int[] vertices, float[] bounds) {
+        if(vertices.length != starts.length || bounds.length != 4*starts.length) {
+            throw new IllegalArgumentException("Every meshlet needs a vertex count and a bounding sphere");
+        }
+        meshletStarts = starts.clone();
+        meshletVertices = vertices.clone();
+        meshletBounds = bounds.clone();
+    }
+
+    /**
+     * Ends the current level of detail, so the next triangles added belong
+     * to a new one.
+     */
+    public void nextLevel() {
+        levelStarts = Arrays.copyOf(levelStarts, levelStarts.length + 1);
+        levelStarts[levelStarts.length - 1] = triangleCount;
+    }
+
+    /**
+     * Writes the mesh to an OBJ file: positions, texture coordinates,
+     * normals, then the triangles. With more than one level of detail, the
+     * triangles of every level are in a group named lod0, lod1 and so on.
+     * Meshlets are comments before the triangles:
+     * # meshlet first triangles vertices x y z radius
+     *
+     * @param out the writer of the file
+     * @throws IOException if the file can't be written
+     */
+    public void write(ObjWriter out) throws IOException {
+        for(int k=0;k<vertexCount;k++) {
+            out.vertex(positions[3*k], positions[3*k + 1], positions[3*k + 2]);
+        }
+        for(int k=0;k<uvCount;k++) {
+            out.texture(uvs[2*k], uvs[2*k + 1]);
+        }
+        for(int k=0;k<normalCount;k++) {
+            out.normal(normals[3*k], normals[3*k + 1], normals[3*k + 2]);
+        }
+        for(int m=0;m<meshletStarts.length;m++) {
+            out.line(meshletRecord(m));
+        }
+        int level = 0;
+        for(int k=0;k<9*triangleCount;k+=9) {
+            while(levelStarts.length > 1 && level < levelStarts.length && 9*levelStarts[level] == k) {
+                out.line("g lod" + level++);
+            }
+            out.face(triangles[k], triangles[k + 1], triangles[k + 2], triangles[k + 3], triangles[k + 4],
+                    triangles[k + 5], triangles[k + 6], triangles[k + 7], triangles[k + 8]);
+        }
+    }
+
+    /**
+     * Creates the same OBJ text that write produces with full float precision.
+     */
+    @Override
+    public String toString() {
+        StringBuilder obj = new StringBuilder();
+        for(int k=0;k<vertexCount;k++) {
+            obj.append("v ").append(positions[3*k]).append(' ').append(positions[3*k + 1]).append(' ')
+                    .append(positions[3*k + 2]).append('\n');
+        }
+        for(int k=0;k<uvCount;k++) {
+            obj.append("vt ").append(uvs[2*k]).append(' ').append(uvs[2*k + 1]).append('\n');
+        }
+        for(int k=0;k<normalCount;k++) {
+            obj.append("vn ").append(normals[3*k]).append(' ').append(normals[3*k + 1]).append(' ')
+                    .append(normals[3*k + 2]).append('\n');
+        }
+        for(int m=0;m<meshletStarts.length;m++) {
+            obj.append(meshletRecord(m)).append('\n');
+        }
+        int level = 0;
+        for(int k=0;k<9*triangleCount;k+=9) {
+            while(levelStarts.length > 1 && level < levelStarts.length && 9*levelStarts[level] == k) {
+                obj.append("g lod").append(level++).append('\n');
+            }
+            obj.append('f');
+            for(int c=k;c<k+9;c+=3) {
+                obj.append(' ').append(triangles[c]).append('/');
+                if(triangles[c + 1] != 0) {
+                    obj.append(triangles[c + 1]);
+                }
+                obj.append('/').append(triangles[c + 2]);
+            }
+            obj.append('\n');
+        }
+        return obj.toString();
+    }
+
+    /**
+     * Formats a meshlet as the comment written to OBJ files.
+     *
+     * @param meshlet the index of the meshlet
+     * @return # meshlet first triangles vertices x y z radius
+     */
+    public String meshletRecord(int meshlet) {
+        return "# meshlet " + meshletStarts[meshlet] + " " + getMeshletTriangles(meshlet) + " "
+                + meshletVertices[meshlet] + " " + meshletBounds[4*meshlet] + " " + meshletBounds[4*meshlet + 1] + " "
+                + meshletBounds[4*meshlet + 2] + " " + meshletBounds[4*meshlet + 3];
+    }
+
+    /**
+     * Gets one coordinate of a position.
+     *
+     * @param vertex the index of the position, starting at 0
+     * @param axis 0 for x, 1 for y, 2 for z
+     * @return the coordinate
+     */
+    public float getPosition(int vertex, int axis) {
+        return positions[3*vertex + axis];
+    }
+
+    /**
+     * @return x, y, z of every position; the array may be longer than 3*getVertexCount()
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return u, v of every texture coordinate; the array may be longer than 2*getUvCount()
+     */
+    public float[] getUvs() {
+        return uvs;
+    }
+
+    /**
+     * @return x, y, z of every normal; the array may be longer than 3*getNormalCount()
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * @return the nine OBJ indices of every triangle; the array may be longer than 9*getTriangleCount()
+     */
+    public int[] getTriangles() {
+        return triangles;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getUvCount() {
+        return uvCount;
+    }
+
+    public int getNormalCount() {
+        return normalCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return the number of levels of detail, 1 if the mesh was never split
+     */
+    public int getLevelCount() {
+        return levelStarts.length;
+    }
+
+    /**
+     * @return the index of the first triangle of a level, starting at 0
+     */
+    public int getLevelStart(int level) {
+        return levelStarts[level];
+    }
+
+    /**
+     * @return the number of triangles of a level
+     */
+    public int getLevelTriangles(int level) {
+        int end = level + 1 < levelStarts.length ? levelStarts[level + 1] : triangleCount;
+        return end - levelStarts[level];
+    }
+
+    /**
+     * @return the number of meshlets, 0 if the triangles were never grouped
+     */
+    public int getMeshletCount() {
+        return meshletStarts.length;
+    }
+
+    /**
+     * @return the index of the first triangle of a meshlet, starting at 0
+     */
+    public int getMeshletStart(int meshlet) {
+        return meshletStarts[meshlet];
+    }
+
+    /**
+     * @return the number of triangles of a meshlet
+     */
+    public int getMeshletTriangles(int meshlet) {
+        int end = meshlet + 1 < meshletStarts.length ? meshletStarts[meshlet + 1] : triangleCount;
+        return end - meshletStarts[meshlet];
+    }
+
+    /**
+     * @return the number of distinct corners of a meshlet
+     */
+    public int getMeshletVertices(int meshlet) {
+        return meshletVertices[meshlet];
+    }
+
+    /**
+     * Gets the bounding sphere of a meshlet.
+     *
+     * @param meshlet the index of the meshlet
+     * @param component 0, 1, 2 for the x, y, z of the center, 3 for the radius
+     */
+    public float getMeshletBounds(int meshlet, int component) {
+        return meshletBounds[4*meshlet + component];
+    }
+
+    /**
+     * @return the number of bytes used by the arrays of the mesh
+     */
+    public long getMemoryUsage() {
+        return 4L * (positions.length + uvs.length + normals.length + triangles.length + levelStarts.length
+                + meshletStarts.length + meshletVertices.length + meshletBounds.length);
+    }
+}
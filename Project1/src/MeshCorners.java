@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The distinct corners of the triangles of an IndexedMesh. Every
+ * combination of position, texture and normal index that a triangle uses
+ * becomes one vertex, which is what a GPU or an indexed file format like
+ * PLY needs: a single index per corner.
+ */
+public class MeshCorners {
+    private int[] vertexOf; // Vertex of every corner of every triangle
+    private int[] triples; // Position, texture (-1 for none) and normal of every vertex, from 0
+    private int count = 0;
+
+    /**
+     * Finds the distinct corners of a mesh, numbered in the order they are
+     * first used.
+     *
+     * @param mesh the mesh
+     * @throws IOException if a triangle has an index out of range
+     */
+    public MeshCorners(IndexedMesh mesh) throws IOException {
+        int[] triangles = mesh.getTriangles();
+        int corners = 3*mesh.getTriangleCount();
+        vertexOf = new int[corners];
+        triples = new int[3*Math.max(mesh.getVertexCount(), 1)];
+
+        // Open addressing table of vertex + 1, 0 for an empty slot
+        int capacity = Integer.highestOneBit(Math.max(2*corners, 2) - 1) << 1;
+        int[] table = new int[capacity];
+        for(int c=0;c<corners;c++) {
+            int p = resolve(triangles[3*c], mesh.getVertexCount());
+            int t = triangles[3*c + 1] == 0 ? -1 : resolve(triangles[3*c + 1], mesh.getUvCount());
+            int n = resolve(triangles[3*c + 2], mesh.getNormalCount());
+
+            int slot = (p * 73856093 ^ t * 19349663 ^ n * 83492791) & (capacity - 1);
+            while (table[slot] != 0) {
+                int k = table[slot] - 1;
+                if (triples[3*k] == p && triples[3*k + 1] == t && triples[3*k + 2] == n) {
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (table[slot] == 0) {
+                if (3*count == triples.length) {
+                    triples = Arrays.copyOf(triples, 2*triples.length);
+                }
+                triples[3*count] = p;
+                triples[3*count + 1] = t;
+                triples[3*count + 2] = n;
+                table[slot] = ++count;
+            }
+            vertexOf[c] = table[slot] - 1;
+        }
+    }
+
+    /**
+     * Turns an OBJ index, counted from 1 or back from -1, into an array index.
+     *
+     * @param index the OBJ index
+     * @param count the number of elements the index points into
+     * @return the index from 0
+     * @throws IOException if the index is out of range
+     */
+    public static int resolve(int index, int count) throws IOException {
+        if (index > 0 && index <= count) {
+            return index - 1;
+        } else if (index < 0 && -index <= count) {
+            return count + index;
+        }
+        throw new IOException("The mesh has an index out of range: " + index + " of " + count);
+    }
+
+    /**
+     * @return the vertex of every corner, three per triangle, from 0
+     */
+    public int[] getVertexOf() {
+        return vertexOf;
+    }
+
+    /**
+     * @return the position, texture coordinate (-1 for none) and normal of
+     *         every vertex, from 0; the array may be longer than 3*getCount()
+     */
+    public int[] getTriples() {
+        return triples;
+    }
+
+    /**
+     * @return the number of distinct corners
+     */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.IOException;
+
+/**
+ * One genmesh command: the shape to generate, its divisions and the file
+ * to write it to. The extension of the file picks the format: .obj, or
+ * one of the binary formats of BinaryMeshWriter. A job holds its own
+ * settings and statistics, so any number of jobs can be generated at the
+ * same time.
+ */
+public class MeshJob {
+    private static final int BYTES_PER_POINT = 104; // 8 floats of a vertex and 18 ints of its two triangles
+
+    private String shape;
+    private int divisionsU;
+    private int divisionsV;
+    private int precision;
+    private int levels;
+    private boolean optimize = false;
+    private int meshletVertices = 0;
+    private String outFile;
+    private boolean report = false;
+
+    private int vertexCount = 0;
+    private int triangleCount = 0;
+    private int levelCount = 0;
+    private long bytesWritten = 0;
+    private long nanos = 0;
+    private String formatReport;
+    private String optimizeReport;
+
+    /**
+     * Creates a job with the default settings of Genmesh and no shape or
+     * output file yet.
+     */
+    public MeshJob() {
+        this.divisionsU = 32;
+        this.divisionsV = 16;
+        this.precision = 6;
+        this.levels = 1;
+    }
+
+    /**
+     * Parses a genmesh command. Divisions, precision, levels of detail and
+     * optimization that the command leaves out are taken from the defaults.
+     *
+     * @param input the command, e.g. genmesh -g sphere -n 64 -o ball.obj
+     * @param defaults the job to take the missing settings from
+     * @return the job, or null if the command is invalid
+     */
+    public static MeshJob parse(String input, MeshJob defaults) {
+        String[] tokens = input.trim().split("\\s+");
+        MeshJob job = new MeshJob();
+        job.divisionsU = defaults.divisionsU;
+        job.divisionsV = defaults.divisionsV;
+        job.precision = defaults.precision;
+        job.levels = defaults.levels;
+        job.optimize = defaults.optimize;
+        job.meshletVertices = defaults.meshletVertices;
+
+        // Try/catch is used to protect against ArrayIndexOutOfBounds and NumberFormatException
+        try {
+            // Command must start with "genmesh"
+            if (!tokens[0].equalsIgnoreCase("genmesh")) {
+                return null;
+            }
+
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].equalsIgnoreCase("-g")) {
+                    if (tokens[i + 1].equalsIgnoreCase("sphere") || tokens[i + 1].equalsIgnoreCase("cylinder")) {
+                        job.shape = tokens[i + 1];
+                        i++;
+                    } else {
+                        return null;
+                    }
+                } else if (tokens[i].equalsIgnoreCase("-n")) {
+                    job.divisionsU = Integer.parseInt(tokens[i + 1]);
+                    i++;
+                    if(job.divisionsU < 2)
+                        return null;
+                } else if (tokens[i].equalsIgnoreCase("-m")) {
+                    job.divisionsV = Integer.parseInt(tokens[i + 1]);
+                    i++;
+                    if(job.divisionsV < 2)
+                        return null;
+                } else if (tokens[i].equalsIgnoreCase("-p")) {
+                    job.precision = Integer.parseInt(tokens[i + 1]);
+                    i++;
+                    if(job.precision < 0 || job.precision > 15)
+                        return null;
+                } else if (tokens[i].equalsIgnoreCase("-l")) {
+                    job.levels = Integer.parseInt(tokens[i + 1]);
+                    i++;
+                    if(job.levels < 1)
+                        return null;
+                } else if (tokens[i].equalsIgnoreCase("-c")) {
+                    job.optimize = true;
+                } else if (tokens[i].equalsIgnoreCase("-k")) {
+                    // Meshlets are built on the optimized order
+                    job.meshletVertices = Integer.parseInt(tokens[i + 1]);
+                    job.optimize = true;
+                    i++;
+                    if(job.meshletVertices < 3)
+                        return null;
+                } else if (tokens[i].equalsIgnoreCase("-o")) {
+                    if (tokens[i + 1].endsWith(".obj") || BinaryMeshWriter.isBinary(tokens[i + 1])) {
+                        job.outFile = tokens[i + 1];
+                        i++;
+                    } else {
+                        return null;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            return null;
+        }
+
+        // shape and outFile are the only required information
+        if(job.shape != null && job.outFile != null) {
+            return job;
+        }
+
+        return null;
+    }
+
+    /**
+     * Generates the mesh and writes it to the output file. An optimized mesh
+     * goes through MeshOptimizer before it is written. With a report, the
+     * mesh is then measured in every format too.
+     *
+     * @throws IOException if the file can't be written
+     */
+    public void generate() throws IOException {
+        long start = System.nanoTime();
+        IndexedMesh mesh;
+        try {
+            if (shape.equalsIgnoreCase("cylinder")) {
+                mesh = new CylinderMesh(divisionsU, levels).getMesh();
+            } else {
+                mesh = new SphereMesh(divisionsU, divisionsV, levels).getMesh();
+            }
+            if (optimize) {
+                double[] before = MeshOptimizer.cacheStatistics(mesh);
+                mesh = MeshOptimizer.optimize(mesh, meshletVertices);
+                double[] after = MeshOptimizer.cacheStatistics(mesh);
+                optimizeReport = String.format("ACMR %.3f -> %.3f, ATVR %.3f -> %.3f, %d vertices welded",
+                        before[0], after[0], before[1], after[1], (int) (before[2] - after[2]));
+                if (meshletVertices > 0) {
+                    optimizeReport += ", " + mesh.getMeshletCount() + " meshlets";
+                }
+            }
+            levelCount = mesh.getLevelCount();
+            vertexCount = mesh.getVertexCount();
+            triangleCount = mesh.getTriangleCount();
+            if (BinaryMeshWriter.isBinary(outFile)) {
+                try (BinaryMeshWriter writer = new BinaryMeshWriter(outFile)) {
+                    writer.write(mesh, outFile);
+                    bytesWritten = writer.getBytesWritten();
+                }
+            } else {
+                try (ObjWriter writer = new ObjWriter(outFile, precision)) {
+                    mesh.write(writer);
+                    bytesWritten = writer.getBytesWritten();
+                }
+            }
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+
+        if (report) {
+            formatReport = FormatReport.measure(mesh, precision);
+        }
+    }
+
+    /**
+     * Estimates the memory the mesh of the job takes while it is generated,
+     * before it is written.
+     *
+     * @return the estimate in bytes
+     */
+    public long estimateMemory() {
+        long points;
+        if (shape.equalsIgnoreCase("cylinder")) {
+            points = 2L*divisionsU + 2;
+        } else {
+            points = (long) divisionsU*(divisionsV-1) + 2;
+        }
+        // The coarser levels of detail add up to less than a third of the finest one
+        if (levels > 1) {
+            points += points / 3;
+        }
+        // A report also holds the corner table of the binary formats and the mesh loaded back,
+        // optimizing the welded and the renumbered copies of the mesh
+        return points * BYTES_PER_POINT * ((report ? 3 : 1) + (optimize ? 2 : 0));
+    }
+
+    /**
+     * Sets whether generate measures the mesh in every format.
+     */
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+
+    /**
+     * @return the cache statistics before and after optimizing, null if
+     *         the job wasn't optimized
+     */
+    public String getOptimizeReport() {
+        return optimizeReport;
+    }
+
+    /**
+     * @return the report of FormatReport, null if the job had no report
+     */
+    public String getFormatReport() {
+        return formatReport;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public int getDivisionsU() {
+        return divisionsU;
+    }
+
+    public int getDivisionsV() {
+        return divisionsV;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the number of levels of detail asked for
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return the most distinct vertices of a meshlet, 0 for no meshlets
+     */
+    public int getMeshletVertices() {
+        return meshletVertices;
+    }
+
+    public String getOutFile() {
+        return outFile;
+    }
+
+    /**
+     * @return the number of vertices generated, 0 until the job is done
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return the number of triangles generated, 0 until the job is done
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * @return the number of levels of detail generated, which can be fewer
+     *         than asked for, 0 until the job is done
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @return the size of the file written, 0 until the job is done
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the time spent generating and writing the mesh
+     */
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles of an IndexedMesh so a GPU transforms fewer
+ * vertices to draw it. The mesh goes through these passes:
+ *
+ * weld     positions, texture coordinates and normals with the same value
+ *          become one, so their corners can share a vertex
+ * reorder  the triangles of every level of detail are sorted with the
+ *          vertex cache algorithm of Tom Forsyth, which picks the next
+ *          triangle by how recently its corners were used and how many
+ *          triangles they have left
+ * fetch    positions, texture coordinates and normals are renumbered in
+ *          the order the triangles first use them
+ * meshlets optionally, the triangles of every level are grouped into runs
+ *          with a bounded number of distinct corners, each with a
+ *          bounding sphere
+ *
+ * A vertex, like for a GPU, is a distinct corner of MeshCorners: one
+ * combination of position, texture coordinate and normal.
+ */
+public class MeshOptimizer {
+    public static final int CACHE_SIZE = 16; // Entries of the FIFO cache the statistics simulate
+    public static final int MESHLET_TRIANGLES = 124; // Most triangles of one meshlet
+
+    private static final int SCORE_CACHE_SIZE = 32; // Entries of the LRU cache the reordering scores
+    private static final double LAST_TRIANGLE_SCORE = 0.75;
+    private static final double CACHE_DECAY_POWER = 1.5;
+    private static final double VALENCE_BOOST_SCALE = 2.0;
+    private static final double VALENCE_BOOST_POWER = 0.5;
+    private static final int TABLE_VALENCE = 64; // Triangles left up to which the valence boost is looked up
+
+    // The scores of every place in the cache and of the first few valences, so a step doesn't call Math.pow
+    private static final double[] CACHE_SCORES = new double[SCORE_CACHE_SIZE];
+    private static final double[] VALENCE_SCORES = new double[TABLE_VALENCE];
+
+    static {
+        for(int k=0;k<SCORE_CACHE_SIZE;k++) {
+            // The corners of the last triangle are scored the same, whatever order they were added in
+            CACHE_SCORES[k] = k < 3 ? LAST_TRIANGLE_SCORE
+                    : Math.pow(1 - (double) (k - 3) / (SCORE_CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for(int k=1;k<TABLE_VALENCE;k++) {
+            VALENCE_SCORES[k] = VALENCE_BOOST_SCALE * Math.pow(k, -VALENCE_BOOST_POWER);
+        }
+    }
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Welds, reorders and renumbers a mesh, keeping its levels of detail.
+     *
+     * @param mesh the mesh to optimize, which isn't changed
+     * @param meshletVertices the most distinct corners of a meshlet, 0 for no meshlets
+     * @return the optimized mesh
+     * @throws IOException if the mesh has an index out of range
+     */
+    public static IndexedMesh optimize(IndexedMesh mesh, int meshletVertices) throws IOException {
+        IndexedMesh welded = weld(mesh);
+        MeshCorners corners = new MeshCorners(welded);
+
+        int[] order = new int[welded.getTriangleCount()];
+        for(int level=0;level<welded.getLevelCount();level++) {
+            reorder(corners.getVertexOf(), corners.getCount(), welded.getLevelStart(level),
+                    welded.getLevelTriangles(level), order);
+        }
+
+        IndexedMesh optimized = renumber(welded, order);
+        if(meshletVertices > 0) {
+            buildMeshlets(optimized, meshletVertices);
+        }
+        return optimized;
+    }
+
+    /**
+     * Simulates drawing the mesh through a FIFO vertex cache of CACHE_SIZE
+     * entries.
+     *
+     * @param mesh the mesh
+     * @return the average cache miss ratio (transformed vertices per
+     *         triangle), the average transform to vertex ratio
+     *         (transformed vertices per distinct vertex) and the number of
+     *         distinct vertices
+     * @throws IOException if the mesh has an index out of range
+     */
+    public static double[] cacheStatistics(IndexedMesh mesh) throws IOException {
+        MeshCorners corners = new MeshCorners(mesh);
+        int[] vertexOf = corners.getVertexOf();
+
+        // A vertex is in the cache while fewer than CACHE_SIZE misses came after the one that put it there
+        long[] insertedAt = new long[corners.getCount()];
+        Arrays.fill(insertedAt, Long.MIN_VALUE / 2);
+        long misses = 0;
+        for(int c=0;c<3*mesh.getTriangleCount();c++) {
+            int v = vertexOf[c];
+            if(misses - insertedAt[v] >= CACHE_SIZE) {
+                insertedAt[v] = misses;
+                misses++;
+            }
+        }
+        double acmr = mesh.getTriangleCount() > 0 ? (double) misses / mesh.getTriangleCount() : 0;
+        double atvr = corners.getCount() > 0 ? (double) misses / corners.getCount() : 0;
+        return new double[]{acmr, atvr, corners.getCount()};
+    }
+
+    /**
+     * Merges the positions, texture coordinates and normals that have the
+     * same value, e.g. at the poles and seams of a mesh read back from STL.
+     *
+     * @param mesh the mesh to weld, which isn't changed
+     * @return the welded mesh
+     * @throws IOException if the mesh has an index out of range
+     */
+    public static IndexedMesh weld(IndexedMesh mesh) throws IOException {
+        IndexedMesh welded = new IndexedMesh(mesh.getVertexCount(), mesh.getUvCount(), mesh.getNormalCount(),
+                mesh.getTriangleCount());
+        int[] positions = weldValues(mesh.getPositions(), mesh.getVertexCount(), 3, welded, 0);
+        int[] uvs = weldValues(mesh.getUvs(), mesh.getUvCount(), 2, welded, 1);
+        int[] normals = weldValues(mesh.getNormals(), mesh.getNormalCount(), 3, welded, 2);
+
+        int[] triangles = mesh.getTriangles();
+        int[] corner = new int[9];
+        for(int k=0;k<mesh.getTriangleCount();k++) {
+            for(int c=0;c<3;c++) {
+                corner[3*c] = positions[MeshCorners.resolve(triangles[9*k + 3*c], mesh.getVertexCount())] + 1;
+                int t = triangles[9*k + 3*c + 1];
+                corner[3*c + 1] = t == 0 ? 0 : uvs[MeshCorners.resolve(t, mesh.getUvCount())] + 1;
+                corner[3*c + 2] = normals[MeshCorners.resolve(triangles[9*k + 3*c + 2], mesh.getNormalCount())] + 1;
+            }
+            welded.addTriangle(corner[0], corner[1], corner[2], corner[3], corner[4], corner[5],
+                    corner[6], corner[7], corner[8]);
+        }
+        copyLevels(mesh, welded);
+        return welded;
+    }
+
+    /*
+     * Helper method to add the distinct values of one kind of element to a
+     * mesh. Returns the new index of every old element, from 0.
+     */
+    private static int[] weldValues(float[] values, int count, int stride, IndexedMesh welded, int kind) {
+        int[] remap = new int[count];
+        int[] firstOf = new int[Math.max(count, 1)]; // Old element that each new element came from
+        int distinct = 0;
+
+        // Open addressing table of new index + 1, 0 for an empty slot
+        int capacity = Integer.highestOneBit(Math.max(2*count, 2) - 1) << 1;
+        int shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        int[] table = new int[capacity];
+        for(int e=0;e<count;e++) {
+            int hash = 0;
+            for(int c=0;c<stride;c++) {
+                // Mixed after every value, close values of neighbouring elements spread over the table
+                hash = (hash ^ bits(values[stride*e + c])) * 0x9E3779B9;
+                hash ^= hash >>> 15;
+            }
+            int slot = (hash * 0x85EBCA6B) >>> shift;
+            while(table[slot] != 0 && !sameValues(values, stride, firstOf[table[slot] - 1], e)) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if(table[slot] == 0) {
+                firstOf[distinct] = e;
+                table[slot] = ++distinct;
+                int k = stride*e;
+                if(kind == 0) {
+                    welded.addVertex(values[k], values[k + 1], values[k + 2]);
+                } else if(kind == 1) {
+                    welded.addUv(values[k], values[k + 1]);
+                } else {
+                    welded.addNormal(values[k], values[k + 1], values[k + 2]);
+                }
+            }
+            remap[e] = table[slot] - 1;
+        }
+        return remap;
+    }
+
+    /*
+     * Helper method to compare two elements by value, where 0 and -0 are the same
+     */
+    private static boolean sameValues(float[] values, int stride, int a, int b) {
+        for(int c=0;c<stride;c++) {
+            if(bits(values[stride*a + c]) != bits(values[stride*b + c])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Helper method to get the bits of a value, with -0 hashed the same as 0
+     */
+    private static int bits(float value) {
+        return value == 0 ? 0 : Float.floatToIntBits(value);
+    }
+
+    /*
+     * Sorts a range of triangles for the vertex cache and puts their indices
+     * into the same range of order. Every step adds the remaining triangle
+     * with the highest score, the sum of the scores of its corners.
+     */
+    private static void reorder(int[] vertexOf, int vertexCount, int first, int count, int[] order) {
+        // Triangles of every vertex, and how many of them are still to be added
+        int[] remaining = new int[vertexCount];
+        for(int c=3*first;c<3*(first+count);c++) {
+            remaining[vertexOf[c]]++;
+        }
+        int[] offsets = new int[vertexCount + 1];
+        for(int v=0;v<vertexCount;v++) {
+            offsets[v + 1] = offsets[v] + remaining[v];
+        }
+        int[] adjacent = new int[3*count];
+        int[] filled = new int[vertexCount];
+        for(int t=0;t<count;t++) {
+            for(int c=0;c<3;c++) {
+                int v = vertexOf[3*(first+t) + c];
+                adjacent[offsets[v] + filled[v]++] = t;
+            }
+        }
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        double[] vertexScore = new double[vertexCount];
+        for(int v=0;v<vertexCount;v++) {
+            vertexScore[v] = score(cachePosition[v], remaining[v]);
+        }
+        double[] triangleScore = new double[count];
+        boolean[] added = new boolean[count];
+        int best = -1;
+        for(int t=0;t<count;t++) {
+            triangleScore[t] = triangleScore(vertexOf, first + t, vertexScore);
+            if(best < 0 || triangleScore[t] > triangleScore[best]) {
+                best = t;
+            }
+        }
+
+        int[] cache = new int[SCORE_CACHE_SIZE + 3];
+        int[] nextCache = new int[SCORE_CACHE_SIZE + 3];
+        int cacheLength = 0;
+        int scan = 0; // Every triangle before this one has been added
+        for(int out=0;out<count;out++) {
+            if(best < 0) {
+                // No triangle of a cached vertex is left, take the next one that wasn't added
+                while(added[scan]) {
+                    scan++;
+                }
+                best = scan;
+            }
+            order[first + out] = first + best;
+            added[best] = true;
+
+            // The corners of the triangle go to the front of the cache, and lose the triangle
+            int nextLength = 0;
+            for(int c=0;c<3;c++) {
+                int v = vertexOf[3*(first+best) + c];
+                boolean seen = false;
+                for(int k=0;k<nextLength;k++) {
+                    seen |= nextCache[k] == v;
+                }
+                if(!seen) {
+                    nextCache[nextLength++] = v;
+                }
+                for(int k=offsets[v];k<offsets[v]+remaining[v];k++) {
+                    if(adjacent[k] == best) {
+                        adjacent[k] = adjacent[offsets[v] + remaining[v] - 1];
+                        remaining[v]--;
+                        break;
+                    }
+                }
+            }
+            for(int k=0;k<cacheLength;k++) {
+                int v = cache[k];
+                if(v != nextCache[0] && (nextLength < 2 || v != nextCache[1]) && (nextLength < 3 || v != nextCache[2])) {
+                    nextCache[nextLength++] = v;
+                }
+            }
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+            cacheLength = nextLength;
+
+            // Rescore the cached vertices, the ones pushed out of it, and their triangles
+            for(int k=0;k<cacheLength;k++) {
+                int v = cache[k];
+                cachePosition[v] = k < SCORE_CACHE_SIZE ? k : -1;
+                vertexScore[v] = score(cachePosition[v], remaining[v]);
+            }
+            best = -1;
+            for(int k=0;k<cacheLength;k++) {
+                int v = cache[k];
+                for(int a=offsets[v];a<offsets[v]+remaining[v];a++) {
+                    int t = adjacent[a];
+                    triangleScore[t] = triangleScore(vertexOf, first + t, vertexScore);
+                    if(best < 0 || triangleScore[t] > triangleScore[best]) {
+                        best = t;
+                    }
+                }
+            }
+            cacheLength = Math.min(cacheLength, SCORE_CACHE_SIZE);
+        }
+    }
+
+    /*
+     * Helper method to score a vertex by its place in the cache and the triangles it has left
+     */
+    private static double score(int cachePosition, int remaining) {
+        if(remaining == 0) {
+            return -1;
+        }
+        double score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0;
+        // Vertices with few triangles left are worth finishing
+        return score + (remaining < TABLE_VALENCE ? VALENCE_SCORES[remaining]
+                : VALENCE_BOOST_SCALE * Math.pow(remaining, -VALENCE_BOOST_POWER));
+    }
+
+    /*
+     * Helper method to score a triangle by the sum of the scores of its corners
+     */
+    private static double triangleScore(int[] vertexOf, int triangle, double[] vertexScore) {
+        return vertexScore[vertexOf[3*triangle]] + vertexScore[vertexOf[3*triangle + 1]]
+                + vertexScore[vertexOf[3*triangle + 2]];
+    }
+
+    /*
+     * Helper method to build a mesh with the triangles in the given order and
+     * every kind of element numbered in the order the triangles first use it
+     */
+    private static IndexedMesh renumber(IndexedMesh mesh, int[] order) throws IOException {
+        IndexedMesh renumbered = new IndexedMesh(mesh.getVertexCount(), mesh.getUvCount(), mesh.getNormalCount(),
+                mesh.getTriangleCount());
+        int[] positions = new int[mesh.getVertexCount()]; // New OBJ index of every old element, 0 if not used yet
+        int[] uvs = new int[mesh.getUvCount()];
+        int[] normals = new int[mesh.getNormalCount()];
+        int[] triangles = mesh.getTriangles();
+        int[] corner = new int[9];
+        for(int t : order) {
+            for(int c=0;c<3;c++) {
+                int p = MeshCorners.resolve(triangles[9*t + 3*c], mesh.getVertexCount());
+                if(positions[p] == 0) {
+                    positions[p] = renumbered.addVertex(mesh.getPosition(p, 0), mesh.getPosition(p, 1),
+                            mesh.getPosition(p, 2));
+                }
+                corner[3*c] = positions[p];
+
+                corner[3*c + 1] = 0;
+                if(triangles[9*t + 3*c + 1] != 0) {
+                    int u = MeshCorners.resolve(triangles[9*t + 3*c + 1], mesh.getUvCount());
+                    if(uvs[u] == 0) {
+                        uvs[u] = renumbered.addUv(mesh.getUvs()[2*u], mesh.getUvs()[2*u + 1]);
+                    }
+                    corner[3*c + 1] = uvs[u];
+                }
+
+                int n = MeshCorners.resolve(triangles[9*t + 3*c + 2], mesh.getNormalCount());
+                if(normals[n] == 0) {
+                    normals[n] = renumbered.addNormal(mesh.getNormals()[3*n], mesh.getNormals()[3*n + 1],
+                            mesh.getNormals()[3*n + 2]);
+                }
+                corner[3*c + 2] = normals[n];
+            }
+            renumbered.addTriangle(corner[0], corner[1], corner[2], corner[3], corner[4], corner[5],
+                    corner[6], corner[7], corner[8]);
+        }
+        copyLevels(mesh, renumbered);
+        return renumbered;
+    }
+
+    /*
+     * Helper method to group the triangles of every level into meshlets, adding
+     * triangles in order until one would bring in too many distinct corners
+     */
+    private static void buildMeshlets(IndexedMesh mesh, int maxVertices) throws IOException {
+        MeshCorners corners = new MeshCorners(mesh);
+        int[] vertexOf = corners.getVertexOf();
+        int[] triples = corners.getTriples();
+        int[] stamp = new int[corners.getCount()]; // Meshlet + 1 that last took each vertex
+        int[] members = new int[maxVertices + 3];
+
+        int[] starts = new int[16];
+        int[] vertices = new int[16];
+        float[] bounds = new float[64];
+        int meshlets = 0;
+        int memberCount = 0;
+        for(int level=0;level<mesh.getLevelCount();level++) {
+            int end = mesh.getLevelStart(level) + mesh.getLevelTriangles(level);
+            for(int t=mesh.getLevelStart(level);t<end;t++) {
+                int added = 0;
+                for(int c=0;c<3;c++) {
+                    added += stamp[vertexOf[3*t + c]] == meshlets ? 0 : 1;
+                }
+                boolean first = t == mesh.getLevelStart(level);
+                boolean full = meshlets > 0 && (memberCount + added > maxVertices
+                        || t - starts[meshlets - 1] >= MESHLET_TRIANGLES);
+                if(first || full) {
+                    if(meshlets > 0) {
+                        vertices[meshlets - 1] = memberCount;
+                        sphere(mesh, triples, members, memberCount, bounds, meshlets - 1);
+                    }
+                    if(meshlets == starts.length) {
+                        starts = Arrays.copyOf(starts, 2*meshlets);
+                        vertices = Arrays.copyOf(vertices, 2*meshlets);
+                        bounds = Arrays.copyOf(bounds, 8*meshlets);
+                    }
+                    starts[meshlets++] = t;
+                    memberCount = 0;
+                }
+                for(int c=0;c<3;c++) {
+                    int v = vertexOf[3*t + c];
+                    if(stamp[v] != meshlets) {
+                        stamp[v] = meshlets;
+                        members[memberCount++] = v;
+                    }
+                }
+            }
+        }
+        if(meshlets > 0) {
+            vertices[meshlets - 1] = memberCount;
+            sphere(mesh, triples, members, memberCount, bounds, meshlets - 1);
+        }
+        mesh.setMeshlets(Arrays.copyOf(starts, meshlets), Arrays.copyOf(vertices, meshlets),
+                Arrays.copyOf(bounds, 4*meshlets));
+    }
+
+    /*
+     * Helper method to bound the corners of a meshlet by a sphere around their average position
+     */
+    private static void sphere(IndexedMesh mesh, int[] triples, int[] members, int count, float[] bounds, int meshlet) {
+        double[] center = new double[3];
+        for(int k=0;k<count;k++) {
+            for(int axis=0;axis<3;axis++) {
+                center[axis] += mesh.getPosition(triples[3*members[k]], axis) / count;
+            }
+        }
+        double radius = 0;
+        for(int k=0;k<count;k++) {
+            double distance = 0;
+            for(int axis=0;axis<3;axis++) {
+                double d = mesh.getPosition(triples[3*members[k]], axis) - center[axis];
+                distance += d*d;
+            }
+            radius = Math.max(radius, Math.sqrt(distance));
+        }
+        for(int axis=0;axis<3;axis++) {
+            bounds[4*meshlet + axis] = (float) center[axis];
+        }
+        // Rounded up so the float sphere still holds every corner
+        bounds[4*meshlet + 3] = Math.nextUp((float) radius);
+    }
+
+    /*
+     * Helper method to give a mesh the same level starts as another
+     */
+    private static void copyLevels(IndexedMesh from, IndexedMesh to) {
+        int[] levelStarts = new int[from.getLevelCount()];
+        for(int level=0;level<levelStarts.length;level++) {
+            levelStarts[level] = from.getLevelStart(level);
+        }
+        to.setLevelStarts(levelStarts);
+    }
+}
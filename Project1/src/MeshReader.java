@@ -0,0 +1,313 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Loads a mesh written by Genmesh back into an IndexedMesh. The format is
+ * picked by the extension: .obj, .ply, .stl or .gmesh.
+ *
+ * The binary formats are memory mapped and read in place, so the file is
+ * never copied into an array first. Quantized attributes of a .gmesh file
+ * are turned back into floats within the bounds in its header. Levels of
+ * detail are read back from the lod groups of an OBJ file and the level
+ * ranges of PLY and .gmesh files, and meshlets from the meshlet comments
+ * of OBJ and PLY files and the meshlet table of .gmesh files.
+ */
+public class MeshReader {
+    private MeshReader() {
+    }
+
+    /**
+     * Loads a mesh.
+     *
+     * @param fileName the name of the file
+     * @return the mesh in the file
+     * @throws IOException if the file can't be read or isn't a mesh Genmesh writes
+     */
+    public static IndexedMesh read(String fileName) throws IOException {
+        if (fileName.endsWith(".obj")) {
+            return readObj(fileName);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r");
+             FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(fileName + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (fileName.endsWith(".ply")) {
+                return readPly(buffer);
+            } else if (fileName.endsWith(".stl")) {
+                return readStl(buffer);
+            } else if (fileName.endsWith(".gmesh")) {
+                return readQuantized(buffer);
+            }
+            throw new IOException("Unknown mesh format: " + fileName);
+        }
+    }
+
+    /*
+     * Helper method to parse the v, vt, vn and f records of an OBJ file
+     */
+    private static IndexedMesh readObj(String fileName) throws IOException {
+        IndexedMesh mesh = new IndexedMesh(1024, 1024, 1024, 2048);
+        StringBuilder meshlets = new StringBuilder();
+        int[] corner = new int[9];
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens[0].equals("v")) {
+                    mesh.addVertex(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]),
+                            Double.parseDouble(tokens[3]));
+                } else if (tokens[0].equals("vt")) {
+                    mesh.addUv(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]));
+                } else if (tokens[0].equals("vn")) {
+                    mesh.addNormal(Double.parseDouble(tokens[1]), Double.parseDouble(tokens[2]),
+                            Double.parseDouble(tokens[3]));
+                } else if (tokens[0].equals("#") && tokens.length == 9 && tokens[1].equals("meshlet")) {
+                    meshlets.append(line.trim().substring(2)).append('\n');
+                } else if (tokens[0].equals("g") && tokens.length > 1 && tokens[1].startsWith("lod")
+                        && mesh.getTriangleCount() > 0) {
+                    mesh.nextLevel();
+                } else if (tokens[0].equals("f")) {
+                    for(int c=0;c<3;c++) {
+                        // v/vt/vn or v//vn, an empty vt becomes 0
+                        String[] indices = tokens[c + 1].split("/");
+                        for(int k=0;k<3;k++) {
+                            corner[3*c + k] = k < indices.length && !indices[k].isEmpty()
+                                    ? Integer.parseInt(indices[k]) : 0;
+                        }
+                    }
+                    mesh.addTriangle(corner[0], corner[1], corner[2], corner[3], corner[4], corner[5],
+                            corner[6], corner[7], corner[8]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException(fileName + " is not a valid OBJ file", e);
+        }
+        setMeshlets(mesh, meshlets.toString());
+        return mesh;
+    }
+
+    /*
+     * Helper method to read the binary PLY layout BinaryMeshWriter writes
+     */
+    private static IndexedMesh readPly(MappedByteBuffer buffer) throws IOException {
+        StringBuilder header = new StringBuilder();
+        while (!header.toString().endsWith("end_header\n")) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("The PLY header has no end");
+            }
+            header.append((char) buffer.get());
+        }
+        if (!header.toString().contains("format binary_little_endian 1.0")) {
+            throw new IOException("Only binary little-endian PLY files can be read");
+        }
+        int vertices = headerCount(header.toString(), "element vertex ");
+        int faces = headerCount(header.toString(), "element face ");
+        int[] levelStarts = plyLevels(header.toString());
+
+        IndexedMesh mesh = new IndexedMesh(vertices, vertices, vertices, faces);
+        for(int k=0;k<vertices;k++) {
+            mesh.addVertex(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            mesh.addNormal(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            mesh.addUv(buffer.getFloat(), buffer.getFloat());
+        }
+        int level = 1;
+        for(int k=0;k<faces;k++) {
+            while (level < levelStarts.length && levelStarts[level] == k) {
+                mesh.nextLevel();
+                level++;
+            }
+            if (buffer.get() != 3) {
+                throw new IOException("Only triangles can be read");
+            }
+            int a = buffer.getInt() + 1;
+            int b = buffer.getInt() + 1;
+            int c = buffer.getInt() + 1;
+            mesh.addTriangle(a, a, a, b, b, b, c, c, c);
+        }
+
+        StringBuilder meshlets = new StringBuilder();
+        for (String line : header.toString().split("\n")) {
+            if (line.startsWith("comment meshlet ")) {
+                meshlets.append(line.substring("comment ".length())).append('\n');
+            }
+        }
+        setMeshlets(mesh, meshlets.toString());
+        return mesh;
+    }
+
+    /*
+     * Helper method to read a binary STL file, three new vertices per triangle
+     */
+    private static IndexedMesh readStl(MappedByteBuffer buffer) {
+        buffer.position(80);
+        int triangles = buffer.getInt();
+        IndexedMesh mesh = new IndexedMesh(3*triangles, 0, triangles, triangles);
+        for(int k=0;k<triangles;k++) {
+            int n = mesh.addNormal(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            int a = mesh.addVertex(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            int b = mesh.addVertex(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            int c = mesh.addVertex(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            buffer.getShort();
+            mesh.addTriangle(a, 0, n, b, 0, n, c, 0, n);
+        }
+        return mesh;
+    }
+
+    /*
+     * Helper method to read and dequantize a .gmesh file
+     */
+    private static IndexedMesh readQuantized(MappedByteBuffer buffer) throws IOException {
+        if (buffer.get() != 'G' || buffer.get() != 'M' || buffer.get() != 'S' || buffer.get() != 'H') {
+            throw new IOException("Not a .gmesh file");
+        }
+        if (buffer.getInt() != BinaryMeshWriter.GMESH_VERSION) {
+            throw new IOException("Unknown .gmesh version");
+        }
+        int vertices = buffer.getInt();
+        int triangles = buffer.getInt();
+        int flags = buffer.getInt();
+        boolean intIndices = (flags & BinaryMeshWriter.FLAG_INT_INDICES) != 0;
+        float[] min = new float[5];
+        float[] max = new float[5];
+        for(int axis=0;axis<3;axis++) {
+            min[axis] = buffer.getFloat();
+        }
+        for(int axis=0;axis<3;axis++) {
+            max[axis] = buffer.getFloat();
+        }
+        min[3] = buffer.getFloat();
+        min[4] = buffer.getFloat();
+        max[3] = buffer.getFloat();
+        max[4] = buffer.getFloat();
+        int[] levelStarts = {0};
+        if ((flags & BinaryMeshWriter.FLAG_LEVELS) != 0) {
+            levelStarts = new int[buffer.getInt()];
+            for(int k=0;k<levelStarts.length;k++) {
+                levelStarts[k] = buffer.getInt();
+                buffer.getInt();
+            }
+        }
+        int[] meshletStarts = new int[0];
+        int[] meshletVertices = new int[0];
+        float[] meshletBounds = new float[0];
+        if ((flags & BinaryMeshWriter.FLAG_MESHLETS) != 0) {
+            int count = buffer.getInt();
+            meshletStarts = new int[count];
+            meshletVertices = new int[count];
+            meshletBounds = new float[4*count];
+            for(int m=0;m<count;m++) {
+                meshletStarts[m] = buffer.getInt();
+                buffer.getInt();
+                meshletVertices[m] = buffer.getInt();
+                for(int c=0;c<4;c++) {
+                    meshletBounds[4*m + c] = buffer.getFloat();
+                }
+            }
+        }
+
+        IndexedMesh mesh = new IndexedMesh(vertices, vertices, vertices, triangles);
+        for(int k=0;k<vertices;k++) {
+            double x = dequantize(buffer.getShort(), min[0], max[0]);
+            double y = dequantize(buffer.getShort(), min[1], max[1]);
+            double z = dequantize(buffer.getShort(), min[2], max[2]);
+            mesh.addVertex(x, y, z);
+
+            // Unfold the octahedral projection of the normal
+            double u = buffer.getShort() / (double) Short.MAX_VALUE;
+            double v = buffer.getShort() / (double) Short.MAX_VALUE;
+            double w = 1 - Math.abs(u) - Math.abs(v);
+            if (w < 0) {
+                double foldedU = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+                v = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+                u = foldedU;
+            }
+            double length = Math.sqrt(u*u + v*v + w*w);
+            mesh.addNormal(u / length, v / length, w / length);
+
+            mesh.addUv(dequantize(buffer.getShort(), min[3], max[3]), dequantize(buffer.getShort(), min[4], max[4]));
+        }
+        int level = 1;
+        for(int k=0;k<triangles;k++) {
+            while (level < levelStarts.length && levelStarts[level] == k) {
+                mesh.nextLevel();
+                level++;
+            }
+            int a = (intIndices ? buffer.getInt() : buffer.getShort() & 0xFFFF) + 1;
+            int b = (intIndices ? buffer.getInt() : buffer.getShort() & 0xFFFF) + 1;
+            int c = (intIndices ? buffer.getInt() : buffer.getShort() & 0xFFFF) + 1;
+            mesh.addTriangle(a, a, a, b, b, b, c, c, c);
+        }
+        if (meshletStarts.length > 0) {
+            mesh.setMeshlets(meshletStarts, meshletVertices, meshletBounds);
+        }
+        return mesh;
+    }
+
+    /*
+     * Helper method to set the meshlets of lines of "meshlet first triangles vertices x y z radius"
+     */
+    private static void setMeshlets(IndexedMesh mesh, String lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        String[] records = lines.split("\n");
+        int[] starts = new int[records.length];
+        int[] vertices = new int[records.length];
+        float[] bounds = new float[4*records.length];
+        for(int m=0;m<records.length;m++) {
+            String[] tokens = records[m].split(" ");
+            starts[m] = Integer.parseInt(tokens[1]);
+            vertices[m] = Integer.parseInt(tokens[3]);
+            for(int c=0;c<4;c++) {
+                bounds[4*m + c] = Float.parseFloat(tokens[4 + c]);
+            }
+        }
+        mesh.setMeshlets(starts, vertices, bounds);
+    }
+
+    /*
+     * Helper method to find the first triangle of every level in the comments of a PLY header
+     */
+    private static int[] plyLevels(String header) {
+        int count = 0;
+        for (String line : header.split("\n")) {
+            if (line.startsWith("comment lod ")) {
+                count++;
+            }
+        }
+        int[] levelStarts = new int[Math.max(count, 1)];
+        for (String line : header.split("\n")) {
+            if (line.startsWith("comment lod ")) {
+                String[] tokens = line.split(" ");
+                levelStarts[Integer.parseInt(tokens[2])] = Integer.parseInt(tokens[3]);
+            }
+        }
+        return levelStarts;
+    }
+
+    private static double dequantize(short value, float min, float max) {
+        return min + (value & 0xFFFF) / 65535.0 * (max - min);
+    }
+
+    /*
+     * Helper method to find the count of an element in a PLY header
+     */
+    private static int headerCount(String header, String element) throws IOException {
+        int start = header.indexOf(element);
+        if (start < 0) {
+            throw new IOException("The PLY header has no " + element.trim());
+        }
+        start += element.length();
+        return Integer.parseInt(header.substring(start, header.indexOf('\n', start)).trim());
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a Wavefront OBJ file record by record. Records are formatted
+ * straight into a direct buffer that is written to the file channel
+ * whenever it fills up, so the whole file is never held in memory.
+ *
+ * Numbers are written with a fixed number of decimals, without trailing
+ * zeros, and without creating any Strings or other objects, so writing a
+ * mesh of any size uses the same small amount of memory.
+ */
+public class ObjWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_RECORD = 256; // Longest record written without checking for space
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] digits = new byte[20]; // Digits of one number, last digit first
+    private int precision;
+    private long scale; // 10^precision
+    private long bytesWritten = 0;
+
+    /**
+     * Creates the file, replacing any file with the same name.
+     *
+     * @param fileName the name of the file to write
+     * @param precision the number of decimals numbers are rounded to, 0 to 15
+     * @throws IOException if the file can't be created
+     */
+    public ObjWriter(String fileName, int precision) throws IOException {
+        if(precision < 0 || precision > 15) {
+            throw new IllegalArgumentException("Precision must be 0 to 15 decimals");
+        }
+        this.precision = precision;
+        this.scale = (long) Math.pow(10, precision);
+        this.channel = new FileOutputStream(fileName, false).getChannel();
+    }
+
+    /**
+     * Writes a vertex position: v x y z
+     */
+    public void vertex(double x, double y, double z) throws IOException {
+        reserve();
+        putByte('v');
+        putNumber(x);
+        putNumber(y);
+        putNumber(z);
+        putByte('\n');
+    }
+
+    /**
+     * Writes a texture coordinate: vt u v
+     */
+    public void texture(double u, double v) throws IOException {
+        reserve();
+        putByte('v');
+        putByte('t');
+        putNumber(u);
+        putNumber(v);
+        putByte('\n');
+    }
+
+    /**
+     * Writes a vertex normal: vn x y z
+     */
+    public void normal(double x, double y, double z) throws IOException {
+        reserve();
+        putByte('v');
+        putByte('n');
+        putNumber(x);
+        putNumber(y);
+        putNumber(z);
+        putByte('\n');
+    }
+
+    /**
+     * Writes a triangle. Indices start at 1, and a texture index of 0 leaves
+     * the texture coordinates out (f v//vn).
+     */
+    public void face(int v1, int t1, int n1, int v2, int t2, int n2, int v3, int t3, int n3) throws IOException {
+        reserve();
+        putByte('f');
+        putCorner(v1, t1, n1);
+        putCorner(v2, t2, n2);
+        putCorner(v3, t3, n3);
+        putByte('\n');
+    }
+
+    /**
+     * Writes a record that is already formatted, followed by a newline.
+     *
+     * @param record the record, which must be plain ASCII
+     */
+    public void line(String record) throws IOException {
+        for(int k=0;k<record.length();k++) {
+            if(!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) record.charAt(k));
+        }
+        reserve();
+        putByte('\n');
+    }
+
+    /**
+     * @return the number of bytes written to the file so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten + buffer.position();
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Writes what is left in the buffer and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Makes sure the buffer has room for a whole record
+     */
+    private void reserve() throws IOException {
+        if(buffer.remaining() < MAX_RECORD) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putByte(char c) {
+        buffer.put((byte) c);
+    }
+
+    /*
+     * Writes one corner of a face: a space, then v/t/n or v//n
+     */
+    private void putCorner(int v, int t, int n) {
+        putByte(' ');
+        putIndex(v);
+        putByte('/');
+        if(t != 0) {
+            putIndex(t);
+        }
+        putByte('/');
+        putIndex(n);
+    }
+
+    /*
+     * Writes an index, which OBJ allows to be negative (counted back from the last element)
+     */
+    private void putIndex(int index) {
+        if(index < 0) {
+            putByte('-');
+        }
+        putLong(Math.abs((long) index));
+    }
+
+    /*
+     * Writes a space and the number rounded to the precision, e.g. -0.25 or 1
+     */
+    private void putNumber(double value) {
+        putByte(' ');
+        double scaled = Math.abs(value) * scale;
+        if(!(scaled < 1e18)) {
+            // Too large to round into a long (or not a number), this rarely happens in a mesh
+            String s = Double.toString(value);
+            for(int k=0;k<s.length();k++) {
+                buffer.put((byte) s.charAt(k));
+            }
+            return;
+        }
+
+        long rounded = Math.round(scaled);
+        if(rounded != 0 && value < 0) {
+            putByte('-');
+        }
+        putLong(rounded / scale);
+
+        long fraction = rounded % scale;
+        if(fraction != 0) {
+            // Drop the trailing zeros, then pad the remaining digits to their place
+            int places = precision;
+            while(fraction % 10 == 0) {
+                fraction /= 10;
+                places--;
+            }
+            putByte('.');
+            int count = 0;
+            while(fraction > 0) {
+                digits[count++] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            for(int k=count;k<places;k++) {
+                putByte('0');
+            }
+            while(count > 0) {
+                buffer.put(digits[--count]);
+            }
+        }
+    }
+
+    /*
+     * Writes a non-negative whole number
+     */
+    private void putLong(long value) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value > 0);
+        while(count > 0) {
+            buffer.put(digits[--count]);
+        }
+    }
+}
@@ -1,4 +1,6 @@
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class represents a triangle mesh of a 3D sphere in the
@@ -6,111 +8,206 @@ import java.util.ArrayList;
  */
 public class SphereMesh {
     public final double DEGREES_OF_CIRCLE = 2 * Math.PI; // in Radians because Math.sin and Math.cos use radians
+    private static final int BAND_VERTICES = 1 << 16; // Vertices of the rings generated by one task
     private int divisionsU;
     private int divisionsV;
-    private static ArrayList<double[]> vertices;
-    private static ArrayList<String> faces;
-    private static ArrayList<double[]> normals;
-    private static ArrayList<double[]> textures;
+    private int levels;
+    private IndexedMesh mesh;
+    private double[] cosU; // Cosine and sine of every angle around the y axis, shared by every ring
+    private double[] sinU;
 
     public SphereMesh(int divU, int divV) {
+        this(divU, divV, 1);
+    }
+
+    /**
+     * Creates a SphereMesh object with a pyramid of levels of detail.
+     * Every level has half the U and V divisions of the one before it, and
+     * uses the vertices of the first level, so they share one table of sines
+     * and cosines. The pyramid stops early when the divisions can't be
+     * halved again to at least 3 U and an even number of V divisions.
+     *
+     * Every element of the mesh has an index that follows from its ring and
+     * column alone, so the rings are split into bands that are generated in
+     * parallel on the common fork/join pool. The mesh is the same whichever
+     * thread generates a band.
+     *
+     * @param divU the number of U divisions of the finest level
+     * @param divV the number of V divisions of the finest level
+     * @param levels the number of levels of detail wanted
+     */
+    public SphereMesh(int divU, int divV, int levels) {
         divisionsU = divU;
         divisionsV = divV;
-        vertices = new ArrayList<>();
-        faces = new ArrayList<>();
-        normals = new ArrayList<>();
-        textures = new ArrayList<>();
-        this.generateVertices();
-        this.generateFaces();
-        this.generateNormals();
-        this.generateTextures();
-    }
+        this.levels = 1;
+        while(this.levels < levels && divU % (1 << this.levels) == 0 && divU >> this.levels >= 3
+                && divV % (2 << this.levels) == 0) {
+            this.levels++;
+        }
+
+        long total = 0;
+        for(int k=0;k<this.levels;k++) {
+            total += 2L*(divisionsU >> k)*((divisionsV >> k)-1);
+        }
+        if(total > Integer.MAX_VALUE / 9) {
+            throw new IllegalArgumentException("A sphere of " + total + " triangles is too large for one mesh");
+        }
+
+        int points = divisionsU*(divisionsV-1)+2; // Every ring but the poles, plus the poles
+        int[] levelStarts = new int[this.levels];
+        int triangles = 0;
+        for(int k=0;k<this.levels;k++) {
+            levelStarts[k] = triangles;
+            triangles += 2*(divisionsU >> k)*((divisionsV >> k)-1);
+        }
+        mesh = new IndexedMesh(points, points, points, triangles);
+        mesh.setCounts(points, points, points, triangles);
+        mesh.setLevelStarts(levelStarts);
 
-    private void generateVertices() {
-        double x,y,z;
         double angleU = DEGREES_OF_CIRCLE / divisionsU;
+        cosU = new double[divisionsU];
+        sinU = new double[divisionsU];
+        for(int j=0;j<divisionsU;j++) {
+            cosU[j] = Math.cos(angleU*j);
+            sinU[j] = Math.sin(angleU*j);
+        }
+
+        // The rings of the first level, then the faces of every level
+        BandTask[] tasks = new BandTask[this.levels + 1];
+        tasks[0] = new BandTask(-1, 0, divisionsV-1);
+        for(int k=0;k<this.levels;k++) {
+            tasks[k + 1] = new BandTask(k, 0, (divisionsV >> k)-1);
+        }
+        ForkJoinTask.invokeAll(tasks);
+        cosU = null;
+        sinU = null;
+    }
+
+    /*
+     * Generates the vertices, normals and texture coordinates of a band of
+     * rings, from the top. The first band also has the North pole and the
+     * last band the South pole.
+     */
+    private void generateRings(int from, int to) {
         double angleV = (DEGREES_OF_CIRCLE/ 2) / divisionsV;
+        double offsetU = 1.0/divisionsU;
+        double offsetV = 1.0/divisionsV;
 
-        // Vertex 1 will always be the top of the sphere (North pole)
-        vertices.add(new double[]{0,1,0});
+        if(from == 0) {
+            // Vertex 1 will always be the top of the sphere (North pole)
+            setPoint(0, 0, 1, 0, 0, 1);
+        }
 
-        // Generate all vertices for the sphere, excluding the poles
-        for(int i=divisionsV/2-1;i>(-divisionsV/2);i--) {
-            y = Math.sin(angleV*i);
+        for(int ring=from;ring<to;ring++) {
+            // Rings go from the top down, ring r is at 90 degrees - (r+1)*angleV
+            double y = Math.sin(angleV*(divisionsV-2*(ring+1))/2);
+            double radius = Math.sqrt(1-y*y);
+            int start = 1 + ring*divisionsU;
             for(int j=0;j<divisionsU;j++) {
-                double radius = Math.sqrt(1-y*y);
-                x = radius*Math.cos(angleU*j);
-                z = radius*Math.sin(angleU*j);
-                vertices.add(new double[]{x,y,z});
+                setPoint(start + j, radius*cosU[j], y, radius*sinU[j], j*offsetU, (ring+1)*offsetV);
             }
         }
 
-        // Last vertex will always be the bottom of the sphere (South pole)
-        vertices.add(new double[]{0,-1,0});
+        if(to == divisionsV-1) {
+            // Last vertex will always be the bottom of the sphere (South pole)
+            setPoint(divisionsU*(divisionsV-1)+1, 0, -1, 0, 0, 0);
+        }
     }
 
-    private void generateFaces() {
-        // Generate top triangle fan
-        for(int i=2;i<divisionsU+1;i++) {
-            faces.add("f "+1+"/"+1+"/"+1+" "+i+"/"+i+"/"+i+" "+(i+1)+"/"+(i+1)+"/"+(i+1));
-        }
+    /*
+     * Sets the vertex, texture coordinate and normal of one point, which all have the same index
+     */
+    private void setPoint(int index, double x, double y, double z, double u, double v) {
+        mesh.setVertex(index, x, y, z);
+        mesh.setUv(index, u, v);
 
-        // Last triangles of fans are special case since they connect back to starting vertex
-        faces.add("f "+1+"/"+1+"/"+1+" "+(divisionsU+1)+"/"+(divisionsU+1)+"/"+(divisionsU+1)+" "+2+"/"+2+"/"+2);
+        // Vertex normals for every vertex can be represented by its Cartesian coordinates
+        x = mesh.getPosition(index, 0);
+        y = mesh.getPosition(index, 1);
+        z = mesh.getPosition(index, 2);
+        double length = Math.sqrt((x * x) + (y * y) + (z * z));
+        mesh.setNormal(index, x/length, y/length, z/length);
+    }
 
-        // Generate bottom triangle fan
-        int startIndex = vertices.size()-32;
-        for(int i=startIndex;i<vertices.size()-1;i++) {
-            faces.add("f "+vertices.size()+"/"+vertices.size()+"/"+vertices.size()+" "+i+"/"+i+"/"+i+" "+(i+1)+"/"+(i+1)+"/"+(i+1));
+    /*
+     * Generates the faces of a band of rings of one level: the triangle
+     * strips between each ring and the next, and the triangle fan of a pole
+     * if the band has the first or last ring
+     */
+    private void generateFaces(int level, int from, int to) {
+        int divU = divisionsU >> level;
+        int divV = divisionsV >> level;
+        int first = mesh.getLevelStart(level);
+        int north = 1;
+        int south = divisionsU*(divisionsV-1)+2;
+
+        if(from == 0) {
+            // Top triangle fan, the last triangle connects back to the starting vertex
+            for(int j=0;j<divU;j++) {
+                addFace(first + j, north, vertex(level, 0, j), vertex(level, 0, (j+1)%divU));
+            }
         }
 
-        // Last triangles of each fan are special case since they connect back to starting vertex
-        faces.add("f "+vertices.size()+"/"+vertices.size()+"/"+vertices.size()+" "
-                +(vertices.size()-1)+"/"+(vertices.size()-1)+"/"+(vertices.size()-1)+" "
-                +startIndex+"/"+startIndex+"/"+startIndex);
-
-        // Generate triangle strips for the top half starting at the equator
-        int passes = divisionsU*(divisionsV-2)+2;
-        for(int i=2;i<passes;i++) {
-            if((i-1)%divisionsU != 0) {
-                faces.add("f "+i+"/"+i+"/"+i+" "+(i+1)+"/"+(i+1)+"/"+(i+1)+" "+(i+divisionsU)+"/"+(i+divisionsU)+"/"+(i+divisionsU));
-                faces.add("f "+(i+1+divisionsU)+"/"+(i+1+divisionsU)+"/"+(i+1+divisionsU)+" "
-                        +(i+divisionsU)+"/"+(i+divisionsU)+"/"+(i+divisionsU)+" "
-                        +(i+1)+"/"+(i+1)+"/"+(i+1));
-            } else {
-                faces.add("f "+i+"/"+i+"/"+i+" "
-                        +(i+1-divisionsU)+"/"+(i+1-divisionsU)+"/"+(i+1-divisionsU)+" "
-                        +(i+divisionsU)+"/"+(i+divisionsU)+"/"+(i+divisionsU));
-                faces.add("f "+(i+1)+"/"+(i+1)+"/"+(i+1)+" "
-                        +(i+divisionsU)+"/"+(i+divisionsU)+"/"+(i+divisionsU)+" "
-                        +(i+1-divisionsU)+"/"+(i+1-divisionsU)+"/"+(i+1-divisionsU));
+        if(to == divV-1) {
+            // Bottom triangle fan around the last ring
+            for(int j=0;j<divU;j++) {
+                addFace(first + divU + j, south, vertex(level, divV-2, j), vertex(level, divV-2, (j+1)%divU));
             }
         }
-    }
 
-    private void generateNormals() {
-        // Vertex normals for every vertex can be represented by its Cartesian coordinates
-        for(double[] v : vertices) {
-            double length = Math.sqrt((v[0] * v[0]) + (v[1] * v[1]) + (v[2] * v[2]));
-            normals.add(new double[]{v[0]/length,v[1]/length,v[2]/length});
+        // Two triangles of the strip below every vertex of every ring but the last
+        for(int ring=from;ring<Math.min(to, divV-2);ring++) {
+            int face = first + 2*divU + 2*ring*divU;
+            for(int j=0;j<divU;j++) {
+                int next = (j+1)%divU;
+                addFace(face + 2*j, vertex(level, ring, j), vertex(level, ring, next), vertex(level, ring+1, j));
+                addFace(face + 2*j + 1, vertex(level, ring+1, next), vertex(level, ring+1, j), vertex(level, ring, next));
+            }
         }
     }
 
-    private void generateTextures() {
-        // First texture is always the North pole
-        textures.add(new double[]{0,1});
+    /*
+     * Sets a triangle whose corners use the same index for their position, texture and normal
+     */
+    private void addFace(int index, int a, int b, int c) {
+        mesh.setTriangle(index, a, a, a, b, b, b, c, c, c);
+    }
 
-        // Generate the rest of texture coordinates, excluding the South pole
-        double offsetU = 1.0/divisionsU;
-        double offsetV = 1.0/divisionsV;
-        for(int i=1;i<divisionsV;i++) {
-            for(int j=0;j<divisionsU;j++) {
-                textures.add(new double[]{j*offsetU,i*offsetV});
-            }
+    /*
+     * Gets the OBJ index of the vertex in a ring and column of a level, which
+     * is the vertex at the same angles in the first level
+     */
+    private int vertex(int level, int ring, int column) {
+        if(level > 0) {
+            // Ring r of a level is 2^level times as far from the North pole as ring r of the mesh
+            ring = ((ring+1) << level)-1;
+            column <<= level;
         }
+        return 2 + ring*divisionsU + column;
+    }
+
+    /**
+     * @return the number of levels of detail that were generated
+     */
+    public int getLevels() {
+        return levels;
+    }
 
-        // Last texture is always the South pole
-        textures.add(new double[]{0,0});
+    /**
+     * @return the generated triangles in flat arrays
+     */
+    public IndexedMesh getMesh() {
+        return mesh;
+    }
+
+    /**
+     * Writes the SphereMesh to an OBJ file one record at a time.
+     *
+     * @param out the writer of the file
+     * @throws IOException if the file can't be written
+     */
+    public void write(ObjWriter out) throws IOException {
+        mesh.write(out);
     }
 
     /**
@@ -119,19 +216,38 @@ public class SphereMesh {
      */
     @Override
     public String toString() {
-        String obj = "";
-        for(double[] v : vertices) {
-            obj += "v " + v[0] + " " + v[1] + " " + v[2] + "\n";
-        }
-        for(double[] t : textures) {
-            obj += "vt " + t[0] + " " + t[1] + "\n";
-        }
-        for(double[] n : normals) {
-            obj += "vn " + n[0] + " " + n[1] + " " + n[2] + "\n";
+        return mesh.toString();
+    }
+
+    /*
+     * Splits a band of rings in half until it is small enough to generate on
+     * one thread. Level -1 generates the vertices, any other level its faces.
+     */
+    @SuppressWarnings("serial")
+    private class BandTask extends RecursiveAction {
+        private int level;
+        private int from;
+        private int to;
+
+        BandTask(int level, int from, int to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
         }
-        for(String f : faces) {
-            obj += f + "\n";
+
+        @Override
+        protected void compute() {
+            int divU = level < 0 ? divisionsU : divisionsU >> level;
+            if((long) (to - from) * divU <= BAND_VERTICES || to - from <= 1) {
+                if(level < 0) {
+                    generateRings(from, to);
+                } else {
+                    generateFaces(level, from, to);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BandTask(level, from, mid), new BandTask(level, mid, to));
+            }
         }
-        return obj;
     }
 }
@@ -0,0 +1,44 @@
+package benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result comes
+ * with its allocation rate per operation (gc.alloc.rate.norm).
+ *
+ * Takes the usual JMH command-line options, e.g. a benchmark name regex,
+ * -p surfaces=1000, -rf json -rff baseline.json, -l or -h. They are handed
+ * to the JMH launcher as they are, with -prof gc in front unless the GC
+ * profiler was already asked for.
+ *
+ * @author Brendan Van Allen
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        if(!hasGcProfiler(args)) {
+            arguments.add("-prof");
+            arguments.add("gc");
+        }
+        arguments.addAll(Arrays.asList(args));
+        Main.main(arguments.toArray(new String[0]));
+    }
+
+    /*
+     * Helper method to check for -prof gc, with or without profiler options
+     */
+    private static boolean hasGcProfiler(String[] args) {
+        for(int i=0;i+1<args.length;i++) {
+            if(args[i].equals("-prof") && (args[i + 1].equals("gc") || args[i + 1].startsWith("gc:"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * Group.hit (and the BVH over the same Surfaces) for scenes of random
+ * spheres in front of the camera. Each invocation traces the next viewing
+ * ray from a fixed set of rays spread over the image.
+ *
+ * @author Brendan Van Allen
+ */
+@State(Scope.Thread)
+public class GroupHitBenchmark extends BenchmarkSettings {
+    private static final int RAYS = 1024;
+
+    @Param({"10", "1000", "100000"})
+    public int surfaces;
+
+    @Param({"linear", "bvh"})
+    public String accel;
+
+    private Object target;
+    private Object[] rays = new Object[RAYS];
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(555);
+        Object scene = Tracer.scene(new Vector3d(0, -4, 2), Color.WHITE);
+
+        // Keep the amount of the image covered by spheres about the same for every scene size
+        double radius = 1.5 / Math.sqrt(surfaces);
+        for(int k=0;k<surfaces;k++) {
+            Vector3d center = new Vector3d(random.nextDouble()*6 - 3, random.nextDouble()*4 - 2, -2 - random.nextDouble()*8);
+            Tracer.add(scene, Tracer.sphere(center, radius, Tracer.material(10, Color.RED)));
+        }
+
+        Object group = Tracer.surfaces(scene);
+        target = accel.equals("bvh") ? Tracer.bvh(group) : group;
+
+        Object camera = Tracer.camera();
+        for(int k=0;k<RAYS;k++) {
+            rays[k] = (Object) Tracer.VIEWING_RAY.invokeExact(camera, random.nextInt(1280), random.nextInt(720));
+        }
+    }
+
+    @Benchmark
+    public Object hit() throws Throwable {
+        next = (next + 1) & (RAYS - 1);
+        return (Object) Tracer.HIT.invokeExact(target, rays[next]);
+    }
+}
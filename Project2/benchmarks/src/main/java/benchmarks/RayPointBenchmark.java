@@ -0,0 +1,29 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Ray.getPointOnRay.
+ *
+ * @author Brendan Van Allen
+ */
+@State(Scope.Thread)
+public class RayPointBenchmark extends BenchmarkSettings {
+    private Object ray;
+    private double time = 1.5;
+
+    @Setup
+    public void setup() throws Throwable {
+        ray = Tracer.ray(new Vector3d(0, 0, 0), new Vector3d(0.3, -0.2, -1));
+    }
+
+    @Benchmark
+    public Vector3d getPointOnRay() throws Throwable {
+        return (Vector3d) Tracer.POINT_ON_RAY.invokeExact(ray, time);
+    }
+}
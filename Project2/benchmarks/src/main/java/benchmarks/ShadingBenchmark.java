@@ -0,0 +1,42 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+
+/**
+ * RayTracer.computeShading, the shading every recursive trace ends in,
+ * for one lit hit on a sphere, across the shininess values used in the
+ * hard-coded scene.
+ *
+ * @author Brendan Van Allen
+ */
+@State(Scope.Thread)
+public class ShadingBenchmark extends BenchmarkSettings {
+    @Param({"1", "10", "100", "1000"})
+    public int shininess;
+
+    private Object scene;
+    private Object hit;
+
+    @Setup
+    public void setup() throws Throwable {
+        scene = Tracer.scene(new Vector3d(0, -4, 2), Color.WHITE);
+        Object sphere = Tracer.sphere(new Vector3d(0, 0, -2), 0.5, Tracer.material(shininess, Color.MAGENTA));
+        Tracer.add(scene, sphere);
+
+        // A ray slightly off center so the specular term is not exactly 1
+        Object ray = Tracer.ray(new Vector3d(0, 0, 0), new Vector3d(0.05, -0.1, -1));
+        hit = (Object) Tracer.HIT.invokeExact(sphere, ray);
+    }
+
+    @Benchmark
+    public int computeShading() throws Throwable {
+        return (int) Tracer.SHADING.invokeExact(scene, hit, false);
+    }
+}
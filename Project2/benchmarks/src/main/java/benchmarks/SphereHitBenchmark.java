@@ -0,0 +1,46 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+
+/**
+ * Sphere.hit for a ray through the center, a ray that misses and a ray
+ * that just touches the edge of the sphere.
+ *
+ * @author Brendan Van Allen
+ */
+@State(Scope.Thread)
+public class SphereHitBenchmark extends BenchmarkSettings {
+    private Object sphere;
+    private Object hitRay;
+    private Object missRay;
+    private Object grazingRay;
+
+    @Setup
+    public void setup() throws Throwable {
+        sphere = Tracer.sphere(new Vector3d(0, 0, -2), 0.5, Tracer.material(10, Color.RED));
+        hitRay = Tracer.ray(new Vector3d(0, 0, 0), new Vector3d(0, 0, -1));
+        missRay = Tracer.ray(new Vector3d(0, 0, 0), new Vector3d(1, 1, -1));
+        grazingRay = Tracer.ray(new Vector3d(0.5, 0, 0), new Vector3d(0, 0, -1)); // Tangent to the sphere
+    }
+
+    @Benchmark
+    public Object hit() throws Throwable {
+        return (Object) Tracer.HIT.invokeExact(sphere, hitRay);
+    }
+
+    @Benchmark
+    public Object miss() throws Throwable {
+        return (Object) Tracer.HIT.invokeExact(sphere, missRay);
+    }
+
+    @Benchmark
+    public Object grazing() throws Throwable {
+        return (Object) Tracer.HIT.invokeExact(sphere, grazingRay);
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks;
+
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.List;
+
+/**
+ * Gives the benchmarks access to the ray tracer classes.
+ *
+ * The ray tracer lives in the default package, which code in a named package
+ * can not import, and JMH refuses to generate benchmarks in the default
+ * package. So the tracer types are looked up by name once, and every call
+ * goes through a static final MethodHandle in which the tracer types are
+ * replaced by Object.
+ * The JIT treats such handles as constants and inlines the target, so the
+ * indirection does not show up in the measurements.
+ *
+ * @author Brendan Van Allen
+ */
+final class Tracer {
+    static final MethodHandle NEW_MATERIAL; // (int shininess, Color color) -> Material
+    static final MethodHandle NEW_SPHERE; // (Vector3d center, double radius, Material material) -> Sphere
+    static final MethodHandle NEW_RAY; // (Vector3d viewpoint, Vector3d direction) -> Ray
+    static final MethodHandle NEW_LIGHT; // (Vector3d position, Color color) -> Light
+    static final MethodHandle NEW_SCENE; // (Light light) -> Scene
+    static final MethodHandle NEW_BVH; // (Group group) -> BVH
+    static final MethodHandle SCENE_ADD; // (Scene scene, Surface surface) -> void
+    static final MethodHandle SCENE_SURFACES; // (Scene scene) -> Group
+    static final MethodHandle HIT; // (Surface surface, Ray ray) -> HitRecord
+    static final MethodHandle POINT_ON_RAY; // (Ray ray, double time) -> Vector3d
+    static final MethodHandle NEW_CAMERA; // () -> Camera
+    static final MethodHandle VIEWING_RAY; // (Camera camera, int i, int j) -> Ray
+    static final MethodHandle SHADING; // (Scene scene, HitRecord hit, boolean inShadow) -> int
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> material = Class.forName("Material");
+            Class<?> sphere = Class.forName("Sphere");
+            Class<?> ray = Class.forName("Ray");
+            Class<?> light = Class.forName("Light");
+            Class<?> scene = Class.forName("Scene");
+            Class<?> surface = Class.forName("Surface");
+            Class<?> group = Class.forName("Group");
+            Class<?> bvh = Class.forName("BVH");
+            Class<?> hitRecord = Class.forName("HitRecord");
+            Class<?> rayTracer = Class.forName("RayTracer");
+            Class<?> camera = Class.forName("Camera");
+
+            NEW_MATERIAL = generic(lookup.unreflectConstructor(material.getConstructor(int.class, Color.class)));
+            NEW_SPHERE = generic(lookup.unreflectConstructor(sphere.getConstructor(Vector3d.class, double.class, material)));
+            NEW_RAY = generic(lookup.unreflectConstructor(ray.getConstructor(Vector3d.class, Vector3d.class)));
+            NEW_LIGHT = generic(lookup.unreflectConstructor(light.getConstructor(Vector3d.class, Color.class)));
+            NEW_SCENE = generic(lookup.unreflectConstructor(scene.getConstructor(light)));
+            Constructor<?> bvhConstructor = bvh.getConstructor(List.class);
+            NEW_BVH = generic(MethodHandles.filterArguments(lookup.unreflectConstructor(bvhConstructor), 0,
+                    lookup.unreflect(group.getMethod("getSurfaces"))));
+            SCENE_ADD = generic(lookup.unreflect(scene.getMethod("add", surface)));
+            SCENE_SURFACES = generic(lookup.unreflect(scene.getMethod("getSurfaces")));
+            HIT = generic(lookup.unreflect(surface.getMethod("hit", ray)));
+            POINT_ON_RAY = generic(lookup.unreflect(ray.getMethod("getPointOnRay", double.class)));
+
+            NEW_CAMERA = generic(lookup.unreflectConstructor(camera.getConstructor()));
+            VIEWING_RAY = generic(lookup.unreflect(camera.getMethod("computeViewingRay", int.class, int.class)));
+
+            SHADING = generic(lookup.findStatic(rayTracer, "computeShading",
+                    MethodType.methodType(int.class, scene, hitRecord, boolean.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Tracer() {
+    }
+
+    static Object material(int shininess, Color color) throws Throwable {
+        return (Object) NEW_MATERIAL.invokeExact(shininess, color);
+    }
+
+    static Object sphere(Vector3d center, double radius, Object material) throws Throwable {
+        return (Object) NEW_SPHERE.invokeExact(center, radius, material);
+    }
+
+    static Object camera() throws Throwable {
+        return (Object) NEW_CAMERA.invokeExact();
+    }
+
+    static Object ray(Vector3d viewpoint, Vector3d direction) throws Throwable {
+        return (Object) NEW_RAY.invokeExact(viewpoint, direction);
+    }
+
+    static Object scene(Vector3d lightPosition, Color lightColor) throws Throwable {
+        Object light = (Object) NEW_LIGHT.invokeExact(lightPosition, lightColor);
+        return (Object) NEW_SCENE.invokeExact(light);
+    }
+
+    static void add(Object scene, Object surface) throws Throwable {
+        SCENE_ADD.invokeExact(scene, surface);
+    }
+
+    static Object surfaces(Object scene) throws Throwable {
+        return (Object) SCENE_SURFACES.invokeExact(scene);
+    }
+
+    static Object bvh(Object group) throws Throwable {
+        return (Object) NEW_BVH.invokeExact(group);
+    }
+
+    /*
+     * Changes every ray tracer type of a handle to Object, leaving JDK and vecmath types alone
+     */
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for(int k=0;k<type.parameterCount();k++) {
+            if(isTracerType(type.parameterType(k))) {
+                type = type.changeParameterType(k, Object.class);
+            }
+        }
+        if(isTracerType(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isTracerType(Class<?> c) {
+        return !c.isPrimitive() && c.getName().indexOf('.') < 0;
+    }
+}
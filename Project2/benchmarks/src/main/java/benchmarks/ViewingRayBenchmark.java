@@ -0,0 +1,28 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Camera.computeViewingRay, walking over the pixels of the default image.
+ *
+ * @author Brendan Van Allen
+ */
+@State(Scope.Thread)
+public class ViewingRayBenchmark extends BenchmarkSettings {
+    private Object camera;
+    private int pixel = 0;
+
+    @Setup
+    public void setup() throws Throwable {
+        camera = Tracer.camera();
+    }
+
+    @Benchmark
+    public Object computeViewingRay() throws Throwable {
+        pixel = (pixel + 1) % (1280*720);
+        return (Object) Tracer.VIEWING_RAY.invokeExact(camera, pixel % 1280, pixel / 1280);
+    }
+}
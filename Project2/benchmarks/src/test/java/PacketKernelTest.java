@@ -0,0 +1,97 @@
+import org.junit.Test;
+
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that rays traced as a RayPacket hit exactly the same Surface, at
+ * exactly the same time and with the same normal, as the same rays traced
+ * one at a time through CompiledSphereScene and through the Group it was
+ * compiled from.
+ *
+ * The test is in the default package like the ray tracer, so it can use
+ * the package-private parts of RayPacket and ScratchHit.
+ *
+ * @author Brendan Van Allen
+ */
+public class PacketKernelTest {
+    private static final int RAYS = 20000;
+
+    @Test
+    public void laneKernelAgreesWithScalarPath() {
+        check(new LanePacketKernel());
+    }
+
+    @Test
+    public void loadedKernelAgreesWithScalarPath() {
+        // VectorPacketKernel when the tests run with jdk.incubator.vector, LanePacketKernel otherwise
+        check(CompiledSphereScene.getPacketKernel());
+    }
+
+    /*
+     * Helper method to trace random rays, in packets of every size, against a scene of spheres that
+     * overlap, touch, repeat and lie behind the viewpoints
+     */
+    private static void check(PacketKernel kernel) {
+        Random random = new Random(42);
+        Material material = new Material(10, Color.RED);
+        Group group = new Group();
+        for(int k=0;k<300;k++) {
+            Vector3d center = new Vector3d(random.nextGaussian() * 3, random.nextGaussian() * 3, random.nextGaussian() * 6);
+            double radius = 0.1 + random.nextDouble();
+            group.add(new Sphere(center, radius, material));
+            if(k % 50 == 0) {
+                // The same sphere twice, the first one has to win the tie
+                group.add(new Sphere(new Vector3d(center), radius, material));
+            }
+        }
+        CompiledSphereScene compiled = new CompiledSphereScene(group);
+
+        RayPacket packet = new RayPacket();
+        ScratchRay ray = new ScratchRay();
+        ScratchRay laneRay = new ScratchRay();
+        ScratchHit packetHit = new ScratchHit();
+        ScratchHit scalarHit = new ScratchHit();
+        ScratchHit groupHit = new ScratchHit();
+        int traced = 0;
+        int hits = 0;
+        while(traced < RAYS) {
+            int count = 1 + random.nextInt(RayPacket.SIZE);
+            double ox = random.nextGaussian(), oy = random.nextGaussian(), oz = 8 + random.nextGaussian();
+            for(int lane=0;lane<count;lane++) {
+                // Nearly parallel rays from one viewpoint, like the viewing rays of a row
+                ray.set(ox, oy, oz, random.nextGaussian() * 0.3, random.nextGaussian() * 0.3, -1);
+                packet.set(lane, ray);
+            }
+            packet.setCount(count);
+            compiled.hit(packet, kernel);
+
+            for(int lane=0;lane<count;lane++) {
+                boolean packetFound = compiled.finish(packet, lane, laneRay, packetHit);
+                packet.get(lane, ray);
+                boolean scalarFound = compiled.hit(ray, scalarHit);
+                boolean groupFound = group.hit(ray, groupHit);
+                assertEquals(scalarFound, packetFound);
+                assertEquals(groupFound, packetFound);
+                if(packetFound) {
+                    assertSame(groupHit.surface, packetHit.surface);
+                    assertSame(scalarHit.surface, packetHit.surface);
+                    assertEquals(groupHit.time, packetHit.time, 0);
+                    assertEquals(scalarHit.time, packetHit.time, 0);
+                    assertEquals(groupHit.nx, packetHit.nx, 0);
+                    assertEquals(groupHit.ny, packetHit.ny, 0);
+                    assertEquals(groupHit.nz, packetHit.nz, 0);
+                    hits++;
+                }
+                traced++;
+            }
+        }
+        // Most rays should hit something, or the test checks little
+        assertTrue(hits > RAYS / 10);
+    }
+}
@@ -0,0 +1,75 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A PacketKernel that tests the lanes of a RayPacket with the incubating
+ * Vector API (jdk.incubator.vector), so the quadratic of one sphere is
+ * solved for as many rays at once as the CPU has double lanes: 8 with
+ * AVX-512, 4 with AVX2, and a packet is split into several vectors when
+ * there are fewer lanes than rays.
+ *
+ * The rest of the ray tracer is compiled for Java 8, so this class lives
+ * in its own source folder and has to be compiled and run with JDK 16 or
+ * newer and --add-modules jdk.incubator.vector, see the README.
+ * CompiledSphereScene falls back to LanePacketKernel if it can't load it.
+ *
+ * Each operation is the same one Sphere.hit does, in the same order and
+ * without fused multiply-adds, so the times are exactly the same as those
+ * of the scalar loops.
+ *
+ * @author Brendan Van Allen
+ */
+public class VectorPacketKernel implements PacketKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void hit(RayPacket packet, double[] centerX, double[] centerY, double[] centerZ, double[] radiusSquared) {
+        int n = packet.count;
+        for(int lane=0;lane<n;lane+=SPECIES.length()) {
+            VectorMask<Double> inUse = SPECIES.indexInRange(lane, n);
+            DoubleVector ox = DoubleVector.fromArray(SPECIES, packet.ox, lane, inUse);
+            DoubleVector oy = DoubleVector.fromArray(SPECIES, packet.oy, lane, inUse);
+            DoubleVector oz = DoubleVector.fromArray(SPECIES, packet.oz, lane, inUse);
+            DoubleVector dx = DoubleVector.fromArray(SPECIES, packet.dx, lane, inUse);
+            DoubleVector dy = DoubleVector.fromArray(SPECIES, packet.dy, lane, inUse);
+            DoubleVector dz = DoubleVector.fromArray(SPECIES, packet.dz, lane, inUse);
+            DoubleVector dDotD = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+            DoubleVector best = DoubleVector.broadcast(SPECIES, Integer.MAX_VALUE);
+            DoubleVector index = DoubleVector.broadcast(SPECIES, -1); // Sphere indices are exact as doubles
+
+            for(int s=0;s<centerX.length;s++) {
+                DoubleVector tempX = ox.sub(centerX[s]);
+                DoubleVector tempY = oy.sub(centerY[s]);
+                DoubleVector tempZ = oz.sub(centerZ[s]);
+                DoubleVector dDotTemp = dx.mul(tempX).add(dy.mul(tempY)).add(dz.mul(tempZ));
+                DoubleVector discriminant = dDotTemp.mul(dDotTemp).sub(dDotD.mul(
+                        tempX.mul(tempX).add(tempY.mul(tempY)).add(tempZ.mul(tempZ)).sub(radiusSquared[s])));
+                VectorMask<Double> hit = discriminant.compare(VectorOperators.GE, 0).and(inUse);
+                if(!hit.anyTrue()) {
+                    continue;
+                }
+
+                DoubleVector root = discriminant.sqrt();
+                DoubleVector t1 = dDotTemp.neg().add(root).div(dDotD);
+                DoubleVector t2 = dDotTemp.neg().sub(root).div(dDotD);
+                DoubleVector time = t1.min(t2);
+                VectorMask<Double> closer = best.compare(VectorOperators.GT, time).and(hit);
+                best = best.blend(time, closer);
+                index = index.blend((double) s, closer);
+            }
+
+            best.intoArray(packet.time, lane, inUse);
+            dDotD.intoArray(packet.dDotD, lane, inUse);
+            for(int k=0;k<SPECIES.length() && lane + k < n;k++) {
+                packet.index[lane + k] = (int) index.lane(k);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "Vector API, " + SPECIES.length() + " lanes";
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Adaptive anti-aliasing. Every pixel first gets the single sample through
+ * its center that the other render paths use. A pixel is refined only if
+ * that sample hit a different Surface than one of its four neighbours, or
+ * differs from one of them by more than the threshold in any channel.
+ *
+ * A refined pixel gets one jittered sample in each cell of a 2x2 grid. As
+ * long as those samples hit different Surfaces or their standard deviation
+ * is over the threshold, every cell is split in four and the three new
+ * cells that don't hold a sample yet get one, so the samples of each level
+ * stay stratified over a 4x4, 8x8, ... grid. The pixel is the average of
+ * its stratified samples.
+ *
+ * Pixels that are not refined keep their center sample, so flat regions
+ * are exactly the same as without anti-aliasing. The jitter comes from
+ * SampleHash, so the image doesn't depend on how the pixels were split
+ * among threads.
+ *
+ * Rendered into an HdrFramebuffer, every sample is added to its pixel with
+ * its linear color, so the pixel is averaged before it is clamped instead
+ * of after. Which pixels get refined doesn't change.
+ *
+ * @author Brendan Van Allen
+ */
+public class AdaptiveSampler {
+
+    private AdaptiveSampler() {
+    }
+
+    /**
+     * Renders a rectangle of pixels with adaptive supersampling. The center
+     * samples of the pixels around the rectangle are traced again, so each
+     * rectangle can be rendered on its own.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing rays are tested against
+     * @param x the first column of the rectangle
+     * @param y the first row of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param out the array the RGB values are written to
+     * @param offset the index in out of the pixel at (x, y)
+     * @param stride the distance in out between two rows
+     * @param options the threshold and sample limit to use
+     * @param context the TraceContext of the calling thread
+     */
+    public static void traceTile(Scene scene, Surface surfaces, int x, int y, int w, int h, int[] out, int offset,
+                                 int stride, RenderOptions options, TraceContext context) {
+        traceTile(scene, surfaces, x, y, w, h, out, offset, stride, null, options, context);
+    }
+
+    /**
+     * Renders a rectangle of pixels with adaptive supersampling, adding
+     * every sample to an HdrFramebuffer.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing rays are tested against
+     * @param x the first column of the rectangle
+     * @param y the first row of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param hdr the framebuffer the samples are added to
+     * @param options the threshold and sample limit to use
+     * @param context the TraceContext of the calling thread
+     */
+    public static void traceTile(Scene scene, Surface surfaces, int x, int y, int w, int h, HdrFramebuffer hdr,
+                                 RenderOptions options, TraceContext context) {
+        traceTile(scene, surfaces, x, y, w, h, null, 0, 0, hdr, options, context);
+    }
+
+    /*
+     * Renders a rectangle into out, or into hdr if out is null
+     */
+    private static void traceTile(Scene scene, Surface surfaces, int x, int y, int w, int h, int[] out, int offset,
+                                  int stride, HdrFramebuffer hdr, RenderOptions options, TraceContext context) {
+        Camera camera = scene.getCamera();
+        boolean shadows = options.isShadows();
+        double threshold = options.getAdaptiveThreshold() * 255;
+
+        // Center samples of the rectangle and a border of one pixel, clipped to the image
+        int x0 = Math.max(x - 1, 0);
+        int y0 = Math.max(y - 1, 0);
+        int x1 = Math.min(x + w + 1, camera.getWidth());
+        int y1 = Math.min(y + h + 1, camera.getHeight());
+        int bw = x1 - x0;
+        int[] colors = context.getSampleColors(bw*(y1 - y0));
+        Surface[] hits = context.getSampleSurfaces(bw*(y1 - y0));
+        double[] radiance = hdr != null ? context.getRadiance(3*bw*(y1 - y0)) : null;
+        for(int j=y0;j<y1;j++) {
+            for(int i=x0;i<x1;i++) {
+                int k = (j - y0)*bw + i - x0;
+                colors[k] = RayTracer.traceSample(scene, surfaces, i + 0.5, j + 0.5, shadows, context);
+                hits[k] = context.getSampleSurface();
+                if(hdr != null) {
+                    double[] rgb = RayTracer.sampleRadiance(scene, context);
+                    radiance[3*k] = rgb[0];
+                    radiance[3*k + 1] = rgb[1];
+                    radiance[3*k + 2] = rgb[2];
+                }
+            }
+        }
+        // The border is traced again by the neighbouring rectangles, only the samples of this one are counted
+        context.samples += w*h;
+        context.sampledPixels += w*h;
+
+        for(int j=y;j<y+h;j++) {
+            for(int i=x;i<x+w;i++) {
+                int k = (j - y0)*bw + i - x0;
+                boolean edge = (i > x0 && differs(colors, hits, k, k - 1, threshold))
+                        || (i < x1 - 1 && differs(colors, hits, k, k + 1, threshold))
+                        || (j > y0 && differs(colors, hits, k, k - bw, threshold))
+                        || (j < y1 - 1 && differs(colors, hits, k, k + bw, threshold));
+                if(hdr != null) {
+                    if(edge) {
+                        supersample(scene, surfaces, i, j, shadows, threshold, options.getMaxSamples(), hdr, context);
+                    } else {
+                        hdr.add(i, j, radiance[3*k], radiance[3*k + 1], radiance[3*k + 2], 1);
+                    }
+                } else {
+                    out[offset + (j - y)*stride + i - x] = edge
+                            ? supersample(scene, surfaces, i, j, shadows, threshold, options.getMaxSamples(), null, context)
+                            : colors[k];
+                }
+            }
+        }
+    }
+
+    /*
+     * Helper method to compare the center samples of two neighbouring pixels
+     */
+    private static boolean differs(int[] colors, Surface[] hits, int a, int b, double threshold) {
+        if(hits[a] != hits[b]) {
+            return true;
+        }
+        int ca = colors[a];
+        int cb = colors[b];
+        return Math.abs(((ca >> 16) & 0xFF) - ((cb >> 16) & 0xFF)) > threshold
+                || Math.abs(((ca >> 8) & 0xFF) - ((cb >> 8) & 0xFF)) > threshold
+                || Math.abs((ca & 0xFF) - (cb & 0xFF)) > threshold;
+    }
+
+    /*
+     * Helper method to trace the stratified samples of one pixel and average them.
+     * Every sample is also added to hdr, unless it is null
+     */
+    private static int supersample(Scene scene, Surface surfaces, int i, int j, boolean shadows, double threshold,
+                                   int maxSamples, HdrFramebuffer hdr, TraceContext context) {
+        // Position of every sample within the pixel, {x, y} pairs
+        double[] positions = context.getSamplePositions(2*maxSamples);
+        long red = 0, green = 0, blue = 0;
+        long redSquared = 0, greenSquared = 0, blueSquared = 0;
+        Surface first = null;
+        boolean mixed = false;
+        int count = 0;
+
+        int grid = 1;
+        do {
+            int previous = count;
+            grid *= 2;
+            for(int cell=0;cell<Math.max(previous, 1);cell++) {
+                // The sub-cell of the sample already in this cell, none on the first level
+                int taken = -1;
+                int cx = 0, cy = 0;
+                if(previous > 0) {
+                    cx = Math.min((int) (positions[2*cell] * grid), grid - 1);
+                    cy = Math.min((int) (positions[2*cell + 1] * grid), grid - 1);
+                    taken = (cy & 1)*2 + (cx & 1);
+                    cx &= ~1;
+                    cy &= ~1;
+                }
+                for(int sub=0;sub<4;sub++) {
+                    if(sub == taken) {
+                        continue;
+                    }
+                    double sx = (cx + (sub & 1) + SampleHash.uniform(i, j, 2*count)) / grid;
+                    double sy = (cy + (sub >> 1) + SampleHash.uniform(i, j, 2*count + 1)) / grid;
+                    positions[2*count] = sx;
+                    positions[2*count + 1] = sy;
+
+                    int rgb = RayTracer.traceSample(scene, surfaces, i + sx, j + sy, shadows, context);
+                    if(hdr != null) {
+                        double[] linear = RayTracer.sampleRadiance(scene, context);
+                        hdr.add(i, j, linear[0], linear[1], linear[2], 1);
+                    }
+                    int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+                    red += r;
+                    green += g;
+                    blue += b;
+                    redSquared += r*r;
+                    greenSquared += g*g;
+                    blueSquared += b*b;
+                    if(count == 0) {
+                        first = context.getSampleSurface();
+                    } else if(context.getSampleSurface() != first) {
+                        mixed = true;
+                    }
+                    count++;
+                }
+            }
+        } while(count < maxSamples && (mixed || deviation(red, redSquared, count) > threshold
+                || deviation(green, greenSquared, count) > threshold || deviation(blue, blueSquared, count) > threshold));
+
+        context.samples += count;
+        context.refinedPixels++;
+        return 0xFF000000 | (int) ((red + count/2) / count) << 16 | (int) ((green + count/2) / count) << 8
+                | (int) ((blue + count/2) / count);
+    }
+
+    /*
+     * Helper method for the standard deviation of one channel of the samples
+     */
+    private static double deviation(long sum, long sumSquared, int count) {
+        double mean = (double) sum / count;
+        return Math.sqrt(Math.max((double) sumSquared / count - mean*mean, 0));
+    }
+}
@@ -0,0 +1,202 @@
+import javax.vecmath.Vector3d;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A keyframed animation of a Scene. The camera viewpoint, the point the
+ * camera looks at, the position of the Light and the centers of any
+ * Spheres can each have keys at some of the frames. Positions between two
+ * keys are interpolated linearly, and before the first or after the last
+ * key they stay at that key.
+ *
+ * @author Brendan Van Allen
+ */
+public class Animation {
+    private int frameCount;
+    private Track camera = new Track();
+    private Track look = new Track();
+    private Track light = new Track();
+    private Map<Sphere, Track> spheres = new LinkedHashMap<>();
+
+    /**
+     * @param frameCount the number of frames of the sequence
+     */
+    public Animation(int frameCount) {
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Sets the camera viewpoint at a frame.
+     *
+     * @param frame the frame of the key
+     * @param position the viewpoint at that frame
+     */
+    public void addCameraKey(int frame, Vector3d position) {
+        camera.add(frame, position);
+    }
+
+    /**
+     * Sets the point the camera looks at at a frame, see Camera.lookAt.
+     * Without these keys the camera keeps the U, V and W it has.
+     *
+     * @param frame the frame of the key
+     * @param target the point in the center of the image at that frame
+     */
+    public void addLookAtKey(int frame, Vector3d target) {
+        look.add(frame, target);
+    }
+
+    /**
+     * Sets the position of the Light at a frame.
+     *
+     * @param frame the frame of the key
+     * @param position the position at that frame
+     */
+    public void addLightKey(int frame, Vector3d position) {
+        light.add(frame, position);
+    }
+
+    /**
+     * Sets the center of a Sphere at a frame.
+     *
+     * @param sphere the Sphere to move
+     * @param frame the frame of the key
+     * @param center the center at that frame
+     */
+    public void addSphereKey(Sphere sphere, int frame, Vector3d center) {
+        Track track = spheres.get(sphere);
+        if(track == null) {
+            track = new Track();
+            spheres.put(sphere, track);
+        }
+        track.add(frame, center);
+    }
+
+    /**
+     * Moves and turns the camera, and moves the Light and the Spheres of a
+     * Scene to where they are at the given frame. Anything without keys is
+     * left where it is. Each frame only depends on the keys, so frames can
+     * be applied in any order.
+     *
+     * @param scene the Scene to change
+     * @param frame the frame to show
+     */
+    public void apply(Scene scene, int frame) {
+        if(camera.size() > 0) {
+            scene.getCamera().setViewpoint(camera.get(frame));
+        }
+        if(look.size() > 0) {
+            scene.getCamera().lookAt(look.get(frame));
+        }
+        if(light.size() > 0) {
+            scene.getLightSource().setPosition(light.get(frame));
+        }
+        for(Map.Entry<Sphere, Track> entry : spheres.entrySet()) {
+            entry.getKey().setCenter(entry.getValue().get(frame));
+        }
+    }
+
+    /**
+     * Updates the structure viewing rays are tested against after apply
+     * moved Spheres, without building it again.
+     *
+     * @param surfaces a BVH, CompiledSphereScene, ScreenBins or Group
+     */
+    public static void refit(Surface surfaces) {
+        if(surfaces instanceof BVH) {
+            ((BVH) surfaces).refit();
+        } else if(surfaces instanceof CompiledSphereScene) {
+            ((CompiledSphereScene) surfaces).refit();
+        } else if(surfaces instanceof ScreenBins) {
+            ((ScreenBins) surfaces).refit();
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of Spheres that have keys
+     */
+    public int getAnimatedSphereCount() {
+        return spheres.size();
+    }
+
+    Track getCameraTrack() {
+        return camera;
+    }
+
+    Track getLookTrack() {
+        return look;
+    }
+
+    Track getLightTrack() {
+        return light;
+    }
+
+    /*
+     * Gets the keys of every Sphere that has any, for writing them to a scene cache
+     */
+    Map<Sphere, Track> getSphereTracks() {
+        return spheres;
+    }
+
+    /*
+     * The keys of one position, sorted by frame
+     */
+    static class Track {
+        private List<Integer> frames = new ArrayList<>();
+        private List<Vector3d> positions = new ArrayList<>();
+
+        /*
+         * Adds a key, replacing any key at the same frame
+         */
+        void add(int frame, Vector3d position) {
+            int k = 0;
+            while(k < frames.size() && frames.get(k) < frame) {
+                k++;
+            }
+            if(k < frames.size() && frames.get(k) == frame) {
+                positions.set(k, new Vector3d(position));
+            } else {
+                frames.add(k, frame);
+                positions.add(k, new Vector3d(position));
+            }
+        }
+
+        /*
+         * Interpolates the position at a frame, as a new vector
+         */
+        Vector3d get(int frame) {
+            int k = 0;
+            while(k < frames.size() && frames.get(k) <= frame) {
+                k++;
+            }
+            if(k == 0) {
+                return new Vector3d(positions.get(0));
+            }
+            if(k == frames.size()) {
+                return new Vector3d(positions.get(k - 1));
+            }
+            Vector3d position = new Vector3d();
+            double s = (double) (frame - frames.get(k - 1)) / (frames.get(k) - frames.get(k - 1));
+            position.interpolate(positions.get(k - 1), positions.get(k), s);
+            return position;
+        }
+
+        int size() {
+            return frames.size();
+        }
+
+        int getFrame(int key) {
+            return frames.get(key);
+        }
+
+        Vector3d getPosition(int key) {
+            return positions.get(key);
+        }
+    }
+}
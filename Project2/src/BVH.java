@@ -0,0 +1,349 @@
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BVH is a Surface that holds other Surfaces in a bounding volume
+ * hierarchy. It returns exactly the same HitRecords as a Group of the
+ * same Surfaces, but only tests the Surfaces whose boxes the Ray passes
+ * through, nearest box first.
+ *
+ * @author Brendan Van Allen
+ */
+public class BVH implements Surface {
+    public static final int PARALLEL_BUILD_SIZE = 10000; // Scenes at least this large are built on all cores
+    private Surface[] surfaces; // null for the spheres of cached
+    private BVHTree tree;
+    private CachedSurfaces cached; // Set for a BVH read from a scene cache
+    private int[] order; // Index of the sphere of cached at every null Surface
+
+    /**
+     * Builds a BVH over the given Surfaces.
+     *
+     * @param surfaces the Surfaces, in the same order they were added to the Group
+     */
+    public BVH(List<Surface> surfaces) {
+        this.surfaces = surfaces.toArray(new Surface[0]);
+        float[] primBounds = primitiveBounds();
+        tree = BVHTree.build(primBounds, this.surfaces.length, this.surfaces.length >= PARALLEL_BUILD_SIZE);
+    }
+
+    /*
+     * Wraps a tree that was built before over the same Surfaces, e.g. one read from a scene cache
+     */
+    BVH(List<Surface> surfaces, BVHTree tree) {
+        this.surfaces = surfaces.toArray(new Surface[0]);
+        this.tree = tree;
+    }
+
+    /*
+     * Wraps the tree of a scene cache, which was built over its Surfaces in Group order. The spheres
+     * are tested straight from the arrays of the cache.
+     */
+    BVH(CachedSurfaces cached, BVHTree tree) {
+        this.cached = cached;
+        this.tree = tree;
+        order = cached.getOrder();
+        surfaces = new Surface[order.length];
+        for(int p=0;p<order.length;p++) {
+            if(order[p] < 0) {
+                surfaces[p] = cached.getMeshes()[-1 - order[p]];
+            }
+        }
+    }
+
+    /**
+     * Updates the boxes of the tree after Surfaces moved, without changing
+     * its structure. This is much faster than building a new BVH, but the
+     * tree gets less efficient the further the Surfaces move from where it
+     * was built. Hits stay exactly the same either way.
+     */
+    public void refit() {
+        tree.refit(primitiveBounds());
+    }
+
+    /*
+     * Helper method to get the box of one Surface, which may be a sphere of the cache
+     */
+    private BoundingBox primitiveBox(int p) {
+        return surfaces[p] != null ? surfaces[p].boundingBox() : cached.boundingBox(order[p]);
+    }
+
+    /*
+     * Helper method to compute the padded float boxes of the Surfaces
+     */
+    private float[] primitiveBounds() {
+        float[] primBounds = new float[6*surfaces.length];
+        for(int p=0;p<surfaces.length;p++) {
+            BoundingBox box = primitiveBox(p);
+            if(box == null) {
+                box = new BoundingBox(new Vector3d(), new Vector3d()); // Empty Surfaces never report a hit anyway
+            }
+            Vector3d min = box.getMin();
+            Vector3d max = box.getMax();
+
+            // Pad the box a little so rays that only graze a Surface are never culled by round-off
+            double pad = 1e-7 * Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z)) + 1e-12;
+            primBounds[6*p] = BVHTree.conservative(min.x - pad, true);
+            primBounds[6*p + 1] = BVHTree.conservative(min.y - pad, true);
+            primBounds[6*p + 2] = BVHTree.conservative(min.z - pad, true);
+            primBounds[6*p + 3] = BVHTree.conservative(max.x + pad, false);
+            primBounds[6*p + 4] = BVHTree.conservative(max.y + pad, false);
+            primBounds[6*p + 5] = BVHTree.conservative(max.z + pad, false);
+        }
+        return primBounds;
+    }
+
+    @Override
+    /**
+     * Determines if the given Ray intersects any Surface in the BVH.
+     *
+     * @param vr the viewing ray
+     * @return the same HitRecord Group.hit returns for these Surfaces, or null if nothing is hit
+     */
+    public HitRecord hit(Ray vr) {
+        if(tree.getNodeCount() == 0) {
+            return null;
+        }
+
+        Vector3d e = vr.getViewpoint();
+        Vector3d d = vr.getDirection();
+        double invX = 1.0 / d.x;
+        double invY = 1.0 / d.y;
+        double invZ = 1.0 / d.z;
+
+        // Same starting value as Group so both return the same HitRecord
+        double closestT = Integer.MAX_VALUE;
+        HitRecord closestHit = null;
+        int closestIndex = -1;
+
+        int[] stack = new int[64];
+        double[] stackT = new double[64];
+        int top = 0;
+
+        int node = 0;
+        double nodeT = tree.entry(0, e.x, e.y, e.z, invX, invY, invZ);
+        while(true) {
+            if(nodeT <= closestT) {
+                if(tree.isLeaf(node)) {
+                    int first = tree.getFirstPrimitive(node);
+                    for(int k=first;k<first+tree.getPrimitiveCount(node);k++) {
+                        int p = tree.getPrimitive(k);
+                        Surface s = surfaces[p] != null ? surfaces[p] : cached.getSphere(order[p]);
+                        HitRecord hit = s.hit(vr);
+                        if(hit != null) {
+                            // Ties go to the Surface that was added first, just like the linear scan
+                            if(closestT > hit.getTime() || (closestHit != null && closestT == hit.getTime() && p < closestIndex)) {
+                                closestT = hit.getTime();
+                                closestHit = hit;
+                                closestIndex = p;
+                            }
+                        }
+                    }
+                } else {
+                    int left = node + 1;
+                    int right = tree.getRightChild(node);
+                    double leftT = tree.entry(left, e.x, e.y, e.z, invX, invY, invZ);
+                    double rightT = tree.entry(right, e.x, e.y, e.z, invX, invY, invZ);
+
+                    // Visit the nearer child first and save the other one for later
+                    int far = right;
+                    double farT = rightT;
+                    if(rightT < leftT) {
+                        far = left;
+                        farT = leftT;
+                        node = right;
+                        nodeT = rightT;
+                    } else {
+                        node = left;
+                        nodeT = leftT;
+                    }
+                    if(farT != Double.POSITIVE_INFINITY) {
+                        if(top == stack.length) {
+                            stack = Arrays.copyOf(stack, 2*top);
+                            stackT = Arrays.copyOf(stackT, 2*top);
+                        }
+                        stack[top] = far;
+                        stackT[top] = farT;
+                        top++;
+                    }
+                    if(nodeT != Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                }
+            }
+
+            // Move on to the nearest node that was saved for later
+            if(top == 0) {
+                break;
+            }
+            top--;
+            node = stack[top];
+            nodeT = stackT[top];
+        }
+
+        return closestHit;
+    }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        if(tree.getNodeCount() == 0) {
+            return false;
+        }
+
+        double invX = 1.0 / vr.dx;
+        double invY = 1.0 / vr.dy;
+        double invZ = 1.0 / vr.dz;
+
+        double closestT = Integer.MAX_VALUE;
+        int closestIndex = -1;
+        ScratchHit candidate = rec.child();
+
+        int[] stack = rec.stack;
+        double[] stackT = rec.stackT;
+        int top = 0;
+
+        int node = 0;
+        double nodeT = tree.entry(0, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+        while(true) {
+            if(nodeT <= closestT) {
+                if(tree.isLeaf(node)) {
+                    int first = tree.getFirstPrimitive(node);
+                    for(int k=first;k<first+tree.getPrimitiveCount(node);k++) {
+                        int p = tree.getPrimitive(k);
+                        Surface s = surfaces[p];
+                        if(s != null ? s.hit(vr, candidate) : cached.hit(order[p], vr, candidate)) {
+                            if(closestT > candidate.time || (closestIndex >= 0 && closestT == candidate.time && p < closestIndex)) {
+                                closestT = candidate.time;
+                                closestIndex = p;
+                                rec.set(candidate);
+                            }
+                        }
+                    }
+                } else {
+                    int left = node + 1;
+                    int right = tree.getRightChild(node);
+                    double leftT = tree.entry(left, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+                    double rightT = tree.entry(right, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+
+                    int far = right;
+                    double farT = rightT;
+                    if(rightT < leftT) {
+                        far = left;
+                        farT = leftT;
+                        node = right;
+                        nodeT = rightT;
+                    } else {
+                        node = left;
+                        nodeT = leftT;
+                    }
+                    if(farT != Double.POSITIVE_INFINITY) {
+                        if(top == stack.length) {
+                            stack = rec.stack = Arrays.copyOf(stack, 2*top);
+                            stackT = rec.stackT = Arrays.copyOf(stackT, 2*top);
+                        }
+                        stack[top] = far;
+                        stackT[top] = farT;
+                        top++;
+                    }
+                    if(nodeT != Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                }
+            }
+
+            if(top == 0) {
+                break;
+            }
+            top--;
+            node = stack[top];
+            nodeT = stackT[top];
+        }
+
+        if(closestIndex >= 0 && surfaces[closestIndex] == null) {
+            // Only the sphere that was hit needs an object
+            rec.surface = cached.getSphere(order[closestIndex]);
+        }
+        return closestIndex >= 0;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        if(tree.getNodeCount() == 0) {
+            return false;
+        }
+
+        double invX = 1.0 / ray.dx;
+        double invY = 1.0 / ray.dy;
+        double invZ = 1.0 / ray.dz;
+        ScratchHit candidate = rec.child();
+
+        // Any blocker will do, so nodes are visited in stack order instead of nearest first
+        int[] stack = rec.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0) {
+            int node = stack[--top];
+            if(tree.entry(node, ray.ox, ray.oy, ray.oz, invX, invY, invZ) > maxT) {
+                continue;
+            }
+            if(tree.isLeaf(node)) {
+                int first = tree.getFirstPrimitive(node);
+                for(int k=first;k<first+tree.getPrimitiveCount(node);k++) {
+                    int p = tree.getPrimitive(k);
+                    Surface s = surfaces[p];
+                    if(s != null ? s.occluded(ray, maxT, candidate) : cached.occluded(order[p], ray, maxT)) {
+                        rec.surface = s != null ? candidate.surface : cached.getSphere(order[p]);
+                        return true;
+                    }
+                }
+            } else {
+                if(top + 2 > stack.length) {
+                    stack = rec.stack = Arrays.copyOf(stack, 2*stack.length);
+                }
+                stack[top++] = tree.getRightChild(node);
+                stack[top++] = node + 1;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Material getMaterial() {
+        return null;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        BoundingBox bounds = null;
+        for(int p=0;p<surfaces.length;p++) {
+            BoundingBox b = primitiveBox(p);
+            if(b != null) {
+                bounds = (bounds == null) ? b : BoundingBox.union(bounds, b);
+            }
+        }
+        return bounds;
+    }
+
+    public int getNodeCount() {
+        return tree.getNodeCount();
+    }
+
+    public int getSurfaceCount() {
+        return surfaces.length;
+    }
+
+    /**
+     * @return the Surfaces of the hierarchy, in the order they were given
+     */
+    public List<Surface> getSurfaces() {
+        if(cached != null) {
+            return cached.getSurfaces();
+        }
+        return Arrays.asList(surfaces);
+    }
+
+    BVHTree getTree() {
+        return tree;
+    }
+}
@@ -0,0 +1,489 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A bounding volume hierarchy over a set of primitives that are only known
+ * by their bounding boxes. The tree is built with the surface area heuristic
+ * (SAH) and then flattened into arrays, so traversal walks plain float and
+ * int arrays instead of chasing node objects.
+ *
+ * Node n is stored as 6 floats in the bounds array (min x, y, z, max x, y, z)
+ * and 2 ints in the nodes array. The left child of an inner node always
+ * directly follows it, so only the index of the right child is stored.
+ * A leaf stores the offset of its first primitive and the primitive count.
+ *
+ * @author Brendan Van Allen
+ */
+public class BVHTree {
+    public static final int MAX_LEAF_SIZE = 4;
+    private static final int BINS = 16; // Number of candidate split planes per axis is BINS-1
+    private static final int PARALLEL_THRESHOLD = 8192; // Subtrees smaller than this are built sequentially
+
+    private float[] bounds;
+    private int[] nodes;
+    private int[] primitives;
+    private int nodeCount;
+
+    private BVHTree(float[] bounds, int[] nodes, int[] primitives, int nodeCount) {
+        this.bounds = bounds;
+        this.nodes = nodes;
+        this.primitives = primitives;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Builds a BVHTree over the given primitives.
+     *
+     * @param primBounds 6 values per primitive: min x, y, z then max x, y, z
+     * @param count the number of primitives
+     * @param parallel true to build large subtrees on the common ForkJoinPool
+     * @return the flattened tree
+     */
+    public static BVHTree build(float[] primBounds, int count, boolean parallel) {
+        int[] primitives = new int[count];
+        float[] centroids = new float[3*count];
+        for(int p=0;p<count;p++) {
+            primitives[p] = p;
+            for(int a=0;a<3;a++) {
+                centroids[3*p + a] = 0.5f * (primBounds[6*p + a] + primBounds[6*p + 3 + a]);
+            }
+        }
+
+        if(count == 0) {
+            return new BVHTree(new float[0], new int[0], primitives, 0);
+        }
+
+        Builder root = new Builder(primBounds, centroids, primitives, 0, count, parallel);
+        BuildNode tree = parallel ? ForkJoinPool.commonPool().invoke(root) : root.compute();
+
+        // Flatten the tree in depth-first order so a left child always follows its parent
+        BVHTree flat = new BVHTree(new float[6*tree.size], new int[2*tree.size], primitives, tree.size);
+        flat.flatten(tree, 0);
+        return flat;
+    }
+
+    /**
+     * Recreates a tree from the arrays of one that was built before, e.g. by
+     * a scene cache. The arrays are checked so a damaged file can't make
+     * traversal read outside of them.
+     *
+     * @param bounds 6 floats per node
+     * @param nodes 2 ints per node
+     * @param primitives the primitive order of the leaves
+     * @param count the number of primitives the tree was built over
+     * @return the tree
+     * @throws IllegalArgumentException if the arrays do not form a valid tree
+     */
+    static BVHTree fromArrays(float[] bounds, int[] nodes, int[] primitives, int count) {
+        int nodeCount = nodes.length / 2;
+        if(nodes.length % 2 != 0 || bounds.length != 6*nodeCount || primitives.length != count
+                || (nodeCount == 0 && count > 0)) {
+            throw new IllegalArgumentException("Inconsistent tree sizes");
+        }
+        for(int n=0;n<nodeCount;n++) {
+            int a = nodes[2*n];
+            int b = nodes[2*n + 1];
+            boolean valid = b > 0 ? (a >= 0 && a <= count - b) : (b == 0 && a > n + 1 && a < nodeCount);
+            if(!valid) {
+                throw new IllegalArgumentException("Invalid node " + n);
+            }
+        }
+        for(int p : primitives) {
+            if(p < 0 || p >= count) {
+                throw new IllegalArgumentException("Invalid primitive " + p);
+            }
+        }
+        return new BVHTree(bounds, nodes, primitives, nodeCount);
+    }
+
+    /**
+     * Recomputes the box of every node from new primitive boxes, keeping the
+     * structure of the tree. Children always come after their parent, so
+     * one pass from the last node to the first sees both children of a node
+     * before the node itself.
+     *
+     * @param primBounds 6 values per primitive, in the order the tree was built with
+     */
+    public void refit(float[] primBounds) {
+        for(int n=nodeCount-1;n>=0;n--) {
+            int b = 6*n;
+            if(isLeaf(n)) {
+                int first = getFirstPrimitive(n);
+                System.arraycopy(primBounds, 6*primitives[first], bounds, b, 6);
+                for(int k=first+1;k<first+getPrimitiveCount(n);k++) {
+                    union(primBounds, 6*primitives[k], b);
+                }
+            } else {
+                System.arraycopy(bounds, 6*(n + 1), bounds, b, 6);
+                union(bounds, 6*getRightChild(n), b);
+            }
+        }
+    }
+
+    /**
+     * Computes where a ray enters the box of a node. The whole line through
+     * the ray is considered, so the entry time can be negative.
+     *
+     * @param node the index of the node
+     * @param ox x coordinate of the ray origin
+     * @param oy y coordinate of the ray origin
+     * @param oz z coordinate of the ray origin
+     * @param invX 1 divided by the x coordinate of the ray direction
+     * @param invY 1 divided by the y coordinate of the ray direction
+     * @param invZ 1 divided by the z coordinate of the ray direction
+     * @return the time the ray enters the box, or positive infinity if it misses
+     */
+    public double entry(int node, double ox, double oy, double oz, double invX, double invY, double invZ) {
+        int b = 6*node;
+        double near = Double.NEGATIVE_INFINITY;
+        double far = Double.POSITIVE_INFINITY;
+
+        // X slab
+        if(Double.isInfinite(invX)) {
+            if(ox < bounds[b] || ox > bounds[b + 3]) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (bounds[b] - ox) * invX;
+            double t2 = (bounds[b + 3] - ox) * invX;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        // Y slab
+        if(Double.isInfinite(invY)) {
+            if(oy < bounds[b + 1] || oy > bounds[b + 4]) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (bounds[b + 1] - oy) * invY;
+            double t2 = (bounds[b + 4] - oy) * invY;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        // Z slab
+        if(Double.isInfinite(invZ)) {
+            if(oz < bounds[b + 2] || oz > bounds[b + 5]) {
+                return Double.POSITIVE_INFINITY;
+            }
+        } else {
+            double t1 = (bounds[b + 2] - oz) * invZ;
+            double t2 = (bounds[b + 5] - oz) * invZ;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+
+        return near <= far ? near : Double.POSITIVE_INFINITY;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the number of bytes used by the node and primitive arrays
+     */
+    public long getMemoryUsage() {
+        return 4L * (bounds.length + nodes.length + primitives.length);
+    }
+
+    float[] getBounds() {
+        return bounds;
+    }
+
+    int[] getNodes() {
+        return nodes;
+    }
+
+    int[] getPrimitives() {
+        return primitives;
+    }
+
+    public boolean isLeaf(int node) {
+        return nodes[2*node + 1] > 0;
+    }
+
+    public int getRightChild(int node) {
+        return nodes[2*node];
+    }
+
+    public int getFirstPrimitive(int node) {
+        return nodes[2*node];
+    }
+
+    public int getPrimitiveCount(int node) {
+        return nodes[2*node + 1];
+    }
+
+    /**
+     * Gets the primitive stored at the given position of the leaf ranges.
+     *
+     * @param position an offset between getFirstPrimitive and getFirstPrimitive + getPrimitiveCount of a leaf
+     * @return the index of the primitive as it was passed to build
+     */
+    public int getPrimitive(int position) {
+        return primitives[position];
+    }
+
+    /**
+     * Converts a double bound to the nearest float that does not shrink the box.
+     *
+     * @param value the bound
+     * @param lower true for a minimum bound, false for a maximum bound
+     * @return the rounded bound
+     */
+    public static float conservative(double value, boolean lower) {
+        float f = (float) value;
+        if(lower && f > value) {
+            return Math.nextDown(f);
+        } else if(!lower && f < value) {
+            return Math.nextUp(f);
+        }
+        return f;
+    }
+
+    /*
+     * Helper method to grow the box of a node to contain another box
+     */
+    private void union(float[] source, int s, int b) {
+        for(int a=0;a<3;a++) {
+            if(source[s + a] < bounds[b + a]) {
+                bounds[b + a] = source[s + a];
+            }
+            if(source[s + 3 + a] > bounds[b + 3 + a]) {
+                bounds[b + 3 + a] = source[s + 3 + a];
+            }
+        }
+    }
+
+    /*
+     * Helper method to copy a built subtree into the flat arrays
+     */
+    private int flatten(BuildNode node, int index) {
+        System.arraycopy(node.box, 0, bounds, 6*index, 6);
+        if(node.left == null) {
+            nodes[2*index] = node.first;
+            nodes[2*index + 1] = node.count;
+        } else {
+            int right = flatten(node.left, index + 1);
+            nodes[2*index] = right;
+            nodes[2*index + 1] = 0;
+            return flatten(node.right, right);
+        }
+        return index + 1;
+    }
+
+    /*
+     * A node of the tree while it is being built
+     */
+    private static class BuildNode {
+        float[] box;
+        BuildNode left;
+        BuildNode right;
+        int first;
+        int count;
+        int size; // Number of nodes in this subtree
+    }
+
+    /*
+     * Builds the subtree over primitives[from, to) and partitions that range in place
+     */
+    @SuppressWarnings("serial")
+    private static class Builder extends RecursiveTask<BuildNode> {
+        private float[] primBounds;
+        private float[] centroids;
+        private int[] primitives;
+        private int from;
+        private int to;
+        private boolean parallel;
+
+        Builder(float[] primBounds, float[] centroids, int[] primitives, int from, int to, boolean parallel) {
+            this.primBounds = primBounds;
+            this.centroids = centroids;
+            this.primitives = primitives;
+            this.from = from;
+            this.to = to;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected BuildNode compute() {
+            BuildNode node = new BuildNode();
+            node.box = new float[]{Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            float[] centroidBox = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                    -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for(int k=from;k<to;k++) {
+                int p = primitives[k];
+                growBox(node.box, 0, primBounds, p);
+                for(int a=0;a<3;a++) {
+                    float c = centroids[3*p + a];
+                    if(c < centroidBox[a]) {
+                        centroidBox[a] = c;
+                    }
+                    if(c > centroidBox[a + 3]) {
+                        centroidBox[a + 3] = c;
+                    }
+                }
+            }
+
+            int count = to - from;
+            int mid = count == 1 ? -1 : split(node.box, centroidBox);
+            if(mid < 0) {
+                node.first = from;
+                node.count = count;
+                node.size = 1;
+                return node;
+            }
+
+            Builder left = new Builder(primBounds, centroids, primitives, from, mid, parallel);
+            Builder right = new Builder(primBounds, centroids, primitives, mid, to, parallel);
+            if(parallel && count >= PARALLEL_THRESHOLD) {
+                right.fork();
+                node.left = left.compute();
+                node.right = right.join();
+            } else {
+                node.left = left.compute();
+                node.right = right.compute();
+            }
+            node.size = 1 + node.left.size + node.right.size;
+            return node;
+        }
+
+        /*
+         * Finds the cheapest SAH split of the range and partitions the primitives around it.
+         * Returns the first index of the right half, or -1 if a leaf is cheaper.
+         */
+        private int split(float[] box, float[] centroidBox) {
+            int count = to - from;
+            int bestAxis = -1;
+            int bestBin = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            int bins = Math.min(BINS, count); // Small nodes do not need more planes than primitives
+
+            // Gather the count and bounds of every bin on all three axes in one pass
+            int[] binCounts = new int[3*bins];
+            float[] binBoxes = new float[18*bins];
+            for(int b=0;b<3*bins;b++) {
+                resetBox(binBoxes, b);
+            }
+            float[] scale = new float[3];
+            for(int a=0;a<3;a++) {
+                float extent = centroidBox[a + 3] - centroidBox[a];
+                scale[a] = extent > 0 ? bins / extent : 0;
+            }
+            for(int k=from;k<to;k++) {
+                int p = primitives[k];
+                for(int a=0;a<3;a++) {
+                    if(scale[a] > 0) {
+                        int b = a*bins + bin(centroids[3*p + a], centroidBox[a], scale[a], bins);
+                        binCounts[b]++;
+                        growBox(binBoxes, b, primBounds, p);
+                    }
+                }
+            }
+
+            double[] rightAreas = new double[bins];
+            int[] rightCounts = new int[bins];
+            float[] sweep = new float[6];
+            for(int a=0;a<3;a++) {
+                if(scale[a] <= 0) {
+                    continue;
+                }
+
+                // Sweep from the right to get the area of every right half
+                resetBox(sweep, 0);
+                int n = 0;
+                for(int b=bins-1;b>0;b--) {
+                    n += binCounts[a*bins + b];
+                    mergeBox(sweep, binBoxes, a*bins + b);
+                    rightCounts[b] = n;
+                    rightAreas[b] = area(sweep);
+                }
+
+                // Sweep from the left and evaluate each split plane
+                resetBox(sweep, 0);
+                n = 0;
+                for(int b=0;b<bins-1;b++) {
+                    n += binCounts[a*bins + b];
+                    mergeBox(sweep, binBoxes, a*bins + b);
+                    if(n == 0 || rightCounts[b + 1] == 0) {
+                        continue;
+                    }
+                    double cost = area(sweep) * n + rightAreas[b + 1] * rightCounts[b + 1];
+                    if(cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = a;
+                        bestBin = b;
+                    }
+                }
+            }
+
+            // Compare against the cost of intersecting every primitive in a leaf
+            double leafCost = area(box) * count;
+            double traversalCost = area(box); // One extra box test per ray that reaches this node
+            if(bestAxis < 0) {
+                return count <= MAX_LEAF_SIZE ? -1 : from + count / 2; // Degenerate centroids: split the range in half
+            }
+            if(count <= MAX_LEAF_SIZE && bestCost + traversalCost >= leafCost) {
+                return -1;
+            }
+
+            // Partition the primitives so that every bin <= bestBin comes first
+            int i = from;
+            int j = to - 1;
+            while(i <= j) {
+                if(bin(centroids[3*primitives[i] + bestAxis], centroidBox[bestAxis], scale[bestAxis], bins) <= bestBin) {
+                    i++;
+                } else {
+                    int t = primitives[i];
+                    primitives[i] = primitives[j];
+                    primitives[j] = t;
+                    j--;
+                }
+            }
+            return i;
+        }
+
+        private static int bin(float c, float min, float scale, int bins) {
+            int b = (int) ((c - min) * scale);
+            return b < 0 ? 0 : b >= bins ? bins - 1 : b;
+        }
+
+        private static void resetBox(float[] boxes, int b) {
+            for(int a=0;a<3;a++) {
+                boxes[6*b + a] = Float.MAX_VALUE;
+                boxes[6*b + 3 + a] = -Float.MAX_VALUE;
+            }
+        }
+
+        private static void growBox(float[] boxes, int b, float[] primBounds, int p) {
+            // Plain comparisons instead of Math.min/max, which also have to handle NaN and -0
+            for(int a=0;a<3;a++) {
+                float lo = primBounds[6*p + a];
+                float hi = primBounds[6*p + 3 + a];
+                if(lo < boxes[6*b + a]) {
+                    boxes[6*b + a] = lo;
+                }
+                if(hi > boxes[6*b + 3 + a]) {
+                    boxes[6*b + 3 + a] = hi;
+                }
+            }
+        }
+
+        private static void mergeBox(float[] box, float[] boxes, int b) {
+            for(int a=0;a<3;a++) {
+                box[a] = Math.min(box[a], boxes[6*b + a]);
+                box[3 + a] = Math.max(box[3 + a], boxes[6*b + 3 + a]);
+            }
+        }
+
+        private static double area(float[] box) {
+            double dx = box[3] - box[0];
+            double dy = box[4] - box[1];
+            double dz = box[5] - box[2];
+            return 2 * (dx*dy + dy*dz + dz*dx);
+        }
+    }
+}
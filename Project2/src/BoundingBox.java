@@ -0,0 +1,38 @@
+import javax.vecmath.Vector3d;
+
+/**
+ * An axis-aligned box that completely contains a Surface.
+ * Used to build spatial structures over the Surfaces of a Scene.
+ *
+ * @author Brendan Van Allen
+ */
+public class BoundingBox {
+    private Vector3d min;
+    private Vector3d max;
+
+    public BoundingBox(Vector3d min, Vector3d max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Creates the smallest BoundingBox that contains both of the given boxes.
+     *
+     * @param a the first box
+     * @param b the second box
+     * @return the union of the two boxes
+     */
+    public static BoundingBox union(BoundingBox a, BoundingBox b) {
+        Vector3d min = new Vector3d(Math.min(a.min.x, b.min.x), Math.min(a.min.y, b.min.y), Math.min(a.min.z, b.min.z));
+        Vector3d max = new Vector3d(Math.max(a.max.x, b.max.x), Math.max(a.max.y, b.max.y), Math.max(a.max.z, b.max.z));
+        return new BoundingBox(min, max);
+    }
+
+    public Vector3d getMin() {
+        return min;
+    }
+
+    public Vector3d getMax() {
+        return max;
+    }
+}
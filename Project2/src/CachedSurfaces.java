@@ -0,0 +1,170 @@
+import javax.vecmath.Vector3d;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The Surfaces of a scene cache, kept in the arrays they were read into.
+ * Spheres stay a row of x, y, z and radius in one double array, so a cache
+ * of millions of spheres loads without building an object for each one.
+ * BVH and CompiledSphereScene test rays against the arrays directly.
+ *
+ * A Sphere object is only made the first time one is needed, e.g. for the
+ * HitRecord of the sphere a ray hit, and the same object is returned for
+ * that sphere from then on, on every thread.
+ *
+ * @author Brendan Van Allen
+ */
+public class CachedSurfaces {
+    private double[] sphereData; // x, y, z and radius of every sphere
+    private int[] sphereMaterials; // Index into materials
+    private TriangleMesh[] meshes;
+    private int[] order; // Group positions: sphere k is k, mesh k is -1-k
+    private Material[] materials;
+    private AtomicReferenceArray<Sphere> spheres;
+
+    /**
+     * Wraps the arrays of a scene cache. The arrays are used as they are, not copied.
+     *
+     * @param sphereData x, y, z and radius of every sphere
+     * @param sphereMaterials index into materials of every sphere
+     * @param meshes the meshes
+     * @param order the Group position of every Surface: sphere k is k, mesh k is -1-k
+     * @param materials every Material of the Surfaces
+     */
+    public CachedSurfaces(double[] sphereData, int[] sphereMaterials, TriangleMesh[] meshes, int[] order, Material[] materials) {
+        this.sphereData = sphereData;
+        this.sphereMaterials = sphereMaterials;
+        this.meshes = meshes;
+        this.order = order;
+        this.materials = materials;
+        spheres = new AtomicReferenceArray<>(sphereMaterials.length);
+    }
+
+    /**
+     * @return the number of Surfaces, spheres and meshes
+     */
+    public int size() {
+        return order.length;
+    }
+
+    /**
+     * Gets the Surface at a position of the Group the cache was written from.
+     *
+     * @param position the position in the Group
+     * @return the Sphere or TriangleMesh
+     */
+    public Surface get(int position) {
+        int o = order[position];
+        return o >= 0 ? getSphere(o) : meshes[-1 - o];
+    }
+
+    /**
+     * @return every Surface, in the order of the Group the cache was written from
+     */
+    public List<Surface> getSurfaces() {
+        List<Surface> list = new ArrayList<>(order.length);
+        for(int k=0;k<order.length;k++) {
+            list.add(get(k));
+        }
+        return list;
+    }
+
+    /**
+     * Gets the Sphere object of a sphere, making it the first time.
+     *
+     * @param sphere index of the sphere in the arrays
+     * @return the same Sphere every time
+     */
+    public Sphere getSphere(int sphere) {
+        Sphere s = spheres.get(sphere);
+        if(s == null) {
+            s = new Sphere(new Vector3d(sphereData[4*sphere], sphereData[4*sphere + 1], sphereData[4*sphere + 2]),
+                    sphereData[4*sphere + 3], materials[sphereMaterials[sphere]]);
+            // Another thread may have made one first, and then everyone uses that one
+            if(!spheres.compareAndSet(sphere, null, s)) {
+                s = spheres.get(sphere);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Intersects a ray with one sphere, exactly like Sphere.hit. The
+     * Surface of rec is not set, see getSphere.
+     *
+     * @param sphere index of the sphere in the arrays
+     * @param vr the ray
+     * @param rec the record the intersection is written to
+     * @return true if the ray hit the sphere
+     */
+    public boolean hit(int sphere, ScratchRay vr, ScratchHit rec) {
+        vr.tests++;
+        int k = 4*sphere;
+        double time = Sphere.intersect(vr, sphereData[k], sphereData[k + 1], sphereData[k + 2], sphereData[k + 3]);
+        if(Double.isNaN(time)) {
+            return false;
+        }
+        Sphere.fill(vr, time, sphereData[k], sphereData[k + 1], sphereData[k + 2], rec);
+        return true;
+    }
+
+    /**
+     * Tests if one sphere is in the way of a shadow ray, exactly like Sphere.occluded.
+     *
+     * @param sphere index of the sphere in the arrays
+     * @param ray the shadow ray
+     * @param maxT the time the ray reaches the light
+     * @return true if the sphere blocks the ray
+     */
+    public boolean occluded(int sphere, ScratchRay ray, double maxT) {
+        ray.tests++;
+        int k = 4*sphere;
+        return Sphere.blocks(ray, maxT, sphereData[k], sphereData[k + 1], sphereData[k + 2], sphereData[k + 3]);
+    }
+
+    /**
+     * @param sphere index of the sphere in the arrays
+     * @return the same box as Sphere.boundingBox
+     */
+    public BoundingBox boundingBox(int sphere) {
+        int k = 4*sphere;
+        double r = sphereData[k + 3];
+        return new BoundingBox(new Vector3d(sphereData[k] - r, sphereData[k + 1] - r, sphereData[k + 2] - r),
+                new Vector3d(sphereData[k] + r, sphereData[k + 1] + r, sphereData[k + 2] + r));
+    }
+
+    public int getSphereCount() {
+        return sphereMaterials.length;
+    }
+
+    /**
+     * @return x, y, z and radius of every sphere
+     */
+    public double[] getSphereData() {
+        return sphereData;
+    }
+
+    /**
+     * @param sphere index of the sphere in the arrays
+     * @return index into getMaterials()
+     */
+    public int getMaterialIndex(int sphere) {
+        return sphereMaterials[sphere];
+    }
+
+    public Material[] getMaterials() {
+        return materials;
+    }
+
+    public TriangleMesh[] getMeshes() {
+        return meshes;
+    }
+
+    /**
+     * @return the Group position of every Surface: sphere k is k, mesh k is -1-k
+     */
+    public int[] getOrder() {
+        return order;
+    }
+}
@@ -0,0 +1,189 @@
+import javax.vecmath.Vector3d;
+
+/**
+ * A perspective Camera: the viewpoint, the orthonormal basis (U, V, W) of
+ * the view, the bounds of the view plane and the resolution of the image.
+ * The Camera looks along -W, and the view plane is at distance d in front
+ * of the viewpoint.
+ *
+ * @author Brendan Van Allen
+ */
+public class Camera {
+    private int width;
+    private int height;
+    private double l, r, b, t; // View plane bounds
+    private double d; // Distance from viewpoint to image plane
+    private Vector3d viewpoint;
+    private Vector3d u;
+    private Vector3d v;
+    private Vector3d w;
+
+    /**
+     * Creates the Camera of the original hard-coded scene: 1280x720 pixels,
+     * looking down -z from the origin.
+     */
+    public Camera() {
+        this(1280, 720, -1.77778, 1.77778, -1.0, 1.0, 1, new Vector3d(0,0,0),
+                new Vector3d(1,0,0), new Vector3d(0,1,0), new Vector3d(0,0,1));
+    }
+
+    public Camera(int width, int height, double l, double r, double b, double t, double d,
+                  Vector3d viewpoint, Vector3d u, Vector3d v, Vector3d w) {
+        this.width = width;
+        this.height = height;
+        this.l = l;
+        this.r = r;
+        this.b = b;
+        this.t = t;
+        this.d = d;
+        this.viewpoint = viewpoint;
+        this.u = u;
+        this.v = v;
+        this.w = w;
+    }
+
+    /**
+     * Computes the viewing ray through the center of a pixel.
+     *
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @return the viewing Ray
+     */
+    public Ray computeViewingRay(int i, int j) {
+        double us = l + (r - l)*(i + 0.5)/width;
+        double vs = b + (t - b)*(j + 0.5)/height;
+
+        // -d * W
+        Vector3d d1 = new Vector3d(w);
+        d1.scale(-d);
+
+        // u * U
+        Vector3d d2 = new Vector3d(u);
+        d2.scale(us);
+
+        // v * V
+        Vector3d d3 = new Vector3d(v);
+        d3.scale(vs);
+
+        // Add them all up for the final direction
+        Vector3d direction = new Vector3d(d1);
+        direction.add(d2);
+        direction.add(d3);
+
+        return new Ray(viewpoint,direction);
+    }
+
+    /**
+     * Allocation-free version of computeViewingRay, writes the ray into viewRay.
+     *
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @param viewRay the ray to set
+     */
+    public void computeViewingRay(int i, int j, ScratchRay viewRay) {
+        computeViewingRay(i + 0.5, j + 0.5, viewRay);
+    }
+
+    /**
+     * Computes the viewing ray through any point of the image, for supersampling.
+     *
+     * @param px the horizontal image coordinate, column i covers [i, i+1)
+     * @param py the vertical image coordinate, row j covers [j, j+1)
+     * @param viewRay the ray to set
+     */
+    public void computeViewingRay(double px, double py, ScratchRay viewRay) {
+        double us = l + (r - l)*px/width;
+        double vs = b + (t - b)*py/height;
+
+        // -d * W + u * U + v * V, added up in the same order as above
+        double x = w.x * -d + u.x * us + v.x * vs;
+        double y = w.y * -d + u.y * us + v.y * vs;
+        double z = w.z * -d + u.z * us + v.z * vs;
+
+        viewRay.set(viewpoint.x, viewpoint.y, viewpoint.z, x, y, z);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getL() {
+        return l;
+    }
+
+    public double getR() {
+        return r;
+    }
+
+    public double getB() {
+        return b;
+    }
+
+    public double getT() {
+        return t;
+    }
+
+    public double getD() {
+        return d;
+    }
+
+    public Vector3d getViewpoint() {
+        return viewpoint;
+    }
+
+    /**
+     * Moves the Camera without turning it.
+     *
+     * @param viewpoint the new viewpoint
+     */
+    public void setViewpoint(Vector3d viewpoint) {
+        this.viewpoint = viewpoint;
+    }
+
+    /**
+     * Turns the Camera to look at a point from its viewpoint. The Camera is
+     * kept upright: U stays level and V points up as far as it can. When
+     * looking straight up or down, U is only made perpendicular to the new W.
+     *
+     * @param target the point to look at, in the center of the image
+     */
+    public void lookAt(Vector3d target) {
+        Vector3d newW = new Vector3d(viewpoint);
+        newW.sub(target);
+        if(newW.lengthSquared() == 0) {
+            return;
+        }
+        newW.normalize();
+
+        // U = up x W, with the y axis as up
+        Vector3d newU = new Vector3d();
+        newU.cross(new Vector3d(0, 1, 0), newW);
+        if(newU.lengthSquared() < 1e-12) {
+            newU.set(u);
+            newU.scaleAdd(-newU.dot(newW), newW, newU);
+        }
+        newU.normalize();
+
+        Vector3d newV = new Vector3d();
+        newV.cross(newW, newU);
+        u = newU;
+        v = newV;
+        w = newW;
+    }
+
+    public Vector3d getU() {
+        return u;
+    }
+
+    public Vector3d getV() {
+        return v;
+    }
+
+    public Vector3d getW() {
+        return w;
+    }
+}
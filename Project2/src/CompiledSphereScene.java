@@ -0,0 +1,368 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Group compiled into structure-of-arrays storage. The center, squared
+ * radius and material of every Sphere are kept in primitive arrays, so the
+ * intersection loop streams through memory instead of calling Surface.hit
+ * on one object at a time. Surfaces that are not Spheres are kept as they
+ * are and tested after the spheres.
+ *
+ * Rays can be tested one at a time through the Surface methods, or as a
+ * RayPacket. Both use the same quadratic as Sphere.hit and resolve ties
+ * like Group.hit, so all of them return the same intersection. Packets
+ * are tested with the Vector API when VectorPacketKernel was compiled and
+ * the jdk.incubator.vector module is present, and with LanePacketKernel
+ * otherwise.
+ *
+ * @author Brendan Van Allen
+ */
+public class CompiledSphereScene implements Surface {
+    private static final PacketKernel KERNEL = loadKernel();
+
+    private double[] centerX;
+    private double[] centerY;
+    private double[] centerZ;
+    private double[] radiusSquared;
+    private int[] material; // Index into materials
+    private int[] order; // Position of each sphere in the original Group
+    private Sphere[] spheres; // null when compiled from a scene cache
+    private CachedSurfaces cached;
+    private Material[] materials;
+
+    private Surface[] others; // Surfaces that are not Spheres
+    private int[] otherOrder; // Position of each of them in the original Group
+
+    /**
+     * Compiles the Surfaces of a Group.
+     *
+     * @param group the Group to compile
+     */
+    public CompiledSphereScene(Group group) {
+        List<Surface> surfaces = group.getSurfaces();
+        List<Integer> sphereOrder = new ArrayList<>();
+        List<Integer> residualOrder = new ArrayList<>();
+        for(int k=0;k<surfaces.size();k++) {
+            if(surfaces.get(k) instanceof Sphere) {
+                sphereOrder.add(k);
+            } else {
+                residualOrder.add(k);
+            }
+        }
+
+        int n = sphereOrder.size();
+        centerX = new double[n];
+        centerY = new double[n];
+        centerZ = new double[n];
+        radiusSquared = new double[n];
+        material = new int[n];
+        order = new int[n];
+        spheres = new Sphere[n];
+
+        // Every distinct Material gets an index
+        Map<Material, Integer> materialIndex = new IdentityHashMap<>();
+        List<Material> materialList = new ArrayList<>();
+        for(int k=0;k<n;k++) {
+            Sphere s = (Sphere) surfaces.get(sphereOrder.get(k));
+            spheres[k] = s;
+            order[k] = sphereOrder.get(k);
+            centerX[k] = s.getCenter().x;
+            centerY[k] = s.getCenter().y;
+            centerZ[k] = s.getCenter().z;
+            radiusSquared[k] = s.getRadius() * s.getRadius();
+
+            Integer m = materialIndex.get(s.getMaterial());
+            if(m == null) {
+                m = materialList.size();
+                materialIndex.put(s.getMaterial(), m);
+                materialList.add(s.getMaterial());
+            }
+            material[k] = m;
+        }
+        materials = materialList.toArray(new Material[0]);
+
+        others = new Surface[residualOrder.size()];
+        otherOrder = new int[residualOrder.size()];
+        for(int k=0;k<others.length;k++) {
+            otherOrder[k] = residualOrder.get(k);
+            others[k] = surfaces.get(otherOrder[k]);
+        }
+    }
+
+    /**
+     * Compiles the Surfaces of a scene cache straight from its arrays. Sphere
+     * objects are only made for the spheres that are hit.
+     *
+     * @param cached the Surfaces read from a scene cache
+     */
+    public CompiledSphereScene(CachedSurfaces cached) {
+        this.cached = cached;
+        double[] sphereData = cached.getSphereData();
+        int n = cached.getSphereCount();
+        centerX = new double[n];
+        centerY = new double[n];
+        centerZ = new double[n];
+        radiusSquared = new double[n];
+        material = new int[n];
+        for(int k=0;k<n;k++) {
+            centerX[k] = sphereData[4*k];
+            centerY[k] = sphereData[4*k + 1];
+            centerZ[k] = sphereData[4*k + 2];
+            radiusSquared[k] = sphereData[4*k + 3] * sphereData[4*k + 3];
+            material[k] = cached.getMaterialIndex(k);
+        }
+        materials = cached.getMaterials();
+
+        // The cache lists the spheres in Group order, just like the Group constructor does
+        int[] cacheOrder = cached.getOrder();
+        order = new int[n];
+        others = new Surface[cacheOrder.length - n];
+        otherOrder = new int[others.length];
+        for(int p=0;p<cacheOrder.length;p++) {
+            if(cacheOrder[p] >= 0) {
+                order[cacheOrder[p]] = p;
+            } else {
+                others[-1 - cacheOrder[p]] = cached.getMeshes()[-1 - cacheOrder[p]];
+                otherOrder[-1 - cacheOrder[p]] = p;
+            }
+        }
+    }
+
+    /**
+     * Reads the centers of the spheres again after they moved. The spheres
+     * keep their position in the arrays.
+     */
+    public void refit() {
+        for(int k=0;k<centerX.length;k++) {
+            Sphere s = sphere(k);
+            centerX[k] = s.getCenter().x;
+            centerY[k] = s.getCenter().y;
+            centerZ[k] = s.getCenter().z;
+        }
+    }
+
+    /**
+     * Finds the closest sphere hit by every ray of the packet with the
+     * fastest PacketKernel that could be loaded. The time and index of
+     * each lane are set, with an index of -1 if no sphere was hit.
+     * Surfaces that are not Spheres are not tested here, see finish.
+     * Packets hold viewing rays, which accept hits at any time.
+     *
+     * @param packet the rays to intersect
+     */
+    public void hit(RayPacket packet) {
+        hit(packet, KERNEL);
+    }
+
+    /**
+     * Finds the closest sphere hit by every ray of the packet with the
+     * given PacketKernel.
+     *
+     * @param packet the rays to intersect
+     * @param kernel the loop that intersects the packet with the spheres
+     */
+    public void hit(RayPacket packet, PacketKernel kernel) {
+        packet.tests += (long) packet.count * centerX.length;
+        kernel.hit(packet, centerX, centerY, centerZ, radiusSquared);
+    }
+
+    /**
+     * Completes the intersection of one lane after hit(RayPacket): tests the
+     * Surfaces that are not Spheres and fills in the HitRecord.
+     *
+     * @param packet the packet that was intersected
+     * @param lane the lane to complete
+     * @param ray scratch ray, set to the ray of the lane
+     * @param rec the record the intersection is written to
+     * @return true if the ray of the lane hit anything
+     */
+    public boolean finish(RayPacket packet, int lane, ScratchRay ray, ScratchHit rec) {
+        packet.get(lane, ray);
+        return finish(ray, packet.time[lane], packet.index[lane], rec);
+    }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        // Scalar version of the packet loop
+        vr.tests += centerX.length;
+        double dDotD = vr.dx * vr.dx + vr.dy * vr.dy + vr.dz * vr.dz;
+        double best = Integer.MAX_VALUE;
+        int index = -1;
+        for(int s=0;s<centerX.length;s++) {
+            double tempX = vr.ox - centerX[s];
+            double tempY = vr.oy - centerY[s];
+            double tempZ = vr.oz - centerZ[s];
+            double dDotTemp = vr.dx * tempX + vr.dy * tempY + vr.dz * tempZ;
+            double discriminant = dDotTemp * dDotTemp - dDotD * ((tempX * tempX + tempY * tempY + tempZ * tempZ) - radiusSquared[s]);
+            if(discriminant >= 0) {
+                double t1 = ( -dDotTemp + Math.sqrt(discriminant)) / dDotD;
+                double t2 = ( -dDotTemp - Math.sqrt(discriminant)) / dDotD;
+                double time = Math.min(t1,t2);
+                if(time <= vr.minT) {
+                    time = Math.max(t1,t2);
+                }
+                if(best > time && time > vr.minT) {
+                    best = time;
+                    index = s;
+                }
+            }
+        }
+        return finish(vr, best, index, rec);
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        double dDotD = ray.dx * ray.dx + ray.dy * ray.dy + ray.dz * ray.dz;
+        for(int s=0;s<centerX.length;s++) {
+            double tempX = ray.ox - centerX[s];
+            double tempY = ray.oy - centerY[s];
+            double tempZ = ray.oz - centerZ[s];
+            double dDotTemp = ray.dx * tempX + ray.dy * tempY + ray.dz * tempZ;
+            double discriminant = dDotTemp * dDotTemp - dDotD * ((tempX * tempX + tempY * tempY + tempZ * tempZ) - radiusSquared[s]);
+            if(discriminant >= 0) {
+                double t1 = ( -dDotTemp - Math.sqrt(discriminant)) / dDotD;
+                double t2 = ( -dDotTemp + Math.sqrt(discriminant)) / dDotD;
+                if((t1 > SHADOW_EPSILON && t1 < maxT) || (t2 > SHADOW_EPSILON && t2 < maxT)) {
+                    ray.tests += s + 1;
+                    rec.surface = sphere(s);
+                    return true;
+                }
+            }
+        }
+        ray.tests += centerX.length;
+
+        ScratchHit candidate = rec.child();
+        for(int k=0;k<others.length;k++) {
+            if(others[k].occluded(ray, maxT, candidate)) {
+                rec.surface = candidate.surface;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public HitRecord hit(Ray vr) {
+        ScratchRay ray = new ScratchRay();
+        ray.set(vr.getViewpoint().x, vr.getViewpoint().y, vr.getViewpoint().z,
+                vr.getDirection().x, vr.getDirection().y, vr.getDirection().z);
+        ScratchHit rec = new ScratchHit();
+        boolean found = hit(ray, rec);
+        vr.tests += ray.tests;
+        if(!found) {
+            return null;
+        }
+
+        // Let the Surface that was hit build its own HitRecord
+        return rec.surface.hit(vr);
+    }
+
+    @Override
+    public Material getMaterial() {
+        return null;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        BoundingBox bounds = null;
+        for(int k=0;k<centerX.length;k++) {
+            BoundingBox b = spheres != null ? spheres[k].boundingBox() : cached.boundingBox(k);
+            bounds = (bounds == null) ? b : BoundingBox.union(bounds, b);
+        }
+        for(Surface s : others) {
+            BoundingBox b = s.boundingBox();
+            if(b != null) {
+                bounds = (bounds == null) ? b : BoundingBox.union(bounds, b);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Gets the index of the Material of a compiled sphere.
+     *
+     * @param sphere index of the sphere in the compiled arrays
+     * @return index into getMaterials()
+     */
+    public int getMaterialIndex(int sphere) {
+        return material[sphere];
+    }
+
+    public Material[] getMaterials() {
+        return materials;
+    }
+
+    public int getSphereCount() {
+        return centerX.length;
+    }
+
+    /**
+     * @return the PacketKernel hit(RayPacket) uses
+     */
+    public static PacketKernel getPacketKernel() {
+        return KERNEL;
+    }
+
+    /*
+     * Helper method to load VectorPacketKernel, which is only there when it was compiled with JDK 16 or newer
+     */
+    private static PacketKernel loadKernel() {
+        try {
+            return (PacketKernel) Class.forName("VectorPacketKernel").getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled, or the jdk.incubator.vector module was not added
+            return new LanePacketKernel();
+        }
+    }
+
+    /*
+     * Helper method to get the Sphere object of a compiled sphere
+     */
+    private Sphere sphere(int index) {
+        return spheres != null ? spheres[index] : cached.getSphere(index);
+    }
+
+    /*
+     * Merges the closest sphere with the other Surfaces and fills in rec
+     */
+    private boolean finish(ScratchRay vr, double best, int index, ScratchHit rec) {
+        int bestOrder = index >= 0 ? order[index] : Integer.MAX_VALUE;
+        boolean found = false;
+
+        // Other Surfaces: ties go to whichever Surface came first in the Group
+        ScratchHit candidate = rec.child();
+        for(int k=0;k<others.length;k++) {
+            if(others[k].hit(vr, candidate)) {
+                if(best > candidate.time || (best == candidate.time && otherOrder[k] < bestOrder)) {
+                    best = candidate.time;
+                    bestOrder = otherOrder[k];
+                    rec.set(candidate);
+                    found = true;
+                }
+            }
+        }
+        if(found && (index < 0 || bestOrder != order[index])) {
+            return true;
+        }
+        if(index < 0) {
+            return false;
+        }
+
+        // p = e + t*d and the normal 2(p - c), exactly as in Sphere.hit
+        rec.time = best;
+        rec.px = vr.ox + vr.dx * best;
+        rec.py = vr.oy + vr.dy * best;
+        rec.pz = vr.oz + vr.dz * best;
+        double nx = (rec.px - centerX[index]) * 2;
+        double ny = (rec.py - centerY[index]) * 2;
+        double nz = (rec.pz - centerZ[index]) * 2;
+        double norm = 1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz);
+        rec.nx = nx * norm;
+        rec.ny = ny * norm;
+        rec.nz = nz * norm;
+        rec.surface = sphere(index);
+        return true;
+    }
+}
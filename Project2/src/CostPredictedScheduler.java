@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Schedules square Tiles from most to least expensive. The cost of each
+ * Tile is predicted by a low resolution pre-pass that traces a small grid
+ * of sample pixels inside the Tile and times them.
+ *
+ * Handing out the expensive Tiles first keeps a few slow Tiles from
+ * becoming the tail of the render.
+ *
+ * The sample pixels are traced with a TraceContext of their own, so they
+ * are not counted as rays of the render.
+ *
+ * @author Brendan Van Allen
+ */
+public class CostPredictedScheduler implements TileScheduler {
+    private static final int SAMPLES = 2; // Sample pixels per Tile in each direction
+    private Scene scene;
+    private Surface surfaces;
+
+    public CostPredictedScheduler(Scene scene, Surface surfaces) {
+        this.scene = scene;
+        this.surfaces = surfaces;
+    }
+
+    @Override
+    public List<Tile> schedule(int width, int firstRow, int rows, int tileSize) {
+        List<Tile> tiles = new SquareTileScheduler().schedule(width, firstRow, rows, tileSize);
+        List<long[]> costs = new ArrayList<>(); // {predicted cost, index of the Tile}
+
+        TraceContext context = TraceContext.uncounted();
+        for(int k=0;k<tiles.size();k++) {
+            costs.add(new long[]{predictCost(tiles.get(k), context), k});
+        }
+
+        // Most expensive first, ties keep their image order
+        costs.sort(Comparator.comparingLong((long[] c) -> -c[0]).thenComparingLong(c -> c[1]));
+
+        List<Tile> ordered = new ArrayList<>(tiles.size());
+        for(long[] c : costs) {
+            ordered.add(tiles.get((int) c[1]));
+        }
+        return ordered;
+    }
+
+    /*
+     * Traces the sample pixels of a Tile and returns the time it took in nanoseconds
+     */
+    private long predictCost(Tile tile, TraceContext context) {
+        long start = System.nanoTime();
+        for(int sy=0;sy<SAMPLES;sy++) {
+            for(int sx=0;sx<SAMPLES;sx++) {
+                int i = tile.getX() + (2 * sx + 1) * tile.getWidth() / (2 * SAMPLES);
+                int j = tile.getY() + (2 * sy + 1) * tile.getHeight() / (2 * SAMPLES);
+                RayTracer.tracePixel(scene, surfaces, i, j, false, context);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
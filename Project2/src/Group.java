@@ -1,6 +1,6 @@
-import apple.laf.JRSUIConstants;
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Group is simply a collection of Surfaces. Having
@@ -25,6 +25,15 @@ public class Group implements Surface{
         otherSurfaces.add(s);
     }
 
+    /**
+     * Gets the Surfaces in the Group, in the order they were added.
+     *
+     * @return an unmodifiable view of the Surfaces
+     */
+    public List<Surface> getSurfaces() {
+        return Collections.unmodifiableList(otherSurfaces);
+    }
+
     @Override
     /**
      * Determines if the given Ray intersects any Surface in the Group.
@@ -56,4 +65,51 @@ public class Group implements Surface{
 
         return closestHit;
     }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        double closestT = Integer.MAX_VALUE;
+        boolean found = false;
+        ScratchHit candidate = rec.child();
+
+        for(int k=0;k<otherSurfaces.size();k++) {
+            if(otherSurfaces.get(k).hit(vr, candidate) && closestT > candidate.time) {
+                closestT = candidate.time;
+                rec.set(candidate);
+                found = true;
+            }
+        }
+
+        return found;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        ScratchHit candidate = rec.child();
+        for(int k=0;k<otherSurfaces.size();k++) {
+            // Stop at the first Surface in the way, it doesn't matter which one is closest
+            if(otherSurfaces.get(k).occluded(ray, maxT, candidate)) {
+                rec.surface = candidate.surface;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Material getMaterial() {
+        return null;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        BoundingBox bounds = null;
+        for(Surface s : otherSurfaces) {
+            BoundingBox b = s.boundingBox();
+            if(b != null) {
+                bounds = (bounds == null) ? b : BoundingBox.union(bounds, b);
+            }
+        }
+        return bounds;
+    }
 }
@@ -0,0 +1,212 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A framebuffer of linear floating point colors, before they are clamped
+ * and converted to 8 bits. Every pixel holds the sum of the red, green and
+ * blue of the samples added to it and the sum of their weights, so any
+ * number of samples or passes can be accumulated and averaged correctly.
+ *
+ * The pixels are kept off the heap in direct buffers, so even a 16k image
+ * doesn't weigh on the garbage collector. One direct buffer can only hold
+ * 2 GB, so the rows are split into chunks of at most CHUNK_BYTES each.
+ *
+ * Pixels are read and written with absolute indices, and nothing else in
+ * the buffers changes, so threads can add samples to different pixels at
+ * the same time without any lock. Every Tile is traced by a single thread,
+ * so the pixels of a Tile are only ever written by one thread at a time.
+ *
+ * @author Brendan Van Allen
+ */
+public class HdrFramebuffer {
+    private static final int CHANNELS = 4; // Red, green, blue and the weight of the samples
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    private int width;
+    private int height;
+    private int rowsPerChunk;
+    private FloatBuffer[] chunks;
+
+    /**
+     * Allocates a framebuffer with every pixel at zero.
+     *
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     */
+    public HdrFramebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rowsPerChunk = (int) Math.max(1, CHUNK_BYTES / (4L * CHANNELS * width));
+        chunks = new FloatBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+        for(int c=0;c<chunks.length;c++) {
+            int rows = Math.min(rowsPerChunk, height - c*rowsPerChunk);
+            chunks[c] = ByteBuffer.allocateDirect(4 * CHANNELS * width * rows).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Adds a sample to a pixel.
+     *
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @param red the red of the sample, 1 is full intensity
+     * @param green the green of the sample
+     * @param blue the blue of the sample
+     * @param weight the weight of the sample
+     */
+    public void add(int i, int j, double red, double green, double blue, double weight) {
+        FloatBuffer chunk = chunks[j / rowsPerChunk];
+        int k = CHANNELS * ((j % rowsPerChunk) * width + i);
+        chunk.put(k, (float) (chunk.get(k) + red * weight));
+        chunk.put(k + 1, (float) (chunk.get(k + 1) + green * weight));
+        chunk.put(k + 2, (float) (chunk.get(k + 2) + blue * weight));
+        chunk.put(k + 3, (float) (chunk.get(k + 3) + weight));
+    }
+
+    /**
+     * Sets every pixel back to zero, e.g. before the next frame.
+     */
+    public void clear() {
+        for(FloatBuffer chunk : chunks) {
+            for(int k=0;k<chunk.capacity();k++) {
+                chunk.put(k, 0);
+            }
+        }
+    }
+
+    /**
+     * Tone maps every pixel and converts it to 8 bits per channel. The rows
+     * are split among the given number of threads.
+     *
+     * @param pixels the array the RGB values are written to, one int per pixel in row-major order
+     * @param operator "clamp" to cut every channel off at 1, like the other render paths,
+     *                 or "reinhard" to compress it with c / (1 + c)
+     * @param exposure stops to scale every color by before the operator, 0 to leave it alone
+     * @param threads the number of threads to use
+     */
+    public void toneMap(int[] pixels, String operator, double exposure, int threads) {
+        boolean reinhard = operator.equals("reinhard");
+        double scale = Math.pow(2, exposure);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RowTask(0, height, pixels, reinhard, scale));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the average color of every pixel to a Portable FloatMap file:
+     * a text header, then little-endian RGB floats from the bottom row up.
+     *
+     * @param fileName the name of the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writePfm(String fileName) throws IOException {
+        try (FileChannel channel = new FileOutputStream(fileName).getChannel()) {
+            String header = "PF\n" + width + " " + height + "\n-1.0\n"; // A negative scale means little-endian
+            channel.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+
+            ByteBuffer row = ByteBuffer.allocateDirect(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+            for(int j=height-1;j>=0;j--) {
+                FloatBuffer chunk = chunks[j / rowsPerChunk];
+                int base = CHANNELS * (j % rowsPerChunk) * width;
+                row.clear();
+                for(int i=0;i<width;i++) {
+                    int k = base + CHANNELS*i;
+                    float weight = chunk.get(k + 3);
+                    float scale = weight > 0 ? 1 / weight : 0;
+                    row.putFloat(chunk.get(k) * scale);
+                    row.putFloat(chunk.get(k + 1) * scale);
+                    row.putFloat(chunk.get(k + 2) * scale);
+                }
+                row.flip();
+                while(row.hasRemaining()) {
+                    channel.write(row);
+                }
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of bytes held off the heap
+     */
+    public long getMemoryUsage() {
+        return 4L * CHANNELS * width * height;
+    }
+
+    /*
+     * Helper method to tone map one row
+     */
+    private void toneMapRow(int j, int[] pixels, boolean reinhard, double scale) {
+        FloatBuffer chunk = chunks[j / rowsPerChunk];
+        int base = CHANNELS * (j % rowsPerChunk) * width;
+        for(int i=0;i<width;i++) {
+            int k = base + CHANNELS*i;
+            double weight = chunk.get(k + 3);
+            if(weight <= 0) {
+                pixels[j*width + i] = 0xFF000000;
+                continue;
+            }
+            double red = chunk.get(k) / weight * scale;
+            double green = chunk.get(k + 1) / weight * scale;
+            double blue = chunk.get(k + 2) / weight * scale;
+            if(reinhard) {
+                red /= 1 + red;
+                green /= 1 + green;
+                blue /= 1 + blue;
+            }
+            pixels[j*width + i] = 0xFF000000 | (RayTracer.toChannel(red) << 16) | (RayTracer.toChannel(green) << 8)
+                    | RayTracer.toChannel(blue);
+        }
+    }
+
+    /*
+     * Splits a range of rows in half until it is small enough to tone map on one thread
+     */
+    @SuppressWarnings("serial")
+    private class RowTask extends RecursiveAction {
+        private static final int ROWS = 16; // Rows tone mapped by one task
+
+        private int from;
+        private int to;
+        private int[] pixels;
+        private boolean reinhard;
+        private double scale;
+
+        RowTask(int from, int to, int[] pixels, boolean reinhard, double scale) {
+            this.from = from;
+            this.to = to;
+            this.pixels = pixels;
+            this.reinhard = reinhard;
+            this.scale = scale;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= ROWS) {
+                for(int j=from;j<to;j++) {
+                    toneMapRow(j, pixels, reinhard, scale);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(from, mid, pixels, reinhard, scale), new RowTask(mid, to, pixels, reinhard, scale));
+            }
+        }
+    }
+}
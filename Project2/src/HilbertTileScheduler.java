@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules square Tiles along a Hilbert curve. Neighbouring Tiles in the
+ * list are neighbours in the image, so the Tiles the threads are working
+ * on at any moment cover a compact region of the scene.
+ *
+ * @author Brendan Van Allen
+ */
+public class HilbertTileScheduler implements TileScheduler {
+
+    @Override
+    public List<Tile> schedule(int width, int firstRow, int rows, int tileSize) {
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (rows + tileSize - 1) / tileSize;
+
+        // The curve is defined on a power of two grid, so pad the tile grid and skip the padding
+        int n = 1;
+        while(n < tilesX || n < tilesY) {
+            n *= 2;
+        }
+
+        List<Tile> tiles = new ArrayList<>();
+        for(int d=0;d<n*n;d++) {
+            int[] cell = toCell(n, d);
+            int tx = cell[0];
+            int ty = cell[1];
+            if(tx < tilesX && ty < tilesY) {
+                int x = tx * tileSize;
+                int y = firstRow + ty * tileSize;
+                tiles.add(new Tile(x, y, Math.min(tileSize, width - x), Math.min(tileSize, firstRow + rows - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /*
+     * Converts a distance along the Hilbert curve into (x, y) grid coordinates
+     */
+    private static int[] toCell(int n, int d) {
+        int x = 0;
+        int y = 0;
+        for(int s=1;s<n;s*=2) {
+            int rx = 1 & (d / 2);
+            int ry = 1 & (d ^ rx);
+
+            // Rotate the quadrant
+            if(ry == 0) {
+                if(rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+
+            x += s * rx;
+            y += s * ry;
+            d /= 4;
+        }
+        return new int[]{x, y};
+    }
+}
@@ -0,0 +1,220 @@
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+/**
+ * An Instance places a shared Surface, usually a TriangleMesh, in the
+ * Scene with an affine transform. Any number of Instances can refer to
+ * the same geometry, so a Scene that repeats one mesh thousands of times
+ * only holds its triangles and their BVHTree once.
+ *
+ * A ray is moved into the space of the geometry instead of moving the
+ * geometry: the viewpoint and the direction are multiplied by the inverse
+ * transform, without normalizing the direction, so a hit happens at the
+ * same time along both rays. The normal at the hit is moved back with the
+ * inverse transpose. A BVH over Instances is the top level of a two level
+ * hierarchy, whose bottom level is the tree of the shared geometry.
+ *
+ * @author Brendan Van Allen
+ */
+public class Instance implements Surface {
+    private Surface geometry;
+    private Material material;
+    private double[] toWorld = new double[12]; // Rows of the top 3x4 part of the transform
+    private double[] toObject = new double[12]; // Rows of the top 3x4 part of its inverse
+    private BoundingBox bounds;
+
+    /**
+     * Creates an Instance that is shaded with the Material of its geometry.
+     *
+     * @param geometry the shared Surface, which has to have a Material
+     * @param transform the affine transform from the space of the geometry to the Scene
+     */
+    public Instance(Surface geometry, Matrix4d transform) {
+        this(geometry, transform, geometry.getMaterial());
+    }
+
+    /**
+     * Creates an Instance with its own Material.
+     *
+     * @param geometry the shared Surface
+     * @param transform the affine transform from the space of the geometry to the Scene
+     * @param material the Material used to shade this Instance
+     */
+    public Instance(Surface geometry, Matrix4d transform, Material material) {
+        if(material == null) {
+            throw new IllegalArgumentException("An Instance needs a Material");
+        }
+        if(transform.m30 != 0 || transform.m31 != 0 || transform.m32 != 0 || transform.m33 != 1) {
+            throw new IllegalArgumentException("Only affine transforms are supported");
+        }
+        if(transform.determinant() == 0) {
+            throw new IllegalArgumentException("The transform can't be inverted");
+        }
+        this.geometry = geometry;
+        this.material = material;
+
+        Matrix4d inverse = new Matrix4d(transform);
+        inverse.invert();
+        for(int row=0;row<3;row++) {
+            for(int column=0;column<4;column++) {
+                toWorld[4*row + column] = transform.getElement(row, column);
+                toObject[4*row + column] = inverse.getElement(row, column);
+            }
+        }
+        bounds = transformBounds(geometry.boundingBox());
+    }
+
+    /**
+     * Creates the transform that scales by scale, turns by angle degrees
+     * around the y axis and then moves to position.
+     *
+     * @param position where the origin of the geometry ends up
+     * @param scale the uniform scale
+     * @param angle the rotation around the y axis, in degrees
+     * @return the transform
+     */
+    public static Matrix4d placement(Vector3d position, double scale, double angle) {
+        Matrix4d transform = new Matrix4d();
+        transform.rotY(Math.toRadians(angle));
+        transform.mul(scale);
+        transform.m33 = 1;
+        transform.setTranslation(position);
+        return transform;
+    }
+
+    @Override
+    public HitRecord hit(Ray vr) {
+        Vector3d e = vr.getViewpoint();
+        Vector3d d = vr.getDirection();
+        Ray local = new Ray(new Vector3d(point(toObject, 0, e.x, e.y, e.z), point(toObject, 1, e.x, e.y, e.z),
+                point(toObject, 2, e.x, e.y, e.z)), new Vector3d(direction(toObject, 0, d.x, d.y, d.z),
+                direction(toObject, 1, d.x, d.y, d.z), direction(toObject, 2, d.x, d.y, d.z)));
+        HitRecord hit = geometry.hit(local);
+        vr.tests += local.tests;
+        if(hit == null) {
+            return null;
+        }
+
+        Vector3d n = hit.getNormal();
+        Vector3d normal = new Vector3d(normal(0, n.x, n.y, n.z), normal(1, n.x, n.y, n.z), normal(2, n.x, n.y, n.z));
+        normal.normalize();
+        return new HitRecord(hit.getTime(), normal, vr.getPointOnRay(hit.getTime()), this);
+    }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        ScratchRay local = toObject(vr, rec);
+        ScratchHit candidate = rec.child();
+        boolean found = geometry.hit(local, candidate);
+        vr.tests += local.tests;
+        local.tests = 0;
+        if(!found) {
+            return false;
+        }
+
+        // The point is computed along the world ray, like every other Surface does
+        rec.time = candidate.time;
+        rec.px = vr.ox + vr.dx * candidate.time;
+        rec.py = vr.oy + vr.dy * candidate.time;
+        rec.pz = vr.oz + vr.dz * candidate.time;
+
+        double nx = normal(0, candidate.nx, candidate.ny, candidate.nz);
+        double ny = normal(1, candidate.nx, candidate.ny, candidate.nz);
+        double nz = normal(2, candidate.nx, candidate.ny, candidate.nz);
+        double norm = 1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz);
+        rec.nx = nx * norm;
+        rec.ny = ny * norm;
+        rec.nz = nz * norm;
+        rec.surface = this;
+        return true;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        // maxT is a time along the ray, which stays the same in the space of the geometry
+        ScratchRay local = toObject(ray, rec);
+        boolean found = geometry.occluded(local, maxT, rec.child());
+        ray.tests += local.tests;
+        local.tests = 0;
+        if(found) {
+            // The blocker is re-tested with world rays, so it has to be the Instance and not its geometry
+            rec.surface = this;
+        }
+        return found;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        return bounds;
+    }
+
+    @Override
+    public Material getMaterial() {
+        return material;
+    }
+
+    /**
+     * @return the shared Surface this Instance places in the Scene
+     */
+    public Surface getGeometry() {
+        return geometry;
+    }
+
+    /*
+     * Helper method to move a ray into the space of the geometry, using the ray the record keeps for it
+     */
+    private ScratchRay toObject(ScratchRay vr, ScratchHit rec) {
+        ScratchRay local = rec.localRay();
+        local.set(point(toObject, 0, vr.ox, vr.oy, vr.oz), point(toObject, 1, vr.ox, vr.oy, vr.oz),
+                point(toObject, 2, vr.ox, vr.oy, vr.oz), direction(toObject, 0, vr.dx, vr.dy, vr.dz),
+                direction(toObject, 1, vr.dx, vr.dy, vr.dz), direction(toObject, 2, vr.dx, vr.dy, vr.dz), vr.minT);
+        return local;
+    }
+
+    /*
+     * Helper method to compute the box around the 8 moved corners of the box of the geometry
+     */
+    private BoundingBox transformBounds(BoundingBox box) {
+        if(box == null) {
+            return null;
+        }
+        Vector3d min = new Vector3d(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+        Vector3d max = new Vector3d(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        for(int corner=0;corner<8;corner++) {
+            double x = (corner & 1) == 0 ? box.getMin().x : box.getMax().x;
+            double y = (corner & 2) == 0 ? box.getMin().y : box.getMax().y;
+            double z = (corner & 4) == 0 ? box.getMin().z : box.getMax().z;
+            double wx = point(toWorld, 0, x, y, z);
+            double wy = point(toWorld, 1, x, y, z);
+            double wz = point(toWorld, 2, x, y, z);
+            min.x = Math.min(min.x, wx);
+            min.y = Math.min(min.y, wy);
+            min.z = Math.min(min.z, wz);
+            max.x = Math.max(max.x, wx);
+            max.y = Math.max(max.y, wy);
+            max.z = Math.max(max.z, wz);
+        }
+        return new BoundingBox(min, max);
+    }
+
+    /*
+     * Helper method to multiply a point by one row of a transform
+     */
+    private static double point(double[] m, int row, double x, double y, double z) {
+        return m[4*row] * x + m[4*row + 1] * y + m[4*row + 2] * z + m[4*row + 3];
+    }
+
+    /*
+     * Helper method to multiply a direction by one row of a transform, leaving out the translation
+     */
+    private static double direction(double[] m, int row, double x, double y, double z) {
+        return m[4*row] * x + m[4*row + 1] * y + m[4*row + 2] * z;
+    }
+
+    /*
+     * Helper method to move a normal to the Scene with the transpose of the inverse transform
+     */
+    private double normal(int row, double x, double y, double z) {
+        return toObject[row] * x + toObject[4 + row] * y + toObject[8 + row] * z;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The PacketKernel every JDK can run: each sphere is loaded once and then
+ * tested against the lanes of the packet in a plain loop.
+ *
+ * @author Brendan Van Allen
+ */
+public class LanePacketKernel implements PacketKernel {
+
+    @Override
+    public void hit(RayPacket packet, double[] centerX, double[] centerY, double[] centerZ, double[] radiusSquared) {
+        int n = packet.count;
+        double[] ox = packet.ox, oy = packet.oy, oz = packet.oz;
+        double[] dx = packet.dx, dy = packet.dy, dz = packet.dz;
+        double[] best = packet.time;
+        int[] index = packet.index;
+        double[] dDotD = packet.dDotD;
+
+        for(int lane=0;lane<n;lane++) {
+            best[lane] = Integer.MAX_VALUE;
+            index[lane] = -1;
+            dDotD[lane] = dx[lane] * dx[lane] + dy[lane] * dy[lane] + dz[lane] * dz[lane];
+        }
+
+        // Load every sphere once and test it against all lanes
+        for(int s=0;s<centerX.length;s++) {
+            double cx = centerX[s];
+            double cy = centerY[s];
+            double cz = centerZ[s];
+            double r2 = radiusSquared[s];
+            for(int lane=0;lane<n;lane++) {
+                double tempX = ox[lane] - cx;
+                double tempY = oy[lane] - cy;
+                double tempZ = oz[lane] - cz;
+                double dDotTemp = dx[lane] * tempX + dy[lane] * tempY + dz[lane] * tempZ;
+                double discriminant = dDotTemp * dDotTemp - dDotD[lane] * ((tempX * tempX + tempY * tempY + tempZ * tempZ) - r2);
+                if(discriminant >= 0) {
+                    double t1 = ( -dDotTemp + Math.sqrt(discriminant)) / dDotD[lane];
+                    double t2 = ( -dDotTemp - Math.sqrt(discriminant)) / dDotD[lane];
+                    double time = Math.min(t1,t2);
+                    if(best[lane] > time) {
+                        best[lane] = time;
+                        index[lane] = s;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "lane loops";
+    }
+}
@@ -22,4 +22,13 @@ public class Light {
     public Vector3d getPosition() {
         return position;
     }
+
+    /**
+     * Moves the Light. The Scene's ShadingTable has to be compiled again afterwards.
+     *
+     * @param position the new position
+     */
+    public void setPosition(Vector3d position) {
+        this.position = position;
+    }
 }
@@ -0,0 +1,50 @@
+import java.awt.Color;
+
+/**
+ * An immutable copy of a Light in the form the shading loop needs: the
+ * position as plain doubles and the color already normalized to [0,1].
+ *
+ * @author Brendan Van Allen
+ */
+public final class LightRecord {
+    private final double x, y, z; // Position
+    private final double red, green, blue; // Color in [0,1]
+
+    /**
+     * @param light the Light to copy
+     */
+    public LightRecord(Light light) {
+        this.x = light.getPosition().x;
+        this.y = light.getPosition().y;
+        this.z = light.getPosition().z;
+
+        Color color = light.getColor();
+        this.red = color.getRed() / 255.0;
+        this.green = color.getGreen() / 255.0;
+        this.blue = color.getBlue() / 255.0;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public double getRed() {
+        return red;
+    }
+
+    public double getGreen() {
+        return green;
+    }
+
+    public double getBlue() {
+        return blue;
+    }
+}
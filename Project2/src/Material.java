@@ -9,6 +9,7 @@ import java.awt.*;
 public class Material {
     private int shininess;
     private Color color;
+    private int id = -1; // Index of the compiled MaterialRecord, set by ShadingTable
 
     public Material(int shininess, Color color) {
         this.shininess = shininess;
@@ -22,4 +23,12 @@ public class Material {
     public int getShininess() {
         return shininess;
     }
+
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
 }
@@ -0,0 +1,122 @@
+import java.awt.Color;
+
+/**
+ * An immutable, precomputed form of a Material lit by one LightRecord.
+ *
+ * computeShading multiplies every coefficient by the light color before it
+ * uses it, so the products are computed here once per Material instead of
+ * once per pixel. They are doubles rather than floats so the shaded colors
+ * stay exactly the same as the ones computed from the Material itself.
+ *
+ * The specular term pow(n . h, shininess) can optionally be read from a
+ * table. The table only covers the range where the term is at least the
+ * tolerance, and is sampled densely enough that linear interpolation stays
+ * within the tolerance everywhere.
+ *
+ * @author Brendan Van Allen
+ */
+public final class MaterialRecord {
+    private final Material material;
+    private final double diffuseRed, diffuseGreen, diffuseBlue; // Diffuse (and ambient) coefficient times light color
+    private final double specularRed, specularGreen, specularBlue; // Specular coefficient times light color
+    private final int shininess;
+
+    private final double[] powTable; // pow(x, shininess) sampled on [tableStart, 1], or null to call Math.pow
+    private final double tableStart;
+    private final double tableScale; // Number of table intervals per unit of x
+
+    /**
+     * @param material the Material to compile
+     * @param light the light it is shaded with
+     * @param tolerance the largest error allowed in the specular term, or 0 to always use Math.pow
+     */
+    public MaterialRecord(Material material, LightRecord light, double tolerance) {
+        this.material = material;
+
+        // Surface ambient color is the diffuse color, and the specular color is gray
+        Color diffuse = material.getColor();
+        diffuseRed = diffuse.getRed() / 255.0 * light.getRed();
+        diffuseGreen = diffuse.getGreen() / 255.0 * light.getGreen();
+        diffuseBlue = diffuse.getBlue() / 255.0 * light.getBlue();
+        specularRed = Color.GRAY.getRed() / 255.0 * light.getRed();
+        specularGreen = Color.GRAY.getGreen() / 255.0 * light.getGreen();
+        specularBlue = Color.GRAY.getBlue() / 255.0 * light.getBlue();
+        shininess = material.getShininess();
+
+        if(tolerance > 0 && shininess > 1) {
+            // Below tableStart, pow(x, shininess) < tolerance and is treated as 0
+            tableStart = Math.pow(tolerance, 1.0 / shininess);
+
+            // Linear interpolation is off by at most step^2/8 * max|f''|, and f'' = n(n-1)x^(n-2) <= n(n-1)
+            double step = Math.sqrt(8 * tolerance / ((double) shininess * (shininess - 1)));
+            int intervals = Math.max(1, (int) Math.ceil((1 - tableStart) / step));
+            tableScale = intervals / (1 - tableStart);
+            powTable = new double[intervals + 2]; // One extra entry so x = 1 can still interpolate
+            for(int k=0;k<=intervals;k++) {
+                powTable[k] = Math.pow(tableStart + k / tableScale, shininess);
+            }
+            powTable[intervals + 1] = powTable[intervals];
+        } else {
+            tableStart = 0;
+            tableScale = 0;
+            powTable = null;
+        }
+    }
+
+    /**
+     * Evaluates the Blinn-Phong specular term.
+     *
+     * @param nDotH max(0, n . h)
+     * @return pow(nDotH, shininess), from the table if this record has one
+     */
+    public double specular(double nDotH) {
+        if(powTable == null) {
+            return Math.pow(nDotH, shininess);
+        }
+        if(nDotH <= tableStart) {
+            return 0;
+        }
+        double f = (nDotH - tableStart) * tableScale;
+        int k = Math.min((int) f, powTable.length - 2);
+        return powTable[k] + (powTable[k + 1] - powTable[k]) * (f - k);
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    public double getDiffuseRed() {
+        return diffuseRed;
+    }
+
+    public double getDiffuseGreen() {
+        return diffuseGreen;
+    }
+
+    public double getDiffuseBlue() {
+        return diffuseBlue;
+    }
+
+    public double getSpecularRed() {
+        return specularRed;
+    }
+
+    public double getSpecularGreen() {
+        return specularGreen;
+    }
+
+    public double getSpecularBlue() {
+        return specularBlue;
+    }
+
+    public int getShininess() {
+        return shininess;
+    }
+
+    /**
+     * @return the number of entries in the specular table, 0 if Math.pow is used
+     */
+    public int getTableSize() {
+        return powTable == null ? 0 : powTable.length;
+    }
+}
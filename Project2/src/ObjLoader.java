@@ -0,0 +1,458 @@
+import javax.vecmath.Vector3d;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a Wavefront OBJ file into a TriangleMesh.
+ *
+ * The file is memory-mapped and cut into chunks at line breaks, and the
+ * chunks are parsed in parallel in two passes. The first pass only counts
+ * the v, vt, vn and f records of each chunk, so every chunk knows where its
+ * records go in the final arrays. The second pass parses the numbers
+ * straight into those flat float and int arrays, without creating a String
+ * or an object per record.
+ *
+ * Faces may use any of the forms v, v/vt, v//vn and v/vt/vn (Genmesh writes
+ * the last two), and faces with more than three vertices are split into a
+ * fan of triangles. Negative (relative) indices are supported, and every
+ * index is checked against the records of the file as it is parsed. Other
+ * records such as g, s, usemtl and comments are skipped, and a # ends a face
+ * record the same way in both passes.
+ *
+ * @author Brendan Van Allen
+ */
+public class ObjLoader {
+    private static final long MAX_CHUNK_SIZE = 1L << 28; // Largest region mapped at once
+    private static final long MIN_CHUNK_SIZE = 1L << 20; // Smaller files are not worth splitting
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Loads an OBJ file as it is.
+     *
+     * @param fileName the OBJ file
+     * @param material the Material of the whole mesh
+     * @return the loaded mesh
+     * @throws IOException if the file can not be read or is not a valid OBJ file
+     */
+    public static TriangleMesh load(String fileName, Material material) throws IOException {
+        return load(fileName, material, 1, new Vector3d());
+    }
+
+    /**
+     * Loads an OBJ file, scaling and then moving every vertex.
+     *
+     * @param fileName the OBJ file
+     * @param material the Material of the whole mesh
+     * @param scale the factor every vertex position is multiplied by
+     * @param offset the vector added to every scaled vertex position
+     * @return the loaded mesh
+     * @throws IOException if the file can not be read or is not a valid OBJ file
+     */
+    public static TriangleMesh load(String fileName, Material material, double scale, Vector3d offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int threads = Runtime.getRuntime().availableProcessors();
+            int chunkCount = (int) Math.max(Math.min(4L * threads, size / MIN_CHUNK_SIZE), (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            chunkCount = Math.max(chunkCount, 1);
+
+            // Cut the file into chunks that start at the beginning of a line
+            long[] starts = new long[chunkCount + 1];
+            starts[chunkCount] = size;
+            for(int k=1;k<chunkCount;k++) {
+                starts[k] = Math.max(starts[k - 1], nextLine(channel, k * (size / chunkCount), size));
+            }
+
+            List<Chunk> chunks = new ArrayList<>();
+            for(int k=0;k<chunkCount;k++) {
+                if(starts[k + 1] - starts[k] > MAX_CHUNK_SIZE + (1 << 20)) {
+                    throw new IOException("Line too long in " + fileName);
+                }
+                chunks.add(new Chunk(fileName, channel.map(FileChannel.MapMode.READ_ONLY, starts[k], starts[k + 1] - starts[k])));
+            }
+
+            // First pass: count the records of every chunk
+            List<Callable<Void>> counters = new ArrayList<>();
+            for(Chunk c : chunks) {
+                counters.add(() -> {
+                    c.count();
+                    return null;
+                });
+            }
+            run(counters);
+
+            // Every chunk writes its records after those of the chunks before it
+            int vertices = 0, uvCount = 0, normalCount = 0, triangleCount = 0, lines = 0;
+            for(Chunk c : chunks) {
+                c.firstVertex = vertices;
+                c.firstUv = uvCount;
+                c.firstNormal = normalCount;
+                c.firstTriangle = triangleCount;
+                c.firstLine = lines;
+                vertices = Math.addExact(vertices, c.vertices);
+                uvCount = Math.addExact(uvCount, c.uvs);
+                normalCount = Math.addExact(normalCount, c.normals);
+                triangleCount = Math.addExact(triangleCount, c.triangles);
+                lines += c.lines;
+            }
+            for(Chunk c : chunks) {
+                c.vertexTotal = vertices;
+                c.uvTotal = uvCount;
+                c.normalTotal = normalCount;
+            }
+
+            float[] positions = new float[3*vertices];
+            float[] uvs = uvCount > 0 ? new float[2*uvCount] : null;
+            float[] normals = normalCount > 0 ? new float[3*normalCount] : null;
+            int[] triangles = new int[3*triangleCount];
+            int[] triangleUvs = uvCount > 0 ? new int[3*triangleCount] : null;
+            int[] triangleNormals = normalCount > 0 ? new int[3*triangleCount] : null;
+
+            // Second pass: parse the records into the arrays
+            List<Callable<Void>> parsers = new ArrayList<>();
+            for(Chunk c : chunks) {
+                parsers.add(() -> {
+                    c.parse(positions, uvs, normals, triangles, triangleUvs, triangleNormals, scale, offset);
+                    return null;
+                });
+            }
+            run(parsers);
+
+            return new TriangleMesh(positions, normals, uvs, triangles, triangleNormals, triangleUvs, material);
+        }
+    }
+
+    /*
+     * Finds the first byte after the line break at or after position
+     */
+    private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while(position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if(n <= 0) {
+                break;
+            }
+            for(int k=0;k<n;k++) {
+                if(buffer.get(k) == '\n') {
+                    return position + k + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    /*
+     * Runs the tasks on the common ForkJoinPool and waits for all of them
+     */
+    private static void run(List<Callable<Void>> tasks) throws IOException {
+        try {
+            for(Future<Void> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            // The pool wraps and copies what a task throws, the innermost IOException is the one the Chunk threw
+            IOException thrown = null;
+            for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if(cause instanceof IOException) {
+                    thrown = (IOException) cause;
+                }
+            }
+            throw thrown != null ? thrown : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * One part of the file, parsed by a single thread
+     */
+    private static class Chunk {
+        private String fileName;
+        private MappedByteBuffer buffer;
+        private int limit;
+        private int position;
+        private int line; // Line of the file being parsed, counted from 0
+
+        int vertices, uvs, normals, triangles, lines; // Record and line counts of this chunk
+        int firstVertex, firstUv, firstNormal, firstTriangle, firstLine; // Records and lines in the chunks before this one
+        int vertexTotal, uvTotal, normalTotal; // Records in the whole file
+
+        Chunk(String fileName, MappedByteBuffer buffer) {
+            this.fileName = fileName;
+            this.buffer = buffer;
+            this.limit = buffer.limit();
+        }
+
+        /*
+         * First pass: counts the records and the triangles of every face
+         */
+        void count() {
+            position = 0;
+            while(position < limit) {
+                lines++;
+                skipBlanks();
+                int type = recordType();
+                if(type == 'v') {
+                    vertices++;
+                } else if(type == 't') {
+                    uvs++;
+                } else if(type == 'n') {
+                    normals++;
+                } else if(type == 'f') {
+                    int corners = 0;
+                    boolean inToken = false;
+                    while(position < limit && buffer.get(position) != '\n' && buffer.get(position) != '#') {
+                        boolean blank = isBlank(buffer.get(position));
+                        if(!blank && !inToken) {
+                            corners++;
+                        }
+                        inToken = !blank;
+                        position++;
+                    }
+                    if(corners >= 3) {
+                        triangles += corners - 2;
+                    }
+                }
+                skipLine();
+            }
+        }
+
+        /*
+         * Second pass: parses the records into the arrays, starting at the offsets found by the first pass
+         */
+        void parse(float[] positions, float[] uvArray, float[] normalArray, int[] triangleArray,
+                   int[] triangleUvs, int[] triangleNormals, double scale, Vector3d offset) throws IOException {
+            int v = firstVertex, t = firstUv, n = firstNormal, f = firstTriangle;
+            int[] corner = new int[3];
+            int[] first = new int[3];
+            int[] previous = new int[3];
+            position = 0;
+            line = firstLine;
+            while(position < limit) {
+                skipBlanks();
+                int type = recordType();
+                if(type == 'v') {
+                    positions[3*v] = (float) (parseNumber() * scale + offset.x);
+                    positions[3*v + 1] = (float) (parseNumber() * scale + offset.y);
+                    positions[3*v + 2] = (float) (parseNumber() * scale + offset.z);
+                    v++;
+                } else if(type == 't') {
+                    uvArray[2*t] = (float) parseNumber();
+                    uvArray[2*t + 1] = (float) parseNumber();
+                    t++;
+                } else if(type == 'n') {
+                    normalArray[3*n] = (float) parseNumber();
+                    normalArray[3*n + 1] = (float) parseNumber();
+                    normalArray[3*n + 2] = (float) parseNumber();
+                    n++;
+                } else if(type == 'f') {
+                    // Split the face into a fan around its first corner
+                    int corners = 0;
+                    while(true) {
+                        skipBlanks();
+                        if(position >= limit || buffer.get(position) == '\n' || buffer.get(position) == '#') {
+                            break;
+                        }
+                        parseCorner(corner, v, t, n);
+                        if(corners == 0) {
+                            System.arraycopy(corner, 0, first, 0, 3);
+                        } else if(corners >= 2) {
+                            putCorner(triangleArray, triangleUvs, triangleNormals, 3*f, first);
+                            putCorner(triangleArray, triangleUvs, triangleNormals, 3*f + 1, previous);
+                            putCorner(triangleArray, triangleUvs, triangleNormals, 3*f + 2, corner);
+                            f++;
+                        }
+                        System.arraycopy(corner, 0, previous, 0, 3);
+                        corners++;
+                    }
+                }
+                skipLine();
+                line++;
+            }
+        }
+
+        /*
+         * Reads the record keyword at the current position, returns 'v', 't' (vt), 'n' (vn), 'f' or 0
+         */
+        private int recordType() {
+            if(position + 1 >= limit) {
+                return 0;
+            }
+            byte b = buffer.get(position);
+            byte next = buffer.get(position + 1);
+            if(b == 'v' && isBlank(next)) {
+                position += 2;
+                return 'v';
+            } else if(b == 'v' && (next == 't' || next == 'n') && position + 2 < limit && isBlank(buffer.get(position + 2))) {
+                position += 3;
+                return next;
+            } else if(b == 'f' && isBlank(next)) {
+                position += 2;
+                return 'f';
+            }
+            return 0;
+        }
+
+        /*
+         * Parses one face corner (v, v/vt, v//vn or v/vt/vn) into 0-based indices, -1 for missing ones
+         */
+        private void parseCorner(int[] corner, int vertexCount, int uvCount, int normalCount) throws IOException {
+            corner[0] = resolve(parseInt(), vertexCount, vertexTotal);
+            corner[1] = -1;
+            corner[2] = -1;
+            if(position < limit && buffer.get(position) == '/') {
+                position++;
+                if(position < limit && buffer.get(position) != '/' && !isBlank(buffer.get(position))) {
+                    corner[1] = resolve(parseInt(), uvCount, uvTotal);
+                }
+                if(position < limit && buffer.get(position) == '/') {
+                    position++;
+                    corner[2] = resolve(parseInt(), normalCount, normalTotal);
+                }
+            }
+        }
+
+        private static void putCorner(int[] triangleArray, int[] triangleUvs, int[] triangleNormals, int k, int[] corner) {
+            triangleArray[k] = corner[0];
+            if(triangleUvs != null) {
+                triangleUvs[k] = corner[1];
+            }
+            if(triangleNormals != null) {
+                triangleNormals[k] = corner[2];
+            }
+        }
+
+        /*
+         * OBJ indices start at 1, negative indices count back from the last record read so far.
+         * The result has to be one of the total records of the file.
+         */
+        private int resolve(int index, int count, int total) throws IOException {
+            if(index == 0) {
+                throw error("Invalid index 0 in face");
+            }
+            int resolved = index > 0 ? index - 1 : count + index;
+            if(resolved < 0 || resolved >= total) {
+                throw error("Face index " + index + " out of range");
+            }
+            return resolved;
+        }
+
+        /*
+         * Creates the exception for an error on the line being parsed
+         */
+        private IOException error(String message) {
+            return new IOException(fileName + ":" + (line + 1) + ": " + message);
+        }
+
+        private int parseInt() throws IOException {
+            boolean negative = false;
+            if(position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negative = buffer.get(position) == '-';
+                position++;
+            }
+            int start = position;
+            int value = 0;
+            while(position < limit) {
+                int digit = buffer.get(position) - '0';
+                if(digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+                position++;
+            }
+            if(position == start) {
+                throw error("Expected an index");
+            }
+            return negative ? -value : value;
+        }
+
+        /*
+         * Parses a decimal number such as -0.5, 3 or 1.1945836920083896E-17
+         */
+        private double parseNumber() throws IOException {
+            skipBlanks();
+            boolean negative = false;
+            if(position < limit && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+                negative = buffer.get(position) == '-';
+                position++;
+            }
+
+            long mantissa = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean fraction = false;
+            int start = position;
+            while(position < limit) {
+                byte b = buffer.get(position);
+                if(b >= '0' && b <= '9') {
+                    if(digits < 18) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if(mantissa != 0) {
+                            digits++;
+                        }
+                        if(fraction) {
+                            exponent--;
+                        }
+                    } else if(!fraction) {
+                        exponent++; // Digits that do not fit only change the magnitude
+                    }
+                } else if(b == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+                position++;
+            }
+            if(position == start) {
+                throw error("Expected a number");
+            }
+
+            if(position < limit && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+                position++;
+                exponent += parseInt();
+            }
+
+            double value = mantissa;
+            if(exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value /= POWERS_OF_TEN[-exponent];
+            } else if(exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                value *= POWERS_OF_TEN[exponent];
+            } else if(exponent != 0) {
+                value *= Math.pow(10, exponent);
+            }
+            return negative ? -value : value;
+        }
+
+        private void skipBlanks() {
+            while(position < limit && isBlank(buffer.get(position))) {
+                position++;
+            }
+        }
+
+        private void skipLine() {
+            while(position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+
+        private static boolean isBlank(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+}
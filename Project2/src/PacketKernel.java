@@ -0,0 +1,28 @@
+/**
+ * The loop that intersects every ray of a RayPacket with the spheres of a
+ * CompiledSphereScene. Every kernel uses the same quadratic as Sphere.hit,
+ * in the same order of operations, so all of them find exactly the same
+ * time and sphere for every lane.
+ *
+ * @author Brendan Van Allen
+ */
+public interface PacketKernel {
+
+    /**
+     * Finds the closest sphere hit by every ray of the packet. The time and
+     * index of each lane are set, with an index of -1 if no sphere was hit.
+     * Ties go to the sphere that comes first in the arrays.
+     *
+     * @param packet the rays to intersect
+     * @param centerX the x coordinate of the center of every sphere
+     * @param centerY the y coordinate of the center of every sphere
+     * @param centerZ the z coordinate of the center of every sphere
+     * @param radiusSquared the squared radius of every sphere
+     */
+    void hit(RayPacket packet, double[] centerX, double[] centerY, double[] centerZ, double[] radiusSquared);
+
+    /**
+     * @return a short description of the kernel, printed before a render with -packets
+     */
+    String getName();
+}
@@ -4,11 +4,15 @@ import javax.vecmath.Vector3d;
  * Ray is actually a viewing ray to be used to calculate
  * pixels values for an image.
  *
+ * Like ScratchRay, the ray counts the primitive intersection tests done
+ * with it, so RenderStats can report them for the object path too.
+ *
  * @author Brendan Van Allen
  */
 public class Ray {
     private Vector3d viewpoint;
     private Vector3d direction;
+    long tests; // Spheres and triangles tested against this ray so far
 
     public Ray(Vector3d viewpoint, Vector3d direction) {
         this.viewpoint = viewpoint;
@@ -0,0 +1,60 @@
+/**
+ * A small bundle of rays that are intersected together. Primary rays of
+ * neighbouring pixels are nearly parallel, so testing them as a packet
+ * loads each sphere once for all of the rays in the packet.
+ *
+ * Each ray occupies one lane of the parallel arrays. After
+ * CompiledSphereScene.hit(RayPacket) the time and index arrays hold the
+ * closest sphere hit of every lane.
+ *
+ * @author Brendan Van Allen
+ */
+public class RayPacket {
+    public static final int SIZE = 8;
+
+    double[] ox = new double[SIZE], oy = new double[SIZE], oz = new double[SIZE]; // Viewpoints
+    double[] dx = new double[SIZE], dy = new double[SIZE], dz = new double[SIZE]; // Directions
+    double[] dDotD = new double[SIZE]; // d . d of every direction
+    double[] time = new double[SIZE];
+    int[] index = new int[SIZE]; // Sphere that was hit, or -1
+    int count;
+    long tests; // Sphere tests of every lane so far, for RenderStats
+
+    /**
+     * Copies a ray into one lane of the packet.
+     *
+     * @param lane the lane to fill
+     * @param ray the ray to copy
+     */
+    public void set(int lane, ScratchRay ray) {
+        ox[lane] = ray.ox;
+        oy[lane] = ray.oy;
+        oz[lane] = ray.oz;
+        dx[lane] = ray.dx;
+        dy[lane] = ray.dy;
+        dz[lane] = ray.dz;
+    }
+
+    /**
+     * Copies one lane of the packet into a ray.
+     *
+     * @param lane the lane to copy
+     * @param ray the ray to fill
+     */
+    public void get(int lane, ScratchRay ray) {
+        ray.set(ox[lane], oy[lane], oz[lane], dx[lane], dy[lane], dz[lane]);
+    }
+
+    /**
+     * Sets how many lanes of the packet are in use.
+     *
+     * @param count the number of rays, at most SIZE
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/**
+ * A queue of rays stored as primitive arrays, one array per component,
+ * used by the WavefrontTracer. Every ray carries the pixel it contributes
+ * to and its weight, which is the fraction of its color that reaches the
+ * pixel, per channel.
+ *
+ * The queue grows as rays are added and is then reused for every batch,
+ * so tracing a tile doesn't allocate once the queues are large enough.
+ *
+ * @author Brendan Van Allen
+ */
+public class RayQueue {
+    private static final int MORTON_BITS = 10; // Bits of each coordinate in the sort key
+    private static final int INDEX_BITS = 30; // Bits of the ray index below the sort key
+
+    double[] ox, oy, oz; // Viewpoint
+    double[] dx, dy, dz; // Direction
+    double[] weightRed, weightGreen, weightBlue;
+    int[] pixel;
+    int count;
+
+    private long[] keys;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the number of rays it can hold before it grows
+     */
+    public RayQueue(int capacity) {
+        allocate(Math.max(capacity, 16));
+    }
+
+    /**
+     * Removes every ray from the queue.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a ray to the end of the queue.
+     */
+    public void add(double ox, double oy, double oz, double dx, double dy, double dz,
+                    double weightRed, double weightGreen, double weightBlue, int pixel) {
+        if(count == this.ox.length) {
+            grow();
+        }
+        this.ox[count] = ox;
+        this.oy[count] = oy;
+        this.oz[count] = oz;
+        this.dx[count] = dx;
+        this.dy[count] = dy;
+        this.dz[count] = dz;
+        this.weightRed[count] = weightRed;
+        this.weightGreen[count] = weightGreen;
+        this.weightBlue[count] = weightBlue;
+        this.pixel[count] = pixel;
+        count++;
+    }
+
+    /**
+     * Copies the rays of this queue into another one, sorted so that rays
+     * that go in the same direction and start close to each other are next
+     * to each other. The key is the octant of the direction followed by the
+     * Morton code of the viewpoint within the given bounds. Rays with the
+     * same key keep their order.
+     *
+     * @param bounds the box the viewpoints are quantized in, or null to sort by direction only
+     * @param sorted the queue to fill, cleared first
+     */
+    public void sortInto(BoundingBox bounds, RayQueue sorted) {
+        if(keys.length < count) {
+            keys = new long[ox.length];
+        }
+
+        double minX = 0, minY = 0, minZ = 0, scaleX = 0, scaleY = 0, scaleZ = 0;
+        if(bounds != null) {
+            int cells = 1 << MORTON_BITS;
+            minX = bounds.getMin().x;
+            minY = bounds.getMin().y;
+            minZ = bounds.getMin().z;
+            scaleX = cells / Math.max(bounds.getMax().x - minX, 1e-12);
+            scaleY = cells / Math.max(bounds.getMax().y - minY, 1e-12);
+            scaleZ = cells / Math.max(bounds.getMax().z - minZ, 1e-12);
+        }
+
+        // The index of each ray is kept in the low bits so the sort is stable
+        for(int k=0;k<count;k++) {
+            long octant = (dx[k] < 0 ? 4 : 0) | (dy[k] < 0 ? 2 : 0) | (dz[k] < 0 ? 1 : 0);
+            long morton = morton(quantize(ox[k], minX, scaleX), quantize(oy[k], minY, scaleY),
+                    quantize(oz[k], minZ, scaleZ));
+            keys[k] = (octant << 3*MORTON_BITS | morton) << INDEX_BITS | k;
+        }
+        Arrays.sort(keys, 0, count);
+
+        sorted.clear();
+        for(int k=0;k<count;k++) {
+            int r = (int) (keys[k] & ((1L << INDEX_BITS) - 1));
+            sorted.add(ox[r], oy[r], oz[r], dx[r], dy[r], dz[r], weightRed[r], weightGreen[r], weightBlue[r], pixel[r]);
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /*
+     * Helper method to map a coordinate to one of the cells along an axis
+     */
+    private static int quantize(double value, double min, double scale) {
+        int cell = (int) ((value - min) * scale);
+        return Math.max(0, Math.min(cell, (1 << MORTON_BITS) - 1));
+    }
+
+    /*
+     * Helper method to interleave the bits of three cell coordinates
+     */
+    private static long morton(int x, int y, int z) {
+        return spread(x) << 2 | spread(y) << 1 | spread(z);
+    }
+
+    /*
+     * Helper method to put two zero bits between each of the low 10 bits of a value
+     */
+    private static long spread(int value) {
+        long v = value & 0x3FF;
+        v = (v | (v << 16)) & 0x30000FFL;
+        v = (v | (v << 8)) & 0x300F00FL;
+        v = (v | (v << 4)) & 0x30C30C3L;
+        v = (v | (v << 2)) & 0x9249249L;
+        return v;
+    }
+
+    /*
+     * Helper method to double the capacity of every array
+     */
+    private void grow() {
+        int capacity = 2*ox.length;
+        ox = Arrays.copyOf(ox, capacity);
+        oy = Arrays.copyOf(oy, capacity);
+        oz = Arrays.copyOf(oz, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        dz = Arrays.copyOf(dz, capacity);
+        weightRed = Arrays.copyOf(weightRed, capacity);
+        weightGreen = Arrays.copyOf(weightGreen, capacity);
+        weightBlue = Arrays.copyOf(weightBlue, capacity);
+        pixel = Arrays.copyOf(pixel, capacity);
+    }
+
+    /*
+     * Helper method to create every array
+     */
+    private void allocate(int capacity) {
+        ox = new double[capacity];
+        oy = new double[capacity];
+        oz = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        dz = new double[capacity];
+        weightRed = new double[capacity];
+        weightGreen = new double[capacity];
+        weightBlue = new double[capacity];
+        pixel = new int[capacity];
+        keys = new long[capacity];
+    }
+}
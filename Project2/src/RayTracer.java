@@ -4,196 +4,877 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A rudimentary implementation of the Ray-Tracing algorithm
  * in Chapter 4 of Fundamentals of Computer Graphics.
  *
- * Outputs a PNG image with resolution = 1280x720 pixels
+ * Outputs a PNG image with the resolution of the Scene's Camera (1280x720 pixels by default)
  *
  * @author Brendan Van Allen
  */
 public class RayTracer {
-    public static final int WIDTH = 1280;
-    public static final int HEIGHT = 720;
-    public static final double L = -1.77778; //
-    public static final double R = 1.77778;  // View plane
-    public static final double B = -1.0; //   bounds
-    public static final double T = 1.0;  //
-    public static final int D = 1; // Distance from viewpoint to image plane
-    public static final Vector3d U = new Vector3d(1,0,0);
-    public static final Vector3d V = new Vector3d(0,1,0);
-    public static final Vector3d W = new Vector3d(0,0,1);
-    public static final Vector3d VIEWPOINT = new Vector3d(0,0,0);
-
     public static void main(String args[]) {
-        // Create the scene
-        Scene scene = createScene();
-        Group surfaces = scene.getSurfaces();
+        RenderOptions options = RenderOptions.parse(args);
+        if(options == null) {
+            System.out.println("Invalid input. Usage:");
+            System.out.println(RenderOptions.USAGE);
+            return;
+        }
+
+        // Create the scene, either the hard-coded one or one loaded from a scene file
+        Scene scene;
+        Object loadEvent = RenderEvents.beginPhase();
+        try {
+            if(options.getSceneFile() != null) {
+                long loadStart = System.nanoTime();
+                scene = SceneLoader.load(options.getSceneFile());
+                System.out.println("Loaded " + options.getSceneFile() + ": " + scene.getSurfaceCount()
+                        + " surfaces in " + (System.nanoTime() - loadStart) / 1000000 + " ms");
+            } else {
+                scene = createScene();
+            }
+
+            for(int k=0;k<options.getMeshFiles().size();k++) {
+                double[] placement = options.getMeshPlacements().get(k);
+                long loadStart = System.nanoTime();
+                TriangleMesh mesh = ObjLoader.load(options.getMeshFiles().get(k), new Material(10, Color.LIGHT_GRAY),
+                        placement[3], new Vector3d(placement[0], placement[1], placement[2]));
+                scene.add(mesh);
+                System.out.println("Loaded " + options.getMeshFiles().get(k) + ": " + mesh.getTriangleCount() + " triangles, "
+                        + mesh.getMemoryUsage() / 1024 + " KB in " + (System.nanoTime() - loadStart) / 1000000 + " ms");
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        RenderEvents.commitPhase(loadEvent, "load", -1);
+
+        // Compile the Light and Materials for the allocation-free shading path
+        scene.setShading(new ShadingTable(scene, options.getSpecularTolerance()));
+        if(options.getSpecularTolerance() > 0) {
+            System.out.println("Specular tables for " + scene.getShading().getMaterialCount()
+                    + " materials within " + options.getSpecularTolerance());
+        }
+
+        // Build the spatial structure the viewing rays are tested against
+        Object buildEvent = RenderEvents.beginPhase();
+        long buildStart = System.nanoTime();
+        Surface surfaces = options.createAccelerator(scene);
+        long buildNanos = System.nanoTime() - buildStart;
+        RenderEvents.commitPhase(buildEvent, "build", -1);
+        if(surfaces == scene.getCachedBVH()) {
+            System.out.println("Using the cached BVH with " + ((BVH) surfaces).getNodeCount() + " nodes");
+        } else if(surfaces instanceof BVH) {
+            System.out.println("Built BVH with " + ((BVH) surfaces).getNodeCount() + " nodes in "
+                    + buildNanos / 1000000 + " ms");
+        } else if(surfaces instanceof ScreenBins) {
+            ScreenBins bins = (ScreenBins) surfaces;
+            System.out.println("Binned " + scene.getSurfaceCount() + " surfaces into "
+                    + bins.getBinCount() + " tiles in " + buildNanos / 1000000 + " ms: "
+                    + String.format("%.1f", bins.getAverageCandidates()) + " per tile, "
+                    + bins.getEverywhereCount() + " in every tile");
+        } else if(surfaces instanceof CompiledSphereScene && options.isPackets()) {
+            System.out.println("Tracing packets of " + RayPacket.SIZE + " rays with "
+                    + CompiledSphereScene.getPacketKernel().getName());
+        } else if(options.isScalarPackets()) {
+            System.out.println("The Vector API is not available (add --add-modules jdk.incubator.vector),"
+                    + " so -packets traces one ray at a time with the scalar soa loop");
+        }
+
+        if(options.getCacheFile() != null) {
+            // The cache always holds a BVH, so loading it never has to build one
+            long cacheStart = System.nanoTime();
+            BVH bvh = sceneBVH(scene, surfaces);
+            try {
+                long bytes = SceneCache.write(scene, bvh, options.getCacheFile());
+                System.out.println("Wrote " + options.getCacheFile() + ": " + bytes / 1024 + " KB in "
+                        + (System.nanoTime() - cacheStart) / 1000000 + " ms");
+            } catch (IOException e) {
+                System.out.println(e);
+                return;
+            }
+        }
+
+        if(scene.getAnimation() != null) {
+            if(options.isStream() || options.isVerify()) {
+                System.out.println("Frame sequences are rendered whole, -stream and -verify are ignored");
+            }
+            renderSequence(scene, surfaces, options, buildNanos);
+            return;
+        }
+
+        if(options.isStream()) {
+            renderStreaming(scene, surfaces, options);
+            return;
+        }
 
         // The image we will manipulate
-        BufferedImage img = new BufferedImage(WIDTH,HEIGHT,BufferedImage.TYPE_INT_RGB);
-
-        // Iterate through each pixel left to right, then top to bottom
-        for(int j=HEIGHT-1;j>=0;j--) {
-            for(int i=0;i<WIDTH;i++) {
-                Ray viewRay = computeViewingRay(i,j);
-                HitRecord hit = surfaces.hit(viewRay);
-                // Determine if there was a hit
-                if(hit != null) {
-                    // evaluate shading model and set pixel to the resulting color
-                    img.setRGB(i,j, computeShading(scene, hit));
-                } else {
-                    // set pixel to the background color
-                    img.setRGB(i,j,scene.BACKGROUND_COLOR.getRGB());
+        int width = scene.getCamera().getWidth();
+        int height = scene.getCamera().getHeight();
+        BufferedImage img = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+        int[] pixels = new int[width*height];
+        HdrFramebuffer hdr = options.isHdr() ? new HdrFramebuffer(width, height) : null;
+        Object traceEvent = RenderEvents.beginPhase();
+        long renderStart = System.nanoTime();
+
+        if(options.getWorkers() > 0) {
+            long start = System.nanoTime();
+            int workers;
+
+            // The workers get the BVH with the Scene, so none of them has to build one
+            try {
+                BVH bvh = sceneBVH(scene, surfaces);
+                RenderCoordinator coordinator = new RenderCoordinator(scene, bvh, options);
+                workers = coordinator.getWorkerCount();
+                System.out.println("Started " + workers + " workers in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                List<Tile> tiles = options.createScheduler(scene, surfaces).schedule(width, 0, height, options.getTileSize());
+                try {
+                    coordinator.render(tiles, pixels, width);
+                } finally {
+                    coordinator.shutdown();
                 }
+                coordinator.printReport();
+            } catch (IOException e) {
+                System.err.println(e);
+                return;
+            }
+
+            System.out.println("Rendered " + width*height + " pixels on " + workers + " workers in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } else if(options.isParallel()) {
+            long start = System.nanoTime();
+
+            // Split the image into tiles and render them on all threads
+            TileScheduler scheduler = options.createScheduler(scene, surfaces);
+            List<Tile> tiles = scheduler.schedule(width, 0, height, options.getTileSize());
+            TileRenderer renderer = new TileRenderer(scene, surfaces, options);
+            if(hdr != null) {
+                renderer.render(tiles, hdr);
+            } else {
+                renderer.render(tiles, pixels, width);
             }
+            renderer.shutdown();
+
+            System.out.println("Rendered " + tiles.size() + " tiles on " + options.getThreads()
+                    + " threads (" + options.getScheduler() + ") in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } else {
+            traceImage(scene, surfaces, options, pixels, hdr);
+        }
+        long renderNanos = System.nanoTime() - renderStart;
+        RenderEvents.commitPhase(traceEvent, "trace", -1);
+        if(hdr != null) {
+            toneMap(hdr, pixels, options, -1);
+        }
+        img.setRGB(0, 0, width, height, pixels, 0, width);
+        RenderStats stats = RenderStats.collect();
+        printStats(options, stats, renderNanos);
+        writeHeatmap(options, stats, width, height);
+
+        if(options.isVerify()) {
+            // Compare against the original path: one thread, a linear scan and a HitRecord per ray, with exact specular terms
+            ShadingTable shading = scene.getShading();
+            scene.setShading(new ShadingTable(scene, 0));
+            int differences = 0;
+            for(int j=0;j<height;j++) {
+                for(int i=0;i<width;i++) {
+                    if(pixels[j*width + i] != tracePixel(scene, scene.getSurfaces(), i, j, options.isShadows())) {
+                        differences++;
+                    }
+                }
+            }
+            System.out.println("Verify: " + differences + " of " + pixels.length + " pixels differ from the reference render");
+            scene.setShading(shading);
         }
 
         // All pixels are set, now we just need to write the image to a file
+        Object encodeEvent = RenderEvents.beginPhase();
         try {
             File file = new File("Scene.png");
             ImageIO.write(img, "png", file);
         } catch (IOException e) {
             System.out.println(e);
         }
+        RenderEvents.commitPhase(encodeEvent, "encode", -1);
 
     }
 
     /*
-     * Helper method to compute the viewing ray for each pixel
+     * Helper method to get a BVH over the Surfaces of the Scene: the accelerator if it is one, else the
+     * cached one, else a new one
      */
-    private static Ray computeViewingRay(int i, int j) {
-        double u = L + (R - L)*(i + 0.5)/WIDTH;
-        double v = B + (T - B)*(j + 0.5)/HEIGHT;
-
-        // -d * W
-        Vector3d d1 = new Vector3d(W);
-        d1.scale(-D);
-
-        // u * U
-        Vector3d d2 = new Vector3d(U);
-        d2.scale(u);
+    private static BVH sceneBVH(Scene scene, Surface surfaces) {
+        if(surfaces instanceof BVH) {
+            return (BVH) surfaces;
+        }
+        return scene.getCachedBVH() != null ? scene.getCachedBVH() : new BVH(scene.getSurfaces().getSurfaces());
+    }
 
-        // v * V
-        Vector3d d3 = new Vector3d(V);
-        d3.scale(v);
+    /*
+     * Traces the whole image on the calling thread, into hdr if it isn't null
+     */
+    private static void traceImage(Scene scene, Surface surfaces, RenderOptions options, int[] pixels, HdrFramebuffer hdr) {
+        int width = scene.getCamera().getWidth();
+        int height = scene.getCamera().getHeight();
+        TraceContext context = TraceContext.current();
+
+        if(hdr != null) {
+            if(options.isAdaptive()) {
+                AdaptiveSampler.traceTile(scene, surfaces, 0, 0, width, height, hdr, options, context);
+            } else if(options.isWavefront()) {
+                new WavefrontTracer(scene, surfaces, options).traceTile(0, 0, width, height, hdr, context);
+            } else {
+                for(int j=height-1;j>=0;j--) {
+                    traceRow(scene, surfaces, j, 0, width, hdr, options, context);
+                }
+            }
+        } else if(options.isAdaptive()) {
+            AdaptiveSampler.traceTile(scene, surfaces, 0, 0, width, height, pixels, 0, width, options, context);
+        } else if(options.isWavefront()) {
+            // The whole image is one wavefront
+            new WavefrontTracer(scene, surfaces, options).traceTile(0, 0, width, height, pixels, 0, width, context);
+        } else {
+            // Iterate through each row top to bottom, each row is traced left to right
+            for(int j=height-1;j>=0;j--) {
+                traceRow(scene, surfaces, j, 0, width, pixels, j*width, options, context);
+            }
+        }
+    }
 
-        // Add them all up for the final direction
-        Vector3d direction = new Vector3d(d1);
-        direction.add(d2);
-        direction.add(d3);
+    /*
+     * Tone maps the HDR framebuffer into the pixels and writes it to the -pfm file
+     */
+    private static void toneMap(HdrFramebuffer hdr, int[] pixels, RenderOptions options, int frame) {
+        Object event = RenderEvents.beginPhase();
+        long start = System.nanoTime();
+        hdr.toneMap(pixels, options.getToneMap(), options.getExposure(), options.getThreads());
+        RenderEvents.commitPhase(event, "tonemap", frame);
+        if(frame <= 0) {
+            System.out.println("Tone mapped " + hdr.getMemoryUsage() / 1024 + " KB of off-heap HDR pixels ("
+                    + options.getToneMap() + ", " + options.getExposure() + " stops) in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
 
-        return new Ray(VIEWPOINT,direction);
+        if(options.getPfmFile() != null) {
+            String fileName = frame < 0 ? options.getPfmFile()
+                    : options.getPfmFile().replaceFirst("(?i)\\.pfm$", String.format("%04d.pfm", frame));
+            try {
+                hdr.writePfm(fileName);
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
     }
 
     /*
-     * Hard-coded scene
+     * Renders every frame of the Scene's Animation into numbered PNG files. The Surfaces
+     * are refit to each frame instead of built again, and each frame is encoded in the
+     * background while the next one is traced. With -workers the workers are sent the
+     * Scene and its Animation once, and then told which frame to render each time
      */
-    private static Scene createScene() {
-        Light lightSource = new Light(new Vector3d(0,-4,2), Color.WHITE);
-        Scene scene = new Scene(lightSource);
+    private static void renderSequence(Scene scene, Surface surfaces, RenderOptions options, long buildNanos) {
+        Animation animation = scene.getAnimation();
+        int width = scene.getCamera().getWidth();
+        int height = scene.getCamera().getHeight();
+        RenderCoordinator coordinator = null;
+        if(options.getWorkers() > 0) {
+            long start = System.nanoTime();
+            try {
+                coordinator = new RenderCoordinator(scene, sceneBVH(scene, surfaces), options);
+            } catch (IOException e) {
+                System.err.println(e);
+                return;
+            }
+            System.out.println("Started " + coordinator.getWorkerCount() + " workers in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+        TileRenderer renderer = options.isParallel() && coordinator == null ? new TileRenderer(scene, surfaces, options) : null;
+        List<Tile> tiles = options.createScheduler(scene, surfaces).schedule(width, 0, height, options.getTileSize());
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+
+        // Frame n is traced into buffer n % 2 while frame n - 1 is encoded from the other one
+        int[][] buffers = {new int[width*height], new int[width*height]};
+        HdrFramebuffer hdr = options.isHdr() ? new HdrFramebuffer(width, height) : null;
+        long[] animateNanos = new long[animation.getFrameCount()];
+        long[] refitNanos = new long[animation.getFrameCount()];
+        long[] traceNanos = new long[animation.getFrameCount()];
+        Future<Long> encoding = null;
+        long start = System.nanoTime();
 
-        scene.add(new Sphere(new Vector3d(0,0,-2),.5, new Material(1,Color.RED)));
-        scene.add(new Sphere(new Vector3d(1,0,-3),.5, new Material(10,Color.MAGENTA)));
-        scene.add(new Sphere(new Vector3d(0,-1,-3), .5, new Material(100, Color.DARK_GRAY)));
-        scene.add(new Sphere(new Vector3d(-1,0,-3), .5, new Material(1000, Color.BLUE)));
+        try {
+            for(int frame=0;frame<animation.getFrameCount();frame++) {
+                Object event = RenderEvents.beginPhase();
+                long animateStart = System.nanoTime();
+                animation.apply(scene, frame);
+                scene.setShading(new ShadingTable(scene, options.getSpecularTolerance()));
+                animateNanos[frame] = System.nanoTime() - animateStart;
+                RenderEvents.commitPhase(event, "animate", frame);
+
+                event = RenderEvents.beginPhase();
+                long refitStart = System.nanoTime();
+                Animation.refit(surfaces);
+                refitNanos[frame] = System.nanoTime() - refitStart;
+                RenderEvents.commitPhase(event, "refit", frame);
+
+                event = RenderEvents.beginPhase();
+                long traceStart = System.nanoTime();
+                int[] pixels = buffers[frame % 2];
+                if(hdr != null) {
+                    hdr.clear();
+                }
+                if(renderer != null && hdr != null) {
+                    renderer.render(tiles, hdr);
+                } else if(renderer != null) {
+                    renderer.render(tiles, pixels, width);
+                } else if(coordinator != null) {
+                    coordinator.render(tiles, frame, pixels, width);
+                } else {
+                    traceImage(scene, surfaces, options, pixels, hdr);
+                }
+                traceNanos[frame] = System.nanoTime() - traceStart;
+                RenderEvents.commitPhase(event, "trace", frame);
+                if(hdr != null) {
+                    toneMap(hdr, pixels, options, frame);
+                }
 
-        return scene;
+                if(encoding != null) {
+                    printFrame(frame - 1, animateNanos, refitNanos, traceNanos, encoding.get());
+                }
+                encoding = encoder.submit(encodeFrame(pixels, width, height, frame));
+            }
+            printFrame(animation.getFrameCount() - 1, animateNanos, refitNanos, traceNanos, encoding.get());
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println(e);
+            return;
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        } finally {
+            encoder.shutdown();
+            if(renderer != null) {
+                renderer.shutdown();
+            }
+            if(coordinator != null) {
+                coordinator.shutdown();
+            }
+        }
+        if(coordinator != null) {
+            coordinator.printReport();
+        }
+
+        long refitTotal = 0;
+        long traceTotal = 0;
+        for(int frame=0;frame<animation.getFrameCount();frame++) {
+            refitTotal += refitNanos[frame];
+            traceTotal += traceNanos[frame];
+        }
+        System.out.println("Rendered " + animation.getFrameCount() + " frames in " + (System.nanoTime() - start) / 1000000
+                + " ms, refitting took " + String.format("%.3f", refitTotal / 1e6 / animation.getFrameCount())
+                + " ms per frame, building took " + String.format("%.3f", buildNanos / 1e6) + " ms");
+        RenderStats stats = RenderStats.collect();
+        printStats(options, stats, traceTotal);
+        writeHeatmap(options, stats, width, height);
     }
 
     /*
-     * Computes the RGB color value for the current pixel
+     * Helper method to create the task that writes one frame of a sequence to a numbered PNG file
      */
-    private static int computeShading(Scene scene, HitRecord hit) {
-        //L = ka Ia + kd I max(0, n · l) + ks I max(0, n · h)^n
+    private static Callable<Long> encodeFrame(int[] pixels, int width, int height, int frame) {
+        return () -> {
+            Object event = RenderEvents.beginPhase();
+            long start = System.nanoTime();
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            img.setRGB(0, 0, width, height, pixels, 0, width);
+            ImageIO.write(img, "png", new File(String.format("Scene%04d.png", frame)));
+            RenderEvents.commitPhase(event, "encode", frame);
+            return System.nanoTime() - start;
+        };
+    }
 
-        // First, we need to compute light vector l
-        // Copy the light position vector so we don't change its state
-        Vector3d l = new Vector3d(scene.getLightSource().getPosition());
+    /*
+     * Prints the timings of one frame of a sequence
+     */
+    private static void printFrame(int frame, long[] animateNanos, long[] refitNanos, long[] traceNanos, long encodeNanos) {
+        System.out.println("Frame " + frame + ": animate " + String.format("%.3f", animateNanos[frame] / 1e6)
+                + " ms, refit " + String.format("%.3f", refitNanos[frame] / 1e6) + " ms, trace "
+                + traceNanos[frame] / 1000000 + " ms, encode " + encodeNanos / 1000000 + " ms (overlapped)");
+    }
+
+    /*
+     * Renders the image in bands of scanlines and streams each finished band
+     * into the PNG file, so the whole image is never held in memory
+     */
+    private static void renderStreaming(Scene scene, Surface surfaces, RenderOptions options) {
+        int width = scene.getCamera().getWidth();
+        int height = scene.getCamera().getHeight();
+        long start = System.nanoTime();
+        TileRenderer renderer = options.isParallel() ? new TileRenderer(scene, surfaces, options) : null;
+        TileScheduler scheduler = options.createScheduler(scene, surfaces);
+        TraceContext context = TraceContext.current();
+        WavefrontTracer wavefront = options.isWavefront() ? new WavefrontTracer(scene, surfaces, options) : null;
+        Object event = RenderEvents.beginPhase();
 
-        // To get the actual light vector, we need the difference of the intersection point and light position
-        l.sub(hit.getPoint());
+        try {
+            StreamingPngWriter writer = new StreamingPngWriter("Scene.png", width, height, options.getThreads());
+            for(int y=0;y<height;y+=options.getBandHeight()) {
+                int rows = Math.min(options.getBandHeight(), height - y);
+                int[] band = new int[width*rows];
+                if(renderer != null) {
+                    renderer.render(scheduler.schedule(width, y, rows, options.getTileSize()), band, width, y);
+                } else if(options.isAdaptive()) {
+                    AdaptiveSampler.traceTile(scene, surfaces, 0, y, width, rows, band, 0, width, options, context);
+                } else if(wavefront != null) {
+                    wavefront.traceTile(0, y, width, rows, band, 0, width, context);
+                } else {
+                    for(int j=y;j<y+rows;j++) {
+                        traceRow(scene, surfaces, j, 0, width, band, (j - y)*width, options, context);
+                    }
+                }
 
-        // Must be a unit vector
-        l.normalize();
+                // The band is deflated in the background while the next one is traced
+                writer.addBand(band, rows);
+            }
+            RenderEvents.commitPhase(event, "trace", -1);
 
-        // Next, compute the view vector v in the same fashion
-        // This vector is named h because it will become the halfway vector in the next step
-        Vector3d h = new Vector3d(VIEWPOINT);
-        h.sub(hit.getPoint());
-        h.normalize();
+            event = RenderEvents.beginPhase();
+            writer.finish();
+            RenderEvents.commitPhase(event, "encode", -1);
+        } catch (IOException e) {
+            System.out.println(e);
+        } finally {
+            if(renderer != null) {
+                renderer.shutdown();
+            }
+        }
 
-        // Now we can compute the halfway vector h
-        h.add(l);
-        h.normalize();
+        long renderNanos = System.nanoTime() - start;
+        System.out.println("Streamed " + height + " rows in bands of " + options.getBandHeight() + " in "
+                + renderNanos / 1000000 + " ms");
+        RenderStats stats = RenderStats.collect();
+        printStats(options, stats, renderNanos);
+        writeHeatmap(options, stats, width, height);
+    }
 
-        Vector3d normal = hit.getNormal(); // No need to make a copy since we are only computing dot products
+    /*
+     * Prints the counters collected from the render threads
+     */
+    private static void printStats(RenderOptions options, RenderStats stats, long renderNanos) {
+        if(options.getWorkers() > 0) {
+            return; // The counters of the workers stay in their own processes
+        }
+        double seconds = renderNanos / 1e9;
+        System.out.println("Rays: " + stats.getPrimaryRays() + " primary (" + stats.getPrimaryHits() + " hits, "
+                + stats.getPrimaryMisses() + " misses), " + stats.getSecondaryRays() + " secondary ("
+                + stats.getSecondaryHits() + " hits, " + stats.getSecondaryMisses() + " misses), "
+                + stats.getShadowRays() + " shadow in " + renderNanos / 1000000 + " ms, "
+                + String.format("%.3f", seconds > 0 ? stats.getRays() / seconds / 1e6 : 0) + " Mrays/s");
+        if(stats.getIntersectionTests() + stats.getShadowTests() > 0) {
+            long rays = stats.getPrimaryRays() + stats.getSecondaryRays();
+            System.out.println("Intersection tests: " + stats.getIntersectionTests() + " ("
+                    + String.format("%.2f", rays > 0 ? (double) stats.getIntersectionTests() / rays : 0)
+                    + " per ray), " + stats.getShadowTests() + " for shadow rays");
+        }
+        List<TileTime> tileTimes = stats.getTileTimes();
+        if(!tileTimes.isEmpty()) {
+            long total = 0;
+            TileTime slowest = tileTimes.get(0);
+            for(TileTime time : tileTimes) {
+                total += time.getNanos();
+                if(time.getNanos() > slowest.getNanos()) {
+                    slowest = time;
+                }
+            }
+            System.out.println("Tiles: " + tileTimes.size() + " traced, " + String.format("%.3f", total / 1e6 / tileTimes.size())
+                    + " ms on average, slowest " + String.format("%.3f", slowest.getNanos() / 1e6) + " ms at ("
+                    + slowest.getTile().getX() + ", " + slowest.getTile().getY() + ")");
+        }
+        if(options.isShadows()) {
+            System.out.println("Shadow rays: " + stats.getShadowRays() + " tested, " + stats.getShadowsOccluded()
+                    + " occluded, " + stats.getShadowCacheHits() + " answered by the last occluder");
+        }
+        if(options.isAdaptive()) {
+            System.out.println("Adaptive sampling: " + stats.getSamples() + " samples for " + stats.getSampledPixels()
+                    + " pixels (" + String.format("%.3f", stats.getSamplesPerPixel()) + " per pixel), "
+                    + stats.getRefinedPixels() + " pixels refined");
+        }
+        if(options.isWavefront()) {
+            StringBuilder bounces = new StringBuilder();
+            long[] rays = stats.getBounceRays();
+            for(int k=0;k<rays.length;k++) {
+                bounces.append(k == 0 ? "" : ", ").append(rays[k]);
+            }
+            System.out.println("Wavefront rays per bounce: " + bounces);
+        }
+    }
 
-        double[] diffuseCo = { // The diffuse coefficients for R, G, and B normalized to [0,1]
-                ((Sphere) hit.getSurface()).getMaterial().getColor().getRed() / 255.0,
-                ((Sphere) hit.getSurface()).getMaterial().getColor().getGreen() / 255.0,
-                ((Sphere) hit.getSurface()).getMaterial().getColor().getBlue() /  255.0
-        };
+    /*
+     * Draws the time spent on every Tile into the file given with -heatmap
+     */
+    private static void writeHeatmap(RenderOptions options, RenderStats stats, int width, int height) {
+        if(options.getHeatmapFile() == null) {
+            return;
+        }
+        try {
+            double max = TileHeatmap.write(stats.getTileTimes(), width, height, options.getHeatmapFile());
+            System.out.println("Wrote " + options.getHeatmapFile() + ", most expensive tile "
+                    + String.format("%.1f", max) + " ns per pixel");
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
 
-        // From the textbook, the specular color will be gray
-        double[] specularCo = { // The specular coefficients for R, G, B normalized to [0,1]
-                Color.GRAY.getRed() / 255.0,
-                Color.GRAY.getGreen() / 255.0,
-                Color.GRAY.getBlue() / 255.0
-        };
+    /**
+     * Computes the RGB value of a single pixel by tracing a viewing ray through it.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing ray is tested against
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @param shadows true to leave points that can't see the Light with only ambient light
+     * @return the RGB value of the pixel
+     */
+    static int tracePixel(Scene scene, Surface surfaces, int i, int j, boolean shadows) {
+        TraceContext context = TraceContext.current();
+        context.primaryRays++;
+        Ray viewRay = scene.getCamera().computeViewingRay(i,j);
+        HitRecord hit = surfaces.hit(viewRay);
+        context.getRay().tests += viewRay.tests;
+        // Determine if there was a hit
+        if(hit != null) {
+            context.primaryHits++;
+            // evaluate shading model and set pixel to the resulting color
+            Vector3d p = hit.getPoint();
+            return computeShading(scene, hit, shadows && inShadow(scene, surfaces, p.x, p.y, p.z, context));
+        } else {
+            // set pixel to the background color
+            return scene.BACKGROUND_COLOR.getRGB();
+        }
+    }
 
-        // From the textbook, surface ambient color can be set to the diffuse color
-        double[] ambientCo = diffuseCo;
+    /**
+     * Computes the RGB values of a run of pixels in one row, using the
+     * render path selected by the options.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing rays are tested against
+     * @param j the row of the pixels
+     * @param from the column of the first pixel
+     * @param to the column after the last pixel
+     * @param out the array the RGB values are written to
+     * @param offset the index in out of the pixel in column from
+     * @param options the render options
+     * @param context the TraceContext of the calling thread
+     */
+    static void traceRow(Scene scene, Surface surfaces, int j, int from, int to, int[] out, int offset,
+                         RenderOptions options, TraceContext context) {
+        if(options.isPackets() && surfaces instanceof CompiledSphereScene) {
+            for(int i=from;i<to;i+=RayPacket.SIZE) {
+                tracePacket(scene, (CompiledSphereScene) surfaces, i, j, Math.min(RayPacket.SIZE, to - i),
+                        out, offset + i - from, options.isShadows(), context);
+            }
+        } else if(options.isScratch()) {
+            for(int i=from;i<to;i++) {
+                out[offset + i - from] = tracePixel(scene, surfaces, i, j, options.isShadows(), context);
+            }
+        } else {
+            for(int i=from;i<to;i++) {
+                out[offset + i - from] = tracePixel(scene, surfaces, i, j, options.isShadows());
+            }
+        }
+    }
 
-        // Separate the light color into its RGB values, normalized to [0,1]
-        double[] lightColor = {
-                scene.getLightSource().getColor().getRed() / 255.0,
-                scene.getLightSource().getColor().getGreen() / 255.0,
-                scene.getLightSource().getColor().getBlue() / 255.0
-        };
+    /**
+     * Adds the linear colors of a run of pixels in one row to an HdrFramebuffer,
+     * traced with the allocation-free path.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing rays are tested against
+     * @param j the row of the pixels
+     * @param from the column of the first pixel
+     * @param to the column after the last pixel
+     * @param hdr the framebuffer the colors are added to
+     * @param options the render options
+     * @param context the TraceContext of the calling thread
+     */
+    static void traceRow(Scene scene, Surface surfaces, int j, int from, int to, HdrFramebuffer hdr,
+                         RenderOptions options, TraceContext context) {
+        for(int i=from;i<to;i++) {
+            traceSample(scene, surfaces, i + 0.5, j + 0.5, options.isShadows(), context);
+            double[] rgb = sampleRadiance(scene, context);
+            hdr.add(i, j, rgb[0], rgb[1], rgb[2], 1);
+        }
+    }
 
-        int phongExp = ((Sphere) hit.getSurface()).getMaterial().getShininess();
+    /**
+     * Traces up to RayPacket.SIZE neighbouring pixels of a row as one packet.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the compiled Surfaces of the Scene
+     * @param i the column of the first pixel
+     * @param j the row of the pixels
+     * @param count the number of pixels
+     * @param out the array the RGB values are written to
+     * @param offset the index in out of the first pixel
+     * @param shadows true to leave points that can't see the Light with only ambient light
+     * @param context the TraceContext of the calling thread
+     */
+    static void tracePacket(Scene scene, CompiledSphereScene surfaces, int i, int j, int count,
+                            int[] out, int offset, boolean shadows, TraceContext context) {
+        ScratchRay viewRay = context.getRay();
+        ScratchHit hit = context.getHit();
+        RayPacket packet = context.getPacket();
+        Camera camera = scene.getCamera();
+
+        for(int lane=0;lane<count;lane++) {
+            camera.computeViewingRay(i + lane, j, viewRay);
+            packet.set(lane, viewRay);
+        }
+        packet.setCount(count);
+        surfaces.hit(packet);
+        context.primaryRays += count;
+
+        for(int lane=0;lane<count;lane++) {
+            if(surfaces.finish(packet, lane, viewRay, hit)) {
+                context.primaryHits++;
+                out[offset + lane] = computeShading(scene, hit,
+                        shadows && inShadow(scene, surfaces, hit.px, hit.py, hit.pz, context));
+            } else {
+                out[offset + lane] = scene.BACKGROUND_COLOR.getRGB();
+            }
+        }
+    }
 
-        // Now we are ready to compute the final values for RGB
-        // Red
-        double red = ((ambientCo[0] * lightColor[0]) // ambient
-                + (diffuseCo[0] * lightColor[0] * Math.max(0, normal.dot(l))) // diffuse
-                + (specularCo[0] * lightColor[0] * Math.pow(Math.max(0, normal.dot(h)), phongExp))); // specular
-        // Green
-        double green = ((ambientCo[1] * lightColor[1]) // ambient
-                + (diffuseCo[1] * lightColor[1] * Math.max(0, normal.dot(l))) // diffuse
-                + (specularCo[1] * lightColor[1] * Math.pow(Math.max(0, normal.dot(h)), phongExp))); // specular
-        // Blue
-        double blue = ((ambientCo[2] * lightColor[2]) // ambient
-                + (diffuseCo[2] * lightColor[2] * Math.max(0, normal.dot(l))) // diffuse
-                + (specularCo[2] * lightColor[2] * Math.pow(Math.max(0, normal.dot(h)), phongExp))); // specular
+    /**
+     * Allocation-free version of tracePixel. Uses the scratch ray and hit
+     * record of the given TraceContext and returns the same RGB value.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing ray is tested against
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @param shadows true to leave points that can't see the Light with only ambient light
+     * @param context the TraceContext of the calling thread
+     * @return the RGB value of the pixel
+     */
+    static int tracePixel(Scene scene, Surface surfaces, int i, int j, boolean shadows, TraceContext context) {
+        return traceSample(scene, surfaces, i + 0.5, j + 0.5, shadows, context);
+    }
 
-        // Denormalize the colors into the range [0,255]
-        red *= 255;
-        green *= 255;
-        blue *= 255;
+    /**
+     * Computes the RGB value seen through any point of the image with the
+     * allocation-free path. The Surface that was hit (null for the
+     * background) is left in the TraceContext as its sample Surface.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the viewing ray is tested against
+     * @param x the horizontal image coordinate, column i covers [i, i+1)
+     * @param y the vertical image coordinate, row j covers [j, j+1)
+     * @param shadows true to leave points that can't see the Light with only ambient light
+     * @param context the TraceContext of the calling thread
+     * @return the RGB value of the sample
+     */
+    static int traceSample(Scene scene, Surface surfaces, double x, double y, boolean shadows, TraceContext context) {
+        ScratchRay viewRay = context.getRay();
+        ScratchHit hit = context.getHit();
+        scene.getCamera().computeViewingRay(x, y, viewRay);
+        context.primaryRays++;
+        if(surfaces.hit(viewRay, hit)) {
+            context.primaryHits++;
+            context.setSampleSurface(hit.getSurface());
+            return computeShading(scene, hit, shadows && inShadow(scene, surfaces, hit.px, hit.py, hit.pz, context));
+        } else {
+            context.setSampleSurface(null);
+            return scene.BACKGROUND_COLOR.getRGB();
+        }
+    }
 
-        // Cap the RGB values at 255 so Color doesn't  yell at us
-        if(red > 255) {
-            red = 255;
+    /**
+     * Gets the linear color of the last sample traced by traceSample on this
+     * thread, before it was clamped and converted to [0,255].
+     *
+     * @param scene the Scene being rendered
+     * @param context the TraceContext of the calling thread
+     * @return the red, green and blue of the sample, in the rgb array of the context's hit record
+     */
+    static double[] sampleRadiance(Scene scene, TraceContext context) {
+        double[] rgb = context.getHit().rgb;
+        if(context.getSampleSurface() == null) {
+            Color background = scene.BACKGROUND_COLOR;
+            rgb[0] = background.getRed() / 255.0;
+            rgb[1] = background.getGreen() / 255.0;
+            rgb[2] = background.getBlue() / 255.0;
         }
-        if(green > 255) {
-            green = 255;
+        return rgb;
+    }
+
+    /**
+     * Casts a shadow ray from a point towards the Light. The last Surface that
+     * blocked a shadow ray on this thread is tested first, before the whole scene.
+     *
+     * @param scene the Scene being rendered
+     * @param surfaces the Surfaces the shadow ray is tested against
+     * @param px x coordinate of the point
+     * @param py y coordinate of the point
+     * @param pz z coordinate of the point
+     * @param context the TraceContext of the calling thread
+     * @return true if a Surface blocks the Light
+     */
+    static boolean inShadow(Scene scene, Surface surfaces, double px, double py, double pz, TraceContext context) {
+        // d = light - p, so the ray reaches the Light at t = 1
+        Vector3d light = scene.getLightSource().getPosition();
+        ScratchRay shadowRay = context.getShadowRay();
+        ScratchHit shadowHit = context.getShadowHit();
+        shadowRay.set(px, py, pz, light.x - px, light.y - py, light.z - pz);
+        context.shadowRays++;
+
+        Surface last = context.getLastOccluder();
+        if(last != null && last.occluded(shadowRay, 1, shadowHit)) {
+            context.shadowCacheHits++;
+            context.shadowsOccluded++;
+            return true;
         }
-        if(blue > 255) {
-            blue = 255;
+        if(surfaces.occluded(shadowRay, 1, shadowHit)) {
+            context.setLastOccluder(shadowHit.getSurface());
+            context.shadowsOccluded++;
+            return true;
         }
+        return false;
+    }
+
+    /*
+     * Hard-coded scene
+     */
+    private static Scene createScene() {
+        Light lightSource = new Light(new Vector3d(0,-4,2), Color.WHITE);
+        Scene scene = new Scene(lightSource);
+
+        scene.add(new Sphere(new Vector3d(0,0,-2),.5, new Material(1,Color.RED)));
+        scene.add(new Sphere(new Vector3d(1,0,-3),.5, new Material(10,Color.MAGENTA)));
+        scene.add(new Sphere(new Vector3d(0,-1,-3), .5, new Material(100, Color.DARK_GRAY)));
+        scene.add(new Sphere(new Vector3d(-1,0,-3), .5, new Material(1000, Color.BLUE)));
 
-        // Convert these to int values
-        int redInt = (int) Math.round(red);
-        int greenInt = (int) Math.round(green);
-        int blueInt = (int) Math.round(blue);
+        return scene;
+    }
 
-        // Now we just need to compute the final color
-        Color color = new Color(redInt, greenInt, blueInt);
+    /**
+     * Computes the RGB color value for the current pixel, with only ambient
+     * light if it is in shadow. The hit is copied into the scratch record of
+     * the thread, so it is shaded with the compiled ShadingTable exactly like
+     * the allocation-free path.
+     *
+     * @param scene the Scene being rendered
+     * @param hit the intersection to shade
+     * @param inShadow true to leave only ambient light
+     * @return the color as a packed ARGB int
+     */
+    public static int computeShading(Scene scene, HitRecord hit, boolean inShadow) {
+        ScratchHit rec = TraceContext.current().getHit();
+        Vector3d p = hit.getPoint();
+        Vector3d n = hit.getNormal();
+        rec.time = hit.getTime();
+        rec.px = p.x;
+        rec.py = p.y;
+        rec.pz = p.z;
+        rec.nx = n.x;
+        rec.ny = n.y;
+        rec.nz = n.z;
+        rec.surface = hit.getSurface();
+        return computeShading(scene, rec, inShadow);
+    }
+
+    /*
+     * Allocation-free version of computeShading. Evaluates the same shading model with the
+     * Scene's compiled LightRecord and the MaterialRecord of the hit Surface
+     */
+    private static int computeShading(Scene scene, ScratchHit hit, boolean inShadow) {
+        double[] rgb = hit.rgb;
+        Vector3d viewpoint = scene.getCamera().getViewpoint();
+        shade(scene, hit, viewpoint.x, viewpoint.y, viewpoint.z, inShadow, rgb);
 
-        return color.getRGB();
+        // Same packing as Color.getRGB(), without creating the Color
+        return 0xFF000000 | (toChannel(rgb[0]) << 16) | (toChannel(rgb[1]) << 8) | toChannel(rgb[2]);
     }
 
+    /**
+     * Evaluates the shading model of the allocation-free path, before the
+     * channels are converted to [0,255]. Each channel is in [0,1] unless
+     * the specular highlight saturates it.
+     *
+     * @param scene the Scene being rendered
+     * @param hit the intersection to shade
+     * @param ex x coordinate of the point it is seen from
+     * @param ey y coordinate of the point it is seen from
+     * @param ez z coordinate of the point it is seen from
+     * @param inShadow true to leave only ambient light
+     * @param rgb the red, green and blue values are written to its first three entries
+     */
+    static void shade(Scene scene, ScratchHit hit, double ex, double ey, double ez, boolean inShadow, double[] rgb) {
+        //L = ka Ia + kd I max(0, n . l) + ks I max(0, n . h)^n
+        ShadingTable shading = scene.getShading();
+        LightRecord light = shading.getLight();
+        MaterialRecord material = shading.get(hit.getSurface().getMaterial());
+
+        // Light vector l
+        double lx = light.getX() - hit.px;
+        double ly = light.getY() - hit.py;
+        double lz = light.getZ() - hit.pz;
+        double norm = 1.0 / Math.sqrt(lx*lx + ly*ly + lz*lz);
+        lx *= norm;
+        ly *= norm;
+        lz *= norm;
+
+        // View vector, then the halfway vector h
+        double hx = ex - hit.px;
+        double hy = ey - hit.py;
+        double hz = ez - hit.pz;
+        norm = 1.0 / Math.sqrt(hx*hx + hy*hy + hz*hz);
+        hx = hx * norm + lx;
+        hy = hy * norm + ly;
+        hz = hz * norm + lz;
+        norm = 1.0 / Math.sqrt(hx*hx + hy*hy + hz*hz);
+        hx *= norm;
+        hy *= norm;
+        hz *= norm;
+
+        // The Blinn-Phong terms are the same for all three channels
+        double nDotL = inShadow ? 0 : Math.max(0, hit.nx*lx + hit.ny*ly + hit.nz*lz);
+        double specular = inShadow ? 0 : material.specular(Math.max(0, hit.nx*hx + hit.ny*hy + hit.nz*hz));
+
+        rgb[0] = shadeChannel(material.getDiffuseRed(), material.getSpecularRed(), nDotL, specular);
+        rgb[1] = shadeChannel(material.getDiffuseGreen(), material.getSpecularGreen(), nDotL, specular);
+        rgb[2] = shadeChannel(material.getDiffuseBlue(), material.getSpecularBlue(), nDotL, specular);
+    }
+
+    /*
+     * Evaluates the shading model for one color channel.
+     * The coefficients are already multiplied by the light color
+     */
+    private static double shadeChannel(double diffuse, double specularCo, double nDotL, double specular) {
+        // Surface ambient color is the diffuse color
+        return (diffuse // ambient
+                + (diffuse * nDotL) // diffuse
+                + (specularCo * specular)); // specular
+    }
+
+    /**
+     * Converts one channel of a shaded color to [0,255].
+     *
+     * @param value the channel, 1 is full intensity
+     * @return the channel as an int, capped at 255
+     */
+    static int toChannel(double value) {
+        value *= 255;
+        if(value > 255) {
+            value = 255;
+        }
+        return (int) Math.round(value);
+    }
 }
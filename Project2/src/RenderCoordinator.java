@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders Tiles on RenderWorker processes on the same machine. The
+ * coordinator starts the workers, which connect back to it over a
+ * loopback socket. Every worker is sent the render options and the Scene,
+ * as a binary scene cache with its BVH, once. After that the coordinator
+ * only sends tile jobs and receives the finished pixels.
+ *
+ * Workers that don't connect, e.g. because their JVM could not start, are
+ * left out and the Tiles are rendered on the others. An animation is sent
+ * with the Scene, and each frame is rendered on the workers after telling
+ * them which frame to show.
+ *
+ * Each worker is served by its own thread, which keeps a few jobs queued
+ * on the worker so it never waits for the next one. The threads take
+ * jobs from a shared queue, so faster workers render more tiles. If a
+ * worker dies, its connection breaks or it doesn't answer for
+ * READ_TIMEOUT, e.g. because it hangs, the tiles it had not finished go
+ * back into the queue for the other workers.
+ *
+ * Protocol, all big-endian:
+ * coordinator: MAGIC, option count, options (UTF), scene length (long), scene bytes
+ * worker:      MAGIC and its name (UTF) once the scene is loaded
+ * coordinator: FRAME and the frame number before the jobs of a frame of an animation
+ * coordinator: tile index, x, y, width, height for every job, -1 to stop
+ * worker:      tile index, then width*height RGB ints, for every job in order
+ *
+ * @author Brendan Van Allen
+ */
+public class RenderCoordinator {
+    static final int MAGIC = 0x52545744; // "RTWD"
+    static final int FRAME = -2; // Sent instead of a tile index to move to a frame of the animation
+    private static final int WINDOW = 2; // Jobs sent to a worker before it has to answer one
+    private static final int CONNECT_TIMEOUT = 60000; // Milliseconds to wait for the workers to start
+    private static final int ACCEPT_POLL = 100; // Milliseconds between checks for workers that exited
+    private static final int READ_TIMEOUT = 60000; // Milliseconds a worker may take to answer before it counts as failed
+
+    private List<Process> processes = new ArrayList<>();
+    private List<WorkerLink> links = new ArrayList<>();
+
+    /**
+     * Starts the worker processes and sends them the Scene. Rendering goes
+     * ahead with the workers that connected once the others have exited or
+     * the connect timeout is over.
+     *
+     * @param scene the Scene to render
+     * @param bvh a BVH over the Surfaces of the Scene, sent along so the workers don't build one
+     * @param options the number of workers and the options they trace with
+     * @throws IOException if no worker could be started or the Scene can't be sent
+     */
+    public RenderCoordinator(Scene scene, BVH bvh, RenderOptions options) throws IOException {
+        File sceneFile = File.createTempFile("scene", SceneCache.EXTENSION);
+        try (ServerSocket server = new ServerSocket(0, options.getWorkers(), InetAddress.getLoopbackAddress())) {
+            SceneCache.write(scene, bvh, sceneFile.getPath());
+            server.setSoTimeout(ACCEPT_POLL);
+
+            // Start the workers with the same JVM and classpath as this process
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            for(int k=0;k<options.getWorkers();k++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "RenderWorker", Integer.toString(server.getLocalPort()));
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                processes.add(builder.start());
+            }
+
+            long deadline = System.nanoTime() + CONNECT_TIMEOUT * 1000000L;
+            while(links.size() < processes.size()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    // Stop waiting when every worker that is still running has connected, or at the deadline
+                    if(running() <= links.size() || System.nanoTime() > deadline) {
+                        break;
+                    }
+                    continue;
+                }
+                WorkerLink link = new WorkerLink(socket);
+                links.add(link);
+                link.out.writeInt(MAGIC);
+                List<String> args = options.getWorkerArguments();
+                link.out.writeInt(args.size());
+                for(String arg : args) {
+                    link.out.writeUTF(arg);
+                }
+                link.out.writeLong(sceneFile.length());
+                Files.copy(sceneFile.toPath(), link.out);
+                link.out.flush();
+            }
+            if(links.isEmpty()) {
+                throw new IOException("None of the " + processes.size() + " workers connected");
+            }
+            if(links.size() < processes.size()) {
+                System.err.println("Only " + links.size() + " of " + processes.size() + " workers connected, rendering on those");
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        } finally {
+            sceneFile.delete();
+        }
+    }
+
+    /**
+     * Renders all of the given Tiles on the workers.
+     *
+     * @param tiles the Tiles to render, in scheduled order
+     * @param pixels RGB values of the image, one int per pixel in row-major order
+     * @param width the width of the image in pixels
+     * @throws IOException if every worker died before all Tiles were rendered
+     */
+    public void render(List<Tile> tiles, int[] pixels, int width) throws IOException {
+        render(tiles, -1, pixels, width);
+    }
+
+    /**
+     * Renders all of the given Tiles of one frame of the animation of the Scene on the workers.
+     *
+     * @param tiles the Tiles to render, in scheduled order
+     * @param frame the frame the workers apply to their Scene first, or -1 to leave it as it is
+     * @param pixels RGB values of the image, one int per pixel in row-major order
+     * @param width the width of the image in pixels
+     * @throws IOException if every worker died before all Tiles were rendered
+     */
+    public void render(List<Tile> tiles, int frame, int[] pixels, int width) throws IOException {
+        LinkedBlockingDeque<Integer> pending = new LinkedBlockingDeque<>();
+        for(int k=0;k<tiles.size();k++) {
+            pending.add(k);
+        }
+        AtomicInteger remaining = new AtomicInteger(tiles.size());
+
+        List<Thread> threads = new ArrayList<>();
+        for(WorkerLink link : links) {
+            if(!link.failed) {
+                Thread thread = new Thread(() -> link.serve(tiles, frame, pending, remaining, pixels, width));
+                thread.start();
+                threads.add(thread);
+            }
+        }
+        for(Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the workers");
+            }
+        }
+        if(remaining.get() > 0) {
+            throw new IOException("Every worker failed, " + remaining.get() + " tiles were not rendered");
+        }
+    }
+
+    /**
+     * Prints the tiles, pixels and pixels per second of every worker.
+     */
+    public void printReport() {
+        for(int k=0;k<links.size();k++) {
+            WorkerLink link = links.get(k);
+            double seconds = link.busyNanos / 1e9;
+            System.out.println("Worker " + (k + 1) + " (" + link.name + "): " + link.tiles + " tiles, " + link.pixels
+                    + " pixels, " + String.format("%.0f", seconds > 0 ? link.pixels / seconds : 0) + " pixels/s"
+                    + (link.failed ? ", failed and gave back " + link.retried + " tiles" : ""));
+        }
+    }
+
+    /**
+     * @return the number of workers that are rendering
+     */
+    public int getWorkerCount() {
+        return links.size();
+    }
+
+    /**
+     * Stops the workers.
+     */
+    public void shutdown() {
+        for(WorkerLink link : links) {
+            link.close();
+        }
+        for(Process process : processes) {
+            try {
+                if(!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Helper method to count the worker processes that have not exited
+     */
+    private int running() {
+        int count = 0;
+        for(Process process : processes) {
+            if(process.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * The connection to one worker, and what it has rendered so far
+     */
+    private static class WorkerLink {
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private String name = "starting";
+        private boolean ready = false;
+        private boolean failed = false;
+
+        private int tiles = 0;
+        private long pixels = 0;
+        private long busyNanos = 0;
+        private int retried = 0;
+
+        WorkerLink(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        }
+
+        /*
+         * Sends jobs to the worker and copies its tiles into the image until no tiles are left
+         */
+        void serve(List<Tile> tiles, int frame, LinkedBlockingDeque<Integer> pending, AtomicInteger remaining,
+                   int[] pixels, int width) {
+            ArrayDeque<Integer> sent = new ArrayDeque<>();
+            byte[] buffer = new byte[0];
+            long start = 0;
+            try {
+                if(!ready) {
+                    if(in.readInt() != MAGIC) {
+                        throw new IOException("Not a render worker");
+                    }
+                    name = in.readUTF();
+                    ready = true;
+                }
+                start = System.nanoTime();
+                if(frame >= 0) {
+                    out.writeInt(FRAME);
+                    out.writeInt(frame);
+                }
+                while(true) {
+                    // Keep WINDOW jobs queued on the worker
+                    Integer next;
+                    while(sent.size() < WINDOW && (next = pending.poll()) != null) {
+                        Tile tile = tiles.get(next);
+                        out.writeInt(next);
+                        out.writeInt(tile.getX());
+                        out.writeInt(tile.getY());
+                        out.writeInt(tile.getWidth());
+                        out.writeInt(tile.getHeight());
+                        sent.add(next);
+                    }
+                    out.flush();
+
+                    if(sent.isEmpty()) {
+                        if(remaining.get() == 0) {
+                            break;
+                        }
+                        // Tiles still being rendered elsewhere come back here if their worker dies
+                        next = pending.poll(20, TimeUnit.MILLISECONDS);
+                        if(next != null) {
+                            pending.addFirst(next);
+                        }
+                        continue;
+                    }
+
+                    int index = sent.peek();
+                    if(in.readInt() != index) {
+                        throw new IOException("Worker answered out of order");
+                    }
+                    Tile tile = tiles.get(index);
+                    int count = tile.getWidth()*tile.getHeight();
+                    if(buffer.length < 4*count) {
+                        buffer = new byte[4*count];
+                    }
+                    in.readFully(buffer, 0, 4*count);
+                    IntBuffer rgb = ByteBuffer.wrap(buffer, 0, 4*count).asIntBuffer();
+                    for(int j=0;j<tile.getHeight();j++) {
+                        rgb.get(pixels, (tile.getY() + j)*width + tile.getX(), tile.getWidth());
+                    }
+                    sent.poll();
+                    remaining.decrementAndGet();
+                    this.tiles++;
+                    this.pixels += count;
+                }
+            } catch (IOException | InterruptedException e) {
+                // A worker that hangs is treated like one that died, the socket timeout ends the wait for it
+                failed = true;
+                retried += sent.size();
+                pending.addAll(sent);
+                String reason = (e instanceof SocketTimeoutException) ? "no answer in " + READ_TIMEOUT / 1000 + " s"
+                        : e.getMessage();
+                System.err.println("Worker " + name + " failed (" + reason + "), "
+                        + sent.size() + " tiles sent back to the queue");
+                close();
+            } finally {
+                if(start != 0) {
+                    busyNanos += System.nanoTime() - start;
+                }
+            }
+        }
+
+        /*
+         * Tells the worker to stop and closes the connection
+         */
+        void close() {
+            try {
+                if(!failed) {
+                    out.writeInt(-1);
+                    out.flush();
+                }
+                socket.close();
+            } catch (IOException e) {
+                // The worker is gone already
+            }
+        }
+    }
+}
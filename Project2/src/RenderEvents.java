@@ -0,0 +1,185 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of a render, so a recording of a production
+ * render shows every Tile and every phase (loading the scene, building the
+ * BVH, tracing, encoding) on the timeline of the thread that did it.
+ *
+ * The project is built for Java 8, which has no jdk.jfr package to extend
+ * Event from. The two event types are created at run time with
+ * jdk.jfr.EventFactory instead. On a JVM without it every method here
+ * does nothing and begin returns null.
+ *
+ * Events are only created while a recording has them enabled, e.g. with
+ * java -XX:StartFlightRecording=filename=render.jfr RayTracer ...
+ *
+ * @author Brendan Van Allen
+ */
+public class RenderEvents {
+    // Looked up once, so beginning and committing an event is a few direct method handle calls
+    private static final MethodHandle TILE_ENABLED; // EventType.isEnabled of raytracer.Tile, null without JFR
+    private static final MethodHandle NEW_TILE; // EventFactory.newEvent of raytracer.Tile
+    private static final MethodHandle PHASE_ENABLED;
+    private static final MethodHandle NEW_PHASE;
+    private static final MethodHandle BEGIN; // Event.begin
+    private static final MethodHandle SET; // Event.set
+    private static final MethodHandle COMMIT; // Event.commit
+
+    static {
+        MethodHandle tileEnabled = null;
+        MethodHandle newTile = null;
+        MethodHandle phaseEnabled = null;
+        MethodHandle newPhase = null;
+        MethodHandle begin = null;
+        MethodHandle set = null;
+        MethodHandle commit = null;
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventType = Class.forName("jdk.jfr.EventType");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class);
+            Method create = eventFactory.getMethod("create", List.class, List.class);
+
+            Object tileFactory = create.invoke(null,
+                    annotations(newAnnotation, "raytracer.Tile", "Tile"),
+                    Arrays.asList(newField.newInstance(int.class, "x"), newField.newInstance(int.class, "y"),
+                            newField.newInstance(int.class, "width"), newField.newInstance(int.class, "height"),
+                            newField.newInstance(long.class, "rays"), newField.newInstance(long.class, "intersectionTests")));
+            Object phaseFactory = create.invoke(null,
+                    annotations(newAnnotation, "raytracer.Phase", "Render Phase"),
+                    Arrays.asList(newField.newInstance(String.class, "phase"), newField.newInstance(int.class, "frame")));
+
+            // The event types and factories are bound into the handles, and every type is erased to Object
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Method getEventType = eventFactory.getMethod("getEventType");
+            MethodHandle isEnabled = lookup.unreflect(eventType.getMethod("isEnabled"));
+            MethodHandle newEvent = lookup.unreflect(eventFactory.getMethod("newEvent"))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            tileEnabled = isEnabled.bindTo(getEventType.invoke(tileFactory));
+            newTile = newEvent.bindTo(tileFactory);
+            phaseEnabled = isEnabled.bindTo(getEventType.invoke(phaseFactory));
+            newPhase = newEvent.bindTo(phaseFactory);
+            begin = lookup.unreflect(event.getMethod("begin")).asType(MethodType.methodType(void.class, Object.class));
+            set = lookup.unreflect(event.getMethod("set", int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            commit = lookup.unreflect(event.getMethod("commit")).asType(MethodType.methodType(void.class, Object.class));
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            tileEnabled = null;
+        }
+        TILE_ENABLED = tileEnabled;
+        NEW_TILE = newTile;
+        PHASE_ENABLED = phaseEnabled;
+        NEW_PHASE = newPhase;
+        BEGIN = begin;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private RenderEvents() {
+    }
+
+    /**
+     * @return true if this JVM has Flight Recorder events
+     */
+    public static boolean isAvailable() {
+        return TILE_ENABLED != null;
+    }
+
+    /**
+     * Starts the event of one Tile, call before tracing it.
+     *
+     * @return the event, or null if no recording wants it
+     */
+    public static Object beginTile() {
+        return begin(TILE_ENABLED, NEW_TILE);
+    }
+
+    /**
+     * Ends the event of one Tile and commits it.
+     *
+     * @param event the event returned by beginTile, may be null
+     * @param tile the Tile that was traced
+     * @param rays the viewing and reflection rays traced for the Tile
+     * @param intersectionTests the primitives tested against those rays
+     */
+    public static void commitTile(Object event, Tile tile, long rays, long intersectionTests) {
+        commit(event, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), rays, intersectionTests);
+    }
+
+    /**
+     * Starts the event of one phase of the render.
+     *
+     * @return the event, or null if no recording wants it
+     */
+    public static Object beginPhase() {
+        return begin(PHASE_ENABLED, NEW_PHASE);
+    }
+
+    /**
+     * Ends the event of one phase and commits it.
+     *
+     * @param event the event returned by beginPhase, may be null
+     * @param phase the name of the phase, e.g. "trace"
+     * @param frame the frame of an animation the phase belongs to, -1 for a single image
+     */
+    public static void commitPhase(Object event, String phase, int frame) {
+        commit(event, phase, frame);
+    }
+
+    /*
+     * Helper method to create the name, label and category of an event type
+     */
+    private static List<Object> annotations(Constructor<?> newAnnotation, String name, String label)
+            throws ReflectiveOperationException {
+        return Arrays.asList(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), name),
+                newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+                newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Ray Tracer"}),
+                newAnnotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+    }
+
+    /*
+     * Helper method to create and begin an event, if its type is enabled
+     */
+    private static Object begin(MethodHandle enabled, MethodHandle newEvent) {
+        if(enabled == null) {
+            return null;
+        }
+        try {
+            if(!(boolean) enabled.invokeExact()) {
+                return null;
+            }
+            Object event = (Object) newEvent.invokeExact();
+            BEGIN.invokeExact(event);
+            return event;
+        } catch (Throwable e) {
+            // Method handles can throw anything, the render goes on without the event
+            return null;
+        }
+    }
+
+    /*
+     * Helper method to set the fields of an event in order and commit it
+     */
+    private static void commit(Object event, Object... values) {
+        if(event == null) {
+            return;
+        }
+        try {
+            for(int k=0;k<values.length;k++) {
+                SET.invokeExact(event, k, values[k]);
+            }
+            COMMIT.invokeExact(event);
+        } catch (Throwable e) {
+            // The recording is gone, the render goes on without it
+        }
+    }
+}
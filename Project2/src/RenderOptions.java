@@ -0,0 +1,486 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RenderOptions holds the command-line settings of the RayTracer.
+ *
+ * Usage:
+ * RayTracer [-parallel] [-threads <count>] [-tile <size>] [-scheduler <scanline|square|hilbert|cost>] [-workers <count>]
+ *           [-accel <linear|bvh|soa|bins>] [-scratch] [-packets] [-fastpow <tolerance>] [-shadows] [-verify]
+ *           [-aa <threshold> [-aasamples <4|16|64|256>]] [-wavefront [-depth <bounces>] [-rr <bounce>]]
+ *           [-stream [-band <rows>]] [-heatmap <file.png>]
+ *           [-hdr [-tonemap <clamp|reinhard>] [-exposure <stops>] [-pfm <file.pfm>]]
+ *           [-scene <file.scene|file.scenebin>] [-cache <file.scenebin>] [-mesh <file.obj> <x> <y> <z> <scale>]...
+ *
+ * @author Brendan Van Allen
+ */
+public class RenderOptions {
+    public static final String USAGE =
+            "RayTracer [-parallel] [-threads <count>] [-tile <size>] [-scheduler <scanline|square|hilbert|cost>] [-workers <count>]"
+            + " [-accel <linear|bvh|soa|bins>] [-scratch] [-packets] [-fastpow <tolerance>] [-shadows] [-verify]"
+            + " [-aa <threshold> [-aasamples <4|16|64|256>]] [-wavefront [-depth <bounces>] [-rr <bounce>]]"
+            + " [-stream [-band <rows>]] [-heatmap <file.png>]"
+            + " [-hdr [-tonemap <clamp|reinhard>] [-exposure <stops>] [-pfm <file.pfm>]]"
+            + " [-scene <file.scene|file.scenebin>] [-cache <file.scenebin>] [-mesh <file.obj> <x> <y> <z> <scale>]...";
+
+    private boolean parallel = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int tileSize = 32;
+    private String scheduler = "hilbert";
+    private int workers = 0;
+    private String accel = "linear";
+    private boolean scratch = false;
+    private boolean packets = false;
+    private boolean scalarPackets = false; // -packets was given but the Vector API kernel is missing
+    private boolean shadows = false;
+    private double specularTolerance = 0;
+    private boolean verify = false;
+    private double adaptiveThreshold = 0;
+    private int maxSamples = 16;
+    private boolean wavefront = false;
+    private int maxDepth = 3;
+    private int rouletteDepth = Integer.MAX_VALUE;
+    private boolean stream = false;
+    private int bandHeight = 16;
+    private String heatmapFile = null;
+    private boolean hdr = false;
+    private String toneMap = "clamp";
+    private double exposure = 0;
+    private String pfmFile = null;
+    private String sceneFile = null;
+    private String cacheFile = null;
+    private List<String> meshFiles = new ArrayList<>();
+    private List<double[]> meshPlacements = new ArrayList<>(); // {x, y, z, scale} of each mesh
+
+    /**
+     * Parses the command-line arguments given to the RayTracer.
+     *
+     * @param args the command-line arguments
+     * @return the parsed options, or null if the arguments are invalid
+     */
+    public static RenderOptions parse(String[] args) {
+        RenderOptions options = new RenderOptions();
+
+        // Try/catch is used to protect against ArrayIndexOutOfBounds and NumberFormatException
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-parallel")) {
+                    options.parallel = true;
+                } else if (args[i].equalsIgnoreCase("-threads")) {
+                    options.threads = Integer.parseInt(args[i + 1]);
+                    options.parallel = true;
+                    i++;
+                    if(options.threads < 1)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-tile")) {
+                    options.tileSize = Integer.parseInt(args[i + 1]);
+                    options.parallel = true;
+                    i++;
+                    if(options.tileSize < 1)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-scheduler")) {
+                    options.scheduler = args[i + 1].toLowerCase();
+                    options.parallel = true;
+                    i++;
+                    if(!options.scheduler.matches("scanline|square|hilbert|cost"))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-workers")) {
+                    options.workers = Integer.parseInt(args[i + 1]);
+                    i++;
+                    if(options.workers < 1)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-accel")) {
+                    options.accel = args[i + 1].toLowerCase();
+                    i++;
+                    if(!options.accel.matches("linear|bvh|soa|bins"))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-scratch")) {
+                    options.scratch = true;
+                } else if (args[i].equalsIgnoreCase("-packets")) {
+                    options.packets = true;
+                } else if (args[i].equalsIgnoreCase("-fastpow")) {
+                    options.specularTolerance = Double.parseDouble(args[i + 1]);
+                    options.scratch = true;
+                    i++;
+                    if(!(options.specularTolerance > 0 && options.specularTolerance < 1))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-shadows")) {
+                    options.shadows = true;
+                } else if (args[i].equalsIgnoreCase("-aa")) {
+                    options.adaptiveThreshold = Double.parseDouble(args[i + 1]);
+                    i++;
+                    if(!(options.adaptiveThreshold > 0 && options.adaptiveThreshold < 1))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-aasamples")) {
+                    options.maxSamples = Integer.parseInt(args[i + 1]);
+                    i++;
+                    if(!(options.maxSamples == 4 || options.maxSamples == 16 || options.maxSamples == 64
+                            || options.maxSamples == 256))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-wavefront")) {
+                    options.wavefront = true;
+                } else if (args[i].equalsIgnoreCase("-depth")) {
+                    options.maxDepth = Integer.parseInt(args[i + 1]);
+                    options.wavefront = true;
+                    i++;
+                    if(options.maxDepth < 0)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-rr")) {
+                    options.rouletteDepth = Integer.parseInt(args[i + 1]);
+                    options.wavefront = true;
+                    i++;
+                    if(options.rouletteDepth < 1)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-verify")) {
+                    options.verify = true;
+                } else if (args[i].equalsIgnoreCase("-scene")) {
+                    options.sceneFile = args[i + 1];
+                    i++;
+                } else if (args[i].equalsIgnoreCase("-cache")) {
+                    options.cacheFile = args[i + 1];
+                    i++;
+                    if(!options.cacheFile.toLowerCase().endsWith(SceneCache.EXTENSION))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-mesh")) {
+                    if(!args[i + 1].toLowerCase().endsWith(".obj"))
+                        return null;
+                    options.meshFiles.add(args[i + 1]);
+                    options.meshPlacements.add(new double[]{Double.parseDouble(args[i + 2]), Double.parseDouble(args[i + 3]),
+                            Double.parseDouble(args[i + 4]), Double.parseDouble(args[i + 5])});
+                    i += 5;
+                } else if (args[i].equalsIgnoreCase("-stream")) {
+                    options.stream = true;
+                } else if (args[i].equalsIgnoreCase("-band")) {
+                    options.bandHeight = Integer.parseInt(args[i + 1]);
+                    options.stream = true;
+                    i++;
+                    if(options.bandHeight < 1)
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-heatmap")) {
+                    options.heatmapFile = args[i + 1];
+                    options.parallel = true;
+                    i++;
+                    if(!options.heatmapFile.toLowerCase().endsWith(".png"))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-hdr")) {
+                    options.hdr = true;
+                } else if (args[i].equalsIgnoreCase("-tonemap")) {
+                    options.toneMap = args[i + 1].toLowerCase();
+                    options.hdr = true;
+                    i++;
+                    if(!options.toneMap.matches("clamp|reinhard"))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-exposure")) {
+                    options.exposure = Double.parseDouble(args[i + 1]);
+                    options.hdr = true;
+                    i++;
+                    if(Double.isNaN(options.exposure) || Double.isInfinite(options.exposure))
+                        return null;
+                } else if (args[i].equalsIgnoreCase("-pfm")) {
+                    options.pfmFile = args[i + 1];
+                    options.hdr = true;
+                    i++;
+                    if(!options.pfmFile.toLowerCase().endsWith(".pfm"))
+                        return null;
+                } else {
+                    return null;
+                }
+            }
+        } catch (Exception e) {
+            return null;
+        }
+
+        // Packets are only traced against the compiled sphere arrays
+        if(options.packets && !options.accel.equals("soa"))
+            return null;
+
+        // Worker processes send back whole tiles, not bands of the image, and keep their tile times
+        if(options.workers > 0 && (options.stream || options.heatmapFile != null))
+            return null;
+
+        // The HDR framebuffer holds the whole image, and workers only send back 8-bit pixels
+        if(options.hdr && (options.stream || options.workers > 0))
+            return null;
+
+        // Supersamples, wavefronts and HDR colors are traced one ray at a time with the scratch records
+        if(options.adaptiveThreshold > 0 || options.wavefront || options.hdr) {
+            if((options.adaptiveThreshold > 0 && options.wavefront) || options.packets)
+                return null;
+            options.scratch = true;
+        }
+
+        // The lane loops are slower than the scalar soa loop, so without the Vector API rays are traced one at a time
+        if(options.packets && CompiledSphereScene.getPacketKernel() instanceof LanePacketKernel) {
+            options.packets = false;
+            options.scalarPackets = true;
+            options.scratch = true;
+        }
+
+        return options;
+    }
+
+    /**
+     * Creates the TileScheduler selected by the -scheduler option.
+     *
+     * @param scene the Scene being rendered, used by the cost-predicted scheduler
+     * @param surfaces the Surfaces being rendered, used by the cost-predicted scheduler
+     * @return the selected TileScheduler
+     */
+    public TileScheduler createScheduler(Scene scene, Surface surfaces) {
+        switch (scheduler) {
+            case "scanline":
+                return new ScanlineScheduler();
+            case "square":
+                return new SquareTileScheduler();
+            case "cost":
+                return new CostPredictedScheduler(scene, surfaces);
+            default:
+                return new HilbertTileScheduler();
+        }
+    }
+
+    /**
+     * Creates the Surface that viewing rays are tested against, as selected
+     * by the -accel option.
+     *
+     * @param scene the Scene being rendered
+     * @return the Group of the Scene for a linear scan, a BVH over its Surfaces (the cached one if the
+     * Scene came with one), its compiled sphere arrays (straight from the cache if it came from one),
+     * or its Surfaces binned into screen tiles
+     */
+    public Surface createAccelerator(Scene scene) {
+        if(accel.equals("bvh")) {
+            return scene.getCachedBVH() != null ? scene.getCachedBVH() : new BVH(scene.getSurfaces().getSurfaces());
+        } else if(accel.equals("soa")) {
+            CachedSurfaces cached = scene.getCachedSurfaces();
+            return cached != null ? new CompiledSphereScene(cached) : new CompiledSphereScene(scene.getSurfaces());
+        } else if(accel.equals("bins")) {
+            return new ScreenBins(scene, scene.getSurfaces());
+        }
+        return scene.getSurfaces();
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public String getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the number of worker processes to render tiles on, 0 to render in this process
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Gets the options a RenderWorker needs to trace tiles exactly like this
+     * process would: everything that changes how a pixel is traced, but not
+     * where the scene comes from or how the image is split and written.
+     *
+     * @return arguments for RenderOptions.parse
+     */
+    public List<String> getWorkerArguments() {
+        List<String> args = new ArrayList<>();
+        args.add("-accel");
+        args.add(accel);
+        if(scratch)
+            args.add("-scratch");
+        if(packets)
+            args.add("-packets");
+        if(shadows)
+            args.add("-shadows");
+        if(specularTolerance > 0) {
+            args.add("-fastpow");
+            args.add(Double.toString(specularTolerance));
+        }
+        if(adaptiveThreshold > 0) {
+            args.add("-aa");
+            args.add(Double.toString(adaptiveThreshold));
+            args.add("-aasamples");
+            args.add(Integer.toString(maxSamples));
+        }
+        if(wavefront) {
+            args.add("-depth");
+            args.add(Integer.toString(maxDepth));
+            if(rouletteDepth != Integer.MAX_VALUE) {
+                args.add("-rr");
+                args.add(Integer.toString(rouletteDepth));
+            }
+        }
+        return args;
+    }
+
+    public String getAccel() {
+        return accel;
+    }
+
+    /**
+     * @return true to trace with the allocation-free scratch ray and hit record path
+     */
+    public boolean isScratch() {
+        return scratch;
+    }
+
+    /**
+     * @return true to trace primary rays in packets against the compiled sphere arrays
+     */
+    public boolean isPackets() {
+        return packets;
+    }
+
+    /**
+     * @return true if -packets was given, but the rays are traced one at a time with the scalar
+     * soa loop because VectorPacketKernel could not be loaded
+     */
+    public boolean isScalarPackets() {
+        return scalarPackets;
+    }
+
+    /**
+     * @return the largest error allowed in a tabulated specular term, or 0 to use Math.pow
+     */
+    public double getSpecularTolerance() {
+        return specularTolerance;
+    }
+
+    /**
+     * @return true to cast a shadow ray towards the Light from every hit
+     */
+    public boolean isShadows() {
+        return shadows;
+    }
+
+    /**
+     * @return true to supersample the pixels selected by the adaptive threshold
+     */
+    public boolean isAdaptive() {
+        return adaptiveThreshold > 0;
+    }
+
+    /**
+     * @return the largest color difference, in [0, 1], left alone by adaptive supersampling
+     */
+    public double getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+    /**
+     * @return the most samples adaptive supersampling may trace in one pixel
+     */
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * @return true to trace tiles breadth first with the WavefrontTracer
+     */
+    public boolean isWavefront() {
+        return wavefront;
+    }
+
+    /**
+     * @return the number of reflection bounces the WavefrontTracer traces at most
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the first bounce Russian roulette may end a ray at, Integer.MAX_VALUE for never
+     */
+    public int getRouletteDepth() {
+        return rouletteDepth;
+    }
+
+    /**
+     * @return true to compare the image against a reference render when done
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * @return true to stream bands of finished scanlines into the PNG file
+     */
+    public boolean isStream() {
+        return stream;
+    }
+
+    public int getBandHeight() {
+        return bandHeight;
+    }
+
+    /**
+     * @return true to accumulate linear colors in an HdrFramebuffer and tone map them afterwards
+     */
+    public boolean isHdr() {
+        return hdr;
+    }
+
+    /**
+     * @return the tone mapping operator of the HDR framebuffer, "clamp" or "reinhard"
+     */
+    public String getToneMap() {
+        return toneMap;
+    }
+
+    /**
+     * @return the stops colors are scaled by before tone mapping
+     */
+    public double getExposure() {
+        return exposure;
+    }
+
+    /**
+     * @return the Portable FloatMap file to write the HDR framebuffer to, or null
+     */
+    public String getPfmFile() {
+        return pfmFile;
+    }
+
+    /**
+     * @return the PNG file to draw the time spent on every Tile into, or null
+     */
+    public String getHeatmapFile() {
+        return heatmapFile;
+    }
+
+    /**
+     * @return the scene file to render instead of the hard-coded scene, or null
+     */
+    public String getSceneFile() {
+        return sceneFile;
+    }
+
+    /**
+     * @return the binary scene cache to write before rendering, or null
+     */
+    public String getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @return the OBJ files given with -mesh, in order
+     */
+    public List<String> getMeshFiles() {
+        return meshFiles;
+    }
+
+    /**
+     * @return the {x, y, z, scale} placement of every mesh given with -mesh
+     */
+    public List<double[]> getMeshPlacements() {
+        return meshPlacements;
+    }
+}
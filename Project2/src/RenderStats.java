@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Totals of the per-thread counters kept in every TraceContext. Collect
+ * them once the render threads are done, the counters themselves are
+ * plain longs that only their own thread writes to.
+ *
+ * Intersection tests are counted by the ScratchRays and RayPackets the
+ * primitives are tested against. The default object path counts them on
+ * each Ray and adds them to the ScratchRay of its thread.
+ *
+ * @author Brendan Van Allen
+ */
+public class RenderStats {
+    private long primaryRays;
+    private long primaryHits;
+    private long secondaryRays;
+    private long secondaryHits;
+    private long intersectionTests;
+    private long shadowTests;
+    private long shadowRays;
+    private long shadowsOccluded;
+    private long shadowCacheHits;
+    private long samples;
+    private long sampledPixels;
+    private long refinedPixels;
+    private long[] bounceRays = new long[0];
+    private List<TileTime> tileTimes = new ArrayList<>();
+
+    private RenderStats() {
+    }
+
+    /**
+     * Adds up the counters of every TraceContext and resets them, so
+     * collect once per render and the next render starts from zero.
+     *
+     * @return the totals
+     */
+    public static RenderStats collect() {
+        RenderStats stats = new RenderStats();
+        for(TraceContext context : TraceContext.takeAll()) {
+            stats.primaryRays += context.primaryRays;
+            stats.primaryHits += context.primaryHits;
+            stats.secondaryRays += context.secondaryRays;
+            stats.secondaryHits += context.secondaryHits;
+            stats.intersectionTests += context.getRay().tests + context.getPacket().tests;
+            stats.shadowTests += context.getShadowRay().tests;
+            stats.shadowRays += context.shadowRays;
+            stats.shadowsOccluded += context.shadowsOccluded;
+            stats.shadowCacheHits += context.shadowCacheHits;
+            stats.samples += context.samples;
+            stats.sampledPixels += context.sampledPixels;
+            stats.refinedPixels += context.refinedPixels;
+            long[] rays = context.bounceRays;
+            if(stats.bounceRays.length < rays.length) {
+                stats.bounceRays = Arrays.copyOf(stats.bounceRays, rays.length);
+            }
+            for(int k=0;k<rays.length;k++) {
+                stats.bounceRays[k] += rays[k];
+            }
+            stats.tileTimes.addAll(context.tileTimes);
+            context.resetCounters();
+        }
+        return stats;
+    }
+
+    /**
+     * @return the number of viewing rays that were traced, including every supersample
+     */
+    public long getPrimaryRays() {
+        return primaryRays;
+    }
+
+    /**
+     * @return the number of viewing rays that hit a Surface
+     */
+    public long getPrimaryHits() {
+        return primaryHits;
+    }
+
+    /**
+     * @return the number of viewing rays that only saw the background
+     */
+    public long getPrimaryMisses() {
+        return primaryRays - primaryHits;
+    }
+
+    /**
+     * @return the number of reflection rays traced by the WavefrontTracer
+     */
+    public long getSecondaryRays() {
+        return secondaryRays;
+    }
+
+    /**
+     * @return the number of reflection rays that hit a Surface
+     */
+    public long getSecondaryHits() {
+        return secondaryHits;
+    }
+
+    /**
+     * @return the number of reflection rays that only saw the background
+     */
+    public long getSecondaryMisses() {
+        return secondaryRays - secondaryHits;
+    }
+
+    /**
+     * @return the number of primitives tested against viewing and reflection rays
+     */
+    public long getIntersectionTests() {
+        return intersectionTests;
+    }
+
+    /**
+     * @return the number of primitives tested against shadow rays
+     */
+    public long getShadowTests() {
+        return shadowTests;
+    }
+
+    /**
+     * @return the number of viewing, reflection and shadow rays together
+     */
+    public long getRays() {
+        return primaryRays + secondaryRays + shadowRays;
+    }
+
+    /**
+     * @return the number of shadow rays that were tested
+     */
+    public long getShadowRays() {
+        return shadowRays;
+    }
+
+    /**
+     * @return the number of shadow rays that were blocked before reaching the Light
+     */
+    public long getShadowsOccluded() {
+        return shadowsOccluded;
+    }
+
+    /**
+     * @return the number of blocked shadow rays answered by the last occluder of their thread
+     */
+    public long getShadowCacheHits() {
+        return shadowCacheHits;
+    }
+
+    /**
+     * @return the number of viewing rays traced by adaptive supersampling
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the number of pixels rendered with adaptive supersampling
+     */
+    public long getSampledPixels() {
+        return sampledPixels;
+    }
+
+    /**
+     * @return the number of pixels adaptive supersampling traced more than one sample for
+     */
+    public long getRefinedPixels() {
+        return refinedPixels;
+    }
+
+    /**
+     * @return the average number of viewing rays per pixel of adaptive supersampling
+     */
+    public double getSamplesPerPixel() {
+        return sampledPixels == 0 ? 0 : (double) samples / sampledPixels;
+    }
+
+    /**
+     * @return the number of rays the WavefrontTracer traced at each bounce, starting with the viewing rays
+     */
+    public long[] getBounceRays() {
+        return bounceRays;
+    }
+
+    /**
+     * @return the wall time of every Tile traced by a TileRenderer, in no particular order
+     */
+    public List<TileTime> getTileTimes() {
+        return tileTimes;
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * A worker process of a RenderCoordinator. It connects to the coordinator
+ * on a loopback port, loads the Scene it is sent, and then renders the
+ * Tiles it is sent one at a time until it is told to stop. See
+ * RenderCoordinator for the protocol.
+ *
+ * Usage: RenderWorker &lt;port&gt;
+ *
+ * @author Brendan Van Allen
+ */
+public class RenderWorker {
+
+    public static void main(String args[]) {
+        try {
+            run(Integer.parseInt(args[0]));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("RenderWorker: " + e);
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Helper method to serve the coordinator on the given port
+     */
+    private static void run(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            if(in.readInt() != RenderCoordinator.MAGIC) {
+                throw new IOException("Not a render coordinator");
+            }
+
+            String[] optionArgs = new String[in.readInt()];
+            for(int k=0;k<optionArgs.length;k++) {
+                optionArgs[k] = in.readUTF();
+            }
+            RenderOptions options = RenderOptions.parse(optionArgs);
+            if(options == null) {
+                throw new IOException("Invalid options " + String.join(" ", optionArgs));
+            }
+
+            Scene scene = receiveScene(in);
+            scene.setShading(new ShadingTable(scene, options.getSpecularTolerance()));
+            Surface surfaces = options.createAccelerator(scene);
+            TileRenderer renderer = new TileRenderer(scene, surfaces, options);
+            out.writeInt(RenderCoordinator.MAGIC);
+            out.writeUTF(ManagementFactory.getRuntimeMXBean().getName());
+            out.flush();
+
+            int[] pixels = new int[0];
+            ByteBuffer bytes = ByteBuffer.allocate(0);
+            while(true) {
+                int index = in.readInt();
+                if(index == RenderCoordinator.FRAME) {
+                    // Show a frame of the animation, the tiles of that frame follow
+                    Animation animation = scene.getAnimation();
+                    int frame = in.readInt();
+                    if(animation == null || frame < 0 || frame >= animation.getFrameCount()) {
+                        throw new IOException("No frame " + frame + " in the Scene");
+                    }
+                    animation.apply(scene, frame);
+                    scene.setShading(new ShadingTable(scene, options.getSpecularTolerance()));
+                    Animation.refit(surfaces);
+                    continue;
+                }
+                if(index < 0) {
+                    break;
+                }
+                Tile tile = new Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                int count = tile.getWidth()*tile.getHeight();
+                if(pixels.length < count) {
+                    pixels = new int[count];
+                    bytes = ByteBuffer.allocate(4*count);
+                }
+                renderer.traceTile(tile, pixels, 0, tile.getWidth());
+
+                bytes.clear();
+                bytes.asIntBuffer().put(pixels, 0, count);
+                out.writeInt(index);
+                out.write(bytes.array(), 0, 4*count);
+                out.flush();
+            }
+            renderer.shutdown();
+        }
+    }
+
+    /*
+     * Helper method to copy the binary scene cache into a temporary file and load it
+     */
+    private static Scene receiveScene(DataInputStream in) throws IOException {
+        long length = in.readLong();
+        File file = File.createTempFile("worker", SceneCache.EXTENSION);
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(file.toPath())) {
+                byte[] buffer = new byte[1 << 16];
+                while(length > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+                    if(read < 0) {
+                        throw new IOException("Scene ended early");
+                    }
+                    fileOut.write(buffer, 0, read);
+                    length -= read;
+                }
+            }
+            return SceneCache.read(file.getPath());
+        } finally {
+            file.delete();
+        }
+    }
+}
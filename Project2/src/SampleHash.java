@@ -0,0 +1,29 @@
+/**
+ * Random numbers for sampling that only depend on where they are used.
+ * Each value is a hash of a pixel and a sample index, so an image that
+ * uses them is the same no matter how its pixels were split among
+ * threads or in which order they were traced.
+ *
+ * @author Brendan Van Allen
+ */
+public class SampleHash {
+
+    private SampleHash() {
+    }
+
+    /**
+     * Hashes a pixel and a sample index into [0, 1).
+     *
+     * @param i the column of the pixel
+     * @param j the row of the pixel
+     * @param k the index of the sample within the pixel
+     * @return a uniformly distributed number in [0, 1)
+     */
+    public static double uniform(int i, int j, int k) {
+        long h = i * 0x9E3779B97F4A7C15L + j * 0xC2B2AE3D27D4EB4FL + k * 0x165667B19E3779F9L;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (h >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,20 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules the image as full-width strips, top to bottom.
+ * Each strip is tileSize scanlines tall.
+ *
+ * @author Brendan Van Allen
+ */
+public class ScanlineScheduler implements TileScheduler {
+
+    @Override
+    public List<Tile> schedule(int width, int firstRow, int rows, int tileSize) {
+        List<Tile> tiles = new ArrayList<>();
+        for(int y=firstRow;y<firstRow+rows;y+=tileSize) {
+            tiles.add(new Tile(0, y, width, Math.min(tileSize, firstRow + rows - y)));
+        }
+        return tiles;
+    }
+}
@@ -7,8 +7,13 @@ import java.awt.*;
  */
 public class Scene {
     public final Color BACKGROUND_COLOR = Color.BLACK;
-    private Group surfaces;
+    private Group surfaces; // Only made when asked for if the Scene came from a scene cache
+    private CachedSurfaces cachedSurfaces;
     private Light lightSource;
+    private ShadingTable shading;
+    private Camera camera = new Camera();
+    private BVH cachedBVH;
+    private Animation animation;
 
     /**
      * Creates a scene with the given light source
@@ -19,20 +24,122 @@ public class Scene {
         this.lightSource = lightSource;
     }
 
+    /**
+     * Creates a scene of the Surfaces read from a scene cache and the BVH
+     * that was stored with them.
+     *
+     * @param lightSource the light source
+     * @param cachedSurfaces the Surfaces of the cache
+     * @param cachedBVH the BVH over them
+     */
+    public Scene(Light lightSource, CachedSurfaces cachedSurfaces, BVH cachedBVH) {
+        this.lightSource = lightSource;
+        this.cachedSurfaces = cachedSurfaces;
+        this.cachedBVH = cachedBVH;
+    }
+
     /**
      * Adds the given Surface to the Scene.
      *
      * @param s Surface to be added
      */
     public void add(Surface s) {
-        surfaces.add(s);
+        getSurfaces().add(s);
     }
 
+    /**
+     * Gets the Group of all Surfaces. For a Scene read from a scene cache
+     * the Group is made the first time, with a Sphere object for every
+     * sphere, so renders that don't need it never pay for it.
+     *
+     * @return the Group
+     */
     public Group getSurfaces() {
+        if(surfaces == null) {
+            surfaces = new Group();
+            for(int k=0;k<cachedSurfaces.size();k++) {
+                surfaces.add(cachedSurfaces.get(k));
+            }
+        }
         return surfaces;
     }
 
+    /**
+     * @return the number of Surfaces in the Scene, without making the Group
+     */
+    public int getSurfaceCount() {
+        return surfaces != null ? surfaces.getSurfaces().size() : cachedSurfaces.size();
+    }
+
+    /**
+     * Gets the arrays the Surfaces were read into from a scene cache.
+     *
+     * @return the Surfaces, or null if the Scene was not loaded from a cache or Surfaces were added since
+     */
+    public CachedSurfaces getCachedSurfaces() {
+        if(cachedSurfaces != null && cachedSurfaces.size() != getSurfaceCount()) {
+            return null;
+        }
+        return cachedSurfaces;
+    }
+
     public Light getLightSource() {
         return lightSource;
     }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    public void setCamera(Camera camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Gets the BVH that was stored with the Scene in a scene cache.
+     *
+     * @return the BVH, or null if the Scene was not loaded from a cache or Surfaces were added since
+     */
+    public BVH getCachedBVH() {
+        if(cachedBVH != null && cachedBVH.getSurfaceCount() != getSurfaceCount()) {
+            return null;
+        }
+        return cachedBVH;
+    }
+
+    public void setCachedBVH(BVH cachedBVH) {
+        this.cachedBVH = cachedBVH;
+    }
+
+    /**
+     * @return the keyframes of the Scene, or null if it is a single still frame
+     */
+    public Animation getAnimation() {
+        return animation;
+    }
+
+    public void setAnimation(Animation animation) {
+        this.animation = animation;
+    }
+
+    /**
+     * Gets the compiled Light and Materials used by the allocation-free shading path.
+     *
+     * @return the table set with setShading, or one compiled now with exact specular terms
+     */
+    public ShadingTable getShading() {
+        if(shading == null) {
+            shading = new ShadingTable(this, 0);
+        }
+        return shading;
+    }
+
+    /**
+     * Sets the compiled Light and Materials. Compile again after Surfaces are added.
+     *
+     * @param shading the compiled table
+     */
+    public void setShading(ShadingTable shading) {
+        this.shading = shading;
+    }
 }
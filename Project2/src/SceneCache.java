@@ -0,0 +1,644 @@
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads and writes binary scene caches. A cache holds everything a Scene
+ * is made of (camera, light, materials, spheres and the full arrays of
+ * every mesh) together with the built BVHTree of every mesh and the BVH
+ * over all Surfaces. Loading a cache is a handful of bulk copies out of a
+ * memory-mapped file: nothing is parsed and no tree is built. The
+ * Animation of a Scene is stored after the BVH, with the Scene as it is
+ * before any frame is applied.
+ *
+ * The file is little-endian. Every section starts at a multiple of 8 bytes,
+ * and arrays are stored as an int length (-1 for null), 4 bytes of padding
+ * and the raw values.
+ *
+ * header     "RTSC", version
+ * camera     width, height, l, r, b, t, d, viewpoint, u, v, w
+ * light      position, red, green, blue
+ * materials  count, then shininess, red, green, blue of each
+ * spheres    count, double[4*count] x, y, z, radius, int[count] material
+ * meshes     count, then material, positions, normals, uvs, triangles,
+ *            triangle normals, triangle uvs and the BVHTree of each
+ * order      int[] of Group positions: sphere k is k, mesh k is -1-k
+ * bvh        the BVHTree over all Surfaces
+ * animation  frame count (0 for a single frame), then the camera, look-at
+ *            and light tracks, and the number of animated spheres with the
+ *            sphere index and track of each. A track is int[] frames and
+ *            double[3*keys] x, y, z.
+ *
+ * @author Brendan Van Allen
+ */
+public class SceneCache {
+    public static final String EXTENSION = ".scenebin";
+    private static final int MAGIC = 0x43535452; // "RTSC" in little-endian
+    private static final int VERSION = 2;
+    private static final int WINDOW = 1 << 28; // Largest region mapped or buffered at once
+
+    /**
+     * Writes a Scene and its BVH to a cache file.
+     *
+     * @param scene the Scene, made of Spheres and TriangleMeshes
+     * @param bvh a BVH over the Surfaces of the Scene, in Group order
+     * @param fileName the cache file
+     * @return the size of the file in bytes
+     * @throws IOException if the file can not be written or the Scene holds other Surfaces
+     */
+    public static long write(Scene scene, BVH bvh, String fileName) throws IOException {
+        // A Scene read from a cache still has the arrays, any other one is split into them
+        CachedSurfaces surfaces = scene.getCachedSurfaces();
+        if(surfaces == null) {
+            surfaces = split(scene.getSurfaces().getSurfaces());
+        }
+        if(bvh.getSurfaceCount() != surfaces.size()) {
+            throw new IOException("The BVH was not built over the Surfaces of the Scene");
+        }
+        Material[] materials = surfaces.getMaterials();
+        Map<Material, Integer> materialIndex = new IdentityHashMap<>();
+        for(int k=0;k<materials.length;k++) {
+            materialIndex.put(materials[k], k);
+        }
+
+        // Animated spheres are stored by their index in the sphere arrays
+        Animation animation = scene.getAnimation();
+        Map<Surface, Integer> sphereIndex = new IdentityHashMap<>();
+        if(animation != null) {
+            for(Surface s : scene.getSurfaces().getSurfaces()) {
+                if(s instanceof Sphere) {
+                    sphereIndex.put(s, sphereIndex.size());
+                }
+            }
+        }
+
+        try (Output out = new Output(fileName)) {
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+
+            Camera camera = scene.getCamera();
+            out.putInt(camera.getWidth());
+            out.putInt(camera.getHeight());
+            out.putDouble(camera.getL());
+            out.putDouble(camera.getR());
+            out.putDouble(camera.getB());
+            out.putDouble(camera.getT());
+            out.putDouble(camera.getD());
+            out.putVector(camera.getViewpoint());
+            out.putVector(camera.getU());
+            out.putVector(camera.getV());
+            out.putVector(camera.getW());
+
+            Light light = scene.getLightSource();
+            out.putVector(light.getPosition());
+            out.putColor(light.getColor());
+            out.putInt(0);
+
+            out.putInt(materials.length);
+            out.putInt(0);
+            for(Material m : materials) {
+                out.putInt(m.getShininess());
+                out.putColor(m.getColor());
+            }
+
+            int[] sphereMaterials = new int[surfaces.getSphereCount()];
+            for(int k=0;k<sphereMaterials.length;k++) {
+                sphereMaterials[k] = surfaces.getMaterialIndex(k);
+            }
+            out.putDoubles(surfaces.getSphereData());
+            out.putInts(sphereMaterials);
+
+            out.putInt(surfaces.getMeshes().length);
+            out.putInt(0);
+            for(TriangleMesh m : surfaces.getMeshes()) {
+                out.putInt(materialIndex.get(m.getMaterial()));
+                out.putInt(0);
+                out.putFloats(m.getPositions());
+                out.putFloats(m.getNormals());
+                out.putFloats(m.getUvs());
+                out.putInts(m.getTriangles());
+                out.putInts(m.getTriangleNormals());
+                out.putInts(m.getTriangleUvs());
+                out.putTree(m.getTree());
+            }
+
+            out.putInts(surfaces.getOrder());
+            out.putTree(bvh.getTree());
+
+            out.putInt(animation == null ? 0 : animation.getFrameCount());
+            out.putInt(0);
+            if(animation != null) {
+                out.putTrack(animation.getCameraTrack());
+                out.putTrack(animation.getLookTrack());
+                out.putTrack(animation.getLightTrack());
+                out.putInt(animation.getAnimatedSphereCount());
+                out.putInt(0);
+                for(Map.Entry<Sphere, Animation.Track> entry : animation.getSphereTracks().entrySet()) {
+                    Integer index = sphereIndex.get(entry.getKey());
+                    if(index == null) {
+                        throw new IOException("An animated Sphere is not part of the Scene");
+                    }
+                    out.putInt(index);
+                    out.putInt(0);
+                    out.putTrack(entry.getValue());
+                }
+            }
+            return out.finish();
+        }
+    }
+
+    /**
+     * Reads a Scene from a cache file. The BVH of the file is attached to the
+     * Scene and returned by Scene.getCachedBVH(). The spheres are not turned
+     * into objects, Scene.getCachedSurfaces() returns the arrays they were
+     * read into.
+     *
+     * @param fileName the cache file
+     * @return the Scene
+     * @throws IOException if the file can not be read or is not a valid scene cache
+     */
+    public static Scene read(String fileName) throws IOException {
+        try (Input in = new Input(fileName)) {
+            if(in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException(fileName + " is not a scene cache of version " + VERSION);
+            }
+
+            int width = in.getInt();
+            int height = in.getInt();
+            double l = in.getDouble();
+            double r = in.getDouble();
+            double b = in.getDouble();
+            double t = in.getDouble();
+            double d = in.getDouble();
+            Camera camera = new Camera(width, height, l, r, b, t, d, in.getVector(), in.getVector(), in.getVector(), in.getVector());
+            if(width < 1 || height < 1) {
+                throw new IOException("Invalid resolution in " + fileName);
+            }
+
+            Vector3d lightPosition = in.getVector();
+            Light light = new Light(lightPosition, in.getColor());
+            in.getInt();
+
+            Material[] materials = new Material[in.getCount()];
+            in.getInt();
+            for(int k=0;k<materials.length;k++) {
+                int shininess = in.getInt();
+                materials[k] = new Material(shininess, in.getColor());
+            }
+
+            double[] sphereData = in.getDoubles();
+            int[] sphereMaterials = in.getInts();
+            if(sphereData == null || sphereMaterials == null || sphereData.length != 4*sphereMaterials.length) {
+                throw new IOException("Invalid spheres in " + fileName);
+            }
+            for(int m : sphereMaterials) {
+                material(materials, m);
+            }
+
+            TriangleMesh[] meshes = new TriangleMesh[in.getCount()];
+            in.getInt();
+            for(int k=0;k<meshes.length;k++) {
+                Material material = material(materials, in.getInt());
+                in.getInt();
+                float[] positions = in.getFloats();
+                float[] normals = in.getFloats();
+                float[] uvs = in.getFloats();
+                int[] triangles = in.getInts();
+                int[] triangleNormals = in.getInts();
+                int[] triangleUvs = in.getInts();
+                if(positions == null || triangles == null || positions.length % 3 != 0 || triangles.length % 3 != 0) {
+                    throw new IOException("Invalid mesh in " + fileName);
+                }
+                checkIndices(triangles, triangles.length, positions.length / 3, false);
+                checkIndices(triangleNormals, triangles.length, normals == null ? 0 : normals.length / 3, true);
+                checkIndices(triangleUvs, triangles.length, uvs == null ? 0 : uvs.length / 2, true);
+                BVHTree tree = in.getTree(triangles.length / 3);
+                meshes[k] = new TriangleMesh(positions, normals, uvs, triangles, triangleNormals, triangleUvs, material, tree);
+            }
+
+            int[] order = in.getInts();
+            if(order == null || order.length != sphereMaterials.length + meshes.length) {
+                throw new IOException("Invalid surface order in " + fileName);
+            }
+            boolean[] placed = new boolean[order.length];
+            for(int o : order) {
+                if(o >= sphereMaterials.length || -1 - o >= meshes.length || placed[o >= 0 ? o : sphereMaterials.length - 1 - o]) {
+                    throw new IOException("Invalid surface order in " + fileName);
+                }
+                placed[o >= 0 ? o : sphereMaterials.length - 1 - o] = true;
+            }
+
+            CachedSurfaces surfaces = new CachedSurfaces(sphereData, sphereMaterials, meshes, order, materials);
+            BVHTree tree = in.getTree(order.length);
+            Animation animation = readAnimation(in, surfaces);
+
+            Scene scene;
+            if(animation == null) {
+                // The spheres stay in the arrays they were read into, see CachedSurfaces
+                scene = new Scene(light, surfaces, new BVH(surfaces, tree));
+            } else {
+                // Animated spheres move, so every sphere is made into an object like those of a scene file
+                scene = new Scene(light);
+                for(int k=0;k<surfaces.size();k++) {
+                    scene.add(surfaces.get(k));
+                }
+                scene.setCachedBVH(new BVH(scene.getSurfaces().getSurfaces(), tree));
+                scene.setAnimation(animation);
+            }
+            scene.setCamera(camera);
+            return scene;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid scene cache " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * Helper method to read the animation section, null if the Scene is a single frame
+     */
+    private static Animation readAnimation(Input in, CachedSurfaces surfaces) throws IOException {
+        int frameCount = in.getCount();
+        in.getInt();
+        if(frameCount == 0) {
+            return null;
+        }
+
+        Animation animation = new Animation(frameCount);
+        readTrack(in, frameCount, animation::addCameraKey);
+        readTrack(in, frameCount, animation::addLookAtKey);
+        readTrack(in, frameCount, animation::addLightKey);
+        int animated = in.getCount();
+        in.getInt();
+        for(int k=0;k<animated;k++) {
+            int index = in.getInt();
+            in.getInt();
+            if(index < 0 || index >= surfaces.getSphereCount()) {
+                throw new IOException("Invalid animated sphere " + index);
+            }
+            Sphere sphere = surfaces.getSphere(index);
+            readTrack(in, frameCount, (frame, center) -> animation.addSphereKey(sphere, frame, center));
+        }
+        return animation;
+    }
+
+    /*
+     * Helper method to read the keys of one track and hand each one to key
+     */
+    private static void readTrack(Input in, int frameCount, BiConsumer<Integer, Vector3d> key) throws IOException {
+        int[] frames = in.getInts();
+        double[] positions = in.getDoubles();
+        if(frames == null || positions == null || positions.length != 3*frames.length) {
+            throw new IOException("Invalid animation track");
+        }
+        for(int k=0;k<frames.length;k++) {
+            if(frames[k] < 0 || frames[k] >= frameCount) {
+                throw new IOException("Invalid key frame " + frames[k]);
+            }
+            key.accept(frames[k], new Vector3d(positions[3*k], positions[3*k + 1], positions[3*k + 2]));
+        }
+    }
+
+    /*
+     * Helper method to split the Surfaces of a Group into the arrays of a cache and give every
+     * distinct Material an index
+     */
+    private static CachedSurfaces split(List<Surface> surfaces) throws IOException {
+        List<Sphere> spheres = new ArrayList<>();
+        List<TriangleMesh> meshes = new ArrayList<>();
+        int[] order = new int[surfaces.size()];
+        Map<Material, Integer> materialIndex = new IdentityHashMap<>();
+        List<Material> materials = new ArrayList<>();
+        for(int k=0;k<surfaces.size();k++) {
+            Surface s = surfaces.get(k);
+            if(s instanceof Sphere) {
+                order[k] = spheres.size();
+                spheres.add((Sphere) s);
+            } else if(s instanceof TriangleMesh) {
+                order[k] = -1 - meshes.size();
+                meshes.add((TriangleMesh) s);
+            } else {
+                throw new IOException("Can't cache a " + s.getClass().getSimpleName());
+            }
+            if(!materialIndex.containsKey(s.getMaterial())) {
+                materialIndex.put(s.getMaterial(), materials.size());
+                materials.add(s.getMaterial());
+            }
+        }
+
+        double[] sphereData = new double[4*spheres.size()];
+        int[] sphereMaterials = new int[spheres.size()];
+        for(int k=0;k<spheres.size();k++) {
+            Sphere s = spheres.get(k);
+            sphereData[4*k] = s.getCenter().x;
+            sphereData[4*k + 1] = s.getCenter().y;
+            sphereData[4*k + 2] = s.getCenter().z;
+            sphereData[4*k + 3] = s.getRadius();
+            sphereMaterials[k] = materialIndex.get(s.getMaterial());
+        }
+        return new CachedSurfaces(sphereData, sphereMaterials, meshes.toArray(new TriangleMesh[0]), order,
+                materials.toArray(new Material[0]));
+    }
+
+    /*
+     * Helper method to look up a material index read from the file
+     */
+    private static Material material(Material[] materials, int index) throws IOException {
+        if(index < 0 || index >= materials.length) {
+            throw new IOException("Invalid material index " + index);
+        }
+        return materials[index];
+    }
+
+    /*
+     * Helper method to check that every index of a mesh array is in range
+     */
+    private static void checkIndices(int[] indices, int length, int count, boolean optional) throws IOException {
+        if(indices == null) {
+            return;
+        }
+        if(indices.length != length) {
+            throw new IOException("Invalid mesh index array");
+        }
+        for(int index : indices) {
+            if(index >= count || index < (optional ? -1 : 0)) {
+                throw new IOException("Mesh index out of range: " + index);
+            }
+        }
+    }
+
+    /*
+     * Buffered little-endian writer that keeps track of the file position for alignment
+     */
+    private static class Output implements Closeable {
+        private FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed;
+
+        Output(String fileName) throws IOException {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        void putVector(Vector3d v) throws IOException {
+            putDouble(v.x);
+            putDouble(v.y);
+            putDouble(v.z);
+        }
+
+        void putColor(Color c) throws IOException {
+            putInt(c.getRed());
+            putInt(c.getGreen());
+            putInt(c.getBlue());
+        }
+
+        void putFloats(float[] values) throws IOException {
+            putLength(values == null ? -1 : values.length);
+            for(int off=0;values!=null && off<values.length;) {
+                ensure(4);
+                int n = Math.min(buffer.remaining() / 4, values.length - off);
+                buffer.asFloatBuffer().put(values, off, n);
+                buffer.position(buffer.position() + 4*n);
+                off += n;
+            }
+            align();
+        }
+
+        void putDoubles(double[] values) throws IOException {
+            putLength(values == null ? -1 : values.length);
+            for(int off=0;values!=null && off<values.length;) {
+                ensure(8);
+                int n = Math.min(buffer.remaining() / 8, values.length - off);
+                buffer.asDoubleBuffer().put(values, off, n);
+                buffer.position(buffer.position() + 8*n);
+                off += n;
+            }
+            align();
+        }
+
+        void putInts(int[] values) throws IOException {
+            putLength(values == null ? -1 : values.length);
+            for(int off=0;values!=null && off<values.length;) {
+                ensure(4);
+                int n = Math.min(buffer.remaining() / 4, values.length - off);
+                buffer.asIntBuffer().put(values, off, n);
+                buffer.position(buffer.position() + 4*n);
+                off += n;
+            }
+            align();
+        }
+
+        void putTree(BVHTree tree) throws IOException {
+            putFloats(tree.getBounds());
+            putInts(tree.getNodes());
+            putInts(tree.getPrimitives());
+        }
+
+        void putTrack(Animation.Track track) throws IOException {
+            int[] frames = new int[track.size()];
+            double[] positions = new double[3*track.size()];
+            for(int k=0;k<frames.length;k++) {
+                frames[k] = track.getFrame(k);
+                positions[3*k] = track.getPosition(k).x;
+                positions[3*k + 1] = track.getPosition(k).y;
+                positions[3*k + 2] = track.getPosition(k).z;
+            }
+            putInts(frames);
+            putDoubles(positions);
+        }
+
+        /*
+         * Writes what is left in the buffer and returns the size of the file
+         */
+        long finish() throws IOException {
+            flush();
+            return flushed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void putLength(int length) throws IOException {
+            align();
+            putInt(length);
+            putInt(0);
+        }
+
+        private void align() throws IOException {
+            while((flushed + buffer.position()) % 8 != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /*
+     * Little-endian reader over windows of a memory-mapped file
+     */
+    private static class Input implements Closeable {
+        private FileChannel channel;
+        private long size;
+        private ByteBuffer window;
+        private long windowStart;
+        private long position;
+
+        Input(String fileName) throws IOException {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        int getInt() throws IOException {
+            return need(4).getInt();
+        }
+
+        double getDouble() throws IOException {
+            return need(8).getDouble();
+        }
+
+        int getCount() throws IOException {
+            int count = getInt();
+            if(count < 0) {
+                throw new IOException("Negative count");
+            }
+            return count;
+        }
+
+        Vector3d getVector() throws IOException {
+            return new Vector3d(getDouble(), getDouble(), getDouble());
+        }
+
+        Color getColor() throws IOException {
+            return new Color(getInt(), getInt(), getInt());
+        }
+
+        float[] getFloats() throws IOException {
+            int length = getLength(4);
+            if(length < 0) {
+                return null;
+            }
+            float[] values = new float[length];
+            for(int off=0;off<length;) {
+                int n = Math.min(length - off, WINDOW / 4);
+                need(4L*n).asFloatBuffer().get(values, off, n);
+                off += n;
+            }
+            align();
+            return values;
+        }
+
+        double[] getDoubles() throws IOException {
+            int length = getLength(8);
+            if(length < 0) {
+                return null;
+            }
+            double[] values = new double[length];
+            for(int off=0;off<length;) {
+                int n = Math.min(length - off, WINDOW / 8);
+                need(8L*n).asDoubleBuffer().get(values, off, n);
+                off += n;
+            }
+            align();
+            return values;
+        }
+
+        int[] getInts() throws IOException {
+            int length = getLength(4);
+            if(length < 0) {
+                return null;
+            }
+            int[] values = new int[length];
+            for(int off=0;off<length;) {
+                int n = Math.min(length - off, WINDOW / 4);
+                need(4L*n).asIntBuffer().get(values, off, n);
+                off += n;
+            }
+            align();
+            return values;
+        }
+
+        BVHTree getTree(int count) throws IOException {
+            float[] bounds = getFloats();
+            int[] nodes = getInts();
+            int[] primitives = getInts();
+            if(bounds == null || nodes == null || primitives == null) {
+                throw new IOException("Missing tree");
+            }
+            return BVHTree.fromArrays(bounds, nodes, primitives, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /*
+         * Reads an array length and checks that the file is long enough to hold the array
+         */
+        private int getLength(int elementSize) throws IOException {
+            align();
+            int length = getInt();
+            getInt();
+            if(length < -1 || (length > 0 && position + (long) elementSize * length > size)) {
+                throw new IOException("Invalid array length " + length);
+            }
+            return length;
+        }
+
+        private void align() {
+            position = (position + 7) & ~7L;
+        }
+
+        /*
+         * Returns a buffer positioned at the next bytes of the file, mapping a new window if needed
+         */
+        private ByteBuffer need(long bytes) throws IOException {
+            if(position + bytes > size) {
+                throw new IOException("Unexpected end of scene cache");
+            }
+            if(window == null || position < windowStart || position + bytes > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(bytes, WINDOW), size - position));
+            }
+            ByteBuffer view = window.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            view.position((int) (position - windowStart));
+            view.limit((int) (position - windowStart + bytes));
+            position += bytes;
+            return view;
+        }
+    }
+}
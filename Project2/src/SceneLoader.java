@@ -0,0 +1,247 @@
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads a Scene from a scene file. Files ending in SceneCache.EXTENSION are
+ * binary scene caches, everything else is read as a text scene file with
+ * one statement per line:
+ *
+ * camera &lt;width&gt; &lt;height&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;l&gt; &lt;r&gt; &lt;b&gt; &lt;t&gt; &lt;d&gt;
+ * basis &lt;ux&gt; &lt;uy&gt; &lt;uz&gt; &lt;vx&gt; &lt;vy&gt; &lt;vz&gt; &lt;wx&gt; &lt;wy&gt; &lt;wz&gt;
+ * light &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;red&gt; &lt;green&gt; &lt;blue&gt;
+ * material &lt;name&gt; &lt;shininess&gt; &lt;red&gt; &lt;green&gt; &lt;blue&gt;
+ * sphere &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;radius&gt; &lt;material&gt;
+ * mesh &lt;file.obj&gt; &lt;material&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;scale&gt;
+ * instance &lt;file.obj&gt; &lt;material&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt; &lt;scale&gt; &lt;angle&gt;
+ * frames &lt;count&gt;
+ * key camera &lt;frame&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;
+ * key look &lt;frame&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;
+ * key light &lt;frame&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;
+ * key sphere &lt;index&gt; &lt;frame&gt; &lt;x&gt; &lt;y&gt; &lt;z&gt;
+ *
+ * Colors are 0-255. The camera and basis default to the ones of the
+ * hard-coded scene, exactly one light is required, a material has to be
+ * defined before it is used, and mesh files are relative to the scene
+ * file. Blank lines and lines starting with # are ignored.
+ *
+ * An instance places a copy of a mesh that is scaled, turned by angle
+ * degrees around the y axis and moved to x, y, z. Every instance of the
+ * same file shares one TriangleMesh, which is only loaded once.
+ *
+ * A file with a frames statement is an Animation. Each key moves the
+ * camera viewpoint, the point the camera looks at, the light or a sphere
+ * (numbered from 0 in the order of the sphere statements) to a position at
+ * one frame, counted from 0. Keys come after the frames statement and
+ * after the sphere they move.
+ *
+ * @author Brendan Van Allen
+ */
+public class SceneLoader {
+
+    /**
+     * Loads a text scene file or a binary scene cache.
+     *
+     * @param fileName the scene file
+     * @return the loaded Scene
+     * @throws IOException if the file can not be read or is not a valid scene
+     */
+    public static Scene load(String fileName) throws IOException {
+        if(fileName.toLowerCase().endsWith(SceneCache.EXTENSION)) {
+            return SceneCache.read(fileName);
+        }
+
+        Camera defaults = new Camera();
+        double[] camera = null; // width, height, x, y, z, l, r, b, t, d
+        double[] basis = null; // u, v, w
+        Light light = null;
+        Map<String, Material> materials = new HashMap<>();
+        List<Surface> surfaces = new ArrayList<>();
+        List<Sphere> spheres = new ArrayList<>();
+        Map<String, TriangleMesh> instanced = new HashMap<>(); // Shared meshes by file
+        Animation animation = null;
+        File directory = new File(fileName).getAbsoluteFile().getParentFile();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+
+                // Try/catch is used to protect against ArrayIndexOutOfBounds and NumberFormatException
+                try {
+                    switch (tokens[0].toLowerCase()) {
+                        case "camera":
+                            expect(tokens, 11);
+                            camera = numbers(tokens, 1, 10);
+                            if(camera[0] < 1 || camera[1] < 1 || camera[0] != (int) camera[0] || camera[1] != (int) camera[1])
+                                throw new IllegalArgumentException("Resolution must be a positive whole number");
+                            break;
+                        case "basis":
+                            expect(tokens, 10);
+                            basis = numbers(tokens, 1, 9);
+                            break;
+                        case "light":
+                            expect(tokens, 7);
+                            if(light != null)
+                                throw new IllegalArgumentException("Only one light is supported");
+                            double[] l = numbers(tokens, 1, 3);
+                            light = new Light(new Vector3d(l[0], l[1], l[2]), color(tokens, 4));
+                            break;
+                        case "material":
+                            expect(tokens, 6);
+                            if(materials.containsKey(tokens[1]))
+                                throw new IllegalArgumentException("Material " + tokens[1] + " is already defined");
+                            materials.put(tokens[1], new Material(Integer.parseInt(tokens[2]), color(tokens, 3)));
+                            break;
+                        case "sphere":
+                            expect(tokens, 6);
+                            double[] s = numbers(tokens, 1, 4);
+                            Sphere sphere = new Sphere(new Vector3d(s[0], s[1], s[2]), s[3], material(materials, tokens[5]));
+                            surfaces.add(sphere);
+                            spheres.add(sphere);
+                            break;
+                        case "mesh":
+                            expect(tokens, 7);
+                            File obj = new File(tokens[1]);
+                            if(!obj.isAbsolute()) {
+                                obj = new File(directory, tokens[1]);
+                            }
+                            double[] m = numbers(tokens, 3, 4);
+                            surfaces.add(ObjLoader.load(obj.getPath(), material(materials, tokens[2]), m[3],
+                                    new Vector3d(m[0], m[1], m[2])));
+                            break;
+                        case "instance":
+                            expect(tokens, 8);
+                            File shared = new File(tokens[1]);
+                            if(!shared.isAbsolute()) {
+                                shared = new File(directory, tokens[1]);
+                            }
+                            Material instanceMaterial = material(materials, tokens[2]);
+                            double[] placement = numbers(tokens, 3, 5);
+                            TriangleMesh geometry = instanced.get(shared.getCanonicalPath());
+                            if(geometry == null) {
+                                geometry = ObjLoader.load(shared.getPath(), instanceMaterial, 1, new Vector3d());
+                                instanced.put(shared.getCanonicalPath(), geometry);
+                            }
+                            surfaces.add(new Instance(geometry, Instance.placement(new Vector3d(placement[0],
+                                    placement[1], placement[2]), placement[3], placement[4]), instanceMaterial));
+                            break;
+                        case "frames":
+                            expect(tokens, 2);
+                            if(animation != null)
+                                throw new IllegalArgumentException("frames is already defined");
+                            animation = new Animation(Integer.parseInt(tokens[1]));
+                            if(animation.getFrameCount() < 1)
+                                throw new IllegalArgumentException("There has to be at least one frame");
+                            break;
+                        case "key":
+                            if(animation == null)
+                                throw new IllegalArgumentException("key before frames");
+                            boolean isSphere = tokens[1].equalsIgnoreCase("sphere");
+                            expect(tokens, isSphere ? 7 : 6);
+                            int frame = Integer.parseInt(tokens[isSphere ? 3 : 2]);
+                            if(frame < 0 || frame >= animation.getFrameCount())
+                                throw new IllegalArgumentException("Frame " + frame + " is not in the animation");
+                            double[] p = numbers(tokens, isSphere ? 4 : 3, 3);
+                            if(isSphere) {
+                                int index = Integer.parseInt(tokens[2]);
+                                if(index < 0 || index >= spheres.size())
+                                    throw new IllegalArgumentException("Unknown sphere " + index);
+                                animation.addSphereKey(spheres.get(index), frame, new Vector3d(p[0], p[1], p[2]));
+                            } else if(tokens[1].equalsIgnoreCase("camera")) {
+                                animation.addCameraKey(frame, new Vector3d(p[0], p[1], p[2]));
+                            } else if(tokens[1].equalsIgnoreCase("look")) {
+                                animation.addLookAtKey(frame, new Vector3d(p[0], p[1], p[2]));
+                            } else if(tokens[1].equalsIgnoreCase("light")) {
+                                animation.addLightKey(frame, new Vector3d(p[0], p[1], p[2]));
+                            } else {
+                                throw new IllegalArgumentException("Unknown key " + tokens[1]);
+                            }
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown statement " + tokens[0]);
+                    }
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    throw new IOException(fileName + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        if(light == null) {
+            throw new IOException(fileName + ": no light");
+        }
+
+        Scene scene = new Scene(light);
+        for(Surface s : surfaces) {
+            scene.add(s);
+        }
+        if(camera != null || basis != null) {
+            if(camera == null) {
+                camera = new double[]{defaults.getWidth(), defaults.getHeight(), defaults.getViewpoint().x,
+                        defaults.getViewpoint().y, defaults.getViewpoint().z, defaults.getL(), defaults.getR(),
+                        defaults.getB(), defaults.getT(), defaults.getD()};
+            }
+            Vector3d u = basis == null ? defaults.getU() : new Vector3d(basis[0], basis[1], basis[2]);
+            Vector3d v = basis == null ? defaults.getV() : new Vector3d(basis[3], basis[4], basis[5]);
+            Vector3d w = basis == null ? defaults.getW() : new Vector3d(basis[6], basis[7], basis[8]);
+            scene.setCamera(new Camera((int) camera[0], (int) camera[1], camera[5], camera[6], camera[7], camera[8],
+                    camera[9], new Vector3d(camera[2], camera[3], camera[4]), u, v, w));
+        }
+        scene.setAnimation(animation);
+        return scene;
+    }
+
+    /*
+     * Helper method to check the number of tokens of a statement
+     */
+    private static void expect(String[] tokens, int count) {
+        if(tokens.length != count) {
+            throw new IllegalArgumentException(tokens[0] + " takes " + (count - 1) + " values");
+        }
+    }
+
+    /*
+     * Helper method to parse count numbers starting at tokens[first]
+     */
+    private static double[] numbers(String[] tokens, int first, int count) {
+        double[] values = new double[count];
+        for(int k=0;k<count;k++) {
+            values[k] = Double.parseDouble(tokens[first + k]);
+        }
+        return values;
+    }
+
+    /*
+     * Helper method to parse a 0-255 RGB color starting at tokens[first]
+     */
+    private static Color color(String[] tokens, int first) {
+        return new Color(Integer.parseInt(tokens[first]), Integer.parseInt(tokens[first + 1]),
+                Integer.parseInt(tokens[first + 2]));
+    }
+
+    /*
+     * Helper method to look up a material by name
+     */
+    private static Material material(Map<String, Material> materials, String name) {
+        Material m = materials.get(name);
+        if(m == null) {
+            throw new IllegalArgumentException("Unknown material " + name);
+        }
+        return m;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * A mutable HitRecord made of primitive doubles. It is filled in by
+ * Surface.hit(ScratchRay, ScratchHit) instead of allocating a new
+ * HitRecord for every intersection.
+ *
+ * Surfaces that hold other Surfaces (Group, BVH) need a second record to
+ * compare candidates against the closest hit so far, which they get from
+ * child(). The chain is created once per thread and then reused, and it
+ * also carries the traversal stack of a BVH and the ray an Instance moves
+ * into the space of its geometry.
+ *
+ * @author Brendan Van Allen
+ */
+public class ScratchHit {
+    double time;
+    double nx, ny, nz; // Normal
+    double px, py, pz; // Point
+    Surface surface;
+
+    int[] stack = new int[64];
+    double[] stackT = new double[64];
+    double[] rgb = new double[3]; // Shaded color of the hit, see RayTracer.shade
+
+    private ScratchHit child;
+    private ScratchRay localRay;
+
+    /**
+     * Copies another record into this one.
+     *
+     * @param other the record to copy
+     */
+    public void set(ScratchHit other) {
+        time = other.time;
+        nx = other.nx;
+        ny = other.ny;
+        nz = other.nz;
+        px = other.px;
+        py = other.py;
+        pz = other.pz;
+        surface = other.surface;
+    }
+
+    /**
+     * Gets the record one level below this one.
+     *
+     * @return the child record, created on first use
+     */
+    public ScratchHit child() {
+        if(child == null) {
+            child = new ScratchHit();
+        }
+        return child;
+    }
+
+    /**
+     * Gets the ray a Surface traces in its own space at this level.
+     *
+     * @return the ray, created on first use
+     */
+    public ScratchRay localRay() {
+        if(localRay == null) {
+            localRay = new ScratchRay();
+        }
+        return localRay;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public Surface getSurface() {
+        return surface;
+    }
+}
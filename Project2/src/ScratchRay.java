@@ -0,0 +1,52 @@
+import javax.vecmath.Vector3d;
+
+/**
+ * A mutable Ray made of primitive doubles. Each render thread reuses
+ * one ScratchRay for every viewing ray it traces, so the hot path does
+ * not allocate a Ray and two Vector3d objects per pixel.
+ *
+ * The fields are accessed directly by the intersection code. Viewing rays
+ * accept hits at any time, like Ray. Rays that start on a Surface, such as
+ * reflection rays, set a minimum time so the Surfaces behind them and the
+ * one they start on are not hit again.
+ *
+ * The ray also counts the primitive intersection tests done with it. The
+ * count is reset by RenderStats once it has added up every thread.
+ *
+ * @author Brendan Van Allen
+ */
+public class ScratchRay {
+    double ox, oy, oz; // Viewpoint
+    double dx, dy, dz; // Direction
+    double minT = Double.NEGATIVE_INFINITY; // Hits at or before this time are ignored
+    long tests; // Spheres and triangles tested against this ray so far
+
+    /**
+     * Sets the viewpoint and direction of the ray, accepting hits at any time.
+     */
+    public void set(double ox, double oy, double oz, double dx, double dy, double dz) {
+        set(ox, oy, oz, dx, dy, dz, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Sets the viewpoint and direction of the ray, and the time hits must come after.
+     */
+    public void set(double ox, double oy, double oz, double dx, double dy, double dz, double minT) {
+        this.ox = ox;
+        this.oy = oy;
+        this.oz = oz;
+        this.dx = dx;
+        this.dy = dy;
+        this.dz = dz;
+        this.minT = minT;
+    }
+
+    /**
+     * Creates a regular Ray with the same viewpoint and direction.
+     *
+     * @return a new Ray
+     */
+    public Ray toRay() {
+        return new Ray(new Vector3d(ox, oy, oz), new Vector3d(dx, dy, dz));
+    }
+}
@@ -0,0 +1,351 @@
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ScreenBins is a Surface that sorts the Surfaces of a Group into square
+ * tiles of the image, like a rasterizer bins triangles. The box of every
+ * Surface is projected onto the view plane of the Camera, and the Surface
+ * is added to every tile its projection touches. A ray from the viewpoint
+ * through the image, such as every viewing ray, only tests the Surfaces of
+ * its own tile, nearest box first, and stops once the next box is further
+ * away than the closest hit.
+ *
+ * The projection is conservative: boxes are padded and their projections
+ * widened by a pixel, and a Surface whose box crosses the plane of the
+ * viewpoint is tested in every tile. Boxes entirely behind the viewpoint
+ * are binned too, since Surfaces like Sphere report hits at negative
+ * times, which project onto the image the same way. Ties go to the Surface
+ * that was added first, so the hits are exactly the ones of the Group.
+ * Other rays, like shadow and reflection rays, are tested against the
+ * whole Group.
+ *
+ * @author Brendan Van Allen
+ */
+public class ScreenBins implements Surface {
+    public static final int BIN_SIZE = 16; // Width and height of a tile in pixels
+
+    private Group group;
+    private Surface[] surfaces;
+    private Camera camera;
+
+    // The camera as it was when the bins were built
+    private double ex, ey, ez; // Viewpoint
+    private double[] toView = new double[9]; // Rows of the inverse of the basis, from x, y, z to U, V, W
+    private double scaleX, scaleY; // From view plane to pixel coordinates
+    private int columns;
+    private int rows;
+
+    private int[] everywhere; // Surfaces tested in every tile, in Group order
+    private int[] binStart; // First entry of every tile in binned, plus the end
+    private int[] binned; // The Surfaces of every tile, nearest box first
+    private double[] nearDepth; // Least depth along -W of a corner of every box, negative behind the viewpoint
+
+    /**
+     * Bins the Surfaces of a Group for the Camera of a Scene.
+     *
+     * @param scene the Scene whose Camera the bins are built for
+     * @param group the Surfaces, which are also tested by every ray that isn't binned
+     */
+    public ScreenBins(Scene scene, Group group) {
+        this.group = group;
+        this.camera = scene.getCamera();
+        build();
+    }
+
+    /**
+     * Builds the bins again after Surfaces or the Camera moved, e.g. for the
+     * next frame of an Animation. Until then, rays from a moved viewpoint
+     * are tested against the whole Group.
+     */
+    public void refit() {
+        build();
+    }
+
+    /*
+     * Helper method to project every box and fill the tiles
+     */
+    private void build() {
+        List<Surface> list = group.getSurfaces();
+        surfaces = list.toArray(new Surface[0]);
+        int width = camera.getWidth();
+        int height = camera.getHeight();
+        columns = (width + BIN_SIZE - 1) / BIN_SIZE;
+        rows = (height + BIN_SIZE - 1) / BIN_SIZE;
+
+        ex = camera.getViewpoint().x;
+        ey = camera.getViewpoint().y;
+        ez = camera.getViewpoint().z;
+        Matrix3d basis = new Matrix3d();
+        basis.setColumn(0, camera.getU());
+        basis.setColumn(1, camera.getV());
+        basis.setColumn(2, camera.getW());
+        basis.invert();
+        for(int k=0;k<9;k++) {
+            toView[k] = basis.getElement(k / 3, k % 3);
+        }
+        scaleX = width / (camera.getR() - camera.getL());
+        scaleY = height / (camera.getT() - camera.getB());
+
+        // The tiles every Surface touches, or -1 for every tile
+        int[] firstColumn = new int[surfaces.length];
+        int[] lastColumn = new int[surfaces.length];
+        int[] firstRow = new int[surfaces.length];
+        int[] lastRow = new int[surfaces.length];
+        nearDepth = new double[surfaces.length];
+        int everywhereCount = 0;
+        for(int p=0;p<surfaces.length;p++) {
+            if(!project(surfaces[p].boundingBox(), p, firstColumn, lastColumn, firstRow, lastRow)) {
+                firstColumn[p] = -1;
+                everywhereCount++;
+            }
+        }
+
+        everywhere = new int[everywhereCount];
+        int[] counts = new int[columns*rows];
+        everywhereCount = 0;
+        for(int p=0;p<surfaces.length;p++) {
+            if(firstColumn[p] < 0) {
+                everywhere[everywhereCount++] = p;
+                continue;
+            }
+            for(int row=firstRow[p];row<=lastRow[p];row++) {
+                for(int column=firstColumn[p];column<=lastColumn[p];column++) {
+                    counts[row*columns + column]++;
+                }
+            }
+        }
+        binStart = new int[columns*rows + 1];
+        for(int k=0;k<columns*rows;k++) {
+            binStart[k + 1] = binStart[k] + counts[k];
+        }
+
+        // Adding the Surfaces nearest first leaves every tile sorted by depth
+        Integer[] byDepth = new Integer[surfaces.length];
+        for(int p=0;p<surfaces.length;p++) {
+            byDepth[p] = p;
+        }
+        Arrays.sort(byDepth, (a, b) -> Double.compare(nearDepth[a], nearDepth[b]));
+        binned = new int[binStart[columns*rows]];
+        int[] filled = new int[columns*rows];
+        for(int p : byDepth) {
+            if(firstColumn[p] < 0) {
+                continue;
+            }
+            for(int row=firstRow[p];row<=lastRow[p];row++) {
+                for(int column=firstColumn[p];column<=lastColumn[p];column++) {
+                    int bin = row*columns + column;
+                    binned[binStart[bin] + filled[bin]++] = p;
+                }
+            }
+        }
+    }
+
+    /*
+     * Helper method to find the tiles the box of Surface p projects onto.
+     * Returns false if the box crosses or touches the plane of the
+     * viewpoint, so the Surface has to be tested in every tile.
+     */
+    private boolean project(BoundingBox box, int p, int[] firstColumn, int[] lastColumn, int[] firstRow, int[] lastRow) {
+        if(box == null) {
+            // Empty Surfaces are never hit, so they aren't in any tile
+            firstColumn[p] = 0;
+            lastColumn[p] = -1;
+            return true;
+        }
+        if(camera.getD() <= 0) {
+            return false;
+        }
+        Vector3d min = box.getMin();
+        Vector3d max = box.getMax();
+
+        // Pad the box a little so round-off can't move a Surface out of a tile, like BVH does
+        double pad = 1e-7 * Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z)) + 1e-12;
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double near = Double.POSITIVE_INFINITY;
+        double far = Double.NEGATIVE_INFINITY;
+        for(int corner=0;corner<8;corner++) {
+            double x = ((corner & 1) == 0 ? min.x - pad : max.x + pad) - ex;
+            double y = ((corner & 2) == 0 ? min.y - pad : max.y + pad) - ey;
+            double z = ((corner & 4) == 0 ? min.z - pad : max.z + pad) - ez;
+            double depth = -view(2, x, y, z);
+            double px = pixelX(view(0, x, y, z), depth);
+            double py = pixelY(view(1, x, y, z), depth);
+            minX = Math.min(minX, px);
+            maxX = Math.max(maxX, px);
+            minY = Math.min(minY, py);
+            maxY = Math.max(maxY, py);
+            near = Math.min(near, depth);
+            far = Math.max(far, depth);
+        }
+        // A point and its projection are on the same line through the viewpoint, in front of it or behind it
+        if(!(near > 0 || far < 0)) {
+            return false;
+        }
+        nearDepth[p] = near;
+
+        // A box entirely off the image gets an empty range of tiles
+        firstColumn[p] = (int) Math.max(0, Math.floor((minX - 1) / BIN_SIZE));
+        lastColumn[p] = (int) Math.min(columns - 1, Math.floor((maxX + 1) / BIN_SIZE));
+        firstRow[p] = (int) Math.max(0, Math.floor((minY - 1) / BIN_SIZE));
+        lastRow[p] = (int) Math.min(rows - 1, Math.floor((maxY + 1) / BIN_SIZE));
+        if(firstColumn[p] > lastColumn[p] || firstRow[p] > lastRow[p]) {
+            firstColumn[p] = 0;
+            lastColumn[p] = -1;
+        }
+        return true;
+    }
+
+    /*
+     * Helper method to find the tile a ray passes through, or -1 if it
+     * doesn't start at the viewpoint or misses the image
+     */
+    private int bin(double ox, double oy, double oz, double dx, double dy, double dz) {
+        if(ox != ex || oy != ey || oz != ez) {
+            return -1;
+        }
+        double depth = -view(2, dx, dy, dz);
+        if(!(depth > 0) || camera.getD() <= 0) {
+            return -1;
+        }
+        double px = pixelX(view(0, dx, dy, dz), depth);
+        double py = pixelY(view(1, dx, dy, dz), depth);
+        if(!(px >= 0 && px < camera.getWidth() && py >= 0 && py < camera.getHeight())) {
+            return -1;
+        }
+        return ((int) py / BIN_SIZE) * columns + (int) px / BIN_SIZE;
+    }
+
+    /*
+     * Helper method to get the U, V or W coordinate of a vector
+     */
+    private double view(int axis, double x, double y, double z) {
+        return toView[3*axis] * x + toView[3*axis + 1] * y + toView[3*axis + 2] * z;
+    }
+
+    /*
+     * Helper methods to get the image coordinates of a point of the view space,
+     * the inverse of Camera.computeViewingRay
+     */
+    private double pixelX(double u, double depth) {
+        return (camera.getD() * u / depth - camera.getL()) * scaleX;
+    }
+
+    private double pixelY(double v, double depth) {
+        return (camera.getD() * v / depth - camera.getB()) * scaleY;
+    }
+
+    @Override
+    /**
+     * Determines if the given Ray intersects any Surface of the Group.
+     *
+     * @param vr the viewing ray
+     * @return the same HitRecord Group.hit returns, or null if nothing is hit
+     */
+    public HitRecord hit(Ray vr) {
+        Vector3d e = vr.getViewpoint();
+        Vector3d d = vr.getDirection();
+        int bin = bin(e.x, e.y, e.z, d.x, d.y, d.z);
+        if(bin < 0) {
+            return group.hit(vr);
+        }
+        double depthPerTime = -view(2, d.x, d.y, d.z);
+
+        // Same starting value as Group so both return the same HitRecord
+        double closestT = Integer.MAX_VALUE;
+        HitRecord closestHit = null;
+        int closestIndex = -1;
+        for(int k=0;k<everywhere.length+binStart[bin+1]-binStart[bin];k++) {
+            int p;
+            if(k < everywhere.length) {
+                p = everywhere[k];
+            } else {
+                p = binned[binStart[bin] + k - everywhere.length];
+                // Every Surface left can only be hit later than the closest hit
+                if(nearDepth[p] / depthPerTime > closestT) {
+                    break;
+                }
+            }
+            HitRecord hit = surfaces[p].hit(vr);
+            if(hit != null) {
+                // Ties go to the Surface that was added first, just like the linear scan
+                if(closestT > hit.getTime() || (closestHit != null && closestT == hit.getTime() && p < closestIndex)) {
+                    closestT = hit.getTime();
+                    closestHit = hit;
+                    closestIndex = p;
+                }
+            }
+        }
+        return closestHit;
+    }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        int bin = bin(vr.ox, vr.oy, vr.oz, vr.dx, vr.dy, vr.dz);
+        if(bin < 0) {
+            return group.hit(vr, rec);
+        }
+        double depthPerTime = -view(2, vr.dx, vr.dy, vr.dz);
+
+        double closestT = Integer.MAX_VALUE;
+        int closestIndex = -1;
+        ScratchHit candidate = rec.child();
+        for(int k=0;k<everywhere.length+binStart[bin+1]-binStart[bin];k++) {
+            int p;
+            if(k < everywhere.length) {
+                p = everywhere[k];
+            } else {
+                p = binned[binStart[bin] + k - everywhere.length];
+                if(nearDepth[p] / depthPerTime > closestT) {
+                    break;
+                }
+            }
+            if(surfaces[p].hit(vr, candidate)) {
+                if(closestT > candidate.time || (closestIndex >= 0 && closestT == candidate.time && p < closestIndex)) {
+                    closestT = candidate.time;
+                    closestIndex = p;
+                    rec.set(candidate);
+                }
+            }
+        }
+        return closestIndex >= 0;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        // Shadow rays start on a Surface, not at the viewpoint
+        return group.occluded(ray, maxT, rec);
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        return group.boundingBox();
+    }
+
+    @Override
+    public Material getMaterial() {
+        return null;
+    }
+
+    public int getBinCount() {
+        return columns*rows;
+    }
+
+    /**
+     * @return the number of Surfaces tested in every tile
+     */
+    public int getEverywhereCount() {
+        return everywhere.length;
+    }
+
+    /**
+     * @return the average number of Surfaces a tile holds, not counting the ones tested in every tile
+     */
+    public double getAverageCandidates() {
+        return (double) binned.length / (columns*rows);
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled shading inputs of a Scene: one LightRecord for its Light and
+ * one MaterialRecord for every distinct Material. Compiling gives every
+ * Material an id, which is its index in the record array, so a hit finds
+ * its record with a single array read. The Materials are collected from
+ * every Surface of the Scene, including those inside nested Groups, BVHs
+ * and the geometry of Instances.
+ *
+ * @author Brendan Van Allen
+ */
+public final class ShadingTable {
+    private final LightRecord light;
+    private final MaterialRecord[] records;
+    private final double tolerance;
+    private final Map<Material, MaterialRecord> added = new ConcurrentHashMap<>(); // Materials added after compiling
+
+    /**
+     * Compiles the Light and Materials of a Scene.
+     *
+     * @param scene the Scene to compile
+     * @param tolerance the largest error allowed in the specular term, or 0 to always use Math.pow
+     */
+    public ShadingTable(Scene scene, double tolerance) {
+        this.light = new LightRecord(scene.getLightSource());
+        this.tolerance = tolerance;
+
+        List<Material> materials = new ArrayList<>();
+        CachedSurfaces cached = scene.getCachedSurfaces();
+        if(cached != null) {
+            // The cache has a table of every Material, so its spheres don't have to be made
+            for(Material m : cached.getMaterials()) {
+                add(m, materials);
+            }
+        } else {
+            collect(scene.getSurfaces(), materials);
+        }
+        records = new MaterialRecord[materials.size()];
+        for(int k=0;k<records.length;k++) {
+            records[k] = new MaterialRecord(materials.get(k), light, tolerance);
+        }
+    }
+
+    /**
+     * Gets the record of a Material.
+     *
+     * @param material the Material of a hit Surface
+     * @return its compiled record
+     */
+    public MaterialRecord get(Material material) {
+        int id = material.getId();
+        if(id >= 0 && id < records.length && records[id].getMaterial() == material) {
+            return records[id];
+        }
+
+        // Not part of the Scene when it was compiled (or compiled for another Scene since), so compile it once now
+        return added.computeIfAbsent(material, m -> new MaterialRecord(m, light, tolerance));
+    }
+
+    public LightRecord getLight() {
+        return light;
+    }
+
+    public int getMaterialCount() {
+        return records.length;
+    }
+
+    /*
+     * Helper method to give every distinct Material of a Surface, and of the Surfaces it holds, an id
+     */
+    private static void collect(Surface surface, List<Material> materials) {
+        if(surface instanceof Group) {
+            for(Surface s : ((Group) surface).getSurfaces()) {
+                collect(s, materials);
+            }
+            return;
+        } else if(surface instanceof BVH) {
+            for(Surface s : ((BVH) surface).getSurfaces()) {
+                collect(s, materials);
+            }
+            return;
+        } else if(surface instanceof Instance) {
+            // The geometry keeps its own Material, which other Instances of it can be shaded with
+            collect(((Instance) surface).getGeometry(), materials);
+        }
+
+        Material m = surface.getMaterial();
+        if(m != null) {
+            add(m, materials);
+        }
+    }
+
+    /*
+     * Helper method to give a Material an id, unless it already has one in this table
+     */
+    private static void add(Material m, List<Material> materials) {
+        int id = m.getId();
+        if(id < 0 || id >= materials.size() || materials.get(id) != m) {
+            m.setId(materials.size());
+            materials.add(m);
+        }
+    }
+}
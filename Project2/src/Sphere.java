@@ -17,6 +17,16 @@ public class Sphere implements Surface{
         this.material = material;
     }
 
+    /**
+     * Moves the sphere, e.g. to the next frame of an Animation. Structures
+     * built over the sphere have to be refit afterwards.
+     *
+     * @param center the new center
+     */
+    public void setCenter(Vector3d center) {
+        this.center = center;
+    }
+
     @Override
     /**
      * Determines if the given Ray intersects this sphere.
@@ -28,6 +38,7 @@ public class Sphere implements Surface{
      * then the return value is null.
      */
     public HitRecord hit(Ray vr) {
+        vr.tests++;
         // Make a copy of the viewpoint vector so we don't change its state
         Vector3d temp = new Vector3d(vr.getViewpoint());
 
@@ -62,7 +73,117 @@ public class Sphere implements Surface{
         return hr;
     }
 
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        vr.tests++;
+        double time = intersect(vr, center.x, center.y, center.z, radius);
+        if(Double.isNaN(time)) {
+            return false;
+        }
+        fill(vr, time, center.x, center.y, center.z, rec);
+        rec.surface = this;
+        return true;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        ray.tests++;
+        if(blocks(ray, maxT, center.x, center.y, center.z, radius)) {
+            rec.surface = this;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Helper method with the computation of hit(Ray), with every vector spelled out in doubles, for a
+     * sphere given by its center and radius. Returns the time of the nearest hit after vr.minT, or NaN.
+     */
+    static double intersect(ScratchRay vr, double cx, double cy, double cz, double radius) {
+        double tempX = vr.ox - cx; // (e - c)
+        double tempY = vr.oy - cy;
+        double tempZ = vr.oz - cz;
+
+        double dDotTemp = vr.dx * tempX + vr.dy * tempY + vr.dz * tempZ; // (d . (e-c))
+        double dDotD = vr.dx * vr.dx + vr.dy * vr.dy + vr.dz * vr.dz;
+
+        double discriminant = dDotTemp * dDotTemp - dDotD * ((tempX * tempX + tempY * tempY + tempZ * tempZ) - radius*radius);
+        if(discriminant < 0) {
+            return Double.NaN;
+        }
+
+        double t1 = ( -dDotTemp + Math.sqrt(discriminant)) / dDotD;
+        double t2 = ( -dDotTemp - Math.sqrt(discriminant)) / dDotD;
+        double time = Math.min(t1,t2);
+        if(time <= vr.minT) {
+            // The ray starts inside or past the near side
+            time = Math.max(t1,t2);
+            if(time <= vr.minT) {
+                return Double.NaN;
+            }
+        }
+        return time;
+    }
+
+    /*
+     * Helper method to fill in the point and normal of a hit at the given time
+     */
+    static void fill(ScratchRay vr, double time, double cx, double cy, double cz, ScratchHit rec) {
+        // p = e + t*d
+        rec.time = time;
+        rec.px = vr.ox + vr.dx * time;
+        rec.py = vr.oy + vr.dy * time;
+        rec.pz = vr.oz + vr.dz * time;
+
+        // 2(p - c), normalized
+        double nx = (rec.px - cx) * 2;
+        double ny = (rec.py - cy) * 2;
+        double nz = (rec.pz - cz) * 2;
+        double norm = 1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz);
+        rec.nx = nx * norm;
+        rec.ny = ny * norm;
+        rec.nz = nz * norm;
+    }
+
+    /*
+     * Helper method to test if a sphere given by its center and radius lies between the surface point and the light
+     */
+    static boolean blocks(ScratchRay ray, double maxT, double cx, double cy, double cz, double radius) {
+        double tempX = ray.ox - cx;
+        double tempY = ray.oy - cy;
+        double tempZ = ray.oz - cz;
+
+        double dDotTemp = ray.dx * tempX + ray.dy * tempY + ray.dz * tempZ;
+        double dDotD = ray.dx * ray.dx + ray.dy * ray.dy + ray.dz * ray.dz;
+
+        double discriminant = dDotTemp * dDotTemp - dDotD * ((tempX * tempX + tempY * tempY + tempZ * tempZ) - radius*radius);
+        if(discriminant < 0) {
+            return false;
+        }
+
+        // Unlike hit, either root counts as long as it lies between the surface point and the light
+        double t1 = ( -dDotTemp - Math.sqrt(discriminant)) / dDotD;
+        double t2 = ( -dDotTemp + Math.sqrt(discriminant)) / dDotD;
+        return (t1 > SHADOW_EPSILON && t1 < maxT) || (t2 > SHADOW_EPSILON && t2 < maxT);
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        Vector3d min = new Vector3d(center.x - radius, center.y - radius, center.z - radius);
+        Vector3d max = new Vector3d(center.x + radius, center.y + radius, center.z + radius);
+        return new BoundingBox(min, max);
+    }
+
+    @Override
     public Material getMaterial() {
         return material;
     }
+
+    public Vector3d getCenter() {
+        return center;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
 }
@@ -0,0 +1,22 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules the image as square Tiles, left to right, then top to bottom.
+ * Tiles on the right and bottom edges are clipped to the image.
+ *
+ * @author Brendan Van Allen
+ */
+public class SquareTileScheduler implements TileScheduler {
+
+    @Override
+    public List<Tile> schedule(int width, int firstRow, int rows, int tileSize) {
+        List<Tile> tiles = new ArrayList<>();
+        for(int y=firstRow;y<firstRow+rows;y+=tileSize) {
+            for(int x=0;x<width;x+=tileSize) {
+                tiles.add(new Tile(x, y, Math.min(tileSize, width - x), Math.min(tileSize, firstRow + rows - y)));
+            }
+        }
+        return tiles;
+    }
+}
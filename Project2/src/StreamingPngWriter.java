@@ -0,0 +1,241 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image band by band while the rest of the image is still
+ * being rendered. Each band of scanlines is filtered and deflated on its
+ * own thread, and the compressed bands are appended to the file in order.
+ *
+ * Only a bounded number of bands are held in memory at once, so memory use
+ * depends on the band height and not on the size of the image.
+ *
+ * The deflate streams of the bands are joined like pigz does: every band
+ * but the last ends with a sync flush, so the pieces concatenate into one
+ * valid zlib stream, and the Adler-32 checksums of the bands are combined
+ * into the checksum of the whole image.
+ *
+ * @author Brendan Van Allen
+ */
+public class StreamingPngWriter {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int ADLER_BASE = 65521;
+    private static final int FILTER_SUB = 1;
+
+    private DataOutputStream out;
+    private ExecutorService deflaters;
+    private ArrayDeque<Future<Band>> pending = new ArrayDeque<>();
+    private int maxPending;
+    private int width;
+    private int height;
+    private int rowsAdded = 0;
+    private long adler = 1; // Adler-32 of an empty stream
+    private boolean headerWritten = false;
+
+    /**
+     * Creates the PNG file and writes its header.
+     *
+     * @param fileName the name of the file to write
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     * @param threads the number of threads used to deflate bands
+     * @throws IOException if the file can not be written
+     */
+    public StreamingPngWriter(String fileName, int width, int height, int threads) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.maxPending = threads + 1;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        deflaters = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "png-deflate");
+            t.setDaemon(true);
+            return t;
+        });
+
+        out.write(SIGNATURE);
+
+        // IHDR: 8 bits per channel, truecolor, no interlacing
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = 2;
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    /**
+     * Adds the next band of scanlines. Bands must be added top to bottom.
+     * The call returns as soon as the band is queued for compression, unless
+     * too many bands are already waiting, in which case it waits for the oldest.
+     *
+     * @param pixels RGB values of the band, one int per pixel in row-major order
+     * @param rows the number of scanlines in the band
+     * @throws IOException if the file can not be written
+     */
+    public void addBand(int[] pixels, int rows) throws IOException {
+        rowsAdded += rows;
+        boolean last = rowsAdded == height;
+        pending.add(deflaters.submit(() -> compress(pixels, rows, last)));
+
+        // Write every band that is already done, and wait if too many are in flight
+        while(!pending.isEmpty() && (pending.peek().isDone() || pending.size() > maxPending)) {
+            writeBand(pending.poll());
+        }
+    }
+
+    /**
+     * Writes the remaining bands and the end of the file, then closes it.
+     *
+     * @throws IOException if the file can not be written or not every row was added
+     */
+    public void finish() throws IOException {
+        try {
+            while(!pending.isEmpty()) {
+                writeBand(pending.poll());
+            }
+            if(rowsAdded != height) {
+                throw new IOException("Only " + rowsAdded + " of " + height + " rows were added");
+            }
+
+            // The zlib stream ends with the Adler-32 of all uncompressed data
+            byte[] checksum = new byte[4];
+            putInt(checksum, 0, (int) adler);
+            writeChunk("IDAT", checksum, checksum.length);
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            deflaters.shutdown();
+            out.close();
+        }
+    }
+
+    /*
+     * A compressed band waiting to be written
+     */
+    private static class Band {
+        byte[] data;
+        int length;
+        long adler;
+        long rawLength;
+    }
+
+    /*
+     * Filters and deflates one band, runs on a deflate thread
+     */
+    private Band compress(int[] pixels, int rows, boolean last) {
+        int stride = 3*width + 1;
+        byte[] raw = new byte[stride*rows];
+        for(int y=0;y<rows;y++) {
+            int r = y*stride;
+            raw[r] = FILTER_SUB;
+
+            // Sub filter: every byte is stored as the difference to the same channel of the pixel to its left
+            int previous = 0;
+            for(int x=0;x<width;x++) {
+                int rgb = pixels[y*width + x];
+                raw[r + 1 + 3*x] = (byte) ((rgb >> 16) - (previous >> 16));
+                raw[r + 2 + 3*x] = (byte) ((rgb >> 8) - (previous >> 8));
+                raw[r + 3 + 3*x] = (byte) (rgb - previous);
+                previous = rgb;
+            }
+        }
+
+        Band band = new Band();
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, 0, raw.length);
+        band.adler = checksum.getValue();
+        band.rawLength = raw.length;
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(raw);
+        byte[] data = new byte[raw.length / 2 + 64];
+        int length = 0;
+        if(last) {
+            deflater.finish();
+        }
+        while(true) {
+            if(length == data.length) {
+                data = Arrays.copyOf(data, 2*data.length);
+            }
+            length += deflater.deflate(data, length, data.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+
+            // Space left in the buffer means everything was flushed
+            if(length < data.length && (!last || deflater.finished())) {
+                break;
+            }
+        }
+        deflater.end();
+
+        band.data = data;
+        band.length = length;
+        return band;
+    }
+
+    /*
+     * Waits for a band to be compressed and appends it to the file
+     */
+    private void writeBand(Future<Band> future) throws IOException {
+        Band band;
+        try {
+            band = future.get();
+        } catch (Exception e) {
+            throw new IOException("Could not compress band", e);
+        }
+
+        if(!headerWritten) {
+            // zlib header for a deflate stream with a 32K window and default compression
+            byte[] header = {0x78, (byte) 0x9C};
+            writeChunk("IDAT", header, header.length);
+            headerWritten = true;
+        }
+        writeChunk("IDAT", band.data, band.length);
+        adler = combineAdler(adler, band.adler, band.rawLength);
+    }
+
+    /*
+     * Writes a PNG chunk: length, type, data and the CRC of type and data
+     */
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /*
+     * Computes the Adler-32 of two pieces of data from the checksums of each piece
+     * (the same math as adler32_combine in zlib)
+     */
+    private static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if(sum2 >= (2L * ADLER_BASE)) sum2 -= 2L * ADLER_BASE;
+        if(sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
@@ -5,6 +5,7 @@
  * @author Brendan Van Allen
  */
 public interface Surface {
+    double SHADOW_EPSILON = 1e-6; // Blockers closer than this to the start of a shadow ray are ignored, so a Surface can't shadow itself
 
     /**
      * The only required method for a Surface.
@@ -13,4 +14,40 @@ public interface Surface {
      * @return HitRecord that holds information about Ray-Surface intersection.
      */
     HitRecord hit(Ray vr);
+
+    /**
+     * Allocation-free version of hit(Ray). Must find exactly the same
+     * intersection as hit(Ray) would for the same ray.
+     *
+     * @param vr the viewing ray
+     * @param rec the record the intersection is written to
+     * @return true if the ray intersects the Surface, false if rec was left untouched
+     */
+    boolean hit(ScratchRay vr, ScratchHit rec);
+
+    /**
+     * Any-hit query for shadow rays. Returns as soon as any part of the
+     * Surface is found between SHADOW_EPSILON and maxT along the ray, without
+     * looking for the closest intersection or computing a normal.
+     *
+     * @param ray the shadow ray
+     * @param maxT the time at which the ray reaches the light
+     * @param rec scratch record for traversal stacks; on true, rec.surface is set to the blocker
+     * @return true if something blocks the ray before maxT
+     */
+    boolean occluded(ScratchRay ray, double maxT, ScratchHit rec);
+
+    /**
+     * Computes an axis-aligned box that contains the whole Surface.
+     *
+     * @return the bounds of the Surface, or null if the Surface is empty
+     */
+    BoundingBox boundingBox();
+
+    /**
+     * Gets the Material used to shade a hit on this Surface.
+     *
+     * @return the Material, or null for Surfaces that only hold other Surfaces
+     */
+    Material getMaterial();
 }
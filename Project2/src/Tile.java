@@ -0,0 +1,35 @@
+/**
+ * A Tile is a rectangular block of pixels that is rendered
+ * as a single unit of work by the TileRenderer.
+ *
+ * @author Brendan Van Allen
+ */
+public class Tile {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+
+    public Tile(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,63 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Draws the cost of every Tile of a render as an image the size of the
+ * rendered one. Each Tile is filled with the time it took per pixel, from
+ * blue for the cheapest Tile to red for the most expensive one. Tiles that
+ * were traced more than once, e.g. in every frame of an Animation, show
+ * their total time.
+ *
+ * @author Brendan Van Allen
+ */
+public class TileHeatmap {
+    private TileHeatmap() {
+    }
+
+    /**
+     * Writes the heatmap of a render to a PNG file.
+     *
+     * @param tileTimes the time spent on every Tile
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     * @param fileName the PNG file to write
+     * @return the largest time per pixel of any Tile, in nanoseconds
+     * @throws IOException if the file can't be written
+     */
+    public static double write(List<TileTime> tileTimes, int width, int height, String fileName) throws IOException {
+        // Nanoseconds per pixel, added up for Tiles that were traced more than once
+        double[] cost = new double[width*height];
+        for(TileTime time : tileTimes) {
+            Tile tile = time.getTile();
+            double perPixel = (double) time.getNanos() / (tile.getWidth()*tile.getHeight());
+            for(int j=tile.getY();j<tile.getY()+tile.getHeight();j++) {
+                for(int i=tile.getX();i<tile.getX()+tile.getWidth();i++) {
+                    cost[j*width + i] += perPixel;
+                }
+            }
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = 0;
+        for(double c : cost) {
+            min = Math.min(min, c);
+            max = Math.max(max, c);
+        }
+
+        int[] pixels = new int[width*height];
+        for(int k=0;k<pixels.length;k++) {
+            // Hue from 2/3 (blue) down to 0 (red)
+            double s = max > min ? (cost[k] - min) / (max - min) : 0;
+            pixels[k] = Color.HSBtoRGB((float) (2.0 / 3 * (1 - s)), 1, 1);
+        }
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        img.setRGB(0, 0, width, height, pixels, 0, width);
+        ImageIO.write(img, "png", new File(fileName));
+        return max;
+    }
+}
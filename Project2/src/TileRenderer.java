@@ -0,0 +1,190 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders a Scene on several threads. The image is split into Tiles
+ * by a TileScheduler, and every thread of a ForkJoinPool takes the next
+ * Tile of the list from a shared counter until none are left. The Tiles
+ * are started in exactly the scheduled order, so the most expensive Tiles
+ * of a cost schedule go first and the cheap ones fill in at the end.
+ *
+ * Every pixel is traced exactly as the single-threaded loop in RayTracer
+ * traces it, so the resulting image is identical.
+ *
+ * The wall time of every Tile is recorded in the TraceContext of the thread
+ * that traced it, and each Tile is a Flight Recorder event when a
+ * recording asks for RenderEvents.
+ *
+ * @author Brendan Van Allen
+ */
+public class TileRenderer {
+    private Scene scene;
+    private Surface surfaces;
+    private RenderOptions options;
+    private ForkJoinPool pool;
+    private WavefrontTracer wavefront; // Null unless the options select it
+
+    /**
+     * @param scene the Scene to render
+     * @param surfaces the Surfaces viewing rays are tested against
+     * @param options the thread count and render path to use
+     */
+    public TileRenderer(Scene scene, Surface surfaces, RenderOptions options) {
+        this.scene = scene;
+        this.surfaces = surfaces;
+        this.options = options;
+        this.pool = new ForkJoinPool(options.getThreads());
+        this.wavefront = options.isWavefront() ? new WavefrontTracer(scene, surfaces, options) : null;
+    }
+
+    /**
+     * Renders all of the given Tiles.
+     *
+     * @param tiles the Tiles to render, in scheduled order
+     * @param pixels RGB values of the image, one int per pixel in row-major order
+     * @param width the width of the image in pixels
+     */
+    public void render(List<Tile> tiles, int[] pixels, int width) {
+        render(tiles, pixels, width, 0);
+    }
+
+    /**
+     * Renders all of the given Tiles into a buffer that only holds part of the image.
+     *
+     * @param tiles the Tiles to render, in scheduled order
+     * @param pixels RGB values of the rows starting at firstRow, one int per pixel in row-major order
+     * @param width the width of the image in pixels
+     * @param firstRow the row of the image stored at the start of pixels
+     */
+    public void render(List<Tile> tiles, int[] pixels, int width, int firstRow) {
+        renderTiles(tiles, pixels, width, firstRow, null);
+    }
+
+    /**
+     * Renders all of the given Tiles into an HdrFramebuffer. Every Tile is
+     * traced by one thread, so no two threads add to the same pixel.
+     *
+     * @param tiles the Tiles to render, in scheduled order
+     * @param hdr the framebuffer the linear colors are added to
+     */
+    public void render(List<Tile> tiles, HdrFramebuffer hdr) {
+        renderTiles(tiles, null, hdr.getWidth(), 0, hdr);
+    }
+
+    /*
+     * Helper method to start one TileTask per thread on the shared counter and wait for all of them
+     */
+    private void renderTiles(List<Tile> tiles, int[] pixels, int width, int firstRow, HdrFramebuffer hdr) {
+        AtomicInteger next = new AtomicInteger();
+        TileTask[] tasks = new TileTask[pool.getParallelism()];
+        for(int k=0;k<tasks.length;k++) {
+            tasks[k] = new TileTask(tiles, next, pixels, width, firstRow, hdr);
+            pool.execute(tasks[k]);
+        }
+        for(TileTask task : tasks) {
+            task.join();
+        }
+    }
+
+    /**
+     * Stops the render threads once the last render is done.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Traces every pixel of a single Tile on the calling thread.
+     *
+     * @param tile the Tile to trace
+     * @param out the array the RGB values are written to
+     * @param offset the index in out of the top left pixel of the Tile
+     * @param stride the distance in out between two rows
+     */
+    public void traceTile(Tile tile, int[] out, int offset, int stride) {
+        traceTile(tile, out, offset, stride, null);
+    }
+
+    /**
+     * Traces every pixel of a single Tile on the calling thread into an HdrFramebuffer.
+     *
+     * @param tile the Tile to trace
+     * @param hdr the framebuffer the linear colors are added to
+     */
+    public void traceTile(Tile tile, HdrFramebuffer hdr) {
+        traceTile(tile, null, 0, 0, hdr);
+    }
+
+    /*
+     * Traces a Tile into out, or into hdr if it isn't null, and records how long it took
+     */
+    private void traceTile(Tile tile, int[] out, int offset, int stride, HdrFramebuffer hdr) {
+        TraceContext context = TraceContext.current();
+        Object event = RenderEvents.beginTile();
+        long rays = context.primaryRays + context.secondaryRays;
+        long tests = context.getRay().tests + context.getPacket().tests;
+        long start = System.nanoTime();
+
+        if(hdr != null) {
+            if(options.isAdaptive()) {
+                AdaptiveSampler.traceTile(scene, surfaces, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(),
+                        hdr, options, context);
+            } else if(wavefront != null) {
+                wavefront.traceTile(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), hdr, context);
+            } else {
+                for(int j=0;j<tile.getHeight();j++) {
+                    RayTracer.traceRow(scene, surfaces, tile.getY() + j, tile.getX(), tile.getX() + tile.getWidth(),
+                            hdr, options, context);
+                }
+            }
+        } else if(options.isAdaptive()) {
+            AdaptiveSampler.traceTile(scene, surfaces, tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(),
+                    out, offset, stride, options, context);
+        } else if(wavefront != null) {
+            wavefront.traceTile(tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight(), out, offset, stride, context);
+        } else {
+            for(int j=0;j<tile.getHeight();j++) {
+                RayTracer.traceRow(scene, surfaces, tile.getY() + j, tile.getX(), tile.getX() + tile.getWidth(),
+                        out, offset + j*stride, options, context);
+            }
+        }
+
+        context.countTile(tile, System.nanoTime() - start);
+        RenderEvents.commitTile(event, tile, context.primaryRays + context.secondaryRays - rays,
+                context.getRay().tests + context.getPacket().tests - tests);
+    }
+
+    /*
+     * Traces Tiles on one thread of the pool, taking the next one from the
+     * shared counter until every Tile of the list has been taken
+     */
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction {
+        private List<Tile> tiles;
+        private AtomicInteger next;
+        private int[] pixels;
+        private int width;
+        private int firstRow;
+        private HdrFramebuffer hdr; // Null to render into pixels
+
+        TileTask(List<Tile> tiles, AtomicInteger next, int[] pixels, int width, int firstRow, HdrFramebuffer hdr) {
+            this.tiles = tiles;
+            this.next = next;
+            this.pixels = pixels;
+            this.width = width;
+            this.firstRow = firstRow;
+            this.hdr = hdr;
+        }
+
+        @Override
+        protected void compute() {
+            int k;
+            while((k = next.getAndIncrement()) < tiles.size()) {
+                Tile tile = tiles.get(k);
+                traceTile(tile, pixels, (tile.getY() - firstRow)*width + tile.getX(), width, hdr);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.List;
+
+/**
+ * A TileScheduler splits an image into Tiles and decides the
+ * order in which they are handed to the render threads.
+ *
+ * @author Brendan Van Allen
+ */
+public interface TileScheduler {
+
+    /**
+     * Splits a band of full-width rows of an image into Tiles.
+     *
+     * @param width the width of the image in pixels
+     * @param firstRow the first row of the band
+     * @param rows the number of rows in the band, the whole height of the image to render all of it
+     * @param tileSize the preferred edge length of a Tile in pixels
+     * @return the Tiles covering the whole band, in the order they should be rendered
+     */
+    List<Tile> schedule(int width, int firstRow, int rows, int tileSize);
+}
@@ -0,0 +1,25 @@
+/**
+ * The wall time one render thread spent on one Tile.
+ *
+ * @author Brendan Van Allen
+ */
+public class TileTime {
+    private Tile tile;
+    private long nanos;
+
+    public TileTime(Tile tile, long nanos) {
+        this.tile = tile;
+        this.nanos = nanos;
+    }
+
+    public Tile getTile() {
+        return tile;
+    }
+
+    /**
+     * @return the time it took to trace the Tile, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The per-thread state of the allocation-free render path. Every render
+ * thread owns one TraceContext and reuses its ray and hit record for all
+ * of the pixels it traces.
+ *
+ * It also remembers the last Surface that blocked a shadow ray of the
+ * thread. Neighbouring pixels are usually shadowed by the same Surface, so
+ * testing it first answers most shadow rays without searching the scene.
+ *
+ * The counters of a render are striped the same way: every thread counts
+ * into the fields of its own context, so counting a ray is a plain
+ * increment with no atomic or shared cache line, and RenderStats adds the
+ * stripes up once the render is done.
+ *
+ * @author Brendan Van Allen
+ */
+public class TraceContext {
+    private static final ThreadLocal<TraceContext> CONTEXTS = ThreadLocal.withInitial(() -> new TraceContext(true));
+    private static final List<TraceContext> ALL = new CopyOnWriteArrayList<>(); // Contexts not yet collected by RenderStats
+
+    private final Thread owner = Thread.currentThread();
+
+    private ScratchRay ray = new ScratchRay();
+    private ScratchHit hit = new ScratchHit();
+    private RayPacket packet = new RayPacket();
+    private ScratchRay shadowRay = new ScratchRay();
+    private ScratchHit shadowHit = new ScratchHit();
+    private Surface lastOccluder;
+    private Surface sampleSurface;
+    private int[] sampleColors = new int[0];
+    private Surface[] sampleSurfaces = new Surface[0];
+    private double[] samplePositions = new double[0];
+    private RayQueue[] queues = new RayQueue[3];
+    private double[] radiance = new double[0];
+
+    // Counters of this thread, only written by the owning thread
+    long primaryRays;
+    long primaryHits;
+    long secondaryRays;
+    long secondaryHits;
+    long shadowRays;
+    long shadowsOccluded;
+    long shadowCacheHits;
+    long samples;
+    long sampledPixels;
+    long refinedPixels;
+    long[] bounceRays = new long[0];
+    List<TileTime> tileTimes = new ArrayList<>();
+
+    private TraceContext(boolean counted) {
+        if(counted) {
+            ALL.add(this);
+        }
+    }
+
+    /**
+     * Gets the TraceContext of the calling thread.
+     *
+     * @return the context, created the first time a thread asks for it
+     */
+    public static TraceContext current() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Creates a context of the calling thread whose counters RenderStats
+     * never sees, for rays that are not part of the image, like the
+     * pre-pass of the CostPredictedScheduler.
+     *
+     * @return the new context
+     */
+    static TraceContext uncounted() {
+        return new TraceContext(false);
+    }
+
+    /**
+     * Gets the contexts of every thread that has traced a ray. The contexts
+     * of threads that have ended are let go at the same time, so rendering
+     * again and again on new thread pools doesn't keep every context alive.
+     *
+     * @return the contexts
+     */
+    static List<TraceContext> takeAll() {
+        List<TraceContext> all = new ArrayList<>(ALL);
+        ALL.removeIf(context -> !context.owner.isAlive());
+        return all;
+    }
+
+    public ScratchRay getRay() {
+        return ray;
+    }
+
+    public ScratchHit getHit() {
+        return hit;
+    }
+
+    public RayPacket getPacket() {
+        return packet;
+    }
+
+    public ScratchRay getShadowRay() {
+        return shadowRay;
+    }
+
+    public ScratchHit getShadowHit() {
+        return shadowHit;
+    }
+
+    /**
+     * @return the Surface that blocked the last occluded shadow ray of this thread, or null
+     */
+    public Surface getLastOccluder() {
+        return lastOccluder;
+    }
+
+    public void setLastOccluder(Surface lastOccluder) {
+        this.lastOccluder = lastOccluder;
+    }
+
+    /**
+     * @return the Surface hit by the last sample of RayTracer.traceSample, null for the background
+     */
+    public Surface getSampleSurface() {
+        return sampleSurface;
+    }
+
+    public void setSampleSurface(Surface sampleSurface) {
+        this.sampleSurface = sampleSurface;
+    }
+
+    /**
+     * Gets the sample color buffer of this thread, growing it if needed.
+     *
+     * @param size the number of entries needed
+     * @return a buffer with at least size entries
+     */
+    public int[] getSampleColors(int size) {
+        if(sampleColors.length < size) {
+            sampleColors = new int[size];
+        }
+        return sampleColors;
+    }
+
+    /**
+     * Gets the sample Surface buffer of this thread, growing it if needed.
+     *
+     * @param size the number of entries needed
+     * @return a buffer with at least size entries
+     */
+    public Surface[] getSampleSurfaces(int size) {
+        if(sampleSurfaces.length < size) {
+            sampleSurfaces = new Surface[size];
+        }
+        return sampleSurfaces;
+    }
+
+    /**
+     * Gets the sample position buffer of this thread, growing it if needed.
+     *
+     * @param size the number of entries needed
+     * @return a buffer with at least size entries
+     */
+    public double[] getSamplePositions(int size) {
+        if(samplePositions.length < size) {
+            samplePositions = new double[size];
+        }
+        return samplePositions;
+    }
+
+    /**
+     * Gets one of the RayQueues of this thread.
+     *
+     * @param index the queue to get, 0 to 2
+     * @return the queue, created on first use
+     */
+    public RayQueue getQueue(int index) {
+        if(queues[index] == null) {
+            queues[index] = new RayQueue(1024);
+        }
+        return queues[index];
+    }
+
+    /**
+     * Gets the color accumulation buffer of this thread, growing it if needed.
+     *
+     * @param size the number of entries needed
+     * @return a buffer with at least size entries
+     */
+    public double[] getRadiance(int size) {
+        if(radiance.length < size) {
+            radiance = new double[size];
+        }
+        return radiance;
+    }
+
+    /**
+     * Counts the rays traced at one bounce of the WavefrontTracer.
+     *
+     * @param depth the bounce, 0 for viewing rays
+     * @param rays the number of rays
+     */
+    void countBounce(int depth, int rays) {
+        if(bounceRays.length <= depth) {
+            bounceRays = Arrays.copyOf(bounceRays, depth + 1);
+        }
+        bounceRays[depth] += rays;
+    }
+
+    /**
+     * Sets the counters back to zero once RenderStats has added them up.
+     */
+    void resetCounters() {
+        primaryRays = 0;
+        primaryHits = 0;
+        secondaryRays = 0;
+        secondaryHits = 0;
+        shadowRays = 0;
+        shadowsOccluded = 0;
+        shadowCacheHits = 0;
+        samples = 0;
+        sampledPixels = 0;
+        refinedPixels = 0;
+        bounceRays = new long[0];
+        tileTimes = new ArrayList<>();
+        ray.tests = 0;
+        packet.tests = 0;
+        shadowRay.tests = 0;
+    }
+
+    /**
+     * Records the wall time this thread spent on a Tile.
+     *
+     * @param tile the Tile that was traced
+     * @param nanos the time it took
+     */
+    void countTile(Tile tile, long nanos) {
+        tileTimes.add(new TileTime(tile, nanos));
+    }
+}
@@ -0,0 +1,406 @@
+import javax.vecmath.Vector3d;
+import java.util.Arrays;
+
+/**
+ * A Surface made of triangles, usually loaded from a Wavefront OBJ file by
+ * ObjLoader. Vertex data is kept in flat float arrays and the triangles in
+ * int arrays, and the triangles are held in a BVHTree so a ray only tests
+ * the few triangles whose boxes it passes through.
+ *
+ * Rays are intersected with the Moller-Trumbore algorithm. If the mesh has
+ * vertex normals, the normal at a hit is interpolated from them. Triangles
+ * that do not have a normal at every corner use their face normal.
+ *
+ * @author Brendan Van Allen
+ */
+public class TriangleMesh implements Surface {
+    private static final double EPSILON = 1e-9;
+
+    private float[] positions; // 3 per vertex
+    private float[] normals; // 3 per normal, or null
+    private float[] uvs; // 2 per texture coordinate, or null
+    private int[] triangles; // 3 position indices per triangle
+    private int[] triangleNormals; // 3 normal indices per triangle, -1 for none, or null
+    private int[] triangleUvs; // 3 texture coordinate indices per triangle, -1 for none, or null
+    private Material material;
+    private BVHTree tree;
+    private BoundingBox bounds; // Computed once, since every Instance of the mesh asks for it
+
+    /**
+     * Creates a mesh from flat arrays and builds its BVHTree. Indices are 0-based.
+     *
+     * @param positions x, y, z of every vertex
+     * @param normals x, y, z of every vertex normal, or null
+     * @param uvs u, v of every texture coordinate, or null
+     * @param triangles 3 position indices per triangle
+     * @param triangleNormals 3 normal indices per triangle (-1 for none), or null
+     * @param triangleUvs 3 texture coordinate indices per triangle (-1 for none), or null
+     * @param material the Material of the whole mesh
+     */
+    public TriangleMesh(float[] positions, float[] normals, float[] uvs, int[] triangles,
+                        int[] triangleNormals, int[] triangleUvs, Material material) {
+        this.positions = positions;
+        this.normals = normals;
+        this.uvs = uvs;
+        this.triangles = triangles;
+        this.triangleNormals = triangleNormals;
+        this.triangleUvs = triangleUvs;
+        this.material = material;
+
+        int count = getTriangleCount();
+        float[] primBounds = new float[6*count];
+        for(int t=0;t<count;t++) {
+            for(int a=0;a<3;a++) {
+                float p0 = positions[3*triangles[3*t] + a];
+                float p1 = positions[3*triangles[3*t + 1] + a];
+                float p2 = positions[3*triangles[3*t + 2] + a];
+                primBounds[6*t + a] = Math.min(p0, Math.min(p1, p2));
+                primBounds[6*t + 3 + a] = Math.max(p0, Math.max(p1, p2));
+            }
+        }
+        tree = BVHTree.build(primBounds, count, count >= BVH.PARALLEL_BUILD_SIZE);
+        bounds = computeBounds();
+    }
+
+    /*
+     * Creates a mesh with a tree that was built before, e.g. one read from a scene cache
+     */
+    TriangleMesh(float[] positions, float[] normals, float[] uvs, int[] triangles,
+                 int[] triangleNormals, int[] triangleUvs, Material material, BVHTree tree) {
+        this.positions = positions;
+        this.normals = normals;
+        this.uvs = uvs;
+        this.triangles = triangles;
+        this.triangleNormals = triangleNormals;
+        this.triangleUvs = triangleUvs;
+        this.material = material;
+        this.tree = tree;
+        bounds = computeBounds();
+    }
+
+    @Override
+    public HitRecord hit(Ray vr) {
+        ScratchRay ray = new ScratchRay();
+        ray.set(vr.getViewpoint().x, vr.getViewpoint().y, vr.getViewpoint().z,
+                vr.getDirection().x, vr.getDirection().y, vr.getDirection().z);
+        ScratchHit rec = new ScratchHit();
+        boolean found = hit(ray, rec);
+        vr.tests += ray.tests;
+        if(!found) {
+            return null;
+        }
+        return new HitRecord(rec.time, new Vector3d(rec.nx, rec.ny, rec.nz), new Vector3d(rec.px, rec.py, rec.pz), this);
+    }
+
+    @Override
+    public boolean hit(ScratchRay vr, ScratchHit rec) {
+        if(tree.getNodeCount() == 0) {
+            return false;
+        }
+
+        double invX = 1.0 / vr.dx;
+        double invY = 1.0 / vr.dy;
+        double invZ = 1.0 / vr.dz;
+
+        double closestT = Double.POSITIVE_INFINITY;
+        int closest = -1;
+        double minT = Math.max(vr.minT, EPSILON);
+
+        int[] stack = rec.stack;
+        double[] stackT = rec.stackT;
+        int top = 0;
+
+        int node = 0;
+        double nodeT = tree.entry(0, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+        while(true) {
+            if(nodeT <= closestT) {
+                if(tree.isLeaf(node)) {
+                    int first = tree.getFirstPrimitive(node);
+                    for(int k=first;k<first+tree.getPrimitiveCount(node);k++) {
+                        int t = tree.getPrimitive(k);
+                        double time = intersect(vr, t);
+                        if(time > minT && time < closestT) {
+                            closestT = time;
+                            closest = t;
+                        }
+                    }
+                } else {
+                    int left = node + 1;
+                    int right = tree.getRightChild(node);
+                    double leftT = tree.entry(left, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+                    double rightT = tree.entry(right, vr.ox, vr.oy, vr.oz, invX, invY, invZ);
+
+                    int far = right;
+                    double farT = rightT;
+                    if(rightT < leftT) {
+                        far = left;
+                        farT = leftT;
+                        node = right;
+                        nodeT = rightT;
+                    } else {
+                        node = left;
+                        nodeT = leftT;
+                    }
+                    if(farT != Double.POSITIVE_INFINITY) {
+                        if(top == stack.length) {
+                            stack = rec.stack = Arrays.copyOf(stack, 2*top);
+                            stackT = rec.stackT = Arrays.copyOf(stackT, 2*top);
+                        }
+                        stack[top] = far;
+                        stackT[top] = farT;
+                        top++;
+                    }
+                    if(nodeT != Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                }
+            }
+
+            if(top == 0) {
+                break;
+            }
+            top--;
+            node = stack[top];
+            nodeT = stackT[top];
+        }
+
+        if(closest < 0) {
+            return false;
+        }
+        fill(vr, closest, closestT, rec);
+        return true;
+    }
+
+    @Override
+    public boolean occluded(ScratchRay ray, double maxT, ScratchHit rec) {
+        if(tree.getNodeCount() == 0) {
+            return false;
+        }
+
+        double invX = 1.0 / ray.dx;
+        double invY = 1.0 / ray.dy;
+        double invZ = 1.0 / ray.dz;
+
+        // Any blocker will do, so nodes are visited in stack order instead of nearest first
+        int[] stack = rec.stack;
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0) {
+            int node = stack[--top];
+            if(tree.entry(node, ray.ox, ray.oy, ray.oz, invX, invY, invZ) > maxT) {
+                continue;
+            }
+            if(tree.isLeaf(node)) {
+                int first = tree.getFirstPrimitive(node);
+                for(int k=first;k<first+tree.getPrimitiveCount(node);k++) {
+                    double time = intersect(ray, tree.getPrimitive(k));
+                    if(time > SHADOW_EPSILON && time < maxT) {
+                        rec.surface = this;
+                        return true;
+                    }
+                }
+            } else {
+                if(top + 2 > stack.length) {
+                    stack = rec.stack = Arrays.copyOf(stack, 2*stack.length);
+                }
+                stack[top++] = tree.getRightChild(node);
+                stack[top++] = node + 1;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public BoundingBox boundingBox() {
+        return bounds;
+    }
+
+    /*
+     * Helper method to compute the box around every vertex
+     */
+    private BoundingBox computeBounds() {
+        if(positions.length == 0) {
+            return null;
+        }
+        Vector3d min = new Vector3d(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+        Vector3d max = new Vector3d(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        for(int k=0;k<positions.length;k+=3) {
+            min.x = Math.min(min.x, positions[k]);
+            min.y = Math.min(min.y, positions[k + 1]);
+            min.z = Math.min(min.z, positions[k + 2]);
+            max.x = Math.max(max.x, positions[k]);
+            max.y = Math.max(max.y, positions[k + 1]);
+            max.z = Math.max(max.z, positions[k + 2]);
+        }
+        return new BoundingBox(min, max);
+    }
+
+    @Override
+    public Material getMaterial() {
+        return material;
+    }
+
+    // The raw arrays, for SceneCache
+    float[] getPositions() {
+        return positions;
+    }
+
+    float[] getNormals() {
+        return normals;
+    }
+
+    float[] getUvs() {
+        return uvs;
+    }
+
+    int[] getTriangles() {
+        return triangles;
+    }
+
+    int[] getTriangleNormals() {
+        return triangleNormals;
+    }
+
+    int[] getTriangleUvs() {
+        return triangleUvs;
+    }
+
+    BVHTree getTree() {
+        return tree;
+    }
+
+    public int getTriangleCount() {
+        return triangles.length / 3;
+    }
+
+    public int getVertexCount() {
+        return positions.length / 3;
+    }
+
+    /**
+     * @return the number of bytes used by the vertex, index and BVH arrays
+     */
+    public long getMemoryUsage() {
+        long bytes = 4L * (positions.length + triangles.length);
+        bytes += normals == null ? 0 : 4L * normals.length;
+        bytes += uvs == null ? 0 : 4L * uvs.length;
+        bytes += triangleNormals == null ? 0 : 4L * triangleNormals.length;
+        bytes += triangleUvs == null ? 0 : 4L * triangleUvs.length;
+        return bytes + tree.getMemoryUsage();
+    }
+
+    /*
+     * Intersects the ray with triangle t using Moller-Trumbore: solves e + t*d = a + u*(b-a) + v*(c-a).
+     * Returns the time of the hit, or NaN if the ray misses the triangle.
+     */
+    private double intersect(ScratchRay vr, int t) {
+        vr.tests++;
+        int a = 3*triangles[3*t];
+        int b = 3*triangles[3*t + 1];
+        int c = 3*triangles[3*t + 2];
+
+        double e1x = positions[b] - positions[a];
+        double e1y = positions[b + 1] - positions[a + 1];
+        double e1z = positions[b + 2] - positions[a + 2];
+        double e2x = positions[c] - positions[a];
+        double e2y = positions[c + 1] - positions[a + 1];
+        double e2z = positions[c + 2] - positions[a + 2];
+
+        double px = vr.dy * e2z - vr.dz * e2y; // d x e2
+        double py = vr.dz * e2x - vr.dx * e2z;
+        double pz = vr.dx * e2y - vr.dy * e2x;
+        double det = e1x * px + e1y * py + e1z * pz;
+        if(det > -EPSILON && det < EPSILON) {
+            return Double.NaN; // Ray is parallel to the triangle
+        }
+        double invDet = 1.0 / det;
+
+        double sx = vr.ox - positions[a];
+        double sy = vr.oy - positions[a + 1];
+        double sz = vr.oz - positions[a + 2];
+        double u = (sx * px + sy * py + sz * pz) * invDet;
+        if(u < 0 || u > 1) {
+            return Double.NaN;
+        }
+
+        double qx = sy * e1z - sz * e1y; // s x e1
+        double qy = sz * e1x - sx * e1z;
+        double qz = sx * e1y - sy * e1x;
+        double v = (vr.dx * qx + vr.dy * qy + vr.dz * qz) * invDet;
+        if(v < 0 || u + v > 1) {
+            return Double.NaN;
+        }
+
+        return (e2x * qx + e2y * qy + e2z * qz) * invDet;
+    }
+
+    /*
+     * Fills in the hit point and the normal of triangle t
+     */
+    private void fill(ScratchRay vr, int t, double time, ScratchHit rec) {
+        rec.time = time;
+        rec.px = vr.ox + vr.dx * time;
+        rec.py = vr.oy + vr.dy * time;
+        rec.pz = vr.oz + vr.dz * time;
+        rec.surface = this;
+
+        double nx;
+        double ny;
+        double nz;
+        if(triangleNormals != null && triangleNormals[3*t] >= 0 && triangleNormals[3*t + 1] >= 0
+                && triangleNormals[3*t + 2] >= 0) {
+            // Recompute the barycentric coordinates (u, v) of the hit the same way intersect does
+            int a = 3*triangles[3*t];
+            int b = 3*triangles[3*t + 1];
+            int c = 3*triangles[3*t + 2];
+            double e1x = positions[b] - positions[a];
+            double e1y = positions[b + 1] - positions[a + 1];
+            double e1z = positions[b + 2] - positions[a + 2];
+            double e2x = positions[c] - positions[a];
+            double e2y = positions[c + 1] - positions[a + 1];
+            double e2z = positions[c + 2] - positions[a + 2];
+            double px = vr.dy * e2z - vr.dz * e2y;
+            double py = vr.dz * e2x - vr.dx * e2z;
+            double pz = vr.dx * e2y - vr.dy * e2x;
+            double invDet = 1.0 / (e1x * px + e1y * py + e1z * pz);
+            double sx = vr.ox - positions[a];
+            double sy = vr.oy - positions[a + 1];
+            double sz = vr.oz - positions[a + 2];
+            double u = (sx * px + sy * py + sz * pz) * invDet;
+            double v = (vr.dx * (sy * e1z - sz * e1y) + vr.dy * (sz * e1x - sx * e1z) + vr.dz * (sx * e1y - sy * e1x)) * invDet;
+
+            // Interpolate the vertex normals
+            int n0 = 3*triangleNormals[3*t];
+            int n1 = 3*triangleNormals[3*t + 1];
+            int n2 = 3*triangleNormals[3*t + 2];
+            double w = 1 - u - v;
+            nx = w * normals[n0] + u * normals[n1] + v * normals[n2];
+            ny = w * normals[n0 + 1] + u * normals[n1 + 1] + v * normals[n2 + 1];
+            nz = w * normals[n0 + 2] + u * normals[n1 + 2] + v * normals[n2 + 2];
+        } else {
+            // Face normal, turned towards the viewer
+            int a = 3*triangles[3*t];
+            int b = 3*triangles[3*t + 1];
+            int c = 3*triangles[3*t + 2];
+            double e1x = positions[b] - positions[a];
+            double e1y = positions[b + 1] - positions[a + 1];
+            double e1z = positions[b + 2] - positions[a + 2];
+            double e2x = positions[c] - positions[a];
+            double e2y = positions[c + 1] - positions[a + 1];
+            double e2z = positions[c + 2] - positions[a + 2];
+            nx = e1y * e2z - e1z * e2y;
+            ny = e1z * e2x - e1x * e2z;
+            nz = e1x * e2y - e1y * e2x;
+            if(nx * vr.dx + ny * vr.dy + nz * vr.dz > 0) {
+                nx = -nx;
+                ny = -ny;
+                nz = -nz;
+            }
+        }
+
+        double norm = 1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz);
+        rec.nx = nx * norm;
+        rec.ny = ny * norm;
+        rec.nz = nz * norm;
+    }
+}
@@ -0,0 +1,204 @@
+import javax.vecmath.Vector3d;
+import java.awt.Color;
+
+/**
+ * Traces a tile breadth first instead of one pixel at a time. The viewing
+ * rays of every pixel in the tile are generated into a RayQueue, sorted
+ * by direction and viewpoint, and intersected as one batch. Every hit is
+ * shaded and spawns a mirror reflection ray into the queue of the next
+ * bounce, which is sorted and traced the same way, so the incoherent
+ * secondary rays are traced in an order that keeps the same part of the
+ * scene in cache.
+ *
+ * A reflection is weighted by the specular color, which is gray. After the
+ * Russian roulette bounce a ray only survives with a probability equal to
+ * its largest weight, and the rays that survive are weighted up by the
+ * same amount. Its random numbers come from SampleHash, so the image
+ * doesn't depend on how the tiles were split among threads.
+ *
+ * With a maximum depth of 0 only the viewing rays are traced, and the
+ * image is identical to the one of the other render paths.
+ *
+ * @author Brendan Van Allen
+ */
+public class WavefrontTracer {
+    private static final double REFLECTANCE = Color.GRAY.getRed() / 255.0;
+    private static final double REFLECTION_EPSILON = 1e-6;
+
+    private Scene scene;
+    private Surface surfaces;
+    private BoundingBox bounds;
+    private int maxDepth;
+    private int rouletteDepth;
+    private boolean shadows;
+
+    /**
+     * @param scene the Scene to render
+     * @param surfaces the Surfaces rays are tested against
+     * @param options the depth, Russian roulette and shadow settings to use
+     */
+    public WavefrontTracer(Scene scene, Surface surfaces, RenderOptions options) {
+        this.scene = scene;
+        this.surfaces = surfaces;
+        this.bounds = surfaces.boundingBox();
+        this.maxDepth = options.getMaxDepth();
+        this.rouletteDepth = options.getRouletteDepth();
+        this.shadows = options.isShadows();
+    }
+
+    /**
+     * Renders a rectangle of pixels.
+     *
+     * @param x the first column of the rectangle
+     * @param y the first row of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param out the array the RGB values are written to
+     * @param offset the index in out of the pixel at (x, y)
+     * @param stride the distance in out between two rows
+     * @param context the TraceContext of the calling thread
+     */
+    public void traceTile(int x, int y, int w, int h, int[] out, int offset, int stride, TraceContext context) {
+        double[] radiance = trace(x, y, w, h, context);
+        for(int j=0;j<h;j++) {
+            for(int i=0;i<w;i++) {
+                int p = 3*(j*w + i);
+                out[offset + j*stride + i] = 0xFF000000 | (RayTracer.toChannel(radiance[p]) << 16)
+                        | (RayTracer.toChannel(radiance[p + 1]) << 8) | RayTracer.toChannel(radiance[p + 2]);
+            }
+        }
+    }
+
+    /**
+     * Renders a rectangle of pixels into an HdrFramebuffer, without clamping them.
+     *
+     * @param x the first column of the rectangle
+     * @param y the first row of the rectangle
+     * @param w the width of the rectangle
+     * @param h the height of the rectangle
+     * @param hdr the framebuffer the colors are added to
+     * @param context the TraceContext of the calling thread
+     */
+    public void traceTile(int x, int y, int w, int h, HdrFramebuffer hdr, TraceContext context) {
+        double[] radiance = trace(x, y, w, h, context);
+        for(int j=0;j<h;j++) {
+            for(int i=0;i<w;i++) {
+                int p = 3*(j*w + i);
+                hdr.add(x + i, y + j, radiance[p], radiance[p + 1], radiance[p + 2], 1);
+            }
+        }
+    }
+
+    /*
+     * Traces every bounce of a rectangle and returns the radiance buffer of the
+     * context, holding the RGB of every pixel in row-major order
+     */
+    private double[] trace(int x, int y, int w, int h, TraceContext context) {
+        ScratchRay ray = context.getRay();
+        ScratchHit hit = context.getHit();
+        double[] rgb = hit.rgb;
+        double[] radiance = context.getRadiance(3*w*h);
+        RayQueue current = context.getQueue(0);
+        RayQueue sorted = context.getQueue(1);
+        RayQueue next = context.getQueue(2);
+
+        Camera camera = scene.getCamera();
+        current.clear();
+        for(int j=y;j<y+h;j++) {
+            for(int i=x;i<x+w;i++) {
+                camera.computeViewingRay(i, j, ray);
+                current.add(ray.ox, ray.oy, ray.oz, ray.dx, ray.dy, ray.dz, 1, 1, 1, (j - y)*w + i - x);
+            }
+        }
+        for(int k=0;k<3*w*h;k++) {
+            radiance[k] = 0;
+        }
+
+        Color background = scene.BACKGROUND_COLOR;
+        double backgroundRed = background.getRed() / 255.0;
+        double backgroundGreen = background.getGreen() / 255.0;
+        double backgroundBlue = background.getBlue() / 255.0;
+        Vector3d viewpoint = camera.getViewpoint();
+
+        for(int depth=0;current.count>0;depth++) {
+            context.countBounce(depth, current.count);
+            if(depth == 0) {
+                context.primaryRays += current.count;
+            } else {
+                context.secondaryRays += current.count;
+            }
+            current.sortInto(bounds, sorted);
+            next.clear();
+
+            for(int k=0;k<sorted.count;k++) {
+                int p = 3*sorted.pixel[k];
+                double wr = sorted.weightRed[k], wg = sorted.weightGreen[k], wb = sorted.weightBlue[k];
+                if(depth == 0) {
+                    ray.set(sorted.ox[k], sorted.oy[k], sorted.oz[k], sorted.dx[k], sorted.dy[k], sorted.dz[k]);
+                } else {
+                    ray.set(sorted.ox[k], sorted.oy[k], sorted.oz[k], sorted.dx[k], sorted.dy[k], sorted.dz[k],
+                            REFLECTION_EPSILON);
+                }
+
+                if(!surfaces.hit(ray, hit)) {
+                    radiance[p] += wr * backgroundRed;
+                    radiance[p + 1] += wg * backgroundGreen;
+                    radiance[p + 2] += wb * backgroundBlue;
+                    continue;
+                }
+                if(depth == 0) {
+                    context.primaryHits++;
+                } else {
+                    context.secondaryHits++;
+                }
+
+                // Viewing rays are shaded from the camera, reflections from where they start
+                boolean inShadow = shadows && RayTracer.inShadow(scene, surfaces, hit.px, hit.py, hit.pz, context);
+                if(depth == 0) {
+                    RayTracer.shade(scene, hit, viewpoint.x, viewpoint.y, viewpoint.z, inShadow, rgb);
+                } else {
+                    RayTracer.shade(scene, hit, ray.ox, ray.oy, ray.oz, inShadow, rgb);
+                }
+                radiance[p] += wr * rgb[0];
+                radiance[p + 1] += wg * rgb[1];
+                radiance[p + 2] += wb * rgb[2];
+
+                if(depth < maxDepth) {
+                    spawnReflection(ray, hit, wr, wg, wb, sorted.pixel[k], depth + 1, x, y, w, next);
+                }
+            }
+
+            RayQueue done = current;
+            current = next;
+            next = done;
+        }
+        return radiance;
+    }
+
+    /*
+     * Helper method to queue the mirror reflection of a ray at a hit, unless Russian roulette ends it
+     */
+    private void spawnReflection(ScratchRay ray, ScratchHit hit, double wr, double wg, double wb, int pixel,
+                                 int depth, int x, int y, int w, RayQueue next) {
+        wr *= REFLECTANCE;
+        wg *= REFLECTANCE;
+        wb *= REFLECTANCE;
+        if(depth >= rouletteDepth) {
+            double survival = Math.min(1, Math.max(wr, Math.max(wg, wb)));
+            if(survival <= 0 || SampleHash.uniform(x + pixel % w, y + pixel / w, depth) >= survival) {
+                return;
+            }
+            wr /= survival;
+            wg /= survival;
+            wb /= survival;
+        }
+
+        // r = d - 2(d . n)n, normalized
+        double dDotN = ray.dx * hit.nx + ray.dy * hit.ny + ray.dz * hit.nz;
+        double rx = ray.dx - 2 * dDotN * hit.nx;
+        double ry = ray.dy - 2 * dDotN * hit.ny;
+        double rz = ray.dz - 2 * dDotN * hit.nz;
+        double norm = 1.0 / Math.sqrt(rx*rx + ry*ry + rz*rz);
+        next.add(hit.px, hit.py, hit.pz, rx * norm, ry * norm, rz * norm, wr, wg, wb, pixel);
+    }
+}